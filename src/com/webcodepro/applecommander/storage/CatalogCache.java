@@ -0,0 +1,577 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2002 by Robert Greene
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A persistent catalog of disk images, so that an image which has not
+ * changed can be listed without reading it.
+ * <p>
+ * The catalog is a file of records which are only ever appended to.  Each
+ * record is keyed by the image name and holds the size, modification time
+ * and CRC-32 of the image file along with what was found in it: the order,
+ * format, disk information and the full listing of every volume, or the
+ * error which stopped the image from being read.  A later record for the
+ * same name replaces an earlier one.  When an image has the same size and
+ * modification time as its record, the record is used as is; when only the
+ * modification time differs, the CRC-32 decides, and a matching record is
+ * appended again with the new time.  A damaged record at the end of the
+ * file (say, from an interrupted run) is ignored, and the file is rewritten
+ * without the replaced records once they make up most of it.
+ * <p>
+ * An image within a zip file is checked against its own zip entry, whose
+ * size, time and CRC-32 are read from the zip directory, so neither the
+ * zip file nor the image need be read to tell whether it has changed.
+ */
+public class CatalogCache {
+	private static final int MAGIC = 0x41434331;	// "ACC1"
+	/** The display modes kept for each file. */
+	private static final int[] DISPLAY_MODES = {
+		FormattedDisk.FILE_DISPLAY_STANDARD,
+		FormattedDisk.FILE_DISPLAY_NATIVE,
+		FormattedDisk.FILE_DISPLAY_DETAIL
+	};
+	private File file;
+	private Map<String,Entry> entries = new HashMap<String,Entry>();
+	private DataOutputStream output;
+	private int records;
+
+	/**
+	 * Open the catalog, reading in any records it already has.
+	 */
+	public CatalogCache(File file) throws IOException {
+		this.file = file;
+		if (file.exists()) {
+			load();
+		}
+		if (records > 2 * entries.size() + 100) {
+			compact();
+		}
+		output = openOutput(true);
+	}
+
+	/**
+	 * Answer with the catalog entry for the image, or null if the image is
+	 * not in the catalog or has changed since.
+	 */
+	public Entry lookup(String imageName) throws IOException {
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(imageName);
+		}
+		if (entry == null) {
+			return null;
+		}
+		Fingerprint fingerprint = Fingerprint.of(imageName);
+		if (fingerprint == null || !fingerprint.matches(entry.size, entry.modified, entry.crc)) {
+			return null;
+		}
+		if (fingerprint.getModified() != entry.modified) {
+			entry.modified = fingerprint.getModified();
+			append(entry);
+		}
+		return entry;
+	}
+
+	/**
+	 * Catalog the volumes of an image, replacing what was there before.
+	 */
+	public Entry add(String imageName, FormattedDisk[] formattedDisks) throws IOException {
+		Entry entry = createEntry(imageName);
+		for (int i = 0; i < formattedDisks.length; i++) {
+			entry.volumes.add(new Volume(formattedDisks[i]));
+		}
+		append(entry);
+		return entry;
+	}
+
+	/**
+	 * Catalog an image which could not be read, so that it need not be
+	 * tried again until it changes.
+	 */
+	public Entry addError(String imageName, String error) throws IOException {
+		Entry entry = createEntry(imageName);
+		entry.error = error;
+		append(entry);
+		return entry;
+	}
+
+	/**
+	 * Close the catalog file.
+	 */
+	public synchronized void close() throws IOException {
+		output.close();
+	}
+
+	/**
+	 * Create an entry for the image as it is now.  The file information is
+	 * taken before the image is read, so a change made while it is being
+	 * read shows up the next time.
+	 */
+	protected Entry createEntry(String imageName) throws IOException {
+		Fingerprint fingerprint = Fingerprint.of(imageName);
+		if (fingerprint == null) {
+			throw new FileNotFoundException(imageName);
+		}
+		Entry entry = new Entry();
+		entry.imageName = imageName;
+		entry.size = fingerprint.getSize();
+		entry.modified = fingerprint.getModified();
+		entry.crc = fingerprint.getCrc();
+		return entry;
+	}
+
+	/**
+	 * The file which holds the image: either the image file itself or the
+	 * zip file it is in.
+	 */
+	public static File getImageFile(String imageName) {
+		int separator = imageName.indexOf(Disk.ZIP_SEPARATOR);
+		if (separator > 0 && Disk.isZipName(imageName.substring(0, separator))) {
+			return new File(imageName.substring(0, separator));
+		}
+		return new File(imageName);
+	}
+
+	/**
+	 * Compute the CRC-32 of a whole file.
+	 */
+	public static long computeCrc(File imageFile) throws IOException {
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[65536];
+		InputStream input = new FileInputStream(imageFile);
+		try {
+			int count;
+			while ((count = input.read(buffer)) > 0) {
+				crc.update(buffer, 0, count);
+			}
+		} finally {
+			input.close();
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * The size, modification time and CRC-32 which tell whether an image has
+	 * changed.  An image file is measured as a whole, and its CRC-32 is only
+	 * worked out when it is asked for.  An image within a zip file is
+	 * measured by its zip entry, all of which the zip directory holds.
+	 */
+	public static class Fingerprint {
+		private File imageFile;
+		private long size;
+		private long modified;
+		private long crc = -1;
+
+		/**
+		 * Measure the image, answering null if it does not exist.
+		 */
+		public static Fingerprint of(String imageName) throws IOException {
+			Fingerprint fingerprint = new Fingerprint();
+			File imageFile = getImageFile(imageName);
+			if (!imageFile.exists()) {
+				return null;
+			}
+			int separator = imageName.indexOf(Disk.ZIP_SEPARATOR);
+			if (separator <= 0 || !Disk.isZipName(imageName.substring(0, separator))) {
+				fingerprint.imageFile = imageFile;
+				fingerprint.size = imageFile.length();
+				fingerprint.modified = imageFile.lastModified();
+				return fingerprint;
+			}
+			String entryName = imageName.substring(separator + Disk.ZIP_SEPARATOR.length());
+			ZipFile zipFile = new ZipFile(imageFile);
+			try {
+				ZipEntry entry = zipFile.getEntry(entryName);
+				if (entry == null) {
+					return null;
+				}
+				fingerprint.size = entry.getSize();
+				fingerprint.modified = entry.getTime();
+				fingerprint.crc = entry.getCrc();
+			} finally {
+				zipFile.close();
+			}
+			return fingerprint;
+		}
+
+		public long getSize() {
+			return size;
+		}
+		public long getModified() {
+			return modified;
+		}
+		public long getCrc() throws IOException {
+			if (crc == -1) {
+				crc = computeCrc(imageFile);
+			}
+			return crc;
+		}
+
+		/**
+		 * Indicates if the image is the same as when it was measured before:
+		 * the sizes agree, and so do either the modification times or the
+		 * CRC-32s.  The CRC-32 of an image in a zip file costs nothing, so
+		 * it is always compared.
+		 */
+		public boolean matches(long size, long modified, long crc) throws IOException {
+			if (this.size != size) {
+				return false;
+			}
+			if (imageFile == null) {
+				return this.crc == crc;
+			}
+			return this.modified == modified || getCrc() == crc;
+		}
+	}
+
+	/**
+	 * Write a record to the end of the catalog.  The record is prefixed by
+	 * its length, so that a partly written record can be recognized.
+	 */
+	protected synchronized void append(Entry entry) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		entry.write(new DataOutputStream(buffer));
+		output.writeInt(buffer.size());
+		buffer.writeTo(output);
+		output.flush();
+		entries.put(entry.imageName, entry);
+		records++;
+	}
+
+	/**
+	 * Read all of the records in the catalog, stopping at the first one
+	 * which is incomplete.  Anything after the last complete record is cut
+	 * off, so that new records follow straight on from it.
+	 */
+	protected void load() throws IOException {
+		long length = file.length();
+		long position = 0;
+		DataInputStream input = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (input.readInt() != MAGIC) {
+				throw new IOException(StorageBundle.getInstance().format(
+						"CatalogCache.NotACatalog", file.getPath())); //$NON-NLS-1$
+			}
+			position = 4;
+			while (position + 4 <= length) {
+				int recordLength = input.readInt();
+				if (recordLength < 0 || position + 4 + recordLength > length) {
+					break;
+				}
+				byte[] record = new byte[recordLength];
+				input.readFully(record);
+				Entry entry = Entry.read(new DataInputStream(
+						new ByteArrayInputStream(record)));
+				entries.put(entry.imageName, entry);
+				records++;
+				position+= 4 + recordLength;
+			}
+		} catch (EOFException e) {
+			// A record cut short
+		} finally {
+			input.close();
+		}
+		if (position < length) {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw"); //$NON-NLS-1$
+			try {
+				raf.setLength(position);
+			} finally {
+				raf.close();
+			}
+		}
+	}
+
+	/**
+	 * Rewrite the catalog with only the current record for each image.
+	 */
+	protected void compact() throws IOException {
+		File temp = new File(file.getPath() + ".tmp"); //$NON-NLS-1$
+		File original = file;
+		file = temp;
+		output = openOutput(false);
+		List<Entry> current = new ArrayList<Entry>(entries.values());
+		records = 0;
+		for (Entry entry : current) {
+			append(entry);
+		}
+		output.close();
+		file = original;
+		if (!file.delete() || !temp.renameTo(file)) {
+			throw new IOException(StorageBundle.getInstance().format(
+					"CatalogCache.CompactError", file.getPath())); //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * Open the catalog for writing, starting it off if it is new.
+	 */
+	protected DataOutputStream openOutput(boolean append) throws IOException {
+		boolean isNew = !append || !file.exists() || file.length() == 0;
+		DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file, append)));
+		if (isNew) {
+			stream.writeInt(MAGIC);
+			stream.flush();
+		}
+		return stream;
+	}
+
+	/**
+	 * What is known about one image.
+	 */
+	public static class Entry {
+		private String imageName;
+		private long size;
+		private long modified;
+		private long crc;
+		private String error;
+		private List<Volume> volumes = new ArrayList<Volume>();
+
+		public String getImageName() {
+			return imageName;
+		}
+		/**
+		 * The error which stopped the image from being read, or null.
+		 */
+		public String getError() {
+			return error;
+		}
+		public List<Volume> getVolumes() {
+			return Collections.unmodifiableList(volumes);
+		}
+
+		protected void write(DataOutputStream out) throws IOException {
+			out.writeUTF(imageName);
+			out.writeLong(size);
+			out.writeLong(modified);
+			out.writeLong(crc);
+			out.writeBoolean(error != null);
+			if (error != null) out.writeUTF(error);
+			out.writeInt(volumes.size());
+			for (Volume volume : volumes) {
+				volume.write(out);
+			}
+		}
+
+		protected static Entry read(DataInputStream in) throws IOException {
+			Entry entry = new Entry();
+			entry.imageName = in.readUTF();
+			entry.size = in.readLong();
+			entry.modified = in.readLong();
+			entry.crc = in.readLong();
+			if (in.readBoolean()) entry.error = in.readUTF();
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				entry.volumes.add(Volume.read(in));
+			}
+			return entry;
+		}
+	}
+
+	/**
+	 * What is known about one volume on an image.
+	 */
+	public static class Volume {
+		private String orderName;
+		private String format;
+		private String diskName;
+		private int freeSpace;
+		private int usedSpace;
+		private int fileCount;
+		/** The disk information, as label and value. */
+		private Map<String,String> diskInformation = new LinkedHashMap<String,String>();
+		private List<CatalogFile> files = new ArrayList<CatalogFile>();
+
+		protected Volume() {
+		}
+
+		/**
+		 * Catalog a volume, walking all of its directories.
+		 */
+		public Volume(FormattedDisk formattedDisk) {
+			orderName = formattedDisk.getOrderName();
+			format = formattedDisk.getFormat();
+			diskName = formattedDisk.getDiskName();
+			freeSpace = formattedDisk.getFreeSpace();
+			usedSpace = formattedDisk.getUsedSpace();
+			for (FormattedDisk.DiskInformation info : formattedDisk.getDiskInformation()) {
+				diskInformation.put(info.getLabel(), info.getValue() == null ? "" : info.getValue()); //$NON-NLS-1$
+			}
+			List<FileEntry> list = formattedDisk.getFiles();
+			if (list != null) {
+				addFiles(list, 0);
+			}
+		}
+
+		private void addFiles(List<FileEntry> list, int depth) {
+			for (FileEntry entry : list) {
+				if (!entry.isDeleted()) {
+					CatalogFile file = new CatalogFile();
+					file.depth = depth;
+					for (int i = 0; i < DISPLAY_MODES.length; i++) {
+						file.columns.add(entry.getFileColumnData(DISPLAY_MODES[i]));
+					}
+					files.add(file);
+					if (!entry.isDirectory()) fileCount++;
+				}
+				if (entry.isDirectory()) {
+					addFiles(((DirectoryEntry) entry).getFiles(), depth + 1);
+				}
+			}
+		}
+
+		public String getOrderName() {
+			return orderName;
+		}
+		public String getFormat() {
+			return format;
+		}
+		public String getDiskName() {
+			return diskName;
+		}
+		public int getFreeSpace() {
+			return freeSpace;
+		}
+		public int getUsedSpace() {
+			return usedSpace;
+		}
+		/**
+		 * The number of files on the volume, not counting directories.
+		 */
+		public int getFileCount() {
+			return fileCount;
+		}
+		/**
+		 * The disk information of the volume, as label and value.
+		 */
+		public Map<String,String> getDiskInformation() {
+			return Collections.unmodifiableMap(diskInformation);
+		}
+		/**
+		 * Every file listed on the volume, in directory order with the
+		 * contents of a directory following it.
+		 */
+		public List<CatalogFile> getFiles() {
+			return Collections.unmodifiableList(files);
+		}
+
+		protected void write(DataOutputStream out) throws IOException {
+			out.writeUTF(orderName);
+			out.writeUTF(format);
+			out.writeUTF(diskName);
+			out.writeInt(freeSpace);
+			out.writeInt(usedSpace);
+			out.writeInt(fileCount);
+			out.writeInt(diskInformation.size());
+			for (Map.Entry<String,String> info : diskInformation.entrySet()) {
+				out.writeUTF(info.getKey());
+				out.writeUTF(info.getValue());
+			}
+			out.writeInt(files.size());
+			for (CatalogFile file : files) {
+				out.writeShort(file.depth);
+				for (List<String> columns : file.columns) {
+					out.writeShort(columns.size());
+					for (String column : columns) {
+						out.writeUTF(column == null ? "" : column); //$NON-NLS-1$
+					}
+				}
+			}
+		}
+
+		protected static Volume read(DataInputStream in) throws IOException {
+			Volume volume = new Volume();
+			volume.orderName = in.readUTF();
+			volume.format = in.readUTF();
+			volume.diskName = in.readUTF();
+			volume.freeSpace = in.readInt();
+			volume.usedSpace = in.readInt();
+			volume.fileCount = in.readInt();
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				volume.diskInformation.put(in.readUTF(), in.readUTF());
+			}
+			count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				CatalogFile file = new CatalogFile();
+				file.depth = in.readShort();
+				for (int m = 0; m < DISPLAY_MODES.length; m++) {
+					int columns = in.readShort();
+					List<String> list = new ArrayList<String>(columns);
+					for (int c = 0; c < columns; c++) {
+						list.add(in.readUTF());
+					}
+					file.columns.add(list);
+				}
+				volume.files.add(file);
+			}
+			return volume;
+		}
+	}
+
+	/**
+	 * One line of a volume listing.
+	 */
+	public static class CatalogFile {
+		private int depth;
+		private List<List<String>> columns = new ArrayList<List<String>>(DISPLAY_MODES.length);
+
+		/**
+		 * How many directories down the file is.
+		 */
+		public int getDepth() {
+			return depth;
+		}
+		/**
+		 * The file column data for the given FormattedDisk display mode.
+		 */
+		public List<String> getFileColumnData(int displayMode) {
+			for (int i = 0; i < DISPLAY_MODES.length; i++) {
+				if (DISPLAY_MODES[i] == displayMode) return columns.get(i);
+			}
+			return columns.get(0);
+		}
+	}
+}
@@ -0,0 +1,216 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2002 by Robert Greene
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import com.webcodepro.applecommander.util.TextBundle;
+
+/**
+ * Base class for finding (and recovering) deleted files.
+ * <p>
+ * A scanner looks for deleted directory entries whose structure is still
+ * on disk, works out the units the file used, and checks them against the
+ * packed usage bitmap and the ownership map of the live files.  A file can
+ * be restored in place only when every unit is still free; otherwise, what
+ * is left of it can be copied to another disk.
+ */
+public abstract class DeletedFileScanner {
+	/** Images scanned by one task before it is split up. */
+	private static final int IMAGES_PER_TASK = 1;
+	private TextBundle textBundle = StorageBundle.getInstance();
+
+	/**
+	 * Find all deleted files which can still be located.
+	 */
+	public abstract List<RecoveryCandidate> scan();
+
+	/**
+	 * Read the data of a deleted file, in the same form as
+	 * FileEntry.getFileData would give for the live file.
+	 */
+	public abstract byte[] getFileData(RecoveryCandidate candidate);
+
+	/**
+	 * Get the load address of a deleted file, or -1 if there is none.
+	 */
+	public abstract int getAddress(RecoveryCandidate candidate);
+
+	/**
+	 * Restore a deleted file in place.  Only intact candidates can be
+	 * restored; the disk still needs to be saved.
+	 * @return the restored FileEntry
+	 */
+	public FileEntry restore(RecoveryCandidate candidate) {
+		if (!candidate.isIntact()) {
+			throw new IllegalStateException(textBundle.format(
+				"DeletedFileScanner.NotIntactError", candidate.getFilename())); //$NON-NLS-1$
+		}
+		return restoreEntry(candidate);
+	}
+
+	/**
+	 * Mark the directory entry and units of an intact candidate as in use.
+	 */
+	protected abstract FileEntry restoreEntry(RecoveryCandidate candidate);
+
+	/**
+	 * Copy what can be recovered of a deleted file onto another disk.  If
+	 * the target does not know the filetype, the suggested filetype for the
+	 * filename is used instead.  The target disk still needs to be saved.
+	 * @return the new FileEntry on the target disk
+	 */
+	public FileEntry copyTo(RecoveryCandidate candidate, FormattedDisk target)
+			throws DiskFullException {
+		if (candidate.getFileEntry().isDirectory()) {
+			throw new IllegalArgumentException(textBundle.format(
+				"DeletedFileScanner.DirectoryCopyError", candidate.getFilename())); //$NON-NLS-1$
+		}
+		String filename = candidate.getFilename();
+		filename = filename.substring(filename.lastIndexOf('/') + 1);
+		String filetype = candidate.getFiletype();
+		if (!Arrays.asList(target.getFiletypes()).contains(filetype)) {
+			filetype = target.getSuggestedFiletype(filename);
+		}
+		byte[] data = getFileData(candidate);
+		FileEntry entry = target.createFile();
+		entry.setFilename(target.getSuggestedFilename(filename));
+		entry.setFiletype(filetype);
+		entry.setFileData(data);
+		int address = getAddress(candidate);
+		if (address >= 0 && entry.needsAddress()) {
+			entry.setAddress(address);
+		}
+		return entry;
+	}
+
+	/**
+	 * Count the units which are free in the usage bitmap and not claimed by
+	 * any live file.  Units outside of the disk are not counted.
+	 */
+	protected int countFree(int[] units, DiskUsageSnapshot snapshot, DiskOwnershipMap map) {
+		int free = 0;
+		for (int i=0; i<units.length; i++) {
+			int unit = units[i];
+			if (unit >= 0 && unit < snapshot.getLength() && snapshot.isFree(unit)
+					&& (map == null || !map.isClaimed(unit))) {
+				free++;
+			}
+		}
+		return free;
+	}
+
+	/**
+	 * Indicates if any unit is used twice (which a real file cannot do).
+	 */
+	protected static boolean hasDuplicates(int[] units) {
+		int[] sorted = Arrays.copyOf(units, units.length);
+		Arrays.sort(sorted);
+		for (int i=1; i<sorted.length; i++) {
+			if (sorted[i] == sorted[i-1]) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Get the TextBundle used for messages.
+	 */
+	protected TextBundle getTextBundle() {
+		return textBundle;
+	}
+
+	/**
+	 * Scan many disk images for deleted files in parallel.  Images which
+	 * cannot be read, or whose formats cannot be scanned, are skipped; the
+	 * reason an image could not be read is placed in errors (if given).
+	 */
+	public static List<RecoveryCandidate> scanImages(List<String> filenames,
+			Map<String,Exception> errors) {
+		Map<String,Exception> failures = new ConcurrentHashMap<>();
+		List<RecoveryCandidate> candidates = ForkJoinPool.commonPool().invoke(
+				new ScanTask(filenames, 0, filenames.size(), failures));
+		if (errors != null) {
+			errors.putAll(failures);
+		}
+		return candidates;
+	}
+
+	/**
+	 * Scan a range of images, splitting the range until each task has a
+	 * single image.
+	 */
+	protected static class ScanTask extends RecursiveTask<List<RecoveryCandidate>> {
+		private static final long serialVersionUID = 1L;
+		private List<String> filenames;
+		private int from;
+		private int to;
+		private Map<String,Exception> errors;
+
+		public ScanTask(List<String> filenames, int from, int to, Map<String,Exception> errors) {
+			this.filenames = filenames;
+			this.from = from;
+			this.to = to;
+			this.errors = errors;
+		}
+
+		protected List<RecoveryCandidate> compute() {
+			List<RecoveryCandidate> candidates = new ArrayList<>();
+			if (to - from <= IMAGES_PER_TASK) {
+				for (int i=from; i<to; i++) {
+					candidates.addAll(scanImage(filenames.get(i)));
+				}
+			} else {
+				int middle = (from + to) / 2;
+				ScanTask left = new ScanTask(filenames, from, middle, errors);
+				left.fork();
+				List<RecoveryCandidate> right =
+					new ScanTask(filenames, middle, to, errors).compute();
+				candidates.addAll(left.join());
+				candidates.addAll(right);
+			}
+			return candidates;
+		}
+
+		private List<RecoveryCandidate> scanImage(String filename) {
+			List<RecoveryCandidate> candidates = new ArrayList<>();
+			try {
+				FormattedDisk[] disks = new Disk(filename).getFormattedDisks();
+				for (int d=0; disks != null && d<disks.length; d++) {
+					DeletedFileScanner scanner = disks[d].getDeletedFileScanner();
+					if (scanner != null) {
+						candidates.addAll(scanner.scan());
+					}
+				}
+			} catch (IOException e) {
+				errors.put(filename, e);
+			} catch (RuntimeException e) {
+				errors.put(filename, e);
+			}
+			return candidates;
+		}
+	}
+}
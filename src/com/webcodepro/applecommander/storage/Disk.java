@@ -26,8 +26,14 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import com.webcodepro.applecommander.storage.os.cpm.CpmFileEntry;
 import com.webcodepro.applecommander.storage.os.cpm.CpmFormatDisk;
@@ -91,12 +97,21 @@ public class Disk {
 	public static final int APPLE_10MB_HARDDISK = 10485760;
 	public static final int APPLE_20MB_HARDDISK = 20971520;
 	public static final int APPLE_32MB_HARDDISK = 33553920;	// short one block!
+	/** Separates the zip file from the entry name, as in "disks.zip!/games/choplifter.dsk". */
+	public static final String ZIP_SEPARATOR = "!/"; //$NON-NLS-1$
 
 	private static FilenameFilter[] filenameFilters;
 	private static String[] allFileExtensions = null;
 	private TextBundle textBundle = StorageBundle.getInstance();
 	private String filename;
 	private boolean newImage = false;
+	/**
+	 * The length and modification time of the file when it was read or
+	 * last saved, so that a save can tell whether only the changed ranges
+	 * need to be written.
+	 */
+	private long savedLength = -1;
+	private long savedModified;
 	private boolean isDC42 = false;
 	private ByteArrayImageLayout diskImageManager;
 	private ImageOrder imageOrder = null;
@@ -209,6 +224,10 @@ public class Disk {
 		byte[] diskImage = null;
 		byte[] diskImageDC42 = null;
 
+		if (isZipEntry() && (isSDK() || isSHK() || isBXY() || isBNY())) {
+			throw new IOException(textBundle.format(
+					"Disk.ZipArchiveError", getZipEntryName())); //$NON-NLS-1$
+		}
 		if (isSDK() || isSHK() || isBXY()) {
 			// If we have an SDK, unpack it and send along the byte array
 			// If we have a SHK, build a new disk and unpack the contents on to it
@@ -217,9 +236,41 @@ public class Disk {
 			// Since we don't want to overwrite their shrinkit with a raw ProDOS image,
 			// add a .po extension to it
 			this.filename += ".po"; //$NON-NLS-1$
+		} else if (isBNY()) {
+			// A Binary II archive is unpacked on to a new disk, as with a SHK
+			diskImage = com.webcodepro.shrinkit.Utilities.unpackBNYFile(filename, startBlocks);
+			diskSize = diskImage.length;
+			this.filename += ".po"; //$NON-NLS-1$
+		} else if (isZipEntry()) {
+			// Only the one entry is inflated; the rest of the zip is never read
+			ZipFile zipFile = new ZipFile(getZipFilename());
+			try {
+				ZipEntry entry = zipFile.getEntry(getZipEntryName());
+				if (entry == null) {
+					throw new IOException(textBundle.format(
+							"Disk.ZipEntryNotFoundError", getZipEntryName())); //$NON-NLS-1$
+				}
+				diskSize = (int) entry.getSize();
+				InputStream input = zipFile.getInputStream(entry);
+				if (isCompressed()) {
+					input = new GZIPInputStream(input);
+				}
+				ByteArrayOutputStream diskImageByteArray = new ByteArrayOutputStream(Math.max(diskSize, 0));
+				StreamUtil.copy(input, diskImageByteArray);
+				diskImage = diskImageByteArray.toByteArray();
+				// The entry size is that of the gzip stream when compressed
+				diskSize = diskImage.length;
+				input.close();
+			} finally {
+				zipFile.close();
+			}
 		} else {
 			File file = new File(filename);
 			diskSize = (int) file.length();
+			if (!isCompressed()) {
+				savedLength = file.length();
+				savedModified = file.lastModified();
+			}
 			InputStream input = new FileInputStream(file);
 			if (isCompressed()) {
 				input = new GZIPInputStream(input);
@@ -259,6 +310,7 @@ public class Disk {
 		} else {
 			diskImageManager = new ByteArrayImageLayout(diskImage);
 		}
+		diskImageManager.clearDirtyRanges();
 
 		ImageOrder dosOrder = new DosOrder(diskImageManager);
 		ImageOrder proDosOrder = new ProdosOrder(diskImageManager);
@@ -342,21 +394,130 @@ public class Disk {
 	}
 
 	/**
-	 * Save a Disk image to its file.
+	 * Save a Disk image to its file.  When the file is just as it was when
+	 * it was read or last saved, only the ranges written since then are
+	 * written back; otherwise the whole image is.
 	 */
 	public void save() throws IOException {
-		File file = new File(getFilename());
-		if (!file.exists()) {
-			file.createNewFile();
+		if (isZipEntry()) {
+			throw new IOException(textBundle.format(
+					"Disk.ZipReadOnlyError", getZipFilename())); //$NON-NLS-1$
 		}
-		OutputStream output = new FileOutputStream(file);
-		if (isCompressed()) {
-			output = new GZIPOutputStream(output);
+		File file = new File(getFilename());
+		byte[] diskImage = getDiskImageManager().getDiskImage();
+		List<int[]> dirtyRanges = getDiskImageManager().getDirtyRanges();
+		if (dirtyRanges != null && !isCompressed()
+				&& file.length() == savedLength && file.lastModified() == savedModified
+				&& savedLength == diskImage.length) {
+			RandomAccessFile output = new RandomAccessFile(file, "rw"); //$NON-NLS-1$
+			try {
+				for (int[] range : dirtyRanges) {
+					output.seek(range[0]);
+					output.write(diskImage, range[0], range[1]);
+				}
+			} finally {
+				output.close();
+			}
+		} else {
+			if (!file.exists()) {
+				file.createNewFile();
+			}
+			OutputStream output = new FileOutputStream(file);
+			if (isCompressed()) {
+				output = new GZIPOutputStream(output);
+			}
+			output.write(diskImage);
+			output.close();
 		}
-		output.write(getDiskImageManager().getDiskImage());
-		output.close();
 		getDiskImageManager().setChanged(false);
 		newImage = false;
+		if (!isCompressed()) {
+			savedLength = file.length();
+			savedModified = file.lastModified();
+		}
+	}
+
+	/**
+	 * List the disk images in a zip file, in the order they appear in the
+	 * zip, as names that can be given to the Disk constructor.  Only the
+	 * central directory of the zip is read.  ShrinkIt and Binary II archives
+	 * cannot be opened from within a zip, so they are left out.
+	 */
+	public static List<String> getZipImageNames(String zipFilename) throws IOException {
+		List<String> names = new ArrayList<String>();
+		ZipFile zipFile = new ZipFile(zipFilename);
+		try {
+			Enumeration<? extends ZipEntry> entries = zipFile.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry entry = entries.nextElement();
+				String lowerName = entry.getName().toLowerCase();
+				if (!entry.isDirectory() && isImageName(lowerName)
+						&& !lowerName.endsWith(".sdk") && !lowerName.endsWith(".shk")) { //$NON-NLS-1$ //$NON-NLS-2$
+					names.add(zipFilename + ZIP_SEPARATOR + entry.getName());
+				}
+			}
+		} finally {
+			zipFile.close();
+		}
+		return names;
+	}
+
+	/**
+	 * Indicates if the name ends in one of the supported disk image extensions.
+	 */
+	public static boolean isImageName(String name) {
+		String lowerName = name.toLowerCase();
+		String[] extensions = getAllExtensions();
+		for (int i = 0; i < extensions.length; i++) {
+			if (lowerName.endsWith(extensions[i])) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Indicates if the file is a disk image, either by its name or, failing
+	 * that, by its contents: the 2IMG, DiskCopy 4.2, NuFX and Binary II
+	 * headers are recognized, as are the exact sizes of raw 140K, nibble
+	 * and 800K images.  Only the first few bytes of the file are read.
+	 */
+	public static boolean isDiskImage(File file) throws IOException {
+		String lowerName = file.getName().toLowerCase();
+		if (isImageName(lowerName) || lowerName.endsWith(".bxy") //$NON-NLS-1$
+				|| lowerName.endsWith(".bny")) { //$NON-NLS-1$
+			return true;
+		}
+		long length = file.length();
+		if (length == APPLE_140KB_DISK || length == APPLE_140KB_NIBBLE_DISK
+				|| length == APPLE_800KB_DISK) {
+			return true;
+		}
+		byte[] header = new byte[0x54];
+		InputStream input = new FileInputStream(file);
+		try {
+			if (input.read(header) < header.length) {
+				return false;
+			}
+		} finally {
+			input.close();
+		}
+		return (header[0] == 0x32 && header[1] == 0x49 && header[2] == 0x4D && header[3] == 0x47)
+			|| startsWith(header, com.webcodepro.shrinkit.io.ByteConstants.NUFILE_ID)
+			|| startsWith(header, com.webcodepro.shrinkit.io.ByteConstants.BXY_ID)
+			|| isDC42(header);
+	}
+
+	private static boolean startsWith(byte[] data, byte[] prefix) {
+		for (int i = 0; i < prefix.length; i++) {
+			if (data[i] != prefix[i]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Indicates if the name is that of a zip file.
+	 */
+	public static boolean isZipName(String name) {
+		return name.toLowerCase().endsWith(".zip"); //$NON-NLS-1$
 	}
 
 	/**
@@ -364,50 +525,59 @@ public class Disk {
 	 */
 	public void saveAs(String filename) throws IOException {
 		this.filename = filename;
+		savedLength = -1;
 		save();
 	}
 
 	/**
 	 * Determine type of disk, and return the appropriate
 	 * FormattedDisk object.  Returns null if none are
-	 * recognized.
+	 * recognized.  The FormattedDisk objects know the state of the file
+	 * as it was read, so that they can save just what they change.
 	 */
 	public FormattedDisk[] getFormattedDisks() {
+		FormattedDisk[] formattedDisks = null;
 		if (isProdosFormat()) {
-			return new FormattedDisk[]
+			formattedDisks = new FormattedDisk[]
 				{ new ProdosFormatDisk(filename, imageOrder) };
 		} else if (isUniDosFormat()) {
-			return new FormattedDisk[] {
+			formattedDisks = new FormattedDisk[] {
 				new UniDosFormatDisk(filename, imageOrder, 
 									UniDosFormatDisk.UNIDOS_DISK_1),
 				new UniDosFormatDisk(filename, imageOrder, 
 									UniDosFormatDisk.UNIDOS_DISK_2) };
 		} else if (isOzDosFormat()) {
-			return new FormattedDisk[] {
+			formattedDisks = new FormattedDisk[] {
 				new OzDosFormatDisk(filename, imageOrder,
 									OzDosFormatDisk.OZDOS_DISK_1),
 				new OzDosFormatDisk(filename, imageOrder,
 									OzDosFormatDisk.OZDOS_DISK_2) };
 		} else if (isDosFormat()) {
-			return new FormattedDisk[]
+			formattedDisks = new FormattedDisk[]
 				{ new DosFormatDisk(filename, imageOrder) };
 		} else if (isNakedosFormat()) {
-			return new FormattedDisk[]
+			formattedDisks = new FormattedDisk[]
 				{ new NakedosFormatDisk(filename, imageOrder) };
 		} else if (isPascalFormat()) {
-			return new FormattedDisk[]
+			formattedDisks = new FormattedDisk[]
 				{ new PascalFormatDisk(filename, imageOrder) };
 		} else if (isRdosFormat()) {
-			return new FormattedDisk[]
+			formattedDisks = new FormattedDisk[]
 				{ new RdosFormatDisk(filename, imageOrder) };
 		} else if (isCpmFormat()) {
-			return new FormattedDisk[]
+			formattedDisks = new FormattedDisk[]
 				{ new CpmFormatDisk(filename, imageOrder) };
 		} else if (isWPFormat()) {
-			return new FormattedDisk[]
+			formattedDisks = new FormattedDisk[]
 				{ new GutenbergFormatDisk(filename, imageOrder) };
 		}
-		return null;
+		if (formattedDisks != null) {
+			for (int i=0; i<formattedDisks.length; i++) {
+				((Disk) formattedDisks[i]).savedLength = savedLength;
+				((Disk) formattedDisks[i]).savedModified = savedModified;
+			}
+		}
+		return formattedDisks;
 	}
 
 	/**
@@ -434,6 +604,7 @@ public class Disk {
 	 */
 	public void setFilename(String filename) {
 		this.filename = filename;
+		savedLength = -1;
 	}
 	
 	/**
@@ -475,6 +646,36 @@ public class Disk {
 		return filename.toLowerCase().endsWith(".bxy"); //$NON-NLS-1$
 	}
 
+	/**
+	 * Indicate if this disk is a Binary II archive.
+	 */
+	public boolean isBNY()
+	{
+		return filename.toLowerCase().endsWith(".bny"); //$NON-NLS-1$
+	}
+
+	/**
+	 * Indicates if this disk image is an entry within a zip file.
+	 */
+	public boolean isZipEntry() {
+		int separator = filename.indexOf(ZIP_SEPARATOR);
+		return separator > 0 && isZipName(filename.substring(0, separator));
+	}
+
+	/**
+	 * The name of the zip file holding this disk image.
+	 */
+	public String getZipFilename() {
+		return filename.substring(0, filename.indexOf(ZIP_SEPARATOR));
+	}
+
+	/**
+	 * The name of this disk image within its zip file.
+	 */
+	public String getZipEntryName() {
+		return filename.substring(filename.indexOf(ZIP_SEPARATOR) + ZIP_SEPARATOR.length());
+	}
+
 	/**
 	 * Indicate if this disk is ProDOS ordered (beginning with block 0).
 	 */
@@ -893,8 +1094,6 @@ public class Disk {
 			return APPLE_10MB_HARDDISK;
 		} else if (bytes < APPLE_20MB_HARDDISK) {
 			return APPLE_20MB_HARDDISK;
-		} else if (bytes < APPLE_32MB_HARDDISK) {
-			return APPLE_20MB_HARDDISK;
 		} else if (bytes < APPLE_32MB_HARDDISK) {
 			return APPLE_32MB_HARDDISK;
 		}
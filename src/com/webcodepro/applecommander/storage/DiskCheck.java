@@ -0,0 +1,198 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2002 by Robert Greene
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The results of a filesystem consistency check (see DiskChecker).
+ */
+public class DiskCheck {
+	/** A block or sector in use by a file is marked as free in the bitmap. */
+	public static final int ALLOCATED_MARKED_FREE = 1;
+	/** A block or sector is marked as used, but nothing owns it. */
+	public static final int LOST_ALLOCATION = 2;
+	/** A block or sector is used by more than one owner. */
+	public static final int CROSS_LINKED = 3;
+	/** A pointer refers to a location outside of the volume. */
+	public static final int BAD_POINTER = 4;
+	/** The size recorded in the directory does not match the allocation. */
+	public static final int SIZE_MISMATCH = 5;
+	/** The end of file is inconsistent with the allocation. */
+	public static final int EOF_MISMATCH = 6;
+	/** A directory (or catalog) structure is damaged. */
+	public static final int DIRECTORY_ERROR = 7;
+	/** The volume information itself is damaged. */
+	public static final int VOLUME_ERROR = 8;
+
+	/**
+	 * Describes a single problem found on the disk.
+	 */
+	public static class Problem {
+		private int type;
+		private String path;
+		private int unit;
+		private String message;
+		public Problem(int type, String path, int unit, String message) {
+			this.type = type;
+			this.path = path;
+			this.unit = unit;
+			this.message = message;
+		}
+		/** The problem type (one of the DiskCheck constants). */
+		public int getType() {
+			return type;
+		}
+		/** The file the problem relates to; null for volume level problems. */
+		public String getPath() {
+			return path;
+		}
+		/** The block or sector (as a DiskUsageSnapshot unit) or -1. */
+		public int getUnit() {
+			return unit;
+		}
+		public String getMessage() {
+			return message;
+		}
+		public String toString() {
+			return (path == null) ? message : path + ": " + message; //$NON-NLS-1$
+		}
+	}
+
+	private List<Problem> problems = Collections.synchronizedList(new ArrayList<Problem>());
+	private DiskOwnershipMap ownershipMap;
+	private int filesChecked;
+	private boolean repaired;
+
+	/**
+	 * Record a problem.  This may be called from multiple threads.
+	 */
+	public void addProblem(int type, String path, int unit, String message) {
+		problems.add(new Problem(type, path, unit, message));
+	}
+
+	/**
+	 * Put the problems in a fixed order: volume problems first, then by
+	 * path, block or sector, type and message.
+	 */
+	public void sortProblems() {
+		synchronized (problems) {
+			Collections.sort(problems, new Comparator<Problem>() {
+				public int compare(Problem left, Problem right) {
+					if (left.getPath() == null || right.getPath() == null) {
+						if (left.getPath() != right.getPath()) {
+							return (left.getPath() == null) ? -1 : 1;
+						}
+					} else if (!left.getPath().equals(right.getPath())) {
+						return left.getPath().compareTo(right.getPath());
+					}
+					if (left.getUnit() != right.getUnit()) {
+						return (left.getUnit() < right.getUnit()) ? -1 : 1;
+					}
+					if (left.getType() != right.getType()) {
+						return (left.getType() < right.getType()) ? -1 : 1;
+					}
+					return left.getMessage().compareTo(right.getMessage());
+				}
+			});
+		}
+	}
+
+	/**
+	 * Get all problems found.
+	 */
+	public List<Problem> getProblems() {
+		synchronized (problems) {
+			return new ArrayList<>(problems);
+		}
+	}
+
+	/**
+	 * Get the number of problems of the given type.
+	 */
+	public int getProblemCount(int type) {
+		int count = 0;
+		synchronized (problems) {
+			for (Problem problem : problems) {
+				if (problem.getType() == type) count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Indicates if any problems were found.
+	 */
+	public boolean hasProblems() {
+		return !problems.isEmpty();
+	}
+
+	/**
+	 * Indicates if the bitmap only disagrees with the computed allocation
+	 * (which a repair can fix).
+	 */
+	public boolean isBitmapOnly() {
+		synchronized (problems) {
+			for (Problem problem : problems) {
+				if (problem.getType() != ALLOCATED_MARKED_FREE
+						&& problem.getType() != LOST_ALLOCATION) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The ownership map computed from the directory structure.
+	 */
+	public DiskOwnershipMap getOwnershipMap() {
+		return ownershipMap;
+	}
+
+	public void setOwnershipMap(DiskOwnershipMap ownershipMap) {
+		this.ownershipMap = ownershipMap;
+	}
+
+	/**
+	 * The number of files (and directories) examined.
+	 */
+	public int getFilesChecked() {
+		return filesChecked;
+	}
+
+	public void setFilesChecked(int filesChecked) {
+		this.filesChecked = filesChecked;
+	}
+
+	/**
+	 * Indicates if the bitmap was rebuilt.
+	 */
+	public boolean isRepaired() {
+		return repaired;
+	}
+
+	public void setRepaired(boolean repaired) {
+		this.repaired = repaired;
+	}
+}
@@ -0,0 +1,231 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2002 by Robert Greene
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import com.webcodepro.applecommander.util.TextBundle;
+
+/**
+ * Base class for a filesystem consistency check.
+ * <p>
+ * A checker walks the directory structure of a disk, working out which
+ * file owns each block or sector (reporting any damage found along the
+ * way), and then compares the result with the bitmap stored on disk.  The
+ * directory walk is split into ForkJoin tasks by the format-specific
+ * subclasses; the bitmap comparison works a 64-bit word at a time.
+ * <p>
+ * The problems are sorted once the check is done, so they come out in the
+ * same order however the tasks were scheduled.
+ * <p>
+ * When a repair is requested, and the only problems found are in the
+ * bitmap, the bitmap is rewritten from the computed allocation.  Damage
+ * to the directory structure is reported but never "fixed".
+ */
+public abstract class DiskChecker {
+	/**
+	 * A file (and the units it uses) found while walking the directory
+	 * structure.  These are collected by the parallel tasks and added to
+	 * the ownership map afterwards, as the map is not thread-safe.
+	 */
+	protected static class CheckedFile {
+		private Object key;
+		private String path;
+		private FileEntry entry;
+		private int[] units;
+		public CheckedFile(Object key, String path, FileEntry entry, int[] units) {
+			this.key = key;
+			this.path = path;
+			this.entry = entry;
+			this.units = units;
+		}
+		public Object getKey() {
+			return key;
+		}
+		public String getPath() {
+			return path;
+		}
+		public FileEntry getEntry() {
+			return entry;
+		}
+		public int[] getUnits() {
+			return units;
+		}
+	}
+
+	private TextBundle textBundle = StorageBundle.getInstance();
+	private ForkJoinPool pool = ForkJoinPool.commonPool();
+	private List<String> paths = new ArrayList<>();
+
+	/**
+	 * Check the disk.
+	 * @param repair indicates if the bitmap should be rebuilt (only done
+	 * when the bitmap is the only problem found)
+	 */
+	public DiskCheck check(boolean repair) {
+		DiskCheck result = new DiskCheck();
+		paths.clear();
+		DiskOwnershipMap map = createOwnershipMap(result);
+		if (map == null) {
+			result.sortProblems();
+			return result;
+		}
+		List<CheckedFile> files = pool.invoke(createTask(result));
+		for (CheckedFile file : files) {
+			int id = map.add(file.getKey(), file.getEntry(), file.getUnits());
+			while (paths.size() <= id) paths.add(null);
+			paths.set(id, file.getPath());
+		}
+		claimSystemRemainder(map);
+		result.setFilesChecked(files.size());
+		result.setOwnershipMap(map);
+		checkCrossLinks(result, map);
+		checkBitmap(result, map, getUsageSnapshot());
+		if (repair && result.hasProblems() && result.isBitmapOnly()) {
+			rebuildBitmap(map);
+			result.setRepaired(true);
+		}
+		result.sortProblems();
+		return result;
+	}
+
+	/**
+	 * Create the ownership map and claim the units used by the operating
+	 * system.  Damage to the volume information is reported here; returning
+	 * null stops the check.
+	 */
+	protected abstract DiskOwnershipMap createOwnershipMap(DiskCheck result);
+
+	/**
+	 * Create the task which walks the directory structure.
+	 */
+	protected abstract ForkJoinTask<List<CheckedFile>> createTask(DiskCheck result);
+
+	/**
+	 * Claim any remaining system units once all files are known.  By default,
+	 * there are none.
+	 */
+	protected void claimSystemRemainder(DiskOwnershipMap map) {
+		// nothing by default
+	}
+
+	/**
+	 * Get the bitmap as currently stored on disk.
+	 */
+	protected abstract DiskUsageSnapshot getUsageSnapshot();
+
+	/**
+	 * Rewrite the bitmap on disk so that every claimed unit is used and
+	 * every other unit is free.
+	 */
+	protected abstract void rebuildBitmap(DiskOwnershipMap map);
+
+	/**
+	 * Describe a unit for reporting (such as "block 5" or "T17 S0").
+	 */
+	protected abstract String describeUnit(int unit);
+
+	/**
+	 * Get the path to report for the given owner (an entry id or
+	 * SYSTEM_OWNER).  Returns null if the unit is not owned by a file.
+	 */
+	protected String getPath(int owner) {
+		if (owner == DiskOwnershipMap.SYSTEM_OWNER) {
+			return textBundle.get("DiskChecker.SystemOwner"); //$NON-NLS-1$
+		}
+		return (owner >= 0 && owner < paths.size()) ? paths.get(owner) : null;
+	}
+
+	/**
+	 * Report every unit claimed by more than one owner.
+	 */
+	protected void checkCrossLinks(DiskCheck result, DiskOwnershipMap map) {
+		int[] units = map.getCrossLinkedUnits();
+		for (int i=0; i<units.length; i++) {
+			int[] owners = map.getOwners(units[i]);
+			StringBuilder names = new StringBuilder();
+			for (int o=0; o<owners.length; o++) {
+				if (o > 0) names.append(", "); //$NON-NLS-1$
+				names.append(getPath(owners[o]));
+			}
+			result.addProblem(DiskCheck.CROSS_LINKED, null, units[i],
+				textBundle.format("DiskChecker.CrossLinked", new Object[] { //$NON-NLS-1$
+				describeUnit(units[i]), names.toString() }));
+		}
+	}
+
+	/**
+	 * Compare the computed allocation with the bitmap on disk.  Both are
+	 * packed into long words (a set bit is free) so that matching words
+	 * are skipped with a single comparison.
+	 */
+	protected void checkBitmap(DiskCheck result, DiskOwnershipMap map, DiskUsageSnapshot snapshot) {
+		int length = Math.min(map.getLength(), snapshot.getLength());
+		long[] onDisk = snapshot.toLongArray();
+		long[] computed = toFreeBitmap(map);
+		int words = (length + 63) >>> 6;
+		for (int word=0; word<words; word++) {
+			long diff = onDisk[word] ^ computed[word];
+			if (word == words-1 && (length & 63) != 0) {
+				diff &= -1L >>> -length;
+			}
+			while (diff != 0) {
+				int bit = Long.numberOfTrailingZeros(diff);
+				diff &= diff - 1;
+				int unit = (word << 6) + bit;
+				if ((onDisk[word] & (1L << bit)) != 0) {
+					result.addProblem(DiskCheck.ALLOCATED_MARKED_FREE,
+						getPath(map.getOwner(unit)), unit,
+						textBundle.format("DiskChecker.AllocatedMarkedFree", //$NON-NLS-1$
+						describeUnit(unit)));
+				} else {
+					result.addProblem(DiskCheck.LOST_ALLOCATION, null, unit,
+						textBundle.format("DiskChecker.LostAllocation", //$NON-NLS-1$
+						describeUnit(unit)));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Build the packed bitmap (a set bit is free) implied by the ownership
+	 * map.
+	 */
+	protected long[] toFreeBitmap(DiskOwnershipMap map) {
+		int length = map.getLength();
+		long[] bitmap = new long[(length + 63) >>> 6];
+		for (int unit=0; unit<length; unit++) {
+			if (!map.isClaimed(unit)) {
+				bitmap[unit >>> 6] |= (1L << unit);
+			}
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Get the TextBundle used for messages.
+	 */
+	protected TextBundle getTextBundle() {
+		return textBundle;
+	}
+}
@@ -0,0 +1,403 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2002 by Robert Greene
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tracks which file owns each allocation unit (block or sector) on a disk.
+ * <p>
+ * Units are numbered the same way as the DiskUsageSnapshot.  Each file is
+ * assigned an entry id as it is added; the owner of every unit is kept in a
+ * primitive int[] so that "which file uses block 1234?" is a single array
+ * lookup.  The units claimed by each entry are kept in file order, which
+ * allows the reverse lookup (file to extents).
+ * <p>
+ * A unit claimed by more than one owner is cross-linked.  The first owner
+ * is reported by getOwner; all owners are available through getOwners.
+ * <p>
+ * Entries are identified by a format-specific key (typically the location
+ * of the directory entry) so that a FileEntry can be found again after it
+ * has been re-read from disk.  This allows a format to keep the map
+ * current by calling update after a file has been written or deleted.
+ * Formats with subdirectories record the directory entry holding each
+ * file, so that the full path of a file can be given.
+ */
+public class DiskOwnershipMap {
+	/** Indicates the unit is not owned. */
+	public static final int NO_OWNER = DiskUsageSnapshot.NO_OWNER;
+	/** Indicates the unit is owned by the operating system (boot, directory, bitmap). */
+	public static final int SYSTEM_OWNER = -2;
+	private static final int[] NO_UNITS = new int[0];
+	private int length;
+	private int[] dimensions;
+	private int[] owners;
+	private int[] claims;
+	private BitSet system = new BitSet();
+	private List<FileEntry> entries = new ArrayList<>();
+	private List<int[]> entryUnits = new ArrayList<>();
+	private List<Integer> parents = new ArrayList<>();
+	private Map<Object,Integer> keys = new HashMap<>();
+
+	/**
+	 * Construct an empty ownership map.
+	 * @param length the number of units tracked
+	 * @param dimensions the suggested display dimensions (may be null)
+	 */
+	public DiskOwnershipMap(int length, int[] dimensions) {
+		this.length = length;
+		this.dimensions = dimensions;
+		this.owners = new int[length];
+		this.claims = new int[length];
+		for (int i=0; i<length; i++) {
+			owners[i] = NO_OWNER;
+		}
+	}
+
+	/**
+	 * Convert a list of units into the int[] used by the map.
+	 */
+	public static int[] toArray(List<Integer> units) {
+		int[] array = new int[units.size()];
+		for (int i=0; i<array.length; i++) {
+			array[i] = units.get(i).intValue();
+		}
+		return array;
+	}
+
+	/**
+	 * Get the number of units tracked by this map.
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Get the suggested display dimensions (may be null).
+	 */
+	public int[] getDimensions() {
+		return dimensions;
+	}
+
+	/**
+	 * Mark a unit as being owned by the operating system.
+	 */
+	public void claimSystem(int unit) {
+		if (isValidUnit(unit) && !system.get(unit)) {
+			system.set(unit);
+			claim(SYSTEM_OWNER, unit);
+		}
+	}
+
+	/**
+	 * Add a file and the units it uses.  Units outside of the disk are
+	 * ignored here; they are a problem for a disk check to report.
+	 * @return the entry id assigned to this file
+	 */
+	public int add(Object key, FileEntry entry, int[] units) {
+		int id = entries.size();
+		entries.add(entry);
+		entryUnits.add(NO_UNITS);
+		parents.add(Integer.valueOf(NO_OWNER));
+		keys.put(key, Integer.valueOf(id));
+		setUnits(id, units);
+		return id;
+	}
+
+	/**
+	 * Replace the units used by a file.  If the key is not known, the
+	 * file is added.
+	 * @return the entry id of this file
+	 */
+	public int update(Object key, FileEntry entry, int[] units) {
+		Integer id = keys.get(key);
+		if (id == null) {
+			return add(key, entry, units);
+		}
+		entries.set(id.intValue(), entry);
+		setUnits(id.intValue(), units);
+		return id.intValue();
+	}
+
+	/**
+	 * Release all units used by a file (the file was deleted or is about
+	 * to be rewritten).
+	 */
+	public void release(Object key) {
+		Integer id = keys.get(key);
+		if (id != null) {
+			setUnits(id.intValue(), NO_UNITS);
+		}
+	}
+
+	/**
+	 * Get the entry id for the given key, or NO_OWNER if it is not known.
+	 */
+	public int getEntryId(Object key) {
+		Integer id = keys.get(key);
+		return (id == null) ? NO_OWNER : id.intValue();
+	}
+
+	/**
+	 * Get the number of entries that have been added.
+	 */
+	public int getEntryCount() {
+		return entries.size();
+	}
+
+	/**
+	 * Get the FileEntry for the given entry id.
+	 */
+	public FileEntry getFileEntry(int id) {
+		return entries.get(id);
+	}
+
+	/**
+	 * Record the directory entry which holds the given entry.
+	 */
+	public void setParent(int id, int parent) {
+		parents.set(id, Integer.valueOf(parent));
+	}
+
+	/**
+	 * Get the entry id of the directory which holds the given entry, or
+	 * NO_OWNER if it is in the volume directory.
+	 */
+	public int getParent(int id) {
+		return parents.get(id).intValue();
+	}
+
+	/**
+	 * Get the path of the given entry ("DIR/FILE"), built from the names of
+	 * the directories which hold it.  A directory structure which loops is
+	 * cut short.
+	 */
+	public String getPath(int id) {
+		StringBuffer path = new StringBuffer(entries.get(id).getFilename());
+		int parent = getParent(id);
+		for (int depth=0; parent >= 0 && depth < entries.size(); depth++) {
+			path.insert(0, '/');
+			path.insert(0, entries.get(parent).getFilename());
+			parent = getParent(parent);
+		}
+		return path.toString();
+	}
+
+	/**
+	 * Get the owner of the given unit.  This is an entry id, NO_OWNER or
+	 * SYSTEM_OWNER.
+	 */
+	public int getOwner(int unit) {
+		return isValidUnit(unit) ? owners[unit] : NO_OWNER;
+	}
+
+	/**
+	 * Get the FileEntry which owns the given unit.  Returns null if the
+	 * unit is free or owned by the operating system.
+	 */
+	public FileEntry getOwnerEntry(int unit) {
+		int owner = getOwner(unit);
+		return (owner >= 0) ? entries.get(owner) : null;
+	}
+
+	/**
+	 * Get all entry ids which claim the given unit (more than one indicates
+	 * a cross-link).  SYSTEM_OWNER is included if the operating system
+	 * claims the unit.
+	 */
+	public int[] getOwners(int unit) {
+		if (!isValidUnit(unit) || claims[unit] == 0) {
+			return NO_UNITS;
+		}
+		if (claims[unit] == 1) {
+			return new int[] { owners[unit] };
+		}
+		int[] list = new int[claims[unit]];
+		int count = 0;
+		if (system.get(unit)) {
+			list[count++] = SYSTEM_OWNER;
+		}
+		for (int id=0; id<entryUnits.size() && count<list.length; id++) {
+			int[] units = entryUnits.get(id);
+			for (int i=0; i<units.length; i++) {
+				if (units[i] == unit) {
+					list[count++] = id;
+				}
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Get the units used by the given entry, in file order.
+	 */
+	public int[] getUnits(int id) {
+		int[] units = entryUnits.get(id);
+		int[] copy = new int[units.length];
+		System.arraycopy(units, 0, copy, 0, units.length);
+		return copy;
+	}
+
+	/**
+	 * Get the extents used by the given entry, in file order.  Each extent
+	 * is an int[2] of { first unit, number of units }.
+	 */
+	public int[][] getExtents(int id) {
+		int[] units = entryUnits.get(id);
+		List<int[]> extents = new ArrayList<>();
+		int[] current = null;
+		for (int i=0; i<units.length; i++) {
+			if (current != null && units[i] == current[0] + current[1]) {
+				current[1]++;
+			} else {
+				current = new int[] { units[i], 1 };
+				extents.add(current);
+			}
+		}
+		return extents.toArray(new int[extents.size()][]);
+	}
+
+	/**
+	 * Indicates if the given unit is claimed by more than one owner.
+	 */
+	public boolean isCrossLinked(int unit) {
+		return isValidUnit(unit) && claims[unit] > 1;
+	}
+
+	/**
+	 * Indicates if any unit on the disk is cross-linked.
+	 */
+	public boolean hasCrossLinks() {
+		for (int i=0; i<length; i++) {
+			if (claims[i] > 1) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Get all cross-linked units.
+	 */
+	public int[] getCrossLinkedUnits() {
+		int count = 0;
+		for (int i=0; i<length; i++) {
+			if (claims[i] > 1) count++;
+		}
+		int[] units = new int[count];
+		count = 0;
+		for (int i=0; i<length; i++) {
+			if (claims[i] > 1) units[count++] = i;
+		}
+		return units;
+	}
+
+	/**
+	 * Indicates if the given unit is claimed by anyone.
+	 */
+	public boolean isClaimed(int unit) {
+		return isValidUnit(unit) && claims[unit] > 0;
+	}
+
+	/**
+	 * Get a copy of the owner array, suitable for DiskUsageSnapshot.setOwners.
+	 */
+	public int[] toOwnerArray() {
+		int[] copy = new int[length];
+		System.arraycopy(owners, 0, copy, 0, length);
+		return copy;
+	}
+
+	/**
+	 * Replace the units claimed by an entry.
+	 */
+	protected void setUnits(int id, int[] units) {
+		int[] old = entryUnits.get(id);
+		for (int i=0; i<old.length; i++) {
+			unclaim(id, old[i]);
+		}
+		int count = 0;
+		for (int i=0; i<units.length; i++) {
+			if (isValidUnit(units[i])) count++;
+		}
+		int[] valid = new int[count];
+		count = 0;
+		for (int i=0; i<units.length; i++) {
+			if (isValidUnit(units[i])) {
+				valid[count++] = units[i];
+				claim(id, units[i]);
+			}
+		}
+		entryUnits.set(id, valid);
+	}
+
+	/**
+	 * Record a claim on a unit.
+	 */
+	private void claim(int id, int unit) {
+		if (claims[unit] == 0) {
+			owners[unit] = id;
+		}
+		claims[unit]++;
+	}
+
+	/**
+	 * Remove a claim on a unit.  If the unit was cross-linked and the
+	 * reported owner is being removed, the next owner takes over.
+	 */
+	private void unclaim(int id, int unit) {
+		claims[unit]--;
+		if (claims[unit] == 0) {
+			owners[unit] = NO_OWNER;
+		} else if (owners[unit] == id) {
+			// claims have not been updated in entryUnits yet, so skip this id
+			owners[unit] = NO_OWNER;
+			if (system.get(unit)) {
+				owners[unit] = SYSTEM_OWNER;
+			} else {
+				for (int other=0; other<entryUnits.size(); other++) {
+					if (other != id && contains(entryUnits.get(other), unit)) {
+						owners[unit] = other;
+						break;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Indicates if the array contains the given unit.
+	 */
+	private boolean contains(int[] units, int unit) {
+		for (int i=0; i<units.length; i++) {
+			if (units[i] == unit) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Indicates if the unit is within the disk.
+	 */
+	private boolean isValidUnit(int unit) {
+		return unit >= 0 && unit < length;
+	}
+}
@@ -0,0 +1,304 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2002 by Robert Greene
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage;
+
+import java.util.Arrays;
+
+import com.webcodepro.applecommander.storage.FormattedDisk.DiskUsage;
+
+/**
+ * A point-in-time copy of the disk usage for a FormattedDisk.
+ * <p>
+ * Each allocation unit (block or sector) is represented by one bit in a
+ * packed long[] where a set bit indicates a free unit.  Units are numbered
+ * in the same order that the DiskUsage iterator walks them - by block for
+ * block devices, or by track and then sector for track/sector devices.
+ * This allows the disk map, space reporting and consistency checks to work
+ * with the entire bitmap at once instead of one unit at a time.
+ * <p>
+ * Optionally, each unit can also carry an owner identifier (for instance,
+ * the index of the file using that unit).  Units without an owner report
+ * NO_OWNER.
+ */
+public class DiskUsageSnapshot {
+	/** Owner identifier reported when no owner is known. */
+	public static final int NO_OWNER = -1;
+	private long[] bitmap;
+	private int length;
+	private int[] dimensions;
+	private int[] owners;
+
+	/**
+	 * Construct a snapshot with all units marked as used.
+	 * @param length the number of units tracked
+	 * @param dimensions the suggested display dimensions (may be null)
+	 */
+	public DiskUsageSnapshot(int length, int[] dimensions) {
+		this.length = length;
+		this.dimensions = dimensions;
+		this.bitmap = new long[(length + 63) >>> 6];
+	}
+
+	/**
+	 * Construct a snapshot from an already packed bitmap.  Bit (unit % 64)
+	 * of word (unit / 64) is set when that unit is free; any bits beyond
+	 * the length are ignored.
+	 */
+	public DiskUsageSnapshot(int length, int[] dimensions, long[] bitmap) {
+		this(length, dimensions);
+		System.arraycopy(bitmap, 0, this.bitmap, 0,
+				Math.min(bitmap.length, this.bitmap.length));
+		if ((length & 63) != 0) {
+			this.bitmap[this.bitmap.length-1] &= -1L >>> -length;
+		}
+	}
+
+	/**
+	 * Build a snapshot from the (older) DiskUsage iterator.  This is used
+	 * for those formats which do not build the snapshot directly.
+	 */
+	public static DiskUsageSnapshot fromDiskUsage(DiskUsage usage, int length, int[] dimensions) {
+		DiskUsageSnapshot snapshot = new DiskUsageSnapshot(length, dimensions);
+		int unit = 0;
+		while (usage.hasNext() && unit < length) {
+			usage.next();
+			if (usage.isFree()) {
+				snapshot.setFree(unit);
+			}
+			unit++;
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Get the number of units tracked by this snapshot.
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Get the suggested display dimensions.  This can return null if there
+	 * is no suggestion (typically block devices).
+	 */
+	public int[] getDimensions() {
+		return dimensions;
+	}
+
+	/**
+	 * Indicates if the given unit is free.
+	 */
+	public boolean isFree(int unit) {
+		checkRange(unit);
+		return (bitmap[unit >>> 6] & (1L << unit)) != 0;
+	}
+
+	/**
+	 * Indicates if the given unit is in use.
+	 */
+	public boolean isUsed(int unit) {
+		return !isFree(unit);
+	}
+
+	/**
+	 * Mark the given unit as free.
+	 */
+	public void setFree(int unit) {
+		checkRange(unit);
+		bitmap[unit >>> 6] |= (1L << unit);
+	}
+
+	/**
+	 * Mark the given unit as used.
+	 */
+	public void setUsed(int unit) {
+		checkRange(unit);
+		bitmap[unit >>> 6] &= ~(1L << unit);
+	}
+
+	/**
+	 * Mark the range of units [fromUnit, toUnit) as free.
+	 */
+	public void setFree(int fromUnit, int toUnit) {
+		setRange(fromUnit, toUnit, true);
+	}
+
+	/**
+	 * Mark the range of units [fromUnit, toUnit) as used.
+	 */
+	public void setUsed(int fromUnit, int toUnit) {
+		setRange(fromUnit, toUnit, false);
+	}
+
+	/**
+	 * Set or clear a range of bits, a full word at a time where possible.
+	 */
+	private void setRange(int fromUnit, int toUnit, boolean free) {
+		if (fromUnit >= toUnit) {
+			return;
+		}
+		checkRange(fromUnit);
+		checkRange(toUnit - 1);
+		int firstWord = fromUnit >>> 6;
+		int lastWord = (toUnit - 1) >>> 6;
+		long firstMask = -1L << fromUnit;
+		long lastMask = -1L >>> -toUnit;
+		for (int word=firstWord; word<=lastWord; word++) {
+			long mask = -1L;
+			if (word == firstWord) mask &= firstMask;
+			if (word == lastWord) mask &= lastMask;
+			if (free) {
+				bitmap[word] |= mask;
+			} else {
+				bitmap[word] &= ~mask;
+			}
+		}
+	}
+
+	/**
+	 * Get the number of free units.
+	 */
+	public int getFreeCount() {
+		int count = 0;
+		for (int i=0; i<bitmap.length; i++) {
+			count+= Long.bitCount(bitmap[i]);
+		}
+		return count;
+	}
+
+	/**
+	 * Get the number of used units.
+	 */
+	public int getUsedCount() {
+		return length - getFreeCount();
+	}
+
+	/**
+	 * Find the next free unit at or after the given unit.
+	 * Returns -1 if there are no more free units.
+	 */
+	public int nextFree(int fromUnit) {
+		if (fromUnit < 0 || fromUnit >= length) {
+			return -1;
+		}
+		int word = fromUnit >>> 6;
+		long bits = bitmap[word] & (-1L << fromUnit);
+		while (true) {
+			if (bits != 0) {
+				int unit = (word << 6) + Long.numberOfTrailingZeros(bits);
+				return (unit < length) ? unit : -1;
+			}
+			if (++word >= bitmap.length) {
+				return -1;
+			}
+			bits = bitmap[word];
+		}
+	}
+
+	/**
+	 * Find the next used unit at or after the given unit.
+	 * Returns -1 if there are no more used units.
+	 */
+	public int nextUsed(int fromUnit) {
+		if (fromUnit < 0 || fromUnit >= length) {
+			return -1;
+		}
+		int word = fromUnit >>> 6;
+		long bits = ~bitmap[word] & (-1L << fromUnit);
+		while (true) {
+			if (bits != 0) {
+				int unit = (word << 6) + Long.numberOfTrailingZeros(bits);
+				return (unit < length) ? unit : -1;
+			}
+			if (++word >= bitmap.length) {
+				return -1;
+			}
+			bits = ~bitmap[word];
+		}
+	}
+
+	/**
+	 * Get a copy of the packed bitmap.  Bit (unit % 64) of word (unit / 64)
+	 * is set when that unit is free.
+	 */
+	public long[] toLongArray() {
+		return Arrays.copyOf(bitmap, bitmap.length);
+	}
+
+	/**
+	 * Indicates if owner information has been supplied.
+	 */
+	public boolean hasOwners() {
+		return owners != null;
+	}
+
+	/**
+	 * Set the per-unit owner identifiers.  The array must match the length
+	 * of this snapshot.
+	 */
+	public void setOwners(int[] owners) {
+		if (owners != null && owners.length != length) {
+			throw new IllegalArgumentException(StorageBundle.getInstance()
+					.format("DiskUsageSnapshot.OwnerLengthError", //$NON-NLS-1$
+					owners.length, length));
+		}
+		this.owners = owners;
+	}
+
+	/**
+	 * Get the owner of the given unit, or NO_OWNER.
+	 */
+	public int getOwner(int unit) {
+		checkRange(unit);
+		return (owners == null) ? NO_OWNER : owners[unit];
+	}
+
+	/**
+	 * Expose this snapshot through the older DiskUsage iterator.
+	 */
+	public DiskUsage getDiskUsage() {
+		return new DiskUsage() {
+			private int location = -1;
+			public boolean hasNext() {
+				return location < length - 1;
+			}
+			public void next() {
+				location++;
+			}
+			public boolean isFree() {
+				return DiskUsageSnapshot.this.isFree(location);
+			}
+			public boolean isUsed() {
+				return !isFree();
+			}
+		};
+	}
+
+	/**
+	 * Ensure the unit is within the snapshot.
+	 */
+	private void checkRange(int unit) {
+		if (unit < 0 || unit >= length) {
+			throw new IllegalArgumentException(StorageBundle.getInstance()
+					.format("DiskUsageSnapshot.InvalidUnitError", //$NON-NLS-1$
+					unit, length - 1));
+		}
+	}
+}
@@ -21,6 +21,7 @@ package com.webcodepro.applecommander.storage;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
@@ -36,6 +37,7 @@ import com.webcodepro.applecommander.util.TextBundle;
  */
 public abstract class FormattedDisk extends Disk implements DirectoryEntry {
 	private TextBundle textBundle = StorageBundle.getInstance();
+	private DiskOwnershipMap ownershipMap;
 	/**
 	 * Use this inner class for label/value mappings in the disk info page.
 	 */
@@ -172,7 +174,77 @@ public abstract class FormattedDisk extends Disk implements DirectoryEntry {
 	 * Get the disk usage iterator.
 	 */
 	public abstract DiskUsage getDiskUsage();
-	
+
+	/**
+	 * Get a snapshot of the entire disk usage bitmap.  The default
+	 * implementation walks the DiskUsage iterator; formats which have the
+	 * bitmap (or the file allocations) at hand should override this and
+	 * build the snapshot directly.  Returns null if the disk has no usage map.
+	 */
+	public DiskUsageSnapshot getUsageSnapshot() {
+		DiskUsage usage = getDiskUsage();
+		if (usage == null) {
+			return null;
+		}
+		return DiskUsageSnapshot.fromDiskUsage(usage, getBitmapLength(),
+				getBitmapDimensions());
+	}
+
+	/**
+	 * Check the consistency of this disk: the bitmap is compared with the
+	 * blocks or sectors actually used by the files, and the directory
+	 * structure is checked for damage.  If repair is true, and the bitmap
+	 * is the only problem found, the bitmap is rebuilt (the disk still needs
+	 * to be saved).  Returns null if this format cannot be checked.
+	 */
+	public DiskCheck checkDisk(boolean repair) {
+		return null;
+	}
+
+	/**
+	 * Get a scanner which finds (and recovers) deleted files on this disk.
+	 * Returns null if this format does not support recovery.
+	 */
+	public DeletedFileScanner getDeletedFileScanner() {
+		return null;
+	}
+
+	/**
+	 * Get the map of which file owns each block or sector.  The map is built
+	 * on first use (with one pass through the directory structure) and is
+	 * kept current by the formats as files are written or deleted.  Returns
+	 * null if this format does not support an ownership map.
+	 */
+	public DiskOwnershipMap getOwnershipMap() {
+		if (ownershipMap == null) {
+			ownershipMap = buildOwnershipMap();
+		}
+		return ownershipMap;
+	}
+
+	/**
+	 * Build the ownership map for this disk.  Formats which can identify the
+	 * blocks or sectors used by each file should override this.
+	 */
+	protected DiskOwnershipMap buildOwnershipMap() {
+		return null;
+	}
+
+	/**
+	 * Get the ownership map only if it has already been built.  Formats use
+	 * this to update the map as files change without forcing it to be built.
+	 */
+	protected DiskOwnershipMap getCachedOwnershipMap() {
+		return ownershipMap;
+	}
+
+	/**
+	 * Discard the ownership map (for instance, when the disk is formatted).
+	 */
+	protected void resetOwnershipMap() {
+		ownershipMap = null;
+	}
+
 	/**
 	 * Get the labels to use in the bitmap.
 	 * Note that this should, at a minimum, return an array of
@@ -262,6 +334,25 @@ public abstract class FormattedDisk extends Disk implements DirectoryEntry {
 	 * @see FileEntry#getFileData()
 	 */
 	public abstract byte[] getFileData(FileEntry fileEntry);
+
+	/**
+	 * Write the data of the specified FileEntry to the stream; by default
+	 * the data FileEntry#getFileData() answers with.  Formats which can do so
+	 * override this to read the file a piece at a time rather than all at
+	 * once, and say where their output differs.  The stream is not closed.
+	 */
+	public void writeFileData(FileEntry fileEntry, OutputStream out) throws IOException {
+		byte[] fileData = fileEntry.getFileData();
+		out.write(fileData, 0, fileData.length);
+	}
+
+	/**
+	 * The number of bytes writeFileData writes for the FileEntry, or -1 if
+	 * that is not known without reading the file.
+	 */
+	public long getFileDataLength(FileEntry fileEntry) {
+		return -1;
+	}
 	
 	/**
 	 * Locate a specific file by filename.
@@ -0,0 +1,248 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2002 by Robert Greene
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Describes how fragmented a volume is, both for the files on it and for
+ * the remaining free space.
+ * <p>
+ * The report is built from the ownership map (one pass through the
+ * directory and index structures) and the usage snapshot (one read of the
+ * bitmap).  For each file, the units used are broken into extents (runs of
+ * consecutive units in file order) and the head movement needed to read the
+ * file is estimated in tracks.  For the volume, the free space is broken
+ * into runs as well.
+ * <p>
+ * The fragmentation score is a percentage: 0 means every file is a single
+ * extent and the free space is one run; 100 means every unit of every file
+ * is its own extent and the free space is scattered one unit at a time.
+ * It is the average of the file score (extents beyond one per file, as a
+ * share of the most there could be) and the free space score (the share of
+ * free units outside of the largest free run).
+ */
+public class FragmentationReport {
+	/**
+	 * The fragmentation of a single file.
+	 */
+	public static class FileFragmentation {
+		private FileEntry entry;
+		private String path;
+		private int units;
+		private int extents;
+		private int seekTracks;
+		public FileFragmentation(FileEntry entry, String path, int units, int extents, int seekTracks) {
+			this.entry = entry;
+			this.path = path;
+			this.units = units;
+			this.extents = extents;
+			this.seekTracks = seekTracks;
+		}
+		public FileEntry getFileEntry() {
+			return entry;
+		}
+		/** The path of the file ("DIR/FILE"). */
+		public String getPath() {
+			return path;
+		}
+		/** The number of blocks or sectors used (including index sectors). */
+		public int getUnits() {
+			return units;
+		}
+		/** The number of runs of consecutive units, in file order. */
+		public int getExtents() {
+			return extents;
+		}
+		/** The average number of units in each extent. */
+		public double getAverageRunLength() {
+			return (extents == 0) ? 0.0 : (double) units / extents;
+		}
+		/** The total head movement between extents, in tracks. */
+		public int getSeekTracks() {
+			return seekTracks;
+		}
+		/** Indicates if this file uses more than one extent. */
+		public boolean isFragmented() {
+			return extents > 1;
+		}
+	}
+
+	private List<FileFragmentation> files = new ArrayList<>();
+	private int length;
+	private int unitsPerTrack;
+	private int freeUnits;
+	private int freeRuns;
+	private int largestFreeRun;
+	private int fileUnits;
+	private int fileExtents;
+	private int fragmentedFiles;
+
+	/**
+	 * Analyze the given disk.  Returns null if the format does not support
+	 * an ownership map.
+	 */
+	public static FragmentationReport analyze(FormattedDisk disk) {
+		DiskOwnershipMap map = disk.getOwnershipMap();
+		DiskUsageSnapshot snapshot = disk.getUsageSnapshot();
+		if (map == null || snapshot == null) {
+			return null;
+		}
+		return new FragmentationReport(map, snapshot);
+	}
+
+	/**
+	 * Build the report from an ownership map and usage snapshot.
+	 */
+	public FragmentationReport(DiskOwnershipMap map, DiskUsageSnapshot snapshot) {
+		length = snapshot.getLength();
+		unitsPerTrack = getUnitsPerTrack(length, snapshot.getDimensions());
+		for (int id=0; id<map.getEntryCount(); id++) {
+			int[][] extents = map.getExtents(id);
+			if (extents.length == 0) {
+				continue;
+			}
+			int units = 0;
+			int seekTracks = 0;
+			for (int i=0; i<extents.length; i++) {
+				units+= extents[i][1];
+				if (i > 0) {
+					int previousEnd = extents[i-1][0] + extents[i-1][1] - 1;
+					seekTracks+= Math.abs(extents[i][0] / unitsPerTrack
+							- previousEnd / unitsPerTrack);
+				}
+			}
+			FileFragmentation file = new FileFragmentation(map.getFileEntry(id),
+					map.getPath(id), units, extents.length, seekTracks);
+			files.add(file);
+			fileUnits+= units;
+			fileExtents+= extents.length;
+			if (file.isFragmented()) fragmentedFiles++;
+		}
+		int unit = snapshot.nextFree(0);
+		while (unit >= 0) {
+			int end = snapshot.nextUsed(unit);
+			if (end < 0) end = length;
+			int run = end - unit;
+			freeUnits+= run;
+			freeRuns++;
+			largestFreeRun = Math.max(largestFreeRun, run);
+			unit = snapshot.nextFree(end);
+		}
+	}
+
+	/**
+	 * Work out how many units make up a track.  Track/sector devices give
+	 * this in their dimensions.  For block devices, a 5.25" disk has 8 blocks
+	 * per track; an 800K disk varies by zone, so the average of 20 blocks per
+	 * track (both sides) is used.  Anything else is treated as 5.25" tracks.
+	 */
+	protected static int getUnitsPerTrack(int length, int[] dimensions) {
+		if (dimensions != null && dimensions.length == 2 && dimensions[1] > 0) {
+			return dimensions[1];
+		}
+		if (length == Disk.APPLE_800KB_DISK / Disk.BLOCK_SIZE) {
+			return 20;
+		}
+		return 8;
+	}
+
+	/**
+	 * Get the fragmentation for each file that uses any units.
+	 */
+	public List<FileFragmentation> getFiles() {
+		return files;
+	}
+
+	/**
+	 * The number of units (blocks or sectors) on the volume.
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * The number of units used to compute track distances.
+	 */
+	public int getUnitsPerTrack() {
+		return unitsPerTrack;
+	}
+
+	public int getFreeUnits() {
+		return freeUnits;
+	}
+
+	/**
+	 * The number of separate runs of free units.
+	 */
+	public int getFreeRuns() {
+		return freeRuns;
+	}
+
+	public int getLargestFreeRun() {
+		return largestFreeRun;
+	}
+
+	/**
+	 * The total number of extents over all files.
+	 */
+	public int getFileExtents() {
+		return fileExtents;
+	}
+
+	public int getFragmentedFiles() {
+		return fragmentedFiles;
+	}
+
+	/**
+	 * The average extent length over all files.
+	 */
+	public double getAverageRunLength() {
+		return (fileExtents == 0) ? 0.0 : (double) fileUnits / fileExtents;
+	}
+
+	/**
+	 * The total head movement between extents, over all files, in tracks.
+	 */
+	public int getSeekTracks() {
+		int seekTracks = 0;
+		for (FileFragmentation file : files) {
+			seekTracks+= file.getSeekTracks();
+		}
+		return seekTracks;
+	}
+
+	/**
+	 * The volume fragmentation score, from 0 (none) to 100.
+	 */
+	public int getScore() {
+		double fileScore = 0.0;
+		int possibleExtents = fileUnits - files.size();
+		if (possibleExtents > 0) {
+			fileScore = (double) (fileExtents - files.size()) / possibleExtents;
+		}
+		double freeScore = 0.0;
+		if (freeUnits > 1) {
+			freeScore = (double) (freeUnits - largestFreeRun) / (freeUnits - 1);
+		}
+		return (int) Math.round(50.0 * (fileScore + freeScore));
+	}
+}
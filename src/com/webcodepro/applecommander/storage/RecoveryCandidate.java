@@ -0,0 +1,132 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2002 by Robert Greene
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage;
+
+/**
+ * A deleted file found by a DeletedFileScanner.
+ * <p>
+ * The units (blocks or sectors) are those the file used before it was
+ * deleted, as far as can be worked out from the structures left on disk.
+ * The score indicates how likely the file is to be recovered intact: it
+ * is the percentage of those units which are still free, and is 0 when the
+ * remaining structure is damaged (for instance, a pointer outside of the
+ * disk).
+ */
+public class RecoveryCandidate {
+	private FormattedDisk disk;
+	private FileEntry entry;
+	private String filename;
+	private String filetype;
+	private int[] units;
+	private int freeUnits;
+	private boolean damaged;
+	private boolean sizeMismatch;
+
+	public RecoveryCandidate(FormattedDisk disk, FileEntry entry, String filename,
+			String filetype, int[] units, int freeUnits, boolean damaged,
+			boolean sizeMismatch) {
+		this.disk = disk;
+		this.entry = entry;
+		this.filename = filename;
+		this.filetype = filetype;
+		this.units = units;
+		this.freeUnits = freeUnits;
+		this.damaged = damaged;
+		this.sizeMismatch = sizeMismatch;
+	}
+
+	/**
+	 * The disk the deleted file was found on.
+	 */
+	public FormattedDisk getFormattedDisk() {
+		return disk;
+	}
+
+	/**
+	 * The (deleted) directory entry.
+	 */
+	public FileEntry getFileEntry() {
+		return entry;
+	}
+
+	/**
+	 * The filename, including the directory path where applicable.
+	 */
+	public String getFilename() {
+		return filename;
+	}
+
+	public String getFiletype() {
+		return filetype;
+	}
+
+	/**
+	 * The units used by the file, in file order.
+	 */
+	public int[] getUnits() {
+		return units;
+	}
+
+	/**
+	 * The number of units which are still free.
+	 */
+	public int getFreeUnits() {
+		return freeUnits;
+	}
+
+	/**
+	 * Indicates that the structure left on disk is damaged.
+	 */
+	public boolean isDamaged() {
+		return damaged;
+	}
+
+	/**
+	 * Indicates that the size recorded in the directory entry does not
+	 * match the units found.
+	 */
+	public boolean isSizeMismatch() {
+		return sizeMismatch;
+	}
+
+	/**
+	 * Indicates that every unit is still free and the structure is intact,
+	 * so the file can be restored in place.
+	 */
+	public boolean isIntact() {
+		return !damaged && !sizeMismatch && units.length > 0 && freeUnits == units.length;
+	}
+
+	/**
+	 * How recoverable the file is, from 0 to 100.  A size mismatch limits
+	 * the score to 50 as the structure found may not be the original.
+	 */
+	public int getScore() {
+		if (damaged || units.length == 0) {
+			return 0;
+		}
+		int score = freeUnits * 100 / units.length;
+		return sizeMismatch ? Math.min(score, 50) : score;
+	}
+
+	public String toString() {
+		return filename;
+	}
+}
@@ -0,0 +1,989 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2002 by Robert Greene
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.webcodepro.applecommander.storage.filters.AppleWorksDataBaseFileFilter;
+import com.webcodepro.applecommander.storage.filters.AppleWorksSpreadSheetFileFilter;
+import com.webcodepro.applecommander.storage.filters.AppleWorksWordProcessorFileFilter;
+import com.webcodepro.applecommander.storage.filters.ApplesoftFileFilter;
+import com.webcodepro.applecommander.storage.filters.AssemblySourceFileFilter;
+import com.webcodepro.applecommander.storage.filters.BusinessBASICFileFilter;
+import com.webcodepro.applecommander.storage.filters.GutenbergFileFilter;
+import com.webcodepro.applecommander.storage.filters.IntegerBasicFileFilter;
+import com.webcodepro.applecommander.storage.filters.PascalTextFileFilter;
+import com.webcodepro.applecommander.storage.filters.TextFileFilter;
+import com.webcodepro.applecommander.storage.os.dos33.DosFileEntry;
+import com.webcodepro.applecommander.storage.os.dos33.DosFormatDisk;
+import com.webcodepro.applecommander.storage.os.nufx.NufxFileEntry;
+import com.webcodepro.applecommander.storage.os.nufx.NufxFormatDisk;
+import com.webcodepro.applecommander.storage.os.prodos.ProdosFileEntry;
+import com.webcodepro.applecommander.storage.os.rdos.RdosFileEntry;
+import com.webcodepro.applecommander.util.AppleUtil;
+
+/**
+ * A search index over every file in a set of disk images.
+ * <p>
+ * Each file is indexed by its filetype, auxiliary type, load address and
+ * size, and, when its suggested filter produces text (BASIC listings, text
+ * files, assembly source and AppleWorks documents), by the words in that
+ * text.  The index is kept in two files.  The documents file holds, for
+ * each image, the size, modification time and CRC-32 of the image along
+ * with every file and its words; an image which has not changed is not read
+ * again when the index is updated.  The index file itself is rebuilt from
+ * the documents after each update and is what searches read: for each word
+ * the ascending list of files containing it (delta and variable-length
+ * encoded), the image names, the files, a sorted dictionary of words, and
+ * tables giving where each image name, file and word starts.  A search
+ * finds its words in the dictionary by binary search, and then reads only
+ * their postings and the files they lead to.
+ */
+public class SearchIndex {
+	/** Used for the auxiliary type or address when there is none. */
+	public static final int NONE = -1;
+	private static final int DOCUMENTS_MAGIC = 0x41435344;	// "ACSD"
+	private static final int INDEX_MAGIC = 0x41435332;		// "ACS2"
+	/** Images indexed by one task before it is split up. */
+	private static final int IMAGES_PER_TASK = 4;
+	/** Words longer than this are cut short. */
+	private static final int MAXIMUM_WORD_LENGTH = 32;
+	private File indexFile;
+	private File documentsFile;
+	private Map<String,ImageDocument> documents = new LinkedHashMap<String,ImageDocument>();
+
+	/**
+	 * Open the index, reading in the documents already indexed.
+	 */
+	public SearchIndex(File indexFile) throws IOException {
+		this.indexFile = indexFile;
+		this.documentsFile = new File(indexFile.getPath() + ".docs"); //$NON-NLS-1$
+		if (documentsFile.exists()) {
+			loadDocuments();
+		}
+	}
+
+	/**
+	 * Bring the index up to date with the given images, using up to
+	 * parallelism threads.  Images which are unchanged since they were last
+	 * indexed are skipped; images which cannot be read are left out and
+	 * reported in errors.  Images indexed before but not named here are kept.
+	 * Answers with the number of images which were read.
+	 */
+	public int update(List<String> imageNames, int parallelism, Map<String,Exception> errors) {
+		List<String> changed = new ArrayList<String>();
+		for (String imageName : imageNames) {
+			try {
+				ImageDocument document = documents.get(imageName);
+				if (document == null || !document.isCurrent()) {
+					changed.add(imageName);
+				}
+			} catch (IOException e) {
+				errors.put(imageName, e);
+			}
+		}
+		Map<String,ImageDocument> indexed = new ConcurrentHashMap<String,ImageDocument>();
+		Map<String,Exception> failures = new ConcurrentHashMap<String,Exception>();
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, parallelism));
+		try {
+			pool.invoke(new IndexTask(changed, 0, changed.size(), indexed, failures));
+		} finally {
+			pool.shutdown();
+		}
+		for (String imageName : changed) {
+			if (indexed.containsKey(imageName)) {
+				documents.put(imageName, indexed.get(imageName));
+			} else {
+				documents.remove(imageName);
+			}
+		}
+		errors.putAll(failures);
+		return changed.size();
+	}
+
+	/**
+	 * Drop an image from the index.
+	 */
+	public void remove(String imageName) {
+		documents.remove(imageName);
+	}
+
+	/**
+	 * Write out the documents and rebuild the index file from them.  Both are
+	 * written to a new file first, so a failure leaves the old index usable.
+	 */
+	public void save() throws IOException {
+		File temp = new File(documentsFile.getPath() + ".tmp"); //$NON-NLS-1$
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(temp), 65536));
+		try {
+			out.writeInt(DOCUMENTS_MAGIC);
+			out.writeInt(documents.size());
+			for (ImageDocument document : documents.values()) {
+				document.write(out);
+			}
+		} finally {
+			out.close();
+		}
+		replace(temp, documentsFile);
+		temp = new File(indexFile.getPath() + ".tmp"); //$NON-NLS-1$
+		writeIndex(temp);
+		replace(temp, indexFile);
+	}
+
+	/**
+	 * Answer with the files which match every term of the query.  A term is
+	 * one of:
+	 * <ul>
+	 * <li>a word, found in the text of the file; a word ending in '*' matches
+	 *     every word starting with what comes before it;</li>
+	 * <li>type:BAS, the filetype;</li>
+	 * <li>name:HELLO, the filename, which may also end in '*';</li>
+	 * <li>aux:, addr: or size:, followed by a number in decimal, $hex or
+	 *     0xhex, optionally after one of &lt; &lt;= &gt; &gt;= or =.</li>
+	 * </ul>
+	 * Words are matched without regard to case.
+	 */
+	public static List<Hit> search(File indexFile, String[] terms) throws IOException {
+		IndexReader reader = new IndexReader(indexFile);
+		try {
+			int[] candidates = null;
+			List<String> fieldTerms = new ArrayList<String>();
+			for (String term : terms) {
+				if (term.indexOf(':') > 0) {
+					fieldTerms.add(term);
+					continue;
+				}
+				int[] postings = reader.findPostings(term.toLowerCase());
+				candidates = (candidates == null) ? postings : intersect(candidates, postings);
+			}
+			Query query = new Query(fieldTerms);
+			List<Hit> hits = new ArrayList<Hit>();
+			if (candidates == null) {
+				for (Hit hit : reader.readHits()) {
+					if (query.matches(hit)) hits.add(hit);
+				}
+			} else {
+				for (int i = 0; i < candidates.length; i++) {
+					Hit hit = reader.readHit(candidates[i]);
+					if (query.matches(hit)) hits.add(hit);
+				}
+			}
+			return hits;
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Split text into the lower case words which are indexed: runs of
+	 * letters and digits (high bits are ignored).
+	 */
+	public static Set<String> getWords(byte[] text) {
+		Set<String> words = new LinkedHashSet<String>();
+		StringBuilder word = new StringBuilder();
+		for (int i = 0; i <= text.length; i++) {
+			char ch = (i < text.length) ? (char) (text[i] & 0x7f) : ' ';
+			if (Character.isLetterOrDigit(ch)) {
+				if (word.length() < MAXIMUM_WORD_LENGTH) {
+					word.append(Character.toLowerCase(ch));
+				}
+			} else if (word.length() > 0) {
+				words.add(word.toString());
+				word.setLength(0);
+			}
+		}
+		return words;
+	}
+
+	/**
+	 * Indicates if the filter turns a file into plain text worth indexing.
+	 */
+	protected static boolean isTextFilter(FileFilter filter) {
+		return filter instanceof ApplesoftFileFilter
+			|| filter instanceof IntegerBasicFileFilter
+			|| filter instanceof BusinessBASICFileFilter
+			|| filter instanceof TextFileFilter
+			|| filter instanceof PascalTextFileFilter
+			|| filter instanceof AssemblySourceFileFilter
+			|| filter instanceof AppleWorksWordProcessorFileFilter
+			|| filter instanceof AppleWorksDataBaseFileFilter
+			|| filter instanceof AppleWorksSpreadSheetFileFilter
+			|| filter instanceof GutenbergFileFilter;
+	}
+
+	/**
+	 * The auxiliary type of a ProDOS file (or a file in a ShrinkIt archive),
+	 * or NONE.
+	 */
+	protected static int getAuxiliaryType(FileEntry entry) {
+		if (entry instanceof ProdosFileEntry) {
+			return ((ProdosFileEntry) entry).getAuxiliaryType();
+		} else if (entry instanceof NufxFileEntry) {
+			return ((NufxFileEntry) entry).getAuxiliaryType();
+		}
+		return NONE;
+	}
+
+	/**
+	 * The load address of a file, where it has one: the auxiliary type of
+	 * a ProDOS BIN, BAS, VAR or SYS file, the address at the start of a
+	 * DOS binary file, or the address of an RDOS file.
+	 */
+	protected static int getAddress(FileEntry entry) {
+		String filetype = entry.getFiletype();
+		if (entry instanceof ProdosFileEntry || entry instanceof NufxFileEntry) {
+			if ("BIN".equals(filetype) || "BAS".equals(filetype) //$NON-NLS-1$ //$NON-NLS-2$
+					|| "VAR".equals(filetype) || "SYS".equals(filetype)) { //$NON-NLS-1$ //$NON-NLS-2$
+				return getAuxiliaryType(entry);
+			}
+		} else if (entry instanceof DosFileEntry && "B".equals(filetype)) { //$NON-NLS-1$
+			byte[] rawdata = ((DosFormatDisk) entry.getFormattedDisk()).getFileData(entry);
+			if (rawdata != null && rawdata.length >= 2) {
+				return AppleUtil.getWordValue(rawdata, 0);
+			}
+		} else if (entry instanceof RdosFileEntry) {
+			return ((RdosFileEntry) entry).getAddress();
+		}
+		return NONE;
+	}
+
+	/**
+	 * Read an image and index every file on it.
+	 */
+	protected static ImageDocument indexImage(String imageName) throws IOException {
+		ImageDocument document = new ImageDocument();
+		document.imageName = imageName;
+		CatalogCache.Fingerprint fingerprint = CatalogCache.Fingerprint.of(imageName);
+		if (fingerprint == null) {
+			throw new FileNotFoundException(imageName);
+		}
+		document.size = fingerprint.getSize();
+		document.modified = fingerprint.getModified();
+		document.crc = fingerprint.getCrc();
+		FormattedDisk[] formattedDisks;
+		NufxFormatDisk archive = NufxFormatDisk.open(imageName);
+		try {
+			if (archive != null) {
+				formattedDisks = new FormattedDisk[] { archive };
+			} else {
+				formattedDisks = new Disk(imageName).getFormattedDisks();
+			}
+			if (formattedDisks == null) {
+				throw new IOException(StorageBundle.getInstance().get(
+						"SearchIndex.UnknownFormat")); //$NON-NLS-1$
+			}
+			for (int i = 0; i < formattedDisks.length; i++) {
+				List<FileEntry> files = formattedDisks[i].getFiles();
+				if (files != null) {
+					String prefix = (formattedDisks.length > 1) ? formattedDisks[i].getDiskName() + ":" : ""; //$NON-NLS-1$ //$NON-NLS-2$
+					indexFiles(document, files, prefix);
+				}
+			}
+		} finally {
+			if (archive != null) {
+				archive.close();
+			}
+		}
+		return document;
+	}
+
+	/**
+	 * Index the files in a directory, and those in its subdirectories.
+	 */
+	protected static void indexFiles(ImageDocument document, List<FileEntry> files, String path) {
+		for (FileEntry entry : files) {
+			if (entry.isDeleted()) continue;
+			if (entry.isDirectory()) {
+				indexFiles(document, ((DirectoryEntry) entry).getFiles(),
+						path + entry.getFilename() + "/"); //$NON-NLS-1$
+				continue;
+			}
+			FileDocument file = new FileDocument();
+			file.path = path + entry.getFilename();
+			file.filetype = entry.getFiletype();
+			file.auxType = getAuxiliaryType(entry);
+			file.address = getAddress(entry);
+			file.size = entry.getSize();
+			FileFilter filter = entry.getSuggestedFilter();
+			if (isTextFilter(filter)) {
+				try {
+					file.words = getWords(filter.filter(entry)).toArray(new String[0]);
+				} catch (RuntimeException e) {
+					// A damaged file is still indexed by its name and type
+				}
+			}
+			document.files.add(file);
+		}
+	}
+
+	/**
+	 * Build the index file: the header, the postings for each word, the
+	 * image names, the files and the dictionary, and then the tables of
+	 * where each image name, file and word starts.
+	 */
+	protected void writeIndex(File file) throws IOException {
+		Map<String,PostingList> postings = new HashMap<String,PostingList>();
+		int fileNumber = 0;
+		for (ImageDocument document : documents.values()) {
+			for (FileDocument fileDocument : document.files) {
+				for (String word : fileDocument.words) {
+					PostingList list = postings.get(word);
+					if (list == null) {
+						list = new PostingList();
+						postings.put(word, list);
+					}
+					list.add(fileNumber);
+				}
+				fileNumber++;
+			}
+		}
+		String[] words = postings.keySet().toArray(new String[postings.size()]);
+		Arrays.sort(words);
+		long[] postingOffsets = new long[words.length];
+		long[] imageOffsets = new long[documents.size()];
+		long[] fileOffsets = new long[fileNumber];
+		long[] wordOffsets = new long[words.length];
+		CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file), 65536));
+		DataOutputStream out = new DataOutputStream(counter);
+		try {
+			out.writeInt(INDEX_MAGIC);
+			out.writeInt(imageOffsets.length);
+			out.writeInt(fileOffsets.length);
+			out.writeInt(wordOffsets.length);
+			out.writeLong(0);	// the offsets of the tables come later
+			out.writeLong(0);
+			out.writeLong(0);
+			for (int i = 0; i < words.length; i++) {
+				postingOffsets[i] = counter.getCount();
+				postings.get(words[i]).write(out);
+			}
+			int imageNumber = 0;
+			for (ImageDocument document : documents.values()) {
+				imageOffsets[imageNumber++] = counter.getCount();
+				out.writeUTF(document.imageName);
+			}
+			imageNumber = 0;
+			fileNumber = 0;
+			for (ImageDocument document : documents.values()) {
+				for (FileDocument fileDocument : document.files) {
+					fileOffsets[fileNumber++] = counter.getCount();
+					out.writeInt(imageNumber);
+					fileDocument.writeFields(out);
+				}
+				imageNumber++;
+			}
+			for (int i = 0; i < words.length; i++) {
+				wordOffsets[i] = counter.getCount();
+				out.writeUTF(words[i]);
+				out.writeLong(postingOffsets[i]);
+			}
+			long imageTable = writeTable(out, counter, imageOffsets);
+			long fileTable = writeTable(out, counter, fileOffsets);
+			long wordTable = writeTable(out, counter, wordOffsets);
+			out.close();
+			RandomAccessFile raf = new RandomAccessFile(file, "rw"); //$NON-NLS-1$
+			try {
+				raf.seek(16);
+				raf.writeLong(imageTable);
+				raf.writeLong(fileTable);
+				raf.writeLong(wordTable);
+			} finally {
+				raf.close();
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Write a table of offsets, answering with where it starts.
+	 */
+	protected static long writeTable(DataOutputStream out, CountingOutputStream counter,
+			long[] offsets) throws IOException {
+		long start = counter.getCount();
+		for (int i = 0; i < offsets.length; i++) {
+			out.writeLong(offsets[i]);
+		}
+		return start;
+	}
+
+	/**
+	 * Read the documents file.
+	 */
+	protected void loadDocuments() throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(documentsFile), 65536));
+		try {
+			if (in.readInt() != DOCUMENTS_MAGIC) {
+				throw new IOException(StorageBundle.getInstance().format(
+						"SearchIndex.NotAnIndex", documentsFile.getPath())); //$NON-NLS-1$
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				ImageDocument document = ImageDocument.read(in);
+				documents.put(document.imageName, document);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Replace a file with its new copy.
+	 */
+	protected static void replace(File temp, File file) throws IOException {
+		if ((file.exists() && !file.delete()) || !temp.renameTo(file)) {
+			throw new IOException(StorageBundle.getInstance().format(
+					"SearchIndex.ReplaceError", file.getPath())); //$NON-NLS-1$
+		}
+	}
+
+	protected static int[] intersect(int[] a, int[] b) {
+		int[] result = new int[Math.min(a.length, b.length)];
+		int count = 0;
+		for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+			if (a[i] < b[j]) i++;
+			else if (a[i] > b[j]) j++;
+			else { result[count++] = a[i]; i++; j++; }
+		}
+		return Arrays.copyOf(result, count);
+	}
+
+	protected static int[] union(int[] a, int[] b) {
+		int[] result = new int[a.length + b.length];
+		int count = 0;
+		int i = 0;
+		int j = 0;
+		while (i < a.length || j < b.length) {
+			if (j == b.length || (i < a.length && a[i] < b[j])) result[count++] = a[i++];
+			else if (i == a.length || b[j] < a[i]) result[count++] = b[j++];
+			else { result[count++] = a[i++]; j++; }
+		}
+		return Arrays.copyOf(result, count);
+	}
+
+	/**
+	 * Reads what a search needs from the index file, seeking to each piece
+	 * through the tables at the end of the file.
+	 */
+	protected static class IndexReader {
+		private File indexFile;
+		private RandomAccessFile raf;
+		private int imageCount;
+		private int fileCount;
+		private int wordCount;
+		private long imageTable;
+		private long fileTable;
+		private long wordTable;
+		private Map<Integer,String> imageNames = new HashMap<Integer,String>();
+
+		public IndexReader(File indexFile) throws IOException {
+			this.indexFile = indexFile;
+			raf = new RandomAccessFile(indexFile, "r"); //$NON-NLS-1$
+			try {
+				if (raf.readInt() != INDEX_MAGIC) {
+					throw new IOException(StorageBundle.getInstance().format(
+							"SearchIndex.NotAnIndex", indexFile.getPath())); //$NON-NLS-1$
+				}
+				imageCount = raf.readInt();
+				fileCount = raf.readInt();
+				wordCount = raf.readInt();
+				imageTable = raf.readLong();
+				fileTable = raf.readLong();
+				wordTable = raf.readLong();
+			} catch (IOException e) {
+				raf.close();
+				throw e;
+			}
+		}
+
+		public void close() throws IOException {
+			raf.close();
+		}
+
+		/**
+		 * Find the files containing a word, or any word with the prefix when
+		 * it ends in '*'.  The dictionary is sorted, so a prefix covers one
+		 * run of it.
+		 */
+		public int[] findPostings(String term) throws IOException {
+			boolean prefix = term.endsWith("*"); //$NON-NLS-1$
+			if (prefix) term = term.substring(0, term.length() - 1);
+			int index = findWord(term);
+			if (!prefix) {
+				return (index < wordCount && term.equals(readWord(index)))
+					? readPostings(index) : new int[0];
+			}
+			int[] result = new int[0];
+			for (int i = index; i < wordCount && readWord(i).startsWith(term); i++) {
+				result = union(result, readPostings(i));
+			}
+			return result;
+		}
+
+		/**
+		 * The number of the first word in the dictionary which is not before
+		 * the term.
+		 */
+		protected int findWord(String term) throws IOException {
+			int low = 0;
+			int high = wordCount;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (readWord(middle).compareTo(term) < 0) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+			return low;
+		}
+
+		protected String readWord(int number) throws IOException {
+			raf.seek(readOffset(wordTable, number));
+			return raf.readUTF();
+		}
+
+		protected int[] readPostings(int number) throws IOException {
+			raf.seek(readOffset(wordTable, number));
+			raf.readUTF();
+			return PostingList.read(openAt(raf.readLong()));
+		}
+
+		/**
+		 * Read one file.
+		 */
+		public Hit readHit(int number) throws IOException {
+			raf.seek(readOffset(fileTable, number));
+			return readHit(raf);
+		}
+
+		/**
+		 * Read every file, in order.
+		 */
+		public List<Hit> readHits() throws IOException {
+			List<Hit> hits = new ArrayList<Hit>(fileCount);
+			if (fileCount > 0) {
+				DataInputStream in = openAt(readOffset(fileTable, 0));
+				for (int i = 0; i < fileCount; i++) {
+					hits.add(readHit(in));
+				}
+			}
+			return hits;
+		}
+
+		protected Hit readHit(DataInput in) throws IOException {
+			int imageNumber = in.readInt();
+			FileDocument file = FileDocument.readFields(in);
+			Hit hit = new Hit();
+			hit.imageName = readImageName(imageNumber);
+			hit.path = file.path;
+			hit.filetype = file.filetype;
+			hit.auxType = file.auxType;
+			hit.address = file.address;
+			hit.size = file.size;
+			return hit;
+		}
+
+		/**
+		 * The name of an image, each read once.  This leaves the file
+		 * pointer where it was.
+		 */
+		protected String readImageName(int number) throws IOException {
+			String imageName = imageNames.get(number);
+			if (imageName == null) {
+				if (number < 0 || number >= imageCount) {
+					throw new IOException(StorageBundle.getInstance().format(
+							"SearchIndex.NotAnIndex", indexFile.getPath())); //$NON-NLS-1$
+				}
+				long position = raf.getFilePointer();
+				raf.seek(readOffset(imageTable, number));
+				imageName = raf.readUTF();
+				raf.seek(position);
+				imageNames.put(number, imageName);
+			}
+			return imageName;
+		}
+
+		protected long readOffset(long table, int number) throws IOException {
+			raf.seek(table + 8L * number);
+			return raf.readLong();
+		}
+
+		/**
+		 * A buffered stream reading on from the offset.  It shares the
+		 * index file, so it needs no closing of its own.
+		 */
+		protected DataInputStream openAt(long offset) throws IOException {
+			raf.seek(offset);
+			return new DataInputStream(new BufferedInputStream(
+					new RandomAccessInputStream(raf)));
+		}
+	}
+
+	/**
+	 * Reads a RandomAccessFile from wherever its file pointer is.  Closing
+	 * it leaves the file open.
+	 */
+	protected static class RandomAccessInputStream extends InputStream {
+		private RandomAccessFile raf;
+
+		public RandomAccessInputStream(RandomAccessFile raf) {
+			this.raf = raf;
+		}
+		public int read() throws IOException {
+			return raf.read();
+		}
+		public int read(byte[] b, int off, int len) throws IOException {
+			return raf.read(b, off, len);
+		}
+	}
+
+	/**
+	 * A file found by a search.
+	 */
+	public static class Hit {
+		private String imageName;
+		private String path;
+		private String filetype;
+		private int auxType;
+		private int address;
+		private int size;
+
+		public String getImageName() {
+			return imageName;
+		}
+		/**
+		 * The pathname of the file within the image.
+		 */
+		public String getPath() {
+			return path;
+		}
+		public String getFiletype() {
+			return filetype;
+		}
+		/**
+		 * The auxiliary type, or NONE.
+		 */
+		public int getAuxType() {
+			return auxType;
+		}
+		/**
+		 * The load address, or NONE.
+		 */
+		public int getAddress() {
+			return address;
+		}
+		public int getSize() {
+			return size;
+		}
+	}
+
+	/**
+	 * The field terms of a query.
+	 */
+	protected static class Query {
+		private List<String[]> terms = new ArrayList<String[]>();
+
+		public Query(List<String> fieldTerms) {
+			for (String term : fieldTerms) {
+				int colon = term.indexOf(':');
+				terms.add(new String[] { term.substring(0, colon).toLowerCase(),
+						term.substring(colon + 1) });
+			}
+		}
+
+		public boolean matches(Hit hit) {
+			for (String[] term : terms) {
+				String field = term[0];
+				String value = term[1];
+				if ("type".equals(field)) { //$NON-NLS-1$
+					if (!value.equalsIgnoreCase(hit.filetype)) return false;
+				} else if ("name".equals(field)) { //$NON-NLS-1$
+					String name = hit.path.substring(hit.path.lastIndexOf('/') + 1).toLowerCase();
+					String wanted = value.toLowerCase();
+					if (wanted.endsWith("*") ? !name.startsWith(wanted.substring(0, wanted.length() - 1)) //$NON-NLS-1$
+							: !name.equals(wanted)) return false;
+				} else if ("aux".equals(field)) { //$NON-NLS-1$
+					if (!compare(hit.auxType, value)) return false;
+				} else if ("addr".equals(field)) { //$NON-NLS-1$
+					if (!compare(hit.address, value)) return false;
+				} else if ("size".equals(field)) { //$NON-NLS-1$
+					if (!compare(hit.size, value)) return false;
+				} else {
+					throw new IllegalArgumentException(StorageBundle.getInstance().format(
+							"SearchIndex.UnknownField", field)); //$NON-NLS-1$
+				}
+			}
+			return true;
+		}
+
+		protected boolean compare(int actual, String value) {
+			if (actual == NONE) return false;
+			String operator = "="; //$NON-NLS-1$
+			if (value.startsWith("<=") || value.startsWith(">=")) { //$NON-NLS-1$ //$NON-NLS-2$
+				operator = value.substring(0, 2);
+				value = value.substring(2);
+			} else if (value.startsWith("<") || value.startsWith(">") || value.startsWith("=")) { //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				operator = value.substring(0, 1);
+				value = value.substring(1);
+			}
+			int wanted = parseNumber(value);
+			if ("<".equals(operator)) return actual < wanted; //$NON-NLS-1$
+			if ("<=".equals(operator)) return actual <= wanted; //$NON-NLS-1$
+			if (">".equals(operator)) return actual > wanted; //$NON-NLS-1$
+			if (">=".equals(operator)) return actual >= wanted; //$NON-NLS-1$
+			return actual == wanted;
+		}
+
+		protected int parseNumber(String value) {
+			String s = value.trim().toLowerCase();
+			if (s.startsWith("$")) return Integer.parseInt(s.substring(1), 16); //$NON-NLS-1$
+			if (s.startsWith("0x")) return Integer.parseInt(s.substring(2), 16); //$NON-NLS-1$
+			return Integer.parseInt(s);
+		}
+	}
+
+	/**
+	 * Everything indexed for one image.
+	 */
+	protected static class ImageDocument {
+		private String imageName;
+		private long size;
+		private long modified;
+		private long crc;
+		private List<FileDocument> files = new ArrayList<FileDocument>();
+
+		/**
+		 * Indicates if the image is unchanged since it was indexed: either
+		 * its size and modification time, or its CRC-32, are the same.
+		 */
+		public boolean isCurrent() throws IOException {
+			CatalogCache.Fingerprint fingerprint = CatalogCache.Fingerprint.of(imageName);
+			if (fingerprint == null || !fingerprint.matches(size, modified, crc)) {
+				return false;
+			}
+			modified = fingerprint.getModified();
+			return true;
+		}
+
+		public void write(DataOutputStream out) throws IOException {
+			out.writeUTF(imageName);
+			out.writeLong(size);
+			out.writeLong(modified);
+			out.writeLong(crc);
+			out.writeInt(files.size());
+			for (FileDocument file : files) {
+				file.writeFields(out);
+				out.writeInt(file.words.length);
+				for (String word : file.words) {
+					out.writeUTF(word);
+				}
+			}
+		}
+
+		public static ImageDocument read(DataInputStream in) throws IOException {
+			ImageDocument document = new ImageDocument();
+			document.imageName = in.readUTF();
+			document.size = in.readLong();
+			document.modified = in.readLong();
+			document.crc = in.readLong();
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				FileDocument file = FileDocument.readFields(in);
+				file.words = new String[in.readInt()];
+				for (int w = 0; w < file.words.length; w++) {
+					file.words[w] = in.readUTF();
+				}
+				document.files.add(file);
+			}
+			return document;
+		}
+	}
+
+	/**
+	 * Everything indexed for one file.
+	 */
+	protected static class FileDocument {
+		private String path;
+		private String filetype;
+		private int auxType = NONE;
+		private int address = NONE;
+		private int size;
+		private String[] words = new String[0];
+
+		public void writeFields(DataOutputStream out) throws IOException {
+			out.writeUTF(path);
+			out.writeUTF(filetype == null ? "" : filetype); //$NON-NLS-1$
+			out.writeInt(auxType);
+			out.writeInt(address);
+			out.writeInt(size);
+		}
+
+		public static FileDocument readFields(DataInput in) throws IOException {
+			FileDocument file = new FileDocument();
+			file.path = in.readUTF();
+			file.filetype = in.readUTF();
+			file.auxType = in.readInt();
+			file.address = in.readInt();
+			file.size = in.readInt();
+			return file;
+		}
+	}
+
+	/**
+	 * The ascending file numbers containing a word.  They are written as
+	 * the count followed by the gaps between them, each in as few bytes as
+	 * will hold it (seven bits to a byte).
+	 */
+	protected static class PostingList {
+		private int[] files = new int[4];
+		private int count;
+
+		public void add(int file) {
+			if (count > 0 && files[count - 1] == file) return;
+			if (count == files.length) files = Arrays.copyOf(files, count * 2);
+			files[count++] = file;
+		}
+
+		public void write(DataOutputStream out) throws IOException {
+			writeNumber(out, count);
+			int last = 0;
+			for (int i = 0; i < count; i++) {
+				writeNumber(out, files[i] - last);
+				last = files[i];
+			}
+		}
+
+		public static int[] read(DataInputStream in) throws IOException {
+			int[] files = new int[readNumber(in)];
+			int last = 0;
+			for (int i = 0; i < files.length; i++) {
+				last+= readNumber(in);
+				files[i] = last;
+			}
+			return files;
+		}
+
+		private static void writeNumber(DataOutputStream out, int value) throws IOException {
+			while ((value & ~0x7f) != 0) {
+				out.write((value & 0x7f) | 0x80);
+				value>>>= 7;
+			}
+			out.write(value);
+		}
+
+		private static int readNumber(DataInputStream in) throws IOException {
+			int value = 0;
+			for (int shift = 0; ; shift+= 7) {
+				int b = in.readUnsignedByte();
+				value|= (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) return value;
+			}
+		}
+	}
+
+	/**
+	 * Keeps track of how far into the index file the writing has got.
+	 */
+	protected static class CountingOutputStream extends java.io.FilterOutputStream {
+		private long count;
+
+		public CountingOutputStream(java.io.OutputStream out) {
+			super(out);
+		}
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count+= len;
+		}
+		public long getCount() {
+			return count;
+		}
+	}
+
+	/**
+	 * Index a range of images, splitting the range until each task has only
+	 * a few images.
+	 */
+	protected static class IndexTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private List<String> imageNames;
+		private int from;
+		private int to;
+		private Map<String,ImageDocument> indexed;
+		private Map<String,Exception> errors;
+
+		public IndexTask(List<String> imageNames, int from, int to,
+				Map<String,ImageDocument> indexed, Map<String,Exception> errors) {
+			this.imageNames = imageNames;
+			this.from = from;
+			this.to = to;
+			this.indexed = indexed;
+			this.errors = errors;
+		}
+
+		protected void compute() {
+			if (to - from <= IMAGES_PER_TASK) {
+				for (int i = from; i < to; i++) {
+					String imageName = imageNames.get(i);
+					try {
+						indexed.put(imageName, indexImage(imageName));
+					} catch (IOException e) {
+						errors.put(imageName, e);
+					} catch (RuntimeException e) {
+						errors.put(imageName, e);
+					}
+				}
+			} else {
+				int middle = (from + to) / 2;
+				invokeAll(new IndexTask(imageNames, from, middle, indexed, errors),
+						new IndexTask(imageNames, middle, to, indexed, errors));
+			}
+		}
+	}
+}
@@ -0,0 +1,220 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2002 by Robert Greene
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * What was last copied from a host directory on to a disk image, kept in a
+ * file beside the image so that the next sync need only look at what has
+ * changed.
+ * <p>
+ * For each host file (by its path within the directory) the state holds
+ * the path of the file on the image, and the size, modification time and
+ * CRC-32 of the host file when it was copied.  The length and modification
+ * time of the image after it was saved are kept too: if the image has been
+ * changed since, the records cannot be trusted to match what is on it, and
+ * the files must be compared with the image instead.
+ * <p>
+ * The whole file is rewritten on each save, first to a temporary file which
+ * then replaces it, so that an interrupted run leaves the last good state.
+ * A state file which cannot be read is treated as empty.
+ */
+public class SyncState {
+	private static final int MAGIC = 0x41435331;	// "ACS1"
+	private File file;
+	private long imageLength = -1;
+	private long imageModified;
+	private Map<String,Entry> entries = new TreeMap<String,Entry>();
+
+	/**
+	 * Open the state, reading it in if there is one.
+	 */
+	public SyncState(File file) {
+		this.file = file;
+		if (file.exists()) {
+			try {
+				load();
+			} catch (IOException e) {
+				imageLength = -1;
+				entries.clear();
+			}
+		}
+	}
+
+	/**
+	 * The state file kept for an image.
+	 */
+	public static File getStateFile(String imageName) {
+		return new File(imageName + ".sync"); //$NON-NLS-1$
+	}
+
+	/**
+	 * Indicates if the image is just as it was when the state was saved.
+	 */
+	public boolean matchesImage(File imageFile) {
+		return imageLength >= 0 && imageFile.length() == imageLength
+			&& imageFile.lastModified() == imageModified;
+	}
+
+	/**
+	 * Note the image as it is now, or forget it when imageFile is null.
+	 */
+	public void setImage(File imageFile) {
+		if (imageFile == null) {
+			imageLength = -1;
+			imageModified = 0;
+		} else {
+			imageLength = imageFile.length();
+			imageModified = imageFile.lastModified();
+		}
+	}
+
+	public Entry get(String hostPath) {
+		return entries.get(hostPath);
+	}
+
+	public void put(String hostPath, Entry entry) {
+		entries.put(hostPath, entry);
+	}
+
+	public void remove(String hostPath) {
+		entries.remove(hostPath);
+	}
+
+	/**
+	 * The host paths with records, in order.
+	 */
+	public Set<String> getHostPaths() {
+		return entries.keySet();
+	}
+
+	/**
+	 * Write out the state.
+	 */
+	public void save() throws IOException {
+		File temporaryFile = new File(file.getPath() + ".tmp"); //$NON-NLS-1$
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+			new FileOutputStream(temporaryFile)));
+		try {
+			output.writeInt(MAGIC);
+			output.writeLong(imageLength);
+			output.writeLong(imageModified);
+			output.writeInt(entries.size());
+			for (Map.Entry<String,Entry> entry : entries.entrySet()) {
+				output.writeUTF(entry.getKey());
+				entry.getValue().write(output);
+			}
+		} finally {
+			output.close();
+		}
+		if (!temporaryFile.renameTo(file)) {
+			file.delete();
+			if (!temporaryFile.renameTo(file)) {
+				throw new IOException(StorageBundle.getInstance().format(
+					"SyncState.ReplaceError", file.getPath())); //$NON-NLS-1$
+			}
+		}
+	}
+
+	protected void load() throws IOException {
+		DataInputStream input = new DataInputStream(new BufferedInputStream(
+			new FileInputStream(file)));
+		try {
+			if (input.readInt() != MAGIC) {
+				throw new IOException(StorageBundle.getInstance().format(
+					"SyncState.NotAState", file.getPath())); //$NON-NLS-1$
+			}
+			imageLength = input.readLong();
+			imageModified = input.readLong();
+			int count = input.readInt();
+			for (int i = 0; i < count; i++) {
+				String hostPath = input.readUTF();
+				entries.put(hostPath, Entry.read(input));
+			}
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Answer with the CRC-32 of some data.
+	 */
+	public static int computeCrc(byte[] data) {
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * The record of one host file.
+	 */
+	public static class Entry {
+		private String imagePath;
+		private long size;
+		private long modified;
+		private int crc;
+
+		public Entry(String imagePath, long size, long modified, int crc) {
+			this.imagePath = imagePath;
+			this.size = size;
+			this.modified = modified;
+			this.crc = crc;
+		}
+
+		/**
+		 * The path of the file on the image ("DIR/FILE").
+		 */
+		public String getImagePath() {
+			return imagePath;
+		}
+		public long getSize() {
+			return size;
+		}
+		public long getModified() {
+			return modified;
+		}
+		public int getCrc() {
+			return crc;
+		}
+
+		protected void write(DataOutputStream out) throws IOException {
+			out.writeUTF(imagePath);
+			out.writeLong(size);
+			out.writeLong(modified);
+			out.writeInt(crc);
+		}
+
+		protected static Entry read(DataInputStream in) throws IOException {
+			return new Entry(in.readUTF(), in.readLong(), in.readLong(), in.readInt());
+		}
+	}
+}
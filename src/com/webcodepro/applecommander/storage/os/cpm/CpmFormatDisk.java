@@ -27,6 +27,7 @@ import java.util.StringTokenizer;
 
 import com.webcodepro.applecommander.storage.DirectoryEntry;
 import com.webcodepro.applecommander.storage.DiskFullException;
+import com.webcodepro.applecommander.storage.DiskUsageSnapshot;
 import com.webcodepro.applecommander.storage.FileEntry;
 import com.webcodepro.applecommander.storage.FormattedDisk;
 import com.webcodepro.applecommander.storage.StorageBundle;
@@ -185,6 +186,29 @@ public class CpmFormatDisk extends FormattedDisk {
 	 * @see com.webcodepro.applecommander.storage.FormattedDisk#getDiskUsage()
 	 */
 	public DiskUsage getDiskUsage() {
+		return new CpmDiskUsage(getBlockUsage());
+	}
+
+	/**
+	 * Get a snapshot of the disk usage.
+	 * @see com.webcodepro.applecommander.storage.FormattedDisk#getUsageSnapshot()
+	 */
+	public DiskUsageSnapshot getUsageSnapshot() {
+		boolean[] usage = getBlockUsage();
+		DiskUsageSnapshot snapshot = new DiskUsageSnapshot(usage.length, null);
+		for (int i=0; i<usage.length; i++) {
+			if (!usage[i]) {
+				snapshot.setFree(i);
+			}
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Build the block usage map (true = used).  CP/M does not store a bitmap,
+	 * so this is computed from the reserved tracks and the file allocations.
+	 */
+	protected boolean[] getBlockUsage() {
 		boolean[] usage = new boolean[getBitmapLength()];
 		// fill in reserved space at beginning of disk (including 2 directory blocks)
 		int dataBlockStart = PHYSICAL_BLOCK_TRACK_START * CPM_BLOCKS_PER_TRACK;
@@ -201,7 +225,7 @@ public class CpmFormatDisk extends FormattedDisk {
 				usage[block] = true;
 			}
 		}
-		return new CpmDiskUsage(usage);
+		return usage;
 	}
 
 	/**
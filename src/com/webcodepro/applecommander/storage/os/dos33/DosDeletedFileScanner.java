@@ -0,0 +1,212 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2002 by Robert Greene
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage.os.dos33;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.webcodepro.applecommander.storage.DeletedFileScanner;
+import com.webcodepro.applecommander.storage.DiskOwnershipMap;
+import com.webcodepro.applecommander.storage.DiskUsageSnapshot;
+import com.webcodepro.applecommander.storage.FileEntry;
+import com.webcodepro.applecommander.storage.RecoveryCandidate;
+import com.webcodepro.applecommander.util.AppleUtil;
+
+/**
+ * Finds deleted files on a DOS 3.3 disk.
+ * <p>
+ * When DOS deletes a file, it moves the track of the first track/sector
+ * list into the last byte of the filename (0x20) and replaces it with 0xff.
+ * The sector, filetype and sectors used are left alone, as are the
+ * track/sector lists themselves, so the file can be followed until the
+ * sectors are reused.
+ */
+public class DosDeletedFileScanner extends DeletedFileScanner {
+	private DosFormatDisk disk;
+
+	/**
+	 * Create a scanner for the given disk.
+	 */
+	public DosDeletedFileScanner(DosFormatDisk disk) {
+		this.disk = disk;
+	}
+
+	/**
+	 * Walk the catalog looking for deleted entries.
+	 */
+	public List<RecoveryCandidate> scan() {
+		List<RecoveryCandidate> candidates = new ArrayList<>();
+		DiskUsageSnapshot snapshot = disk.getUsageSnapshot();
+		DiskOwnershipMap map = disk.getOwnershipMap();
+		int tracks = disk.getTracks();
+		int sectors = disk.getSectors();
+		byte[] vtoc = disk.readVtoc();
+		int track = AppleUtil.getUnsignedByte(vtoc[1]);
+		int sector = AppleUtil.getUnsignedByte(vtoc[2]);
+		List<Integer> catalog = new ArrayList<>();
+		while (track != 0 && track < tracks && sector < sectors
+				&& !catalog.contains(Integer.valueOf(track * sectors + sector))) {
+			catalog.add(Integer.valueOf(track * sectors + sector));
+			byte[] catalogSector = disk.readSector(track, sector);
+			for (int offset=0x0b; offset<0xff; offset+= DosFileEntry.FILE_DESCRIPTIVE_ENTRY_LENGTH) {
+				if (AppleUtil.getUnsignedByte(catalogSector[offset]) == 0xff) {
+					DosFileEntry entry = new DosFileEntry(disk, track, sector, offset);
+					candidates.add(createCandidate(entry, snapshot, map));
+				}
+			}
+			track = AppleUtil.getUnsignedByte(catalogSector[1]);
+			sector = AppleUtil.getUnsignedByte(catalogSector[2]);
+		}
+		return candidates;
+	}
+
+	/**
+	 * Follow the track/sector lists of a deleted entry.
+	 */
+	protected RecoveryCandidate createCandidate(DosFileEntry entry,
+			DiskUsageSnapshot snapshot, DiskOwnershipMap map) {
+		byte[] data = entry.readFileEntry();
+		List<Integer> units = new ArrayList<>();
+		boolean damaged = walkLists(data, units, null);
+		int[] array = DiskOwnershipMap.toArray(units);
+		damaged|= hasDuplicates(array);
+		return new RecoveryCandidate(disk, entry, getFilename(data), entry.getFiletype(),
+				array, countFree(array, snapshot, map), damaged,
+				entry.getSectorsUsed() != array.length);
+	}
+
+	/**
+	 * Walk the track/sector lists, adding every sector to units.  If
+	 * dataUnits is given, only the data sectors are added there.
+	 * @return true if a bad pointer was found
+	 */
+	protected boolean walkLists(byte[] entryData, List<Integer> units, List<Integer> dataUnits) {
+		int tracks = disk.getTracks();
+		int sectors = disk.getSectors();
+		int track = AppleUtil.getUnsignedByte(entryData[0x20]);
+		int sector = AppleUtil.getUnsignedByte(entryData[0x01]);
+		List<Integer> lists = new ArrayList<>();
+		while (track != 0) {
+			Integer unit = Integer.valueOf(track * sectors + sector);
+			if (track >= tracks || sector >= sectors || lists.contains(unit)) {
+				return true;
+			}
+			lists.add(unit);
+			units.add(unit);
+			byte[] trackSectorList = disk.readSector(track, sector);
+			for (int i=0x0c; i<0x100; i+=2) {
+				int t = AppleUtil.getUnsignedByte(trackSectorList[i]);
+				int s = AppleUtil.getUnsignedByte(trackSectorList[i+1]);
+				if (t == 0 && s == 0) continue;
+				if (t == 0 || t >= tracks || s >= sectors) {
+					return true;
+				}
+				units.add(Integer.valueOf(t * sectors + s));
+				if (dataUnits != null) dataUnits.add(Integer.valueOf(t * sectors + s));
+			}
+			track = AppleUtil.getUnsignedByte(trackSectorList[0x01]);
+			sector = AppleUtil.getUnsignedByte(trackSectorList[0x02]);
+		}
+		return false;
+	}
+
+	/**
+	 * The last character of the name was overwritten by the track number,
+	 * so only the first 29 characters remain.
+	 */
+	protected String getFilename(byte[] entryData) {
+		return AppleUtil.getString(entryData, 3, 29).trim();
+	}
+
+	/**
+	 * Read the data sectors, and remove the address and length that DOS
+	 * stores at the start of binary and BASIC files.
+	 */
+	public byte[] getFileData(RecoveryCandidate candidate) {
+		byte[] rawdata = getRawData(candidate);
+		DosFileEntry entry = (DosFileEntry) candidate.getFileEntry();
+		int offset = 0;
+		int length = rawdata.length;
+		if (entry.isBinaryFile() && rawdata.length >= 4) {
+			offset = 4;
+			length = AppleUtil.getWordValue(rawdata, 2);
+		} else if ((entry.isApplesoftBasicFile() || entry.isIntegerBasicFile())
+				&& rawdata.length >= 2) {
+			offset = 2;
+			length = AppleUtil.getWordValue(rawdata, 0);
+		}
+		length = Math.min(length, rawdata.length - offset);
+		byte[] filedata = new byte[length];
+		System.arraycopy(rawdata, offset, filedata, 0, length);
+		return filedata;
+	}
+
+	/**
+	 * Read the data sectors in order.
+	 */
+	protected byte[] getRawData(RecoveryCandidate candidate) {
+		DosFileEntry entry = (DosFileEntry) candidate.getFileEntry();
+		List<Integer> dataUnits = new ArrayList<>();
+		walkLists(entry.readFileEntry(), new ArrayList<Integer>(), dataUnits);
+		int sectors = disk.getSectors();
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		for (Integer unit : dataUnits) {
+			byte[] sectorData = disk.readSector(unit.intValue() / sectors, unit.intValue() % sectors);
+			data.write(sectorData, 0, sectorData.length);
+		}
+		return data.toByteArray();
+	}
+
+	/**
+	 * Binary files carry their address in the first data sector.
+	 */
+	public int getAddress(RecoveryCandidate candidate) {
+		DosFileEntry entry = (DosFileEntry) candidate.getFileEntry();
+		if (entry.isBinaryFile()) {
+			byte[] rawdata = getRawData(candidate);
+			if (rawdata.length >= 2) {
+				return AppleUtil.getWordValue(rawdata, 0);
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Move the track back into place (the lost last character of the name
+	 * becomes a space) and mark the sectors as used.
+	 */
+	protected FileEntry restoreEntry(RecoveryCandidate candidate) {
+		DosFileEntry entry = (DosFileEntry) candidate.getFileEntry();
+		byte[] data = entry.readFileEntry();
+		data[0x00] = data[0x20];
+		data[0x20] = (byte) 0xa0;
+		entry.writeFileEntry(data);
+		byte[] vtoc = disk.readVtoc();
+		int sectors = disk.getSectors();
+		int[] units = candidate.getUnits();
+		for (int i=0; i<units.length; i++) {
+			disk.setSectorUsed(units[i] / sectors, units[i] % sectors, vtoc);
+		}
+		disk.writeVtoc(vtoc);
+		disk.updateOwnership(entry);
+		return entry;
+	}
+}
@@ -0,0 +1,289 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2002 by Robert Greene
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage.os.dos33;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+import com.webcodepro.applecommander.storage.Disk;
+import com.webcodepro.applecommander.storage.DiskCheck;
+import com.webcodepro.applecommander.storage.DiskChecker;
+import com.webcodepro.applecommander.storage.DiskOwnershipMap;
+import com.webcodepro.applecommander.storage.DiskUsageSnapshot;
+import com.webcodepro.applecommander.util.AppleUtil;
+
+/**
+ * Checks the consistency of a DOS 3.3 disk.
+ * <p>
+ * The catalog is read first (it is a single chain, so there is nothing to
+ * gain by splitting it up), and the files found are then checked in
+ * parallel.  Every file is checked for track/sector pointers outside of
+ * the disk, a sectors used count which does not match the sectors actually
+ * allocated, and a length (for A, I and B files) which is larger than the
+ * data sectors can hold.  The file data itself is never read.
+ */
+public class DosDiskChecker extends DiskChecker {
+	/** Files checked by one task before it is split up. */
+	private static final int FILES_PER_TASK = 4;
+	private DosFormatDisk disk;
+	private int tracks;
+	private int sectors;
+	private List<DosFileEntry> entries = new ArrayList<>();
+
+	/**
+	 * Create a checker for the given disk.
+	 */
+	public DosDiskChecker(DosFormatDisk disk) {
+		this.disk = disk;
+	}
+
+	/**
+	 * Validate the VTOC, claim track 0 and the catalog track for the system,
+	 * and read the catalog.
+	 */
+	protected DiskOwnershipMap createOwnershipMap(DiskCheck result) {
+		byte[] vtoc = disk.readVtoc();
+		tracks = AppleUtil.getUnsignedByte(vtoc[0x34]);
+		sectors = AppleUtil.getUnsignedByte(vtoc[0x35]);
+		int physicalSize = disk.getPhysicalSize();
+		if (tracks <= DosFormatDisk.CATALOG_TRACK || sectors == 0
+				|| tracks * sectors * Disk.SECTOR_SIZE > physicalSize) {
+			result.addProblem(DiskCheck.VOLUME_ERROR, null, -1,
+				getTextBundle().format("DosDiskChecker.InvalidGeometry", //$NON-NLS-1$
+				tracks, sectors));
+			return null;
+		}
+		DiskOwnershipMap map = new DiskOwnershipMap(tracks * sectors,
+				new int[] { tracks, sectors });
+		for (int sector=0; sector<sectors; sector++) {
+			map.claimSystem(sector);
+			map.claimSystem(DosFormatDisk.CATALOG_TRACK * sectors + sector);
+		}
+		int track = AppleUtil.getUnsignedByte(vtoc[1]);
+		int sector = AppleUtil.getUnsignedByte(vtoc[2]);
+		List<Integer> catalog = new ArrayList<>();
+		while (track != 0 || sector != 0) {
+			if (track >= tracks || sector >= sectors) {
+				result.addProblem(DiskCheck.DIRECTORY_ERROR, null, -1,
+					getTextBundle().format("DosDiskChecker.BadCatalogPointer", //$NON-NLS-1$
+					track, sector));
+				break;
+			}
+			Integer unit = Integer.valueOf(track * sectors + sector);
+			if (catalog.contains(unit)) {
+				result.addProblem(DiskCheck.DIRECTORY_ERROR, null, unit.intValue(),
+					getTextBundle().format("DosDiskChecker.CatalogLoop", //$NON-NLS-1$
+					describeUnit(unit.intValue())));
+				break;
+			}
+			catalog.add(unit);
+			map.claimSystem(unit.intValue());
+			byte[] catalogSector = disk.readSector(track, sector);
+			for (int offset=0x0b; offset<0xff; offset+= DosFileEntry.FILE_DESCRIPTIVE_ENTRY_LENGTH) {
+				int firstByte = AppleUtil.getUnsignedByte(catalogSector[offset]);
+				if (firstByte != 0 && firstByte != 0xff) {
+					entries.add(new DosFileEntry(disk, track, sector, offset));
+				}
+			}
+			track = AppleUtil.getUnsignedByte(catalogSector[1]);
+			sector = AppleUtil.getUnsignedByte(catalogSector[2]);
+		}
+		return map;
+	}
+
+	/**
+	 * The files are checked in parallel.
+	 */
+	protected ForkJoinTask<List<CheckedFile>> createTask(DiskCheck result) {
+		return new FileTask(result, 0, entries.size());
+	}
+
+	/**
+	 * The DOS image occupies tracks 1 and 2 on bootable disks; any sectors
+	 * marked as used there (and not owned by a file) belong to the system.
+	 */
+	protected void claimSystemRemainder(DiskOwnershipMap map) {
+		byte[] vtoc = disk.readVtoc();
+		for (int track=1; track<3 && track<tracks; track++) {
+			for (int sector=0; sector<sectors; sector++) {
+				int unit = track * sectors + sector;
+				if (disk.isSectorUsed(track, sector, vtoc) && !map.isClaimed(unit)) {
+					map.claimSystem(unit);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the VTOC free sector map.
+	 */
+	protected DiskUsageSnapshot getUsageSnapshot() {
+		return disk.getUsageSnapshot();
+	}
+
+	/**
+	 * Rewrite the VTOC free sector map from the computed allocation.
+	 */
+	protected void rebuildBitmap(DiskOwnershipMap map) {
+		byte[] vtoc = disk.readVtoc();
+		for (int track=0; track<tracks; track++) {
+			for (int sector=0; sector<sectors; sector++) {
+				if (map.isClaimed(track * sectors + sector)) {
+					disk.setSectorUsed(track, sector, vtoc);
+				} else {
+					disk.setSectorFree(track, sector, vtoc);
+				}
+			}
+		}
+		disk.writeVtoc(vtoc);
+	}
+
+	/**
+	 * Describe a sector for reporting.
+	 */
+	protected String describeUnit(int unit) {
+		return getTextBundle().format("DosDiskChecker.Sector", //$NON-NLS-1$
+				unit / sectors, unit % sectors);
+	}
+
+	/**
+	 * Check a range of files, splitting the range in half until it is
+	 * small enough to check directly.
+	 */
+	protected class FileTask extends RecursiveTask<List<CheckedFile>> {
+		private static final long serialVersionUID = 1L;
+		private DiskCheck result;
+		private int from;
+		private int to;
+
+		public FileTask(DiskCheck result, int from, int to) {
+			this.result = result;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected List<CheckedFile> compute() {
+			List<CheckedFile> files = new ArrayList<>();
+			if (to - from <= FILES_PER_TASK) {
+				for (int i=from; i<to; i++) {
+					files.add(checkFile(entries.get(i)));
+				}
+			} else {
+				int middle = (from + to) / 2;
+				FileTask left = new FileTask(result, from, middle);
+				left.fork();
+				List<CheckedFile> right = new FileTask(result, middle, to).compute();
+				files.addAll(left.join());
+				files.addAll(right);
+			}
+			return files;
+		}
+
+		/**
+		 * Walk the track/sector lists of a file.  Empty (0,0) pairs are
+		 * skipped, as random-access text files may have holes.
+		 */
+		private CheckedFile checkFile(DosFileEntry entry) {
+			String filename = entry.getFilename();
+			List<Integer> units = new ArrayList<>();
+			List<Integer> lists = new ArrayList<>();
+			int firstDataUnit = -1;
+			int dataSectors = 0;
+			int track = entry.getTrack();
+			int sector = entry.getSector();
+			while (track != 0) {
+				if (track >= tracks || sector >= sectors) {
+					result.addProblem(DiskCheck.BAD_POINTER, filename, -1,
+						getTextBundle().format("DosDiskChecker.BadListPointer", //$NON-NLS-1$
+						track, sector));
+					break;
+				}
+				Integer unit = Integer.valueOf(track * sectors + sector);
+				if (lists.contains(unit)) {
+					result.addProblem(DiskCheck.BAD_POINTER, filename, unit.intValue(),
+						getTextBundle().format("DosDiskChecker.ListLoop", //$NON-NLS-1$
+						describeUnit(unit.intValue())));
+					break;
+				}
+				lists.add(unit);
+				units.add(unit);
+				byte[] trackSectorList = disk.readSector(track, sector);
+				for (int i=0x0c; i<0x100; i+=2) {
+					int t = AppleUtil.getUnsignedByte(trackSectorList[i]);
+					int s = AppleUtil.getUnsignedByte(trackSectorList[i+1]);
+					if (t == 0 && s == 0) continue;
+					if (t == 0 || t >= tracks || s >= sectors) {
+						result.addProblem(DiskCheck.BAD_POINTER, filename, -1,
+							getTextBundle().format("DosDiskChecker.BadDataPointer", //$NON-NLS-1$
+							t, s));
+						continue;
+					}
+					int dataUnit = t * sectors + s;
+					if (firstDataUnit < 0) firstDataUnit = dataUnit;
+					units.add(Integer.valueOf(dataUnit));
+					dataSectors++;
+				}
+				track = AppleUtil.getUnsignedByte(trackSectorList[0x01]);
+				sector = AppleUtil.getUnsignedByte(trackSectorList[0x02]);
+			}
+			if (entry.getSectorsUsed() != units.size()) {
+				result.addProblem(DiskCheck.SIZE_MISMATCH, filename, -1,
+					getTextBundle().format("DosDiskChecker.SectorsUsedMismatch", //$NON-NLS-1$
+					entry.getSectorsUsed(), units.size()));
+			}
+			checkLength(entry, filename, firstDataUnit, dataSectors);
+			return new CheckedFile(entry.getCatalogKey(), filename, entry,
+					DiskOwnershipMap.toArray(units));
+		}
+
+		/**
+		 * Binary, Applesoft and Integer BASIC files record their length at
+		 * the start of the first data sector; it cannot be more than the
+		 * data sectors hold.
+		 */
+		private void checkLength(DosFileEntry entry, String filename, int firstDataUnit, int dataSectors) {
+			String filetype = entry.getFiletype();
+			int headerLength;
+			int lengthOffset;
+			if ("B".equals(filetype)) { //$NON-NLS-1$
+				headerLength = 4;
+				lengthOffset = 2;
+			} else if ("A".equals(filetype) || "I".equals(filetype)) { //$NON-NLS-1$ //$NON-NLS-2$
+				headerLength = 2;
+				lengthOffset = 0;
+			} else {
+				return;
+			}
+			if (firstDataUnit < 0) {
+				return;
+			}
+			byte[] data = disk.readSector(firstDataUnit / sectors, firstDataUnit % sectors);
+			int length = AppleUtil.getWordValue(data, lengthOffset);
+			int capacity = dataSectors * Disk.SECTOR_SIZE - headerLength;
+			if (length > capacity) {
+				result.addProblem(DiskCheck.EOF_MISMATCH, filename, -1,
+					getTextBundle().format("DosDiskChecker.LengthTooLarge", //$NON-NLS-1$
+					length, capacity));
+			}
+		}
+	}
+}
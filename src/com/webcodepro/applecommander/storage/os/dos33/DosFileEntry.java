@@ -83,6 +83,13 @@ public class DosFileEntry implements FileEntry {
 		this.offset = offset;
 	}
 	
+	/**
+	 * Get a key identifying the location of this FileEntry in the catalog.
+	 */
+	protected Integer getCatalogKey() {
+		return Integer.valueOf((track << 16) | (sector << 8) | offset);
+	}
+
 	/**
 	 * Read the FileEntry from the disk image.
 	 */
@@ -22,8 +22,12 @@ package com.webcodepro.applecommander.storage.os.dos33;
 import java.util.ArrayList;
 import java.util.List;
 
+import com.webcodepro.applecommander.storage.DeletedFileScanner;
 import com.webcodepro.applecommander.storage.DirectoryEntry;
+import com.webcodepro.applecommander.storage.DiskCheck;
 import com.webcodepro.applecommander.storage.DiskFullException;
+import com.webcodepro.applecommander.storage.DiskOwnershipMap;
+import com.webcodepro.applecommander.storage.DiskUsageSnapshot;
 import com.webcodepro.applecommander.storage.FileEntry;
 import com.webcodepro.applecommander.storage.FormattedDisk;
 import com.webcodepro.applecommander.storage.StorageBundle;
@@ -67,44 +71,6 @@ public class DosFormatDisk extends FormattedDisk {
 			"S", "R", "a", "b"  //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
 		};
 
-	/**
-	 * Use this inner interface for managing the disk usage data.
-	 * This offloads format-specific implementation to the implementing class.
-	 */
-	private class DosDiskUsage implements DiskUsage {
-		private int[] location = null;
-		public boolean hasNext() {
-			return location == null
-				|| (location[TRACK_LOCATION_INDEX] < getTracks()
-				&& location[SECTOR_LOCATION_INDEX] < getSectors());
-		}
-		public void next() {
-			if (location == null) {
-				location = new int[2];
-			} else {
-				location[SECTOR_LOCATION_INDEX]++;
-				if (location[SECTOR_LOCATION_INDEX] >= getSectors()) {
-					location[SECTOR_LOCATION_INDEX] = 0;
-					location[TRACK_LOCATION_INDEX]++;
-				}
-			}
-		}
-		/**
-		 * Get the free setting for the bitmap at the current location.
-		 */
-		public boolean isFree() {
-			if (location == null || location.length != 2) {
-				throw new IllegalArgumentException(StorageBundle.getInstance()
-						.get("DosFormatDisk.InvalidDimensionError")); //$NON-NLS-1$
-			}
-			return isSectorFree(location[TRACK_LOCATION_INDEX], 
-				location[SECTOR_LOCATION_INDEX], readVtoc());
-		}
-		public boolean isUsed() {
-			return !isFree();
-		}
-	}
-
 	/**
 	 * Constructor for DosFormatDisk.
 	 */
@@ -272,7 +238,108 @@ public class DosFormatDisk extends FormattedDisk {
 	 * Get the disk usage iterator.
 	 */
 	public DiskUsage getDiskUsage() {
-		return new DosDiskUsage();
+		return getUsageSnapshot().getDiskUsage();
+	}
+
+	/**
+	 * Get a snapshot of the VTOC free sector map.  The VTOC is read once
+	 * and units are numbered by track and then sector.
+	 */
+	public DiskUsageSnapshot getUsageSnapshot() {
+		int tracks = getTracks();
+		int sectors = getSectors();
+		DiskUsageSnapshot snapshot = new DiskUsageSnapshot(tracks * sectors,
+				new int[] { tracks, sectors });
+		byte[] vtoc = readVtoc();
+		int unit = 0;
+		for (int track=0; track<tracks; track++) {
+			for (int sector=0; sector<sectors; sector++) {
+				if (isSectorFree(track, sector, vtoc)) {
+					snapshot.setFree(unit);
+				}
+				unit++;
+			}
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Build the sector ownership map.  Track 0, the catalog track (which
+	 * includes the VTOC) and any DOS image on tracks 1 and 2 belong to the
+	 * system; every other sector is attributed to the file whose track/sector
+	 * list points to it.
+	 */
+	protected DiskOwnershipMap buildOwnershipMap() {
+		int tracks = getTracks();
+		int sectors = getSectors();
+		DiskOwnershipMap map = new DiskOwnershipMap(tracks * sectors,
+				new int[] { tracks, sectors });
+		for (int sector=0; sector<sectors; sector++) {
+			map.claimSystem(sector);
+			map.claimSystem(CATALOG_TRACK * sectors + sector);
+		}
+		List<FileEntry> files = getFiles();
+		for (int i=0; i<files.size(); i++) {
+			DosFileEntry entry = (DosFileEntry) files.get(i);
+			map.add(entry.getCatalogKey(), entry, getOwnedSectors(entry));
+		}
+		// The DOS image occupies tracks 1 and 2 on bootable disks
+		byte[] vtoc = readVtoc();
+		for (int track=1; track<3 && track<tracks; track++) {
+			for (int sector=0; sector<sectors; sector++) {
+				int unit = track * sectors + sector;
+				if (isSectorUsed(track, sector, vtoc) && !map.isClaimed(unit)) {
+					map.claimSystem(unit);
+				}
+			}
+		}
+		return map;
+	}
+
+	/**
+	 * Get all sectors used by the given file, in file order, as units of
+	 * (track * sectors per track + sector).  This includes the track/sector
+	 * list sectors.  Track/sector list sectors outside of the disk are not
+	 * read, and a track/sector list chain which loops is cut short.
+	 * Empty track/sector pairs are skipped.
+	 */
+	public int[] getOwnedSectors(DosFileEntry entry) {
+		List<Integer> units = new ArrayList<>();
+		if (entry.isDeleted()) {
+			return new int[0];
+		}
+		int tracks = getTracks();
+		int sectors = getSectors();
+		int track = entry.getTrack();
+		int sector = entry.getSector();
+		List<Integer> lists = new ArrayList<>();
+		while (track != 0 && track < tracks && sector < sectors) {
+			Integer unit = Integer.valueOf(track * sectors + sector);
+			if (lists.contains(unit)) break;
+			lists.add(unit);
+			units.add(unit);
+			byte[] trackSectorList = readSector(track, sector);
+			track = AppleUtil.getUnsignedByte(trackSectorList[0x01]);
+			sector = AppleUtil.getUnsignedByte(trackSectorList[0x02]);
+			for (int i=0x0c; i<0x100; i+=2) {
+				int t = AppleUtil.getUnsignedByte(trackSectorList[i]);
+				if (t == 0) continue;	// random-access text files may have holes
+				int s = AppleUtil.getUnsignedByte(trackSectorList[i+1]);
+				units.add(Integer.valueOf(t * sectors + s));
+			}
+		}
+		return DiskOwnershipMap.toArray(units);
+	}
+
+	/**
+	 * Update the ownership map (if it has been built) after the sectors
+	 * used by a file have changed.
+	 */
+	protected void updateOwnership(DosFileEntry entry) {
+		DiskOwnershipMap map = getCachedOwnershipMap();
+		if (map != null) {
+			map.update(entry.getCatalogKey(), entry, getOwnedSectors(entry));
+		}
 	}
 
 	/**
@@ -309,6 +376,22 @@ public class DosFormatDisk extends FormattedDisk {
 		return getTotalSectors();
 	}
 
+	/**
+	 * Check the consistency of this disk.
+	 * @see com.webcodepro.applecommander.storage.FormattedDisk#checkDisk(boolean)
+	 */
+	public DiskCheck checkDisk(boolean repair) {
+		return new DosDiskChecker(this).check(repair);
+	}
+
+	/**
+	 * Get a scanner for deleted files.
+	 * @see com.webcodepro.applecommander.storage.FormattedDisk#getDeletedFileScanner()
+	 */
+	public DeletedFileScanner getDeletedFileScanner() {
+		return new DosDeletedFileScanner(this);
+	}
+
 	/**
 	 * Get the labels to use in the bitmap.
 	 */
@@ -409,14 +492,15 @@ public class DosFormatDisk extends FormattedDisk {
 		// Size is calculated by sectors used - not actual size - as size varies
 		// on filetype, etc.
 		int filesize = dosEntry.getSectorsUsed();
-		byte[] fileData = null;
-		if (filesize > 0) {
-			fileData = new byte[(dosEntry.getSectorsUsed()-1) * SECTOR_SIZE];
-		} else {
-			fileData = new byte[0];
+		if (filesize <= 0) {
 			// don't need to load it - also bypass potential issues
-			return fileData;
+			return new byte[0];
 		}
+		// Random-access text files may have holes (an empty track/sector
+		// pair) which read as a sector of zeros; every sector keeps its
+		// place in the file so record offsets are not disturbed.
+		int length = (filesize-1) * SECTOR_SIZE;
+		List<int[]> dataSectors = new ArrayList<>();	// { offset, track, sector }
 		int track = dosEntry.getTrack();
 		int sector = dosEntry.getSector();
 		int offset = 0;
@@ -426,13 +510,19 @@ public class DosFormatDisk extends FormattedDisk {
 			sector = AppleUtil.getUnsignedByte(trackSectorList[0x02]);
 			for (int i=0x0c; i<0x100; i+=2) {
 				int t = AppleUtil.getUnsignedByte(trackSectorList[i]);
-				if (t == 0) break;
-				int s = AppleUtil.getUnsignedByte(trackSectorList[i+1]);
-				byte[] sectorData = readSector(t,s);
-				System.arraycopy(sectorData, 0, fileData, offset, sectorData.length);
-				offset+= sectorData.length;
+				if (t != 0) {
+					int s = AppleUtil.getUnsignedByte(trackSectorList[i+1]);
+					dataSectors.add(new int[] { offset, t, s });
+					length = Math.max(length, offset + SECTOR_SIZE);
+				}
+				offset+= SECTOR_SIZE;
 			}
 		}
+		byte[] fileData = new byte[length];
+		for (int[] dataSector : dataSectors) {
+			byte[] sectorData = readSector(dataSector[1], dataSector[2]);
+			System.arraycopy(sectorData, 0, fileData, dataSector[0], sectorData.length);
+		}
 		return fileData;
 	}
 
@@ -526,12 +616,17 @@ public class DosFormatDisk extends FormattedDisk {
 		totalSectors++;
 		fileEntry.setSectorsUsed(totalSectors);
 		writeVtoc(vtoc);
+		updateOwnership(fileEntry);
 	}
 	
 	/**
 	 * Free sectors used by a DosFileEntry.
 	 */
 	protected void freeSectors(DosFileEntry dosFileEntry) {
+		DiskOwnershipMap map = getCachedOwnershipMap();
+		if (map != null) {
+			map.release(dosFileEntry.getCatalogKey());
+		}
 		byte[] vtoc = readVtoc();
 		int track = dosFileEntry.getTrack();
 		if (track == 255) return;
@@ -543,7 +638,7 @@ public class DosFormatDisk extends FormattedDisk {
 			sector = AppleUtil.getUnsignedByte(trackSectorList[0x02]);
 			for (int i=0x0c; i<0x100; i+=2) {
 				int t = AppleUtil.getUnsignedByte(trackSectorList[i]);
-				if (t == 0) break;
+				if (t == 0) continue;	// random-access text files may have holes
 				int s = AppleUtil.getUnsignedByte(trackSectorList[i+1]);
 				setSectorFree(t,s,vtoc);
 			}
@@ -567,6 +662,7 @@ public class DosFormatDisk extends FormattedDisk {
 	protected void format(int firstCatalogSector, int tracksPerDisk,
 		int sectorsPerTrack) {
 			
+		resetOwnershipMap();
 		writeBootCode();
 		// create catalog sectors
 		byte[] data = new byte[SECTOR_SIZE];
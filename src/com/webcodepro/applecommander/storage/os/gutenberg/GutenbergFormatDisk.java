@@ -24,6 +24,7 @@ import java.util.List;
 
 import com.webcodepro.applecommander.storage.DirectoryEntry;
 import com.webcodepro.applecommander.storage.DiskFullException;
+import com.webcodepro.applecommander.storage.DiskUsageSnapshot;
 import com.webcodepro.applecommander.storage.FileEntry;
 import com.webcodepro.applecommander.storage.FormattedDisk;
 import com.webcodepro.applecommander.storage.StorageBundle;
@@ -265,6 +266,14 @@ public class GutenbergFormatDisk extends FormattedDisk {
 		return new WPDiskUsage();
 	}
 
+	/**
+	 * Get a snapshot of the disk usage.  There does not appear to be a map
+	 * stored on disk, so every sector is reported as used.
+	 */
+	public DiskUsageSnapshot getUsageSnapshot() {
+		return new DiskUsageSnapshot(getTracks() * getSectors(), getBitmapDimensions());
+	}
+
 	/**
 	 * Get the number of tracks on this disk.
 	 */
@@ -0,0 +1,95 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2002 by Robert Greene
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage.os.nufx;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.webcodepro.applecommander.storage.DirectoryEntry;
+import com.webcodepro.applecommander.storage.DiskFullException;
+import com.webcodepro.applecommander.storage.FileEntry;
+import com.webcodepro.applecommander.storage.StorageBundle;
+import com.webcodepro.applecommander.util.TextBundle;
+
+/**
+ * A directory in a ShrinkIt archive.  Archives do not normally have records
+ * for directories, so these are built up from the pathnames of the files.
+ */
+public class NufxDirectoryEntry extends NufxFileEntry implements DirectoryEntry {
+	private TextBundle textBundle = StorageBundle.getInstance();
+	private List<FileEntry> files = new ArrayList<>();
+
+	/**
+	 * Constructor for NufxDirectoryEntry.
+	 */
+	public NufxDirectoryEntry(NufxFormatDisk disk, String filename) {
+		super(disk, null, filename);
+	}
+
+	/**
+	 * Identify if this is a directory file.
+	 */
+	public boolean isDirectory() {
+		return true;
+	}
+
+	/**
+	 * Retrieve the list of files in this directory.
+	 */
+	public List<FileEntry> getFiles() {
+		return files;
+	}
+
+	/**
+	 * Add a file (or directory) to this directory while the archive is read.
+	 */
+	protected void addFile(FileEntry fileEntry) {
+		files.add(fileEntry);
+	}
+
+	/**
+	 * Archives are read-only.
+	 */
+	public FileEntry createFile() throws DiskFullException {
+		throw new DiskFullException(textBundle.get("NufxFormatDisk.ReadOnlyError")); //$NON-NLS-1$
+	}
+
+	/**
+	 * Archives are read-only.
+	 */
+	public DirectoryEntry createDirectory(String name) throws DiskFullException {
+		throw new UnsupportedOperationException(textBundle.get("DirectoryCreationNotSupported")); //$NON-NLS-1$
+	}
+
+	public boolean canCreateDirectories() {
+		return false;
+	}
+
+	public boolean canCreateFile() {
+		return false;
+	}
+
+	/**
+	 * A directory has no data of its own.
+	 */
+	public byte[] getFileData() {
+		return new byte[0];
+	}
+}
@@ -0,0 +1,331 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2002 by Robert Greene
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage.os.nufx;
+
+import java.io.IOException;
+import java.text.NumberFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import com.webcodepro.applecommander.storage.DiskFullException;
+import com.webcodepro.applecommander.storage.FileEntry;
+import com.webcodepro.applecommander.storage.FileFilter;
+import com.webcodepro.applecommander.storage.FormattedDisk;
+import com.webcodepro.applecommander.storage.StorageBundle;
+import com.webcodepro.applecommander.storage.os.prodos.ProdosFileEntry;
+import com.webcodepro.applecommander.storage.os.prodos.ProdosFormatDisk;
+import com.webcodepro.applecommander.util.AppleUtil;
+import com.webcodepro.applecommander.util.TextBundle;
+import com.webcodepro.shrinkit.HeaderBlock;
+import com.webcodepro.shrinkit.ThreadKind;
+import com.webcodepro.shrinkit.ThreadRecord;
+import com.webcodepro.shrinkit.Utilities;
+
+/**
+ * Represents a file (a record) in a ShrinkIt archive.  Everything shown in
+ * a listing comes from the record header; the data fork is only
+ * decompressed when the file data is requested.
+ */
+public class NufxFileEntry implements FileEntry {
+	private TextBundle textBundle = StorageBundle.getInstance();
+	/** ProDOS access bits. */
+	private static final long ACCESS_DESTROY = 0x80;
+	private static final long ACCESS_RENAME = 0x40;
+	private static final long ACCESS_WRITE = 0x02;
+	private static final long ACCESS_READ = 0x01;
+	private NufxFormatDisk disk;
+	private HeaderBlock header;
+	private String filename;
+
+	/**
+	 * Constructor for NufxFileEntry.  The header is null for the directories
+	 * implied by the pathnames in the archive.
+	 */
+	public NufxFileEntry(NufxFormatDisk disk, HeaderBlock header, String filename) {
+		this.disk = disk;
+		this.header = header;
+		this.filename = filename;
+	}
+
+	/**
+	 * Answer with the record header.
+	 */
+	public HeaderBlock getHeaderBlock() {
+		return header;
+	}
+
+	/**
+	 * Return the name of this file (the last part of its pathname).
+	 */
+	public String getFilename() {
+		return filename;
+	}
+
+	/**
+	 * Archives are read-only.
+	 */
+	public void setFilename(String filename) {
+	}
+
+	/**
+	 * Return the ProDOS filetype of this file.
+	 */
+	public String getFiletype() {
+		return ProdosFormatDisk.getFiletypeName(getFiletypeByte());
+	}
+
+	/**
+	 * Return the ProDOS filetype of this file as a number.
+	 */
+	public int getFiletypeByte() {
+		return (header == null) ? 0x0f : (int) (header.getFileType() & 0xff);
+	}
+
+	/**
+	 * Return the auxiliary type of this file.
+	 */
+	public int getAuxiliaryType() {
+		return (header == null) ? 0 : (int) (header.getExtraType() & 0xffff);
+	}
+
+	/**
+	 * Archives are read-only.
+	 */
+	public void setFiletype(String filetype) {
+	}
+
+	/**
+	 * A file is locked if it cannot be destroyed, renamed or written.
+	 */
+	public boolean isLocked() {
+		return header != null
+			&& (header.getAccess() & (ACCESS_DESTROY | ACCESS_RENAME | ACCESS_WRITE)) == 0;
+	}
+
+	/**
+	 * Archives are read-only.
+	 */
+	public void setLocked(boolean lock) {
+	}
+
+	/**
+	 * The size of the data fork, as given in its thread record.
+	 */
+	public int getSize() {
+		ThreadRecord dataFork = getDataFork();
+		return (dataFork == null) ? 0 : (int) dataFork.getThreadEof();
+	}
+
+	/**
+	 * The number of bytes the data and resource forks take up in the archive.
+	 */
+	public long getCompressedSize() {
+		long size = 0;
+		if (header != null) {
+			for (ThreadRecord r : header.getThreadRecords()) {
+				ThreadKind kind = r.getThreadKind();
+				if (kind == ThreadKind.DATA_FORK || kind == ThreadKind.RESOURCE_FORK) {
+					size+= r.getCompThreadEof();
+				}
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Identify if this is a directory file.
+	 */
+	public boolean isDirectory() {
+		return false;
+	}
+
+	/**
+	 * Files in an archive are never deleted.
+	 */
+	public boolean isDeleted() {
+		return false;
+	}
+
+	/**
+	 * Archives are read-only.
+	 */
+	public void delete() {
+	}
+
+	/**
+	 * Get the file column data, matching the ProDOS layout where it makes
+	 * sense.
+	 */
+	public List<String> getFileColumnData(int displayMode) {
+		NumberFormat numberFormat = NumberFormat.getNumberInstance();
+		SimpleDateFormat dateFormat = new SimpleDateFormat(
+				textBundle.get("DateFormat")); //$NON-NLS-1$
+		List<String> list = new ArrayList<>();
+		switch (displayMode) {
+			case FormattedDisk.FILE_DISPLAY_NATIVE:
+				list.add(isLocked() ? "*" : " "); //$NON-NLS-1$ //$NON-NLS-2$
+				list.add(getFilename());
+				list.add(getFiletype());
+				list.add(formatDate(dateFormat, getLastModificationDate()));
+				list.add(formatDate(dateFormat, getCreationDate()));
+				list.add(numberFormat.format(getSize()));
+				list.add(formatAuxiliaryType());
+				break;
+			case FormattedDisk.FILE_DISPLAY_DETAIL:
+				list.add(isLocked() ? "*" : " "); //$NON-NLS-1$ //$NON-NLS-2$
+				list.add(getFilename());
+				String permissions = ""; //$NON-NLS-1$
+				long access = (header == null) ? 0 : header.getAccess();
+				if ((access & ACCESS_DESTROY) != 0) permissions+= textBundle.get("Destroy"); //$NON-NLS-1$
+				if ((access & ACCESS_READ) != 0) permissions+= textBundle.get("Read"); //$NON-NLS-1$
+				if ((access & ACCESS_RENAME) != 0) permissions+= textBundle.get("Rename"); //$NON-NLS-1$
+				if ((access & ACCESS_WRITE) != 0) permissions+= textBundle.get("Write"); //$NON-NLS-1$
+				list.add(permissions);
+				list.add(getFiletype());
+				list.add(formatDate(dateFormat, getLastModificationDate()));
+				list.add(formatDate(dateFormat, getCreationDate()));
+				list.add(numberFormat.format(getSize()));
+				list.add(formatAuxiliaryType());
+				list.add(numberFormat.format(getCompressedSize()));
+				ThreadRecord dataFork = getDataFork();
+				list.add(dataFork == null ? "" : dataFork.getThreadFormat().toString()); //$NON-NLS-1$
+				list.add(getResourceFork() == null ? "" : textBundle.get("NufxFileEntry.ResourceFork")); //$NON-NLS-1$ //$NON-NLS-2$
+				break;
+			default:	// FILE_DISPLAY_STANDARD
+				list.add(getFilename());
+				list.add(getFiletype());
+				list.add(numberFormat.format(getSize()));
+				list.add(isLocked() ? textBundle.get("Locked") : "");  //$NON-NLS-1$//$NON-NLS-2$
+				break;
+		}
+		return list;
+	}
+
+	/**
+	 * Format a date, which may be missing.
+	 */
+	private String formatDate(SimpleDateFormat dateFormat, Date date) {
+		return (date == null) ? textBundle.get("ProdosFileEntry.NullDate") //$NON-NLS-1$
+			: dateFormat.format(date);
+	}
+
+	/**
+	 * Show the auxiliary type the way a ProDOS listing does.
+	 */
+	private String formatAuxiliaryType() {
+		String filetype = getFiletype();
+		int auxtype = getAuxiliaryType();
+		if ("TXT".equals(filetype) && auxtype > 0) { //$NON-NLS-1$
+			return "L=" + auxtype; //$NON-NLS-1$
+		} else if (("BIN".equals(filetype) || "BAS".equals(filetype) //$NON-NLS-1$ //$NON-NLS-2$
+				|| "VAR".equals(filetype) || "SYS".equals(filetype)) //$NON-NLS-1$ //$NON-NLS-2$
+				&& auxtype > 0) {
+			return "A=$" + AppleUtil.getFormattedWord(auxtype); //$NON-NLS-1$
+		}
+		return "$" + AppleUtil.getFormattedWord(auxtype); //$NON-NLS-1$
+	}
+
+	public Date getCreationDate() {
+		return (header == null) ? null : header.getCreateWhen();
+	}
+
+	public Date getLastModificationDate() {
+		return (header == null) ? null : header.getModWhen();
+	}
+
+	/**
+	 * Answer with the data fork thread, if there is one.
+	 */
+	protected ThreadRecord getDataFork() {
+		try {
+			return (header == null) ? null : header.getDataForkInputStream();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Answer with the resource fork thread, if there is one.
+	 */
+	protected ThreadRecord getResourceFork() {
+		try {
+			return (header == null) ? null : header.getResourceForkInputStream();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Decompress the data fork.  Nothing else in the archive is read.
+	 */
+	public byte[] getFileData() {
+		return disk.getFileData(this);
+	}
+
+	/**
+	 * Decompress the data fork thread.
+	 */
+	protected byte[] readDataFork() throws IOException {
+		byte[] data = Utilities.readThread(getDataFork());
+		return (data == null) ? new byte[0] : data;
+	}
+
+	/**
+	 * Archives are read-only.
+	 */
+	public void setFileData(byte[] data) throws DiskFullException {
+		disk.setFileData(this, data);
+	}
+
+	/**
+	 * Use the same filters as a ProDOS file of this type.
+	 */
+	public FileFilter getSuggestedFilter() {
+		return ProdosFileEntry.getSuggestedFilter(getFiletypeByte(), getAuxiliaryType(),
+				getSize(), getFilename());
+	}
+
+	public FormattedDisk getFormattedDisk() {
+		return disk;
+	}
+
+	/**
+	 * ProDOS filenames are up to 15 characters.
+	 */
+	public int getMaximumFilenameLength() {
+		return 15;
+	}
+
+	public boolean needsAddress() {
+		return false;
+	}
+
+	/**
+	 * Archives are read-only.
+	 */
+	public void setAddress(int address) {
+	}
+
+	public boolean canCompile() {
+		return "BAS".equals(getFiletype()); //$NON-NLS-1$
+	}
+}
@@ -0,0 +1,354 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2002 by Robert Greene
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage.os.nufx;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.webcodepro.applecommander.storage.DirectoryEntry;
+import com.webcodepro.applecommander.storage.Disk;
+import com.webcodepro.applecommander.storage.DiskFullException;
+import com.webcodepro.applecommander.storage.FileEntry;
+import com.webcodepro.applecommander.storage.FormattedDisk;
+import com.webcodepro.applecommander.storage.StorageBundle;
+import com.webcodepro.applecommander.storage.physical.ByteArrayImageLayout;
+import com.webcodepro.applecommander.storage.physical.ImageOrder;
+import com.webcodepro.applecommander.storage.physical.ProdosOrder;
+import com.webcodepro.applecommander.util.TextBundle;
+import com.webcodepro.shrinkit.HeaderBlock;
+import com.webcodepro.shrinkit.NuFileArchive;
+import com.webcodepro.shrinkit.ThreadKind;
+import com.webcodepro.shrinkit.ThreadRecord;
+
+/**
+ * Presents a ShrinkIt archive of files (SHK or BXY) as a read-only disk.
+ * The file list comes straight from the record headers and a file is only
+ * decompressed when its data is asked for, so listing an archive or pulling
+ * a single file out of it does not unpack the whole archive.
+ * <p>
+ * Archives holding a disk image (SDK) are not handled here; those are
+ * unpacked and opened as the disk they contain.
+ */
+public class NufxFormatDisk extends FormattedDisk {
+	private TextBundle textBundle = StorageBundle.getInstance();
+	private NuFileArchive archive;
+	private long archiveLength;
+	private List<FileEntry> files;
+
+	/**
+	 * Constructor for NufxFormatDisk.  The image order only exists to keep
+	 * the rest of AppleCommander happy; no data is ever read from it.
+	 */
+	public NufxFormatDisk(String filename, NuFileArchive archive) {
+		super(filename, new ProdosOrder(new ByteArrayImageLayout(Disk.BLOCK_SIZE)));
+		this.archive = archive;
+		this.archiveLength = new File(filename).length();
+	}
+
+	/**
+	 * Open a ShrinkIt archive of files.  Answers with null if the file is not
+	 * an SHK or BXY archive, or if the archive holds a disk image.  An
+	 * archive within a zip file is left for Disk to turn down.
+	 */
+	public static NufxFormatDisk open(String filename) throws IOException {
+		String lowerName = filename.toLowerCase();
+		if (!lowerName.endsWith(".shk") && !lowerName.endsWith(".bxy")) { //$NON-NLS-1$ //$NON-NLS-2$
+			return null;
+		}
+		if (filename.contains(Disk.ZIP_SEPARATOR)) {
+			return null;
+		}
+		NuFileArchive archive = new NuFileArchive(new File(filename));
+		for (HeaderBlock header : archive.getHeaderBlocks()) {
+			for (ThreadRecord thread : header.getThreadRecords()) {
+				if (thread.getThreadKind() == ThreadKind.DISK_IMAGE) {
+					archive.close();
+					return null;
+				}
+			}
+		}
+		return new NufxFormatDisk(filename, archive);
+	}
+
+	/**
+	 * Close the archive.  File data can no longer be read afterwards.
+	 */
+	public void close() throws IOException {
+		archive.close();
+	}
+
+	/**
+	 * Answer with the underlying archive.
+	 */
+	public NuFileArchive getArchive() {
+		return archive;
+	}
+
+	/**
+	 * The disk name is the name of the archive file.
+	 */
+	public String getDiskName() {
+		return new File(getFilename()).getName();
+	}
+
+	public String getFormat() {
+		return textBundle.get("NufxFormatDisk.Format"); //$NON-NLS-1$
+	}
+
+	/**
+	 * Retrieve the list of files in the root of the archive, building the
+	 * directory tree from the record pathnames the first time through.
+	 */
+	public synchronized List<FileEntry> getFiles() {
+		if (files == null) {
+			List<FileEntry> root = new ArrayList<>();
+			Map<String,NufxDirectoryEntry> directories = new HashMap<>();
+			for (HeaderBlock header : archive.getHeaderBlocks()) {
+				String[] path = header.getFilename().split("/"); //$NON-NLS-1$
+				List<FileEntry> parent = root;
+				String prefix = ""; //$NON-NLS-1$
+				for (int i=0; i<path.length-1; i++) {
+					if (path[i].length() == 0) continue;
+					prefix+= path[i] + "/"; //$NON-NLS-1$
+					NufxDirectoryEntry directory = directories.get(prefix);
+					if (directory == null) {
+						directory = new NufxDirectoryEntry(this, path[i]);
+						directories.put(prefix, directory);
+						parent.add(directory);
+					}
+					parent = directory.getFiles();
+				}
+				parent.add(new NufxFileEntry(this, header, path[path.length-1]));
+			}
+			files = root;
+		}
+		return files;
+	}
+
+	/**
+	 * Archives are read-only.
+	 */
+	public FileEntry createFile() throws DiskFullException {
+		throw new DiskFullException(textBundle.get("NufxFormatDisk.ReadOnlyError")); //$NON-NLS-1$
+	}
+
+	/**
+	 * Archives are read-only.
+	 */
+	public DirectoryEntry createDirectory(String name) throws DiskFullException {
+		throw new UnsupportedOperationException(textBundle.get("DirectoryCreationNotSupported")); //$NON-NLS-1$
+	}
+
+	public boolean canCreateDirectories() {
+		return false;
+	}
+
+	public boolean canCreateFile() {
+		return false;
+	}
+
+	/**
+	 * The physical size is the size of the archive file.
+	 */
+	public int getPhysicalSize() {
+		return (int) archiveLength;
+	}
+
+	/**
+	 * An archive has no free space.
+	 */
+	public int getFreeSpace() {
+		return 0;
+	}
+
+	/**
+	 * The whole archive is in use.
+	 */
+	public int getUsedSpace() {
+		return (int) archiveLength;
+	}
+
+	/**
+	 * An archive has no bitmap.
+	 */
+	public int[] getBitmapDimensions() {
+		return null;
+	}
+
+	public int getBitmapLength() {
+		return 0;
+	}
+
+	public DiskUsage getDiskUsage() {
+		return null;
+	}
+
+	public String[] getBitmapLabels() {
+		return new String[0];
+	}
+
+	/**
+	 * Add the record count to the disk information.
+	 */
+	public List<DiskInformation> getDiskInformation() {
+		List<DiskInformation> list = super.getDiskInformation();
+		list.add(new DiskInformation(textBundle.get("NufxFormatDisk.TotalRecords"), //$NON-NLS-1$
+				archive.getHeaderBlocks().size()));
+		return list;
+	}
+
+	/**
+	 * Get the file column headers, following the ProDOS layout.
+	 */
+	public List<FileColumnHeader> getFileColumnHeaders(int displayMode) {
+		List<FileColumnHeader> list = new ArrayList<>();
+		switch (displayMode) {
+			case FILE_DISPLAY_NATIVE:
+				list.add(new FileColumnHeader(" ", 1, FileColumnHeader.ALIGN_CENTER)); //$NON-NLS-1$
+				list.add(new FileColumnHeader(textBundle.get("Name"), 15,  //$NON-NLS-1$
+						FileColumnHeader.ALIGN_LEFT));
+				list.add(new FileColumnHeader(textBundle.get("Filetype"), 8, //$NON-NLS-1$
+						FileColumnHeader.ALIGN_CENTER));
+				list.add(new FileColumnHeader(textBundle.get("Modified"), 10, //$NON-NLS-1$
+						FileColumnHeader.ALIGN_CENTER));
+				list.add(new FileColumnHeader(
+						textBundle.get("ProdosFormatDisk.Created"), 10, //$NON-NLS-1$
+						FileColumnHeader.ALIGN_CENTER));
+				list.add(new FileColumnHeader(
+						textBundle.get("ProdosFormatDisk.Length"), 10, //$NON-NLS-1$
+						FileColumnHeader.ALIGN_RIGHT));
+				list.add(new FileColumnHeader(
+						textBundle.get("ProdosFormatDisk.AuxType"), 8, //$NON-NLS-1$
+						FileColumnHeader.ALIGN_LEFT));
+				break;
+			case FILE_DISPLAY_DETAIL:
+				list.add(new FileColumnHeader(" ", 1, FileColumnHeader.ALIGN_CENTER)); //$NON-NLS-1$
+				list.add(new FileColumnHeader(textBundle.get("Name"), 15,  //$NON-NLS-1$
+						FileColumnHeader.ALIGN_LEFT));
+				list.add(new FileColumnHeader(textBundle.get("ProdosFormatDisk.Permissions"), 8, FileColumnHeader.ALIGN_LEFT)); //$NON-NLS-1$
+				list.add(new FileColumnHeader(textBundle.get("Filetype"), 8, FileColumnHeader.ALIGN_CENTER)); //$NON-NLS-1$
+				list.add(new FileColumnHeader(textBundle.get("Modified"), 10, FileColumnHeader.ALIGN_CENTER)); //$NON-NLS-1$
+				list.add(new FileColumnHeader(textBundle.get("ProdosFormatDisk.Created"), 10, FileColumnHeader.ALIGN_CENTER)); //$NON-NLS-1$
+				list.add(new FileColumnHeader(textBundle.get("ProdosFormatDisk.Length"), 10, FileColumnHeader.ALIGN_RIGHT)); //$NON-NLS-1$
+				list.add(new FileColumnHeader(textBundle.get("ProdosFormatDisk.AuxType"), 8, FileColumnHeader.ALIGN_LEFT)); //$NON-NLS-1$
+				list.add(new FileColumnHeader(textBundle.get("NufxFormatDisk.CompressedLength"), 10, FileColumnHeader.ALIGN_RIGHT)); //$NON-NLS-1$
+				list.add(new FileColumnHeader(textBundle.get("NufxFormatDisk.ThreadFormat"), 12, FileColumnHeader.ALIGN_LEFT)); //$NON-NLS-1$
+				list.add(new FileColumnHeader(textBundle.get("NufxFormatDisk.ResourceFork"), 8, FileColumnHeader.ALIGN_CENTER)); //$NON-NLS-1$
+				break;
+			default:	// FILE_DISPLAY_STANDARD
+				list.addAll(super.getFileColumnHeaders(displayMode));
+				break;
+		}
+		return list;
+	}
+
+	public boolean supportsDeletedFiles() {
+		return false;
+	}
+
+	public boolean canReadFileData() {
+		return true;
+	}
+
+	public boolean canWriteFileData() {
+		return false;
+	}
+
+	public boolean canHaveDirectories() {
+		return true;
+	}
+
+	public boolean canDeleteFile() {
+		return false;
+	}
+
+	/**
+	 * Decompress the data fork of a single file.  Nothing else in the
+	 * archive is read.
+	 */
+	public byte[] getFileData(FileEntry fileEntry) {
+		if ( !(fileEntry instanceof NufxFileEntry)) {
+			throw new IllegalArgumentException(textBundle.get("NufxFormatDisk.IncorrectFileEntryError")); //$NON-NLS-1$
+		}
+		try {
+			return ((NufxFileEntry) fileEntry).readDataFork();
+		} catch (IOException e) {
+			throw new IllegalArgumentException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Archives are read-only.
+	 */
+	public void setFileData(FileEntry fileEntry, byte[] fileData) throws DiskFullException {
+		throw new DiskFullException(textBundle.get("NufxFormatDisk.ReadOnlyError")); //$NON-NLS-1$
+	}
+
+	/**
+	 * Archives cannot be formatted.
+	 */
+	public void format() {
+		throw new UnsupportedOperationException(textBundle.get("NufxFormatDisk.ReadOnlyError")); //$NON-NLS-1$
+	}
+
+	public int getLogicalDiskNumber() {
+		return 0;
+	}
+
+	/**
+	 * Names follow the ProDOS rules.
+	 */
+	public String getSuggestedFilename(String filename) {
+		StringBuffer newName = new StringBuffer();
+		if (filename.length() == 0 || !Character.isLetter(filename.charAt(0))) {
+			newName.append('A');
+		}
+		for (int i=0; newName.length() < 15 && i<filename.length(); i++) {
+			char ch = filename.charAt(i);
+			if (Character.isLetterOrDigit(ch) || ch == '.') {
+				newName.append(ch);
+			}
+		}
+		return newName.toString().toUpperCase().trim();
+	}
+
+	public String getSuggestedFiletype(String filename) {
+		return "BIN"; //$NON-NLS-1$
+	}
+
+	public String[] getFiletypes() {
+		return new String[0];
+	}
+
+	public boolean needsAddress(String filetype) {
+		return false;
+	}
+
+	/**
+	 * There is no image to reorder.
+	 */
+	public void changeImageOrder(ImageOrder imageOrder) {
+		throw new UnsupportedOperationException(textBundle.get("NufxFormatDisk.ReadOnlyError")); //$NON-NLS-1$
+	}
+}
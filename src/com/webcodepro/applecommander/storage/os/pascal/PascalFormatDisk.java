@@ -22,13 +22,14 @@
 package com.webcodepro.applecommander.storage.os.pascal;
 
 import java.util.ArrayList;
-import java.util.BitSet;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 
 import com.webcodepro.applecommander.storage.DirectoryEntry;
 import com.webcodepro.applecommander.storage.DiskFullException;
+import com.webcodepro.applecommander.storage.DiskOwnershipMap;
+import com.webcodepro.applecommander.storage.DiskUsageSnapshot;
 import com.webcodepro.applecommander.storage.FileEntry;
 import com.webcodepro.applecommander.storage.FormattedDisk;
 import com.webcodepro.applecommander.storage.StorageBundle;
@@ -68,48 +69,6 @@ public class PascalFormatDisk extends FormattedDisk {
 			"FOTO", 		//$NON-NLS-1$
 			"securedir" };	//$NON-NLS-1$
 
-	/**
-	 * Use this inner interface for managing the disk usage data.
-	 * This offloads format-specific implementation to the implementing class.
-	 * A BitSet is used to track all blocks, as Pascal disks do not have a
-	 * bitmap stored on the disk. This is safe since we know the number of blocks
-	 * that exist. (BitSet length is of last set bit - unset bits at the end are
-	 * "lost".)
-	 */
-	private class PascalDiskUsage implements DiskUsage {
-		private int location = -1;
-		private BitSet bitmap = null;
-		public boolean hasNext() {
-			return location == -1 || location < getBlocksOnDisk() - 1;
-		}
-		public void next() {
-			if (bitmap == null) {
-				bitmap = new BitSet(getBlocksOnDisk());
-				// assume all blocks are unused
-				for (int block=6; block<getBlocksOnDisk(); block++) {
-					bitmap.set(block);
-				}
-				// process through all files and mark those blocks as used
-				Iterator files = getFiles().iterator();
-				while (files.hasNext()) {
-					PascalFileEntry entry = (PascalFileEntry) files.next();
-					for (int block=entry.getFirstBlock(); block<entry.getLastBlock(); block++) {
-						bitmap.clear(block);
-					}
-				}
-				location = 0;
-			} else {
-				location++;
-			}
-		}
-		public boolean isFree() {
-			return bitmap.get(location);	// true = free
-		}
-		public boolean isUsed() {
-			return !bitmap.get(location);	// false = used
-		}
-	}
-	
 	/**
 	 * Constructor for PascalFormatDisk.
 	 */
@@ -280,6 +239,7 @@ public class PascalFormatDisk extends FormattedDisk {
 			System.arraycopy(directory, i*BLOCK_SIZE, block, 0, BLOCK_SIZE);
 			writeBlock(2+i, block);
 		}
+		resetOwnershipMap();
 	}
 
 	/**
@@ -358,6 +318,15 @@ public class PascalFormatDisk extends FormattedDisk {
 		return AppleUtil.getPascalDate(getVolumeEntry(), 20);
 	}
 
+	/**
+	 * Set the most recent date setting.
+	 */
+	public void setMostRecentDateSetting(Date date) {
+		byte[] directory = readDirectory();
+		AppleUtil.setPascalDate(directory, 20, date);
+		writeDirectory(directory);
+	}
+
 	/**
 	 * Return the amount of used space in bytes.
 	 * @see com.webcodepro.applecommander.storage.FormattedDisk#getUsedSpace()
@@ -419,7 +388,52 @@ public class PascalFormatDisk extends FormattedDisk {
 	 * Get the disk usage iterator.
 	 */
 	public DiskUsage getDiskUsage() {
-		return new PascalDiskUsage();
+		return getUsageSnapshot().getDiskUsage();
+	}
+
+	/**
+	 * Get a snapshot of the disk usage.  Pascal disks do not have a bitmap
+	 * stored on the disk, so all blocks past the directory are assumed to be
+	 * free and then the range used by each file is marked off.
+	 */
+	public DiskUsageSnapshot getUsageSnapshot() {
+		int blocksOnDisk = getBlocksOnDisk();
+		DiskUsageSnapshot snapshot = new DiskUsageSnapshot(blocksOnDisk, null);
+		snapshot.setFree(6, blocksOnDisk);
+		Iterator<FileEntry> files = getFiles().iterator();
+		while (files.hasNext()) {
+			PascalFileEntry entry = (PascalFileEntry) files.next();
+			snapshot.setUsed(Math.min(entry.getFirstBlock(), blocksOnDisk),
+					Math.min(entry.getLastBlock(), blocksOnDisk));
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Build the block ownership map.  The boot blocks and directory belong
+	 * to the system, and each file owns the contiguous range of blocks from
+	 * its first block up to (but not including) its last block.  As every
+	 * directory change is written through writeDirectory, the map is simply
+	 * discarded there and rebuilt on next use.
+	 */
+	protected DiskOwnershipMap buildOwnershipMap() {
+		int blocksOnDisk = getBlocksOnDisk();
+		DiskOwnershipMap map = new DiskOwnershipMap(blocksOnDisk, null);
+		for (int block=0; block<6; block++) {
+			map.claimSystem(block);
+		}
+		List<FileEntry> files = getFiles();
+		for (int i=0; i<files.size(); i++) {
+			PascalFileEntry entry = (PascalFileEntry) files.get(i);
+			int first = entry.getFirstBlock();
+			int last = Math.max(first, entry.getLastBlock());
+			int[] blocks = new int[last - first];
+			for (int block=first; block<last; block++) {
+				blocks[block-first] = block;
+			}
+			map.add(Integer.valueOf(i), entry, blocks);
+		}
+		return map;
 	}
 
 	/**
@@ -89,7 +89,7 @@ public class ProdosCommonDirectoryHeader extends ProdosCommonEntry {
 	 */
 	public void incrementFileCount() {
 		byte[] data = readFileEntry();
-		data[0x21]++;
+		AppleUtil.setWordValue(data, 0x21, AppleUtil.getWordValue(data, 0x21) + 1);
 		writeFileEntry(data);
 	}
 	
@@ -98,7 +98,8 @@ public class ProdosCommonDirectoryHeader extends ProdosCommonEntry {
 	 */
 	public void decrementFileCount() {
 		byte[] data = readFileEntry();
-		if (data[0x21] != 0) data[0x21]--;
+		int fileCount = AppleUtil.getWordValue(data, 0x21);
+		if (fileCount != 0) AppleUtil.setWordValue(data, 0x21, fileCount - 1);
 		writeFileEntry(data);
 	}
 	
@@ -64,6 +64,13 @@ public class ProdosCommonEntry {
 	protected int getFileEntryBlock() {
 		return block;
 	}
+
+	/**
+	 * Get the offset into the block at which the FileEntry resides.
+	 */
+	protected int getFileEntryOffset() {
+		return offset;
+	}
 	
 	/**
 	 * Get the ProdosFormatDisk that this FileEntry is attached to.
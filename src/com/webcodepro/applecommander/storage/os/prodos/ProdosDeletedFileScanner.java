@@ -0,0 +1,364 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2002 by Robert Greene
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage.os.prodos;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.webcodepro.applecommander.storage.DeletedFileScanner;
+import com.webcodepro.applecommander.storage.Disk;
+import com.webcodepro.applecommander.storage.DiskOwnershipMap;
+import com.webcodepro.applecommander.storage.DiskUsageSnapshot;
+import com.webcodepro.applecommander.storage.FileEntry;
+import com.webcodepro.applecommander.storage.RecoveryCandidate;
+import com.webcodepro.applecommander.util.AppleUtil;
+
+/**
+ * Finds deleted files on a ProDOS volume.
+ * <p>
+ * When ProDOS deletes a file, the storage type and name length (byte 0 of
+ * the entry) are set to zero, but the name, key pointer, blocks used and
+ * EOF remain.  The storage type is worked out again from the filetype, EOF
+ * and the key block.  ProDOS 8 also swaps the two halves of each index
+ * block; index blocks are read whichever way around gives pointers that
+ * lie within the volume.
+ * <p>
+ * Only live directories are searched - the contents of a deleted
+ * subdirectory are not.
+ */
+public class ProdosDeletedFileScanner extends DeletedFileScanner {
+	private static final int VOLUME_DIRECTORY_BLOCK = 2;
+	private static final int SEEDLING = 1;
+	private static final int SAPLING = 2;
+	private static final int TREE = 3;
+	private static final int EXTENDED = 5;
+	private static final int SUBDIRECTORY = 0x0d;
+	private static final int DIRECTORY_FILETYPE = 0x0f;
+	private ProdosFormatDisk disk;
+	private int totalBlocks;
+
+	/**
+	 * Create a scanner for the given disk.
+	 */
+	public ProdosDeletedFileScanner(ProdosFormatDisk disk) {
+		this.disk = disk;
+		this.totalBlocks = disk.getBitmapLength();
+	}
+
+	/**
+	 * Walk the live directories looking for deleted entries.
+	 */
+	public List<RecoveryCandidate> scan() {
+		List<RecoveryCandidate> candidates = new ArrayList<>();
+		DiskUsageSnapshot snapshot = disk.getUsageSnapshot();
+		DiskOwnershipMap map = disk.getOwnershipMap();
+		scanDirectory(VOLUME_DIRECTORY_BLOCK, "", candidates, //$NON-NLS-1$
+				snapshot, map, new ArrayList<Integer>());
+		return candidates;
+	}
+
+	/**
+	 * Scan one directory, and then its (live) subdirectories.
+	 */
+	protected void scanDirectory(int keyBlock, String path, List<RecoveryCandidate> candidates,
+			DiskUsageSnapshot snapshot, DiskOwnershipMap map, List<Integer> visited) {
+		visited.add(Integer.valueOf(keyBlock));
+		int[] blocks = disk.getDirectoryBlocks(keyBlock);
+		for (int i=0; i<blocks.length; i++) {
+			for (int offset=4; offset+ProdosCommonEntry.ENTRY_LENGTH < Disk.BLOCK_SIZE;
+					offset+= ProdosCommonEntry.ENTRY_LENGTH) {
+				ProdosCommonEntry tester = new ProdosCommonEntry(disk, blocks[i], offset);
+				if (tester.isVolumeHeader() || tester.isSubdirectoryHeader() || tester.isEmpty()) {
+					continue;
+				}
+				ProdosFileEntry entry = new ProdosFileEntry(disk, blocks[i], offset);
+				if (entry.isDeleted()) {
+					if (entry.getKeyPointer() != 0) {
+						candidates.add(createCandidate(entry, path, snapshot, map));
+					}
+				} else if (entry.isDirectory() && entry.getKeyPointer() < totalBlocks
+						&& !visited.contains(Integer.valueOf(entry.getKeyPointer()))) {
+					scanDirectory(entry.getKeyPointer(), path + entry.getFilename() + "/", //$NON-NLS-1$
+							candidates, snapshot, map, visited);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Work out the blocks used by a deleted entry.
+	 */
+	protected RecoveryCandidate createCandidate(ProdosFileEntry entry, String path,
+			DiskUsageSnapshot snapshot, DiskOwnershipMap map) {
+		List<Integer> units = new ArrayList<>();
+		boolean damaged = addFileBlocks(entry, units, null);
+		int[] array = DiskOwnershipMap.toArray(units);
+		damaged|= hasDuplicates(array);
+		return new RecoveryCandidate(disk, entry, path + entry.getFilename(),
+				entry.getFiletype(), array, countFree(array, snapshot, map), damaged,
+				entry.getBlocksUsed() != array.length);
+	}
+
+	/**
+	 * Work out the storage type of a deleted entry.  A subdirectory is
+	 * known by its filetype; a forked file has an EOF of one block and a key
+	 * block which describes two forks; otherwise the EOF decides between a
+	 * seedling, sapling or tree file.
+	 */
+	protected int getStorageType(ProdosFileEntry entry) {
+		int eof = entry.getEofPosition();
+		if (entry.getFiletypeByte() == DIRECTORY_FILETYPE) {
+			return SUBDIRECTORY;
+		} else if (entry.getBlocksUsed() <= 1 && eof <= Disk.BLOCK_SIZE) {
+			return SEEDLING;
+		} else if (eof == Disk.BLOCK_SIZE && isExtendedKeyBlock(entry.getKeyPointer())) {
+			return EXTENDED;
+		} else if (eof <= 256 * Disk.BLOCK_SIZE) {
+			return SAPLING;
+		}
+		return TREE;
+	}
+
+	/**
+	 * Indicates if the block looks like the extended key block of a forked
+	 * file.
+	 */
+	protected boolean isExtendedKeyBlock(int blockNumber) {
+		if (blockNumber >= totalBlocks) return false;
+		byte[] block = disk.readBlock(blockNumber);
+		for (int fork=0; fork<0x200; fork+= 0x100) {
+			int storageType = AppleUtil.getUnsignedByte(block[fork]);
+			int keyPointer = AppleUtil.getWordValue(block, fork+1);
+			if (storageType < SEEDLING || storageType > TREE
+					|| keyPointer >= totalBlocks || (fork == 0 && keyPointer == 0)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Add all blocks used by a deleted entry, in file order.  Index blocks
+	 * which were read swapped are added to swapped (if given).
+	 * @return true if a bad pointer was found
+	 */
+	protected boolean addFileBlocks(ProdosFileEntry entry, List<Integer> units, List<Integer> swapped) {
+		int keyPointer = entry.getKeyPointer();
+		int storageType = getStorageType(entry);
+		if (keyPointer >= totalBlocks) {
+			return true;
+		}
+		if (storageType == SUBDIRECTORY) {
+			int[] blocks = disk.getDirectoryBlocks(keyPointer);
+			for (int i=0; i<blocks.length; i++) {
+				units.add(Integer.valueOf(blocks[i]));
+			}
+			return false;
+		} else if (storageType == EXTENDED) {
+			units.add(Integer.valueOf(keyPointer));
+			byte[] extendedKeyBlock = disk.readBlock(keyPointer);
+			boolean damaged = false;
+			for (int fork=0; fork<0x200; fork+= 0x100) {
+				damaged|= addStorageBlocks(AppleUtil.getUnsignedByte(extendedKeyBlock[fork]),
+						AppleUtil.getWordValue(extendedKeyBlock, fork+1), units, swapped);
+			}
+			return damaged;
+		}
+		return addStorageBlocks(storageType, keyPointer, units, swapped);
+	}
+
+	/**
+	 * Add the blocks of a seedling, sapling or tree structure.
+	 */
+	private boolean addStorageBlocks(int storageType, int keyPointer, List<Integer> units, List<Integer> swapped) {
+		if (keyPointer == 0) return false;
+		if (keyPointer >= totalBlocks) return true;
+		units.add(Integer.valueOf(keyPointer));
+		if (storageType == SEEDLING) {
+			return false;
+		} else if (storageType == SAPLING) {
+			return addIndexBlocks(readPointers(keyPointer, swapped), units);
+		} else if (storageType == TREE) {
+			int[] indexBlocks = readPointers(keyPointer, swapped);
+			boolean damaged = false;
+			for (int i=0; i<indexBlocks.length; i++) {
+				if (indexBlocks[i] == 0) continue;
+				if (indexBlocks[i] >= totalBlocks) {
+					damaged = true;
+				} else {
+					units.add(Integer.valueOf(indexBlocks[i]));
+					damaged|= addIndexBlocks(readPointers(indexBlocks[i], swapped), units);
+				}
+			}
+			return damaged;
+		}
+		return true;
+	}
+
+	/**
+	 * Add the data blocks of an index block.
+	 */
+	private boolean addIndexBlocks(int[] pointers, List<Integer> units) {
+		boolean damaged = false;
+		for (int i=0; i<pointers.length; i++) {
+			if (pointers[i] == 0) continue;
+			if (pointers[i] >= totalBlocks) {
+				damaged = true;
+			} else {
+				units.add(Integer.valueOf(pointers[i]));
+			}
+		}
+		return damaged;
+	}
+
+	/**
+	 * Read the 256 pointers of an index block.  If reading the block with
+	 * its halves swapped gives fewer pointers outside of the volume, the
+	 * block is taken to be swapped (and is added to swapped, if given).
+	 */
+	protected int[] readPointers(int indexBlock, List<Integer> swapped) {
+		byte[] block = disk.readBlock(indexBlock);
+		int[] normal = new int[256];
+		int[] reversed = new int[256];
+		int normalBad = 0;
+		int reversedBad = 0;
+		for (int i=0; i<256; i++) {
+			normal[i] = AppleUtil.getWordValue(block[i], block[i+0x100]);
+			reversed[i] = AppleUtil.getWordValue(block[i+0x100], block[i]);
+			if (normal[i] >= totalBlocks) normalBad++;
+			if (reversed[i] >= totalBlocks) reversedBad++;
+		}
+		if (reversedBad < normalBad) {
+			if (swapped != null) swapped.add(Integer.valueOf(indexBlock));
+			return reversed;
+		}
+		return normal;
+	}
+
+	/**
+	 * Read the data fork of a deleted file.
+	 */
+	public byte[] getFileData(RecoveryCandidate candidate) {
+		ProdosFileEntry entry = (ProdosFileEntry) candidate.getFileEntry();
+		int storageType = getStorageType(entry);
+		if (storageType == SUBDIRECTORY) {
+			throw new IllegalArgumentException(getTextBundle().format(
+				"DeletedFileScanner.DirectoryCopyError", candidate.getFilename())); //$NON-NLS-1$
+		} else if (storageType == EXTENDED) {
+			byte[] extendedKeyBlock = disk.readBlock(entry.getKeyPointer());
+			return readStorage(AppleUtil.getUnsignedByte(extendedKeyBlock[0]),
+				AppleUtil.getWordValue(extendedKeyBlock, 1),
+				AppleUtil.get3ByteValue(extendedKeyBlock, 5));
+		}
+		return readStorage(storageType, entry.getKeyPointer(), entry.getEofPosition());
+	}
+
+	/**
+	 * Read a seedling, sapling or tree structure.  Blocks which cannot be
+	 * read are left as zeros.
+	 */
+	private byte[] readStorage(int storageType, int keyPointer, int eof) {
+		byte[] data = new byte[eof];
+		if (keyPointer == 0 || keyPointer >= totalBlocks) {
+			return data;
+		}
+		if (storageType == SEEDLING) {
+			copyBlock(keyPointer, data, 0);
+		} else if (storageType == SAPLING) {
+			copyIndex(readPointers(keyPointer, null), data, 0);
+		} else if (storageType == TREE) {
+			int[] indexBlocks = readPointers(keyPointer, null);
+			for (int i=0; i<indexBlocks.length; i++) {
+				if (indexBlocks[i] != 0 && indexBlocks[i] < totalBlocks) {
+					copyIndex(readPointers(indexBlocks[i], null), data, i * 256 * Disk.BLOCK_SIZE);
+				}
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Copy the data blocks of an index block into data.
+	 */
+	private void copyIndex(int[] pointers, byte[] data, int offset) {
+		for (int i=0; i<pointers.length; i++) {
+			if (pointers[i] != 0 && pointers[i] < totalBlocks) {
+				copyBlock(pointers[i], data, offset + i * Disk.BLOCK_SIZE);
+			}
+		}
+	}
+
+	/**
+	 * Copy a block into data, stopping at the end of data.
+	 */
+	private void copyBlock(int blockNumber, byte[] data, int offset) {
+		if (offset >= data.length) return;
+		byte[] block = disk.readBlock(blockNumber);
+		System.arraycopy(block, 0, data, offset, Math.min(block.length, data.length - offset));
+	}
+
+	/**
+	 * The auxiliary type holds the load address where one is needed.
+	 */
+	public int getAddress(RecoveryCandidate candidate) {
+		return ((ProdosFileEntry) candidate.getFileEntry()).getAuxiliaryType();
+	}
+
+	/**
+	 * Put the storage type and name length back, swap any index blocks back
+	 * around, mark the blocks as used and count the file in its directory.
+	 */
+	protected FileEntry restoreEntry(RecoveryCandidate candidate) {
+		ProdosFileEntry entry = (ProdosFileEntry) candidate.getFileEntry();
+		int storageType = getStorageType(entry);
+		List<Integer> swapped = new ArrayList<>();
+		addFileBlocks(entry, new ArrayList<Integer>(), swapped);
+		for (Integer blockNumber : swapped) {
+			byte[] block = disk.readBlock(blockNumber.intValue());
+			byte[] restored = new byte[Disk.BLOCK_SIZE];
+			System.arraycopy(block, 0, restored, 0x100, 0x100);
+			System.arraycopy(block, 0x100, restored, 0, 0x100);
+			disk.writeBlock(blockNumber.intValue(), restored);
+		}
+		byte[] data = entry.readFileEntry();
+		int nameLength = 0;
+		while (nameLength < 15 && data[nameLength+1] != 0) nameLength++;
+		data[0] = (byte) ((storageType << 4) | nameLength);
+		entry.writeFileEntry(data);
+		byte[] bitmap = disk.readVolumeBitMap();
+		int[] units = candidate.getUnits();
+		for (int i=0; i<units.length; i++) {
+			disk.setBlockUsed(bitmap, units[i]);
+		}
+		disk.writeVolumeBitMap(bitmap);
+		int headerBlock = entry.getHeaderPointer();
+		if (headerBlock < totalBlocks) {
+			byte[] header = disk.readBlock(headerBlock);
+			AppleUtil.setWordValue(header, 0x25, AppleUtil.getWordValue(header, 0x25) + 1);
+			disk.writeBlock(headerBlock, header);
+		}
+		disk.updateOwnership(entry);
+		if (storageType == SUBDIRECTORY) {
+			return new ProdosDirectoryEntry(disk, entry.getFileEntryBlock(),
+				entry.getFileEntryOffset(), new ProdosSubdirectoryHeader(disk, entry.getKeyPointer()));
+		}
+		return entry;
+	}
+}
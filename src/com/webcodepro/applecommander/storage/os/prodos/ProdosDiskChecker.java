@@ -0,0 +1,268 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2002 by Robert Greene
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage.os.prodos;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+import com.webcodepro.applecommander.storage.Disk;
+import com.webcodepro.applecommander.storage.DiskCheck;
+import com.webcodepro.applecommander.storage.DiskChecker;
+import com.webcodepro.applecommander.storage.DiskOwnershipMap;
+import com.webcodepro.applecommander.storage.DiskUsageSnapshot;
+
+/**
+ * Checks the consistency of a ProDOS volume.
+ * <p>
+ * Each directory is walked by its own ForkJoin task, so subdirectories
+ * are checked in parallel.  Every file is checked for pointers outside of
+ * the volume, an unknown storage type, a blocks used count which does not
+ * match the blocks actually allocated, and an EOF beyond what the storage
+ * type can hold.  Directories are checked for a file count which does not
+ * match the entries present.
+ */
+public class ProdosDiskChecker extends DiskChecker {
+	/** The first block of the volume directory. */
+	private static final int VOLUME_DIRECTORY_BLOCK = 2;
+	/** The largest EOF a seedling file can have. */
+	private static final int SEEDLING_MAXIMUM = Disk.BLOCK_SIZE;
+	/** The largest EOF a sapling file can have. */
+	private static final int SAPLING_MAXIMUM = 256 * Disk.BLOCK_SIZE;
+	private ProdosFormatDisk disk;
+	private int totalBlocks;
+	private Set<Integer> visited = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Create a checker for the given disk.
+	 */
+	public ProdosDiskChecker(ProdosFormatDisk disk) {
+		this.disk = disk;
+	}
+
+	/**
+	 * Validate the volume header, and claim the boot blocks, volume
+	 * directory and volume bitmap for the system.
+	 */
+	protected DiskOwnershipMap createOwnershipMap(DiskCheck result) {
+		// Each check walks the directories afresh
+		visited.clear();
+		ProdosVolumeDirectoryHeader volumeHeader = disk.getVolumeHeader();
+		totalBlocks = volumeHeader.getTotalBlocks();
+		int physicalBlocks = disk.getPhysicalSize() / Disk.BLOCK_SIZE;
+		if (totalBlocks <= VOLUME_DIRECTORY_BLOCK || totalBlocks > physicalBlocks) {
+			result.addProblem(DiskCheck.VOLUME_ERROR, null, -1,
+				getTextBundle().format("ProdosDiskChecker.InvalidTotalBlocks", //$NON-NLS-1$
+				totalBlocks, physicalBlocks));
+			return null;
+		}
+		int bitmapBlock = volumeHeader.getBitMapPointer();
+		int bitmapBlocks = (totalBlocks / 4096) + 1;
+		if (bitmapBlock == 0 || bitmapBlock + bitmapBlocks > totalBlocks) {
+			result.addProblem(DiskCheck.VOLUME_ERROR, null, -1,
+				getTextBundle().format("ProdosDiskChecker.InvalidBitmapPointer", //$NON-NLS-1$
+				bitmapBlock));
+			return null;
+		}
+		DiskOwnershipMap map = new DiskOwnershipMap(totalBlocks, null);
+		map.claimSystem(0);
+		map.claimSystem(1);
+		int[] directoryBlocks = disk.getDirectoryBlocks(VOLUME_DIRECTORY_BLOCK);
+		for (int i=0; i<directoryBlocks.length; i++) {
+			map.claimSystem(directoryBlocks[i]);
+		}
+		for (int i=0; i<bitmapBlocks; i++) {
+			map.claimSystem(bitmapBlock + i);
+		}
+		visited.add(Integer.valueOf(VOLUME_DIRECTORY_BLOCK));
+		return map;
+	}
+
+	/**
+	 * The walk starts with the volume directory.
+	 */
+	protected ForkJoinTask<List<CheckedFile>> createTask(DiskCheck result) {
+		return new DirectoryTask(result, VOLUME_DIRECTORY_BLOCK, ""); //$NON-NLS-1$
+	}
+
+	/**
+	 * Get the volume bitmap.
+	 */
+	protected DiskUsageSnapshot getUsageSnapshot() {
+		return disk.getUsageSnapshot();
+	}
+
+	/**
+	 * Rewrite the volume bitmap from the computed allocation.  Any bits
+	 * beyond the end of the volume are left alone.
+	 */
+	protected void rebuildBitmap(DiskOwnershipMap map) {
+		byte[] bitmap = disk.readVolumeBitMap();
+		for (int block=0; block<totalBlocks; block++) {
+			if (map.isClaimed(block)) {
+				disk.setBlockUsed(bitmap, block);
+			} else {
+				disk.setBlockFree(bitmap, block);
+			}
+		}
+		disk.writeVolumeBitMap(bitmap);
+	}
+
+	/**
+	 * Describe a block for reporting.
+	 */
+	protected String describeUnit(int unit) {
+		return getTextBundle().format("ProdosDiskChecker.Block", unit); //$NON-NLS-1$
+	}
+
+	/**
+	 * Check the files in one directory, forking a new task for each
+	 * subdirectory.
+	 */
+	protected class DirectoryTask extends RecursiveTask<List<CheckedFile>> {
+		private static final long serialVersionUID = 1L;
+		private DiskCheck result;
+		private int keyBlock;
+		private String path;
+
+		public DirectoryTask(DiskCheck result, int keyBlock, String path) {
+			this.result = result;
+			this.keyBlock = keyBlock;
+			this.path = path;
+		}
+
+		protected List<CheckedFile> compute() {
+			List<CheckedFile> files = new ArrayList<>();
+			List<DirectoryTask> subdirectories = new ArrayList<>();
+			ProdosCommonDirectoryHeader header = new ProdosCommonDirectoryHeader(disk, keyBlock);
+			if (!header.isVolumeHeader() && !header.isSubdirectoryHeader()) {
+				result.addProblem(DiskCheck.DIRECTORY_ERROR, getDirectoryName(), keyBlock,
+					getTextBundle().format("ProdosDiskChecker.MissingDirectoryHeader", //$NON-NLS-1$
+					describeUnit(keyBlock)));
+				return files;
+			}
+			int fileCount = 0;
+			int[] blocks = disk.getDirectoryBlocks(keyBlock);
+			for (int i=0; i<blocks.length; i++) {
+				int offset = 4;
+				while (offset+ProdosCommonEntry.ENTRY_LENGTH < Disk.BLOCK_SIZE) {
+					ProdosFileEntry entry = createEntry(blocks[i], offset);
+					if (entry != null) {
+						fileCount++;
+						String filename = path + entry.getFilename();
+						files.add(checkFile(entry, filename));
+						int subdirectoryBlock = entry.getKeyPointer();
+						if (entry.isDirectory() && subdirectoryBlock < totalBlocks
+								&& visited.add(Integer.valueOf(subdirectoryBlock))) {
+							DirectoryTask task = new DirectoryTask(result,
+								subdirectoryBlock, filename + "/"); //$NON-NLS-1$
+							task.fork();
+							subdirectories.add(task);
+						}
+					}
+					offset+= ProdosCommonEntry.ENTRY_LENGTH;
+				}
+			}
+			if (fileCount != header.getFileCount()) {
+				result.addProblem(DiskCheck.DIRECTORY_ERROR, getDirectoryName(), keyBlock,
+					getTextBundle().format("ProdosDiskChecker.FileCountMismatch", //$NON-NLS-1$
+					header.getFileCount(), fileCount));
+			}
+			for (DirectoryTask task : subdirectories) {
+				files.addAll(task.join());
+			}
+			return files;
+		}
+
+		/**
+		 * The name of this directory for reporting; null for the volume
+		 * directory.
+		 */
+		private String getDirectoryName() {
+			return (path.length() == 0) ? null : path.substring(0, path.length()-1);
+		}
+
+		/**
+		 * Create the FileEntry at the given location, the same way that
+		 * ProdosFormatDisk.getFiles does.  Headers, empty and deleted
+		 * entries are skipped.
+		 */
+		private ProdosFileEntry createEntry(int block, int offset) {
+			ProdosCommonEntry tester = new ProdosCommonEntry(disk, block, offset);
+			if (tester.isVolumeHeader() || tester.isSubdirectoryHeader() || tester.isEmpty()) {
+				return null;
+			}
+			ProdosFileEntry entry = new ProdosFileEntry(disk, block, offset);
+			if (entry.isDeleted()) {
+				return null;
+			}
+			if (entry.isDirectory()) {
+				return new ProdosDirectoryEntry(disk, block, offset,
+					new ProdosSubdirectoryHeader(disk, entry.getKeyPointer()));
+			}
+			return entry;
+		}
+
+		/**
+		 * Check a single file (or subdirectory entry).
+		 */
+		private CheckedFile checkFile(ProdosFileEntry entry, String filename) {
+			int storageType = entry.getStorageType();
+			int[] blocks = new int[0];
+			if (entry.isDirectory() || entry.isForkedFile()
+					|| (storageType >= 1 && storageType <= 3)) {
+				blocks = disk.getOwnedBlocks(entry);
+			} else {
+				result.addProblem(DiskCheck.DIRECTORY_ERROR, filename, -1,
+					getTextBundle().format("ProdosDiskChecker.UnknownStorageType", //$NON-NLS-1$
+					storageType));
+			}
+			for (int i=0; i<blocks.length; i++) {
+				if (blocks[i] >= totalBlocks) {
+					result.addProblem(DiskCheck.BAD_POINTER, filename, -1,
+						getTextBundle().format("ProdosDiskChecker.BadPointer", //$NON-NLS-1$
+						blocks[i], totalBlocks));
+				}
+			}
+			if (!entry.isGEOSFile() && entry.getBlocksUsed() != blocks.length) {
+				result.addProblem(DiskCheck.SIZE_MISMATCH, filename, -1,
+					getTextBundle().format("ProdosDiskChecker.BlocksUsedMismatch", //$NON-NLS-1$
+					entry.getBlocksUsed(), blocks.length));
+			}
+			int eof = entry.getEofPosition();
+			if (entry.isDirectory()) {
+				if (eof != blocks.length * Disk.BLOCK_SIZE) {
+					result.addProblem(DiskCheck.EOF_MISMATCH, filename, -1,
+						getTextBundle().format("ProdosDiskChecker.DirectoryEofMismatch", //$NON-NLS-1$
+						eof, blocks.length * Disk.BLOCK_SIZE));
+				}
+			} else if ((storageType == 1 && eof > SEEDLING_MAXIMUM)
+					|| (storageType == 2 && eof > SAPLING_MAXIMUM)) {
+				result.addProblem(DiskCheck.EOF_MISMATCH, filename, -1,
+					getTextBundle().format("ProdosDiskChecker.EofTooLarge", //$NON-NLS-1$
+					eof, storageType));
+			}
+			return new CheckedFile(disk.getOwnershipKey(entry), filename, entry, blocks);
+		}
+	}
+}
@@ -522,13 +522,17 @@ public class ProdosFileEntry extends ProdosCommonEntry implements FileEntry {
 	 * of guessing the appropriate filter.
 	 */
 	public FileFilter getSuggestedFilter() {
-		int filetype = getFiletypeByte();
-		int auxtype = getAuxiliaryType();
-		int filesize = getSize();
-		
+		return getSuggestedFilter(getFiletypeByte(), getAuxiliaryType(), getSize(), getFilename());
+	}
+
+	/**
+	 * Get the suggested FileFilter for a file with the given ProDOS filetype,
+	 * auxiliary type, size and name.
+	 */
+	public static FileFilter getSuggestedFilter(int filetype, int auxtype, int filesize, String filename) {
 		switch (filetype) {
 		case 0x04:		// TXT
-			if (getFilename().endsWith(".S")) { //$NON-NLS-1$
+			if (filename.endsWith(".S")) { //$NON-NLS-1$
 				return new AssemblySourceFileFilter();			
 			}
 			return new TextFileFilter();
@@ -21,13 +21,18 @@ package com.webcodepro.applecommander.storage.os.prodos;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Properties;
 
+import com.webcodepro.applecommander.storage.DeletedFileScanner;
 import com.webcodepro.applecommander.storage.DirectoryEntry;
+import com.webcodepro.applecommander.storage.DiskCheck;
 import com.webcodepro.applecommander.storage.DiskFullException;
+import com.webcodepro.applecommander.storage.DiskOwnershipMap;
+import com.webcodepro.applecommander.storage.DiskUsageSnapshot;
 import com.webcodepro.applecommander.storage.FileEntry;
 import com.webcodepro.applecommander.storage.FormattedDisk;
 import com.webcodepro.applecommander.storage.StorageBundle;
@@ -78,7 +83,7 @@ public class ProdosFormatDisk extends FormattedDisk {
 	/**
 	 * This class holds filetype mappings.
 	 */
-	private class ProdosFileType {
+	private static class ProdosFileType {
 		private byte type;
 		private String string;
 		private boolean addressRequired;
@@ -103,37 +108,6 @@ public class ProdosFormatDisk extends FormattedDisk {
 		}
 	}
 
-	/**
-	 * Use this inner interface for managing the disk usage data.
-	 * This offloads format-specific implementation to the implementing class.
-	 */
-	private class ProdosDiskUsage implements DiskUsage {
-		private int location = -1;
-		private transient byte[] data = null;
-		public boolean hasNext() {
-			return location == -1 || location < getVolumeHeader().getTotalBlocks() - 1;
-		}
-		public void next() {
-			location++;
-		}
-		/**
-		 * Get the free setting for the bitmap at the current location.
-		 */
-		public boolean isFree() {
-			if (location == -1) {
-				throw new IllegalArgumentException(StorageBundle.getInstance()
-						.get("ProdosFormatDisk.InvalidDimensionError")); //$NON-NLS-1$
-			}
-			if (data == null) {
-				data = readVolumeBitMap();
-			}
-			return isBlockFree(data, location);
-		}
-		public boolean isUsed() {
-			return !isFree();
-		}
-	}
-
 	/**
 	 * Constructor for ProdosFormatDisk.
 	 * @param filename
@@ -148,11 +122,18 @@ public class ProdosFormatDisk extends FormattedDisk {
 	 * Initialize all file types.
 	 */
 	protected void initialize() {
+		initializeFileTypes();
+	}
+
+	/**
+	 * Load the file types, if that has not been done yet.
+	 */
+	private static synchronized void initializeFileTypes() {
 		if (fileTypes != null) return;
 		
 		fileTypes = new ProdosFileType[256];
 		InputStream inputStream = 
-			getClass().getResourceAsStream("ProdosFileTypes.properties"); //$NON-NLS-1$
+			ProdosFormatDisk.class.getResourceAsStream("ProdosFileTypes.properties"); //$NON-NLS-1$
 		Properties properties = new Properties();
 		try {
 			properties.load(inputStream);
@@ -247,6 +228,7 @@ public class ProdosFormatDisk extends FormattedDisk {
 				blockCount++;
 				header.getProdosDirectoryEntry().setBlocksUsed(blockCount);
 				header.getProdosDirectoryEntry().setEofPosition(blockCount * BLOCK_SIZE);
+				updateOwnership(header.getProdosDirectoryEntry());
 			}
 			blockNumber = nextBlockNumber;
 		}
@@ -387,7 +369,203 @@ public class ProdosFormatDisk extends FormattedDisk {
 	 * Get the disk usage iterator.
 	 */
 	public DiskUsage getDiskUsage() {
-		return new ProdosDiskUsage();
+		return getUsageSnapshot().getDiskUsage();
+	}
+
+	/**
+	 * Get a snapshot of the volume bitmap.  The bitmap is read once and
+	 * converted a byte at a time - ProDOS stores block 0 in the high bit
+	 * of the first byte, while the snapshot is packed low bit first.
+	 */
+	public DiskUsageSnapshot getUsageSnapshot() {
+		int totalBlocks = volumeHeader.getTotalBlocks();
+		byte[] data = readVolumeBitMap();
+		long[] words = new long[(totalBlocks + 63) / 64];
+		int bytes = Math.min(data.length, words.length * 8);
+		for (int byt=0; byt<bytes; byt++) {
+			long bits = Integer.reverse(data[byt] & 0xff) >>> 24;
+			words[byt / 8] |= bits << ((byt % 8) * 8);
+		}
+		return new DiskUsageSnapshot(totalBlocks, null, words);
+	}
+
+	/**
+	 * Build the block ownership map.  The boot blocks, volume directory and
+	 * volume bitmap belong to the system; every other block is attributed to
+	 * the file or directory that points to it.
+	 */
+	protected DiskOwnershipMap buildOwnershipMap() {
+		int totalBlocks = volumeHeader.getTotalBlocks();
+		DiskOwnershipMap map = new DiskOwnershipMap(totalBlocks, null);
+		map.claimSystem(0);
+		map.claimSystem(1);
+		int[] directoryBlocks = getDirectoryBlocks(VOLUME_DIRECTORY_BLOCK);
+		for (int i=0; i<directoryBlocks.length; i++) {
+			map.claimSystem(directoryBlocks[i]);
+		}
+		int bitmapBlock = volumeHeader.getBitMapPointer();
+		int bitmapBlocks = (totalBlocks / 4096) + 1;
+		for (int i=0; i<bitmapBlocks; i++) {
+			map.claimSystem(bitmapBlock + i);
+		}
+		addOwnership(map, getFiles(), DiskOwnershipMap.NO_OWNER, new ArrayList<Integer>());
+		return map;
+	}
+
+	/**
+	 * Add the given files (and the contents of any subdirectories) to the
+	 * ownership map.  Subdirectories already visited are skipped so that
+	 * a damaged directory structure cannot loop forever.
+	 */
+	private void addOwnership(DiskOwnershipMap map, List<FileEntry> files, int parent,
+			List<Integer> visited) {
+		for (FileEntry file : files) {
+			ProdosFileEntry entry = (ProdosFileEntry) file;
+			int id = map.add(getOwnershipKey(entry), entry, getOwnedBlocks(entry));
+			map.setParent(id, parent);
+			if (entry instanceof ProdosDirectoryEntry) {
+				Integer keyPointer = Integer.valueOf(entry.getKeyPointer());
+				if (!visited.contains(keyPointer) && entry.getKeyPointer() < getBitmapLength()) {
+					visited.add(keyPointer);
+					addOwnership(map, ((ProdosDirectoryEntry)entry).getFiles(), id, visited);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Update the ownership map (if it has been built) after the blocks
+	 * used by a file have changed.  A file new to the map belongs to the
+	 * directory which owns the block holding its entry.
+	 */
+	protected void updateOwnership(ProdosFileEntry entry) {
+		DiskOwnershipMap map = getCachedOwnershipMap();
+		if (map != null) {
+			Integer key = getOwnershipKey(entry);
+			boolean added = map.getEntryId(key) == DiskOwnershipMap.NO_OWNER;
+			int id = map.update(key, entry, getOwnedBlocks(entry));
+			if (added) {
+				int parent = map.getOwner(entry.getFileEntryBlock());
+				if (parent >= 0 && parent != id && map.getFileEntry(parent).isDirectory()) {
+					map.setParent(id, parent);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The ownership key for a ProDOS entry is its position on disk.
+	 */
+	protected Integer getOwnershipKey(ProdosCommonEntry entry) {
+		return Integer.valueOf(entry.getFileEntryBlock() * BLOCK_SIZE + entry.getFileEntryOffset());
+	}
+
+	/**
+	 * Get all blocks used by the given file, in file order.  This includes
+	 * index blocks (and the extended key block for forked files) as well as
+	 * data blocks.  For a directory, this is the directory block chain.
+	 * Block numbers are returned as found - they are not validated against
+	 * the size of the volume, but index blocks outside of the volume are
+	 * not read.
+	 */
+	public int[] getOwnedBlocks(ProdosFileEntry entry) {
+		List<Integer> blocks = new ArrayList<>();
+		int keyPointer = entry.getKeyPointer();
+		if (entry.isDeleted() || keyPointer == 0) {
+			return new int[0];
+		}
+		if (entry.isDirectory()) {
+			return getDirectoryBlocks(keyPointer);
+		}
+		if (entry.isGEOSFile()) {
+			// A GEOS file allocates another block, pointed to by the aux bytes.
+			blocks.add(Integer.valueOf(entry.getAuxiliaryType()));
+		}
+		if (entry.isForkedFile()) {
+			blocks.add(Integer.valueOf(keyPointer));
+			if (keyPointer < getBitmapLength()) {
+				byte[] extendedKeyBlock = readBlock(keyPointer);
+				for (int fork=0; fork<0x200; fork+= 0x100) {
+					int storageType = AppleUtil.getUnsignedByte(extendedKeyBlock[fork]);
+					int forkKeyPointer = AppleUtil.getWordValue(extendedKeyBlock, fork+1);
+					addStorageBlocks(blocks, storageType, forkKeyPointer, false);
+				}
+			}
+		} else {
+			addStorageBlocks(blocks, entry.getStorageType(), keyPointer, entry.isGEOSFile());
+		}
+		return DiskOwnershipMap.toArray(blocks);
+	}
+
+	/**
+	 * Add the blocks used by a seedling (1), sapling (2) or tree (3) 
+	 * structure.
+	 */
+	private void addStorageBlocks(List<Integer> blocks, int storageType, int keyPointer, boolean isGEOS) {
+		if (keyPointer == 0) return;
+		blocks.add(Integer.valueOf(keyPointer));
+		if (storageType == 2) {
+			addIndexBlocks(blocks, keyPointer, false);
+		} else if (storageType == 3 && keyPointer < getBitmapLength()) {
+			byte[] masterIndexBlock = readBlock(keyPointer);
+			for (int i=0; i<0x100; i++) {
+				// GEOS uses records 0xfe and 0xff for space calculations, not pointers.
+				if (!isGEOS || i < 0xfe) {
+					int indexBlockNumber = AppleUtil.getWordValue(
+							masterIndexBlock[i], masterIndexBlock[i+0x100]);
+					if (indexBlockNumber > 0) {
+						blocks.add(Integer.valueOf(indexBlockNumber));
+						addIndexBlocks(blocks, indexBlockNumber, isGEOS);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add the data blocks referenced by the given index block.
+	 */
+	private void addIndexBlocks(List<Integer> blocks, int indexBlockNumber, boolean isGEOS) {
+		if (indexBlockNumber >= getBitmapLength()) return;
+		byte[] indexBlock = readBlock(indexBlockNumber);
+		for (int i=0; i<0x100; i++) {
+			if (!isGEOS || i < 0xfe) {
+				int blockNumber = AppleUtil.getWordValue(indexBlock[i], indexBlock[i+0x100]);
+				if (blockNumber > 0) blocks.add(Integer.valueOf(blockNumber));
+			}
+		}
+	}
+
+	/**
+	 * Follow a directory block chain starting at the given block.  The
+	 * chain is cut short if it loops back on itself or leaves the volume.
+	 */
+	protected int[] getDirectoryBlocks(int blockNumber) {
+		List<Integer> blocks = new ArrayList<>();
+		int totalBlocks = getBitmapLength();
+		while (blockNumber != 0 && blockNumber < totalBlocks
+				&& !blocks.contains(Integer.valueOf(blockNumber))) {
+			blocks.add(Integer.valueOf(blockNumber));
+			byte[] block = readBlock(blockNumber);
+			blockNumber = AppleUtil.getWordValue(block, NEXT_BLOCK_POINTER);
+		}
+		return DiskOwnershipMap.toArray(blocks);
+	}
+
+	/**
+	 * Check the consistency of this disk.
+	 * @see com.webcodepro.applecommander.storage.FormattedDisk#checkDisk(boolean)
+	 */
+	public DiskCheck checkDisk(boolean repair) {
+		return new ProdosDiskChecker(this).check(repair);
+	}
+
+	/**
+	 * Get a scanner for deleted files.
+	 * @see com.webcodepro.applecommander.storage.FormattedDisk#getDeletedFileScanner()
+	 */
+	public DeletedFileScanner getDeletedFileScanner() {
+		return new ProdosDeletedFileScanner(this);
 	}
 
 	/**
@@ -550,10 +728,77 @@ public class ProdosFormatDisk extends FormattedDisk {
 		return fileData;
 	}
 
+	/**
+	 * Write the data of a ProdosFileEntry to the stream a block at a time,
+	 * so that a large file is never held in memory.  Blocks which are not
+	 * allocated (in a sparse file) are written as zeros.
+	 * <p>
+	 * This is not quite what getFileData answers with: for a sparse tree
+	 * file, getFileData skips an index block which is not allocated, moving
+	 * the data after it down, where this writes zeros for it and keeps every
+	 * block at its offset.  A forked file (storage type $05) is not handled,
+	 * and throws IllegalArgumentException just as getFileData does.
+	 */
+	public void writeFileData(FileEntry fileEntry, OutputStream out) throws IOException {
+		if ( !(fileEntry instanceof ProdosFileEntry)) {
+			throw new IllegalArgumentException(textBundle.get("ProdosFormatDisk.MustHaveEntry")); //$NON-NLS-1$
+		}
+		ProdosFileEntry prodosEntry = (ProdosFileEntry) fileEntry;
+		int remaining = prodosEntry.getEofPosition();
+		if (prodosEntry.isSeedlingFile()) {
+			byte[] blockData = readBlock(prodosEntry.getKeyPointer());
+			out.write(blockData, 0, Math.min(remaining, blockData.length));
+		} else if (prodosEntry.isSaplingFile()) {
+			writeIndexBlockData(out, readBlock(prodosEntry.getKeyPointer()), remaining);
+		} else if (prodosEntry.isTreeFile()) {
+			byte[] masterIndexBlock = readBlock(prodosEntry.getKeyPointer());
+			for (int i=0; i<0x100 && remaining > 0; i++) {
+				int blockNumber = AppleUtil.getWordValue(masterIndexBlock[i], masterIndexBlock[i+0x100]);
+				byte[] indexBlock = (blockNumber > 0) ? readBlock(blockNumber) : new byte[BLOCK_SIZE];
+				remaining = writeIndexBlockData(out, indexBlock, remaining);
+			}
+		} else {
+			throw new IllegalArgumentException(textBundle.get("ProdosFormatDisk.UnknownStorageType")); //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * The data of a ProdosFileEntry is exactly its EOF.
+	 */
+	public long getFileDataLength(FileEntry fileEntry) {
+		return ((ProdosFileEntry) fileEntry).getEofPosition();
+	}
+
+	/**
+	 * Write the blocks listed in an index block, up to remaining bytes.
+	 * Answers with the number of bytes still to be written.
+	 */
+	protected int writeIndexBlockData(OutputStream out, byte[] indexBlock, int remaining) throws IOException {
+		byte[] emptyBlock = null;
+		for (int i=0; i<0x100 && remaining > 0; i++) {
+			int blockNumber = AppleUtil.getWordValue(indexBlock[i], indexBlock[i+0x100]);
+			byte[] blockData;
+			if (blockNumber != 0) {
+				blockData = readBlock(blockNumber);
+			} else {
+				if (emptyBlock == null) emptyBlock = new byte[BLOCK_SIZE];
+				blockData = emptyBlock;
+			}
+			int length = Math.min(remaining, blockData.length);
+			out.write(blockData, 0, length);
+			remaining-= length;
+		}
+		return remaining;
+	}
+
 	/**
 	 * Free blocks used by a ProdosFileEntry.
 	 */
 	protected void freeBlocks(ProdosFileEntry prodosFileEntry) {
+		DiskOwnershipMap map = getCachedOwnershipMap();
+		if (map != null) {
+			map.release(getOwnershipKey(prodosFileEntry));
+		}
 		byte[] bitmap = readVolumeBitMap();
 		int block = prodosFileEntry.getKeyPointer();
 		if (block == 0) return;	// new entry
@@ -633,13 +878,7 @@ public class ProdosFormatDisk extends FormattedDisk {
 			// compute free space and see if the data will fit!
 			int numberOfDataBlocks = (fileData.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
 			if (fileData.length == 0) numberOfDataBlocks = 1;
-			int numberOfBlocks = numberOfDataBlocks;
-			if (numberOfBlocks > 1) {
-				numberOfBlocks+= ((numberOfDataBlocks-1) / 256) + 1;	// that's 128K
-				if (numberOfDataBlocks > 256) {
-					numberOfBlocks++;
-				}
-			}
+			int numberOfBlocks = getBlocksNeeded(fileData.length);
 			if (numberOfBlocks > getFreeBlocks() + fileEntry.getBlocksUsed()) {
 				throw new DiskFullException(textBundle.
 						format("ProdosFormatDisk.NotEnoughSpaceOnDiskError", //$NON-NLS-1$
@@ -719,6 +958,7 @@ public class ProdosFormatDisk extends FormattedDisk {
 			fileEntry.setLastModificationDate(new Date());
 			writeVolumeBitMap(bitmap);
 		}
+		updateOwnership(fileEntry);
 	}
 	
 	/**
@@ -896,8 +1136,162 @@ public class ProdosFormatDisk extends FormattedDisk {
 		fileEntry.setEofPosition(dataLength+resourceLength);
 		fileEntry.setLastModificationDate(new Date());
 		writeVolumeBitMap(bitmap);
+		updateOwnership(fileEntry);
 	}
 	
+	/**
+	 * Answer with the number of blocks a (non-GEOS) fork of the given length
+	 * uses, including its index blocks.
+	 */
+	public static int getBlocksNeeded(long length) {
+		int numberOfDataBlocks = (int) ((length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+		if (numberOfDataBlocks == 0) numberOfDataBlocks = 1;
+		int numberOfBlocks = numberOfDataBlocks;
+		if (numberOfDataBlocks > 1) {
+			numberOfBlocks+= ((numberOfDataBlocks-1) / 256) + 1;
+			if (numberOfDataBlocks > 256) {
+				numberOfBlocks++;
+			}
+		}
+		return numberOfBlocks;
+	}
+
+	/**
+	 * Lay out a file of the given length in a run of contiguous blocks: the
+	 * master index block (tree files), then the index blocks (sapling and
+	 * tree files), then the data blocks.  The index blocks are written and
+	 * the entry is updated, but the data blocks are left for the caller to
+	 * fill in; they are in order, starting with the block returned.
+	 */
+	public int allocateContiguousFile(ProdosFileEntry fileEntry, int length)
+		throws DiskFullException {
+
+		int numberOfBlocks = getBlocksNeeded(length);
+		freeBlocks(fileEntry);
+		byte[] bitmap = readVolumeBitMap();
+		int firstBlock = findFreeBlocks(bitmap, numberOfBlocks);
+		int dataBlock = layOutContiguousFile(bitmap, fileEntry, length, firstBlock);
+		writeVolumeBitMap(bitmap);
+		updateOwnership(fileEntry);
+		return dataBlock;
+	}
+
+	/**
+	 * Set the data of many files at once.  The space needed by all of them
+	 * is checked first, counting the blocks the files already have, which
+	 * are then freed.  Each file is then laid out in a run of
+	 * contiguous blocks (as allocateContiguousFile does), each run following
+	 * on from the one before, and the Volume Bit Map is read and written
+	 * just once.  A file which does not fit in any run of free blocks is
+	 * spread out over the disk by setFileData.
+	 */
+	public void setFileData(List<ProdosFileEntry> fileEntries, List<byte[]> fileData)
+		throws DiskFullException {
+
+		int numberOfBlocks = 0;
+		for (byte[] data : fileData) {
+			numberOfBlocks+= getBlocksNeeded(data.length);
+		}
+		int freeBlocks = getFreeBlocks();
+		for (ProdosFileEntry fileEntry : fileEntries) {
+			if (fileEntry.getKeyPointer() != 0) freeBlocks+= fileEntry.getBlocksUsed();
+		}
+		if (numberOfBlocks > freeBlocks) {
+			throw new DiskFullException(textBundle.
+					format("ProdosFormatDisk.NotEnoughSpaceOnDiskError", //$NON-NLS-1$
+							numberOfBlocks, freeBlocks));
+		}
+		for (ProdosFileEntry fileEntry : fileEntries) {
+			if (fileEntry.getKeyPointer() != 0) {
+				freeBlocks(fileEntry);
+				fileEntry.setKeyPointer(0);
+			}
+		}
+		byte[] bitmap = readVolumeBitMap();
+		List<Integer> scattered = new ArrayList<>();
+		int nextBlock = 1;
+		for (int i=0; i<fileEntries.size(); i++) {
+			ProdosFileEntry fileEntry = fileEntries.get(i);
+			byte[] data = fileData.get(i);
+			int count = getBlocksNeeded(data.length);
+			int firstBlock = findFreeRun(bitmap, count, nextBlock);
+			if (firstBlock < 0 && nextBlock > 1) {
+				firstBlock = findFreeRun(bitmap, count, 1);
+			}
+			if (firstBlock < 0) {
+				scattered.add(i);
+				continue;
+			}
+			int dataBlock = layOutContiguousFile(bitmap, fileEntry, data.length, firstBlock);
+			byte[] blockData = new byte[BLOCK_SIZE];
+			if (data.length == 0) {
+				writeBlock(dataBlock, blockData);
+			}
+			for (int offset=0; offset<data.length; offset+= BLOCK_SIZE) {
+				int length = Math.min(BLOCK_SIZE, data.length - offset);
+				if (length < BLOCK_SIZE) blockData = new byte[BLOCK_SIZE];
+				System.arraycopy(data, offset, blockData, 0, length);
+				writeBlock(dataBlock + offset / BLOCK_SIZE, blockData);
+			}
+			nextBlock = firstBlock + count;
+		}
+		writeVolumeBitMap(bitmap);
+		for (int i=0; i<fileEntries.size(); i++) {
+			if (!scattered.contains(i)) updateOwnership(fileEntries.get(i));
+		}
+		for (int i : scattered) {
+			setFileData(fileEntries.get(i), fileData.get(i));
+		}
+	}
+
+	/**
+	 * Mark the run of blocks starting at firstBlock as used in the bitmap,
+	 * write the index blocks and update the entry.  Answers with the first
+	 * data block.
+	 */
+	protected int layOutContiguousFile(byte[] bitmap, ProdosFileEntry fileEntry, int length,
+		int firstBlock) {
+
+		int numberOfBlocks = getBlocksNeeded(length);
+		for (int i=0; i<numberOfBlocks; i++) {
+			setBlockUsed(bitmap, firstBlock + i);
+		}
+		int numberOfDataBlocks = Math.max(1, (length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+		int dataBlock = firstBlock + numberOfBlocks - numberOfDataBlocks;
+		if (numberOfDataBlocks == 1) {
+			fileEntry.setKeyPointer(dataBlock);
+			fileEntry.setSeedlingFile();
+		} else {
+			int indexBlockNumber = firstBlock;
+			if (numberOfDataBlocks > 256) {
+				byte[] masterIndexBlockData = new byte[BLOCK_SIZE];
+				for (int i=0; i<dataBlock-firstBlock-1; i++) {
+					masterIndexBlockData[i] = (byte)((firstBlock + 1 + i) % 256);
+					masterIndexBlockData[i + 0x100] = (byte)((firstBlock + 1 + i) / 256);
+				}
+				writeBlock(firstBlock, masterIndexBlockData);
+				fileEntry.setKeyPointer(firstBlock);
+				fileEntry.setTreeFile();
+				indexBlockNumber++;
+			} else {
+				fileEntry.setKeyPointer(firstBlock);
+				fileEntry.setSaplingFile();
+			}
+			for (int offset=0; offset<numberOfDataBlocks; offset+= 256) {
+				byte[] indexBlockData = new byte[BLOCK_SIZE];
+				for (int i=0; i<256 && offset+i<numberOfDataBlocks; i++) {
+					indexBlockData[i] = (byte)((dataBlock + offset + i) % 256);
+					indexBlockData[i + 0x100] = (byte)((dataBlock + offset + i) / 256);
+				}
+				writeBlock(indexBlockNumber++, indexBlockData);
+			}
+		}
+		fileEntry.setBlocksUsed(numberOfBlocks);
+		fileEntry.setEofPosition(length);
+		fileEntry.setLastModificationDate(new Date());
+		return dataBlock;
+	}
+
 	/**
 	 * Set the data associated with the specified ProdosFileEntry into sectors
 	 * on the disk.  Take GEOS file structures into account.
@@ -1064,6 +1458,41 @@ public class ProdosFormatDisk extends FormattedDisk {
 			textBundle.get("ProdosFormatDisk.NoFreeBlockAvailableError")); //$NON-NLS-1$
 	}
 	
+	/**
+	 * Locate a run of free blocks in the Volume Bitmap.  Bitmap bytes with
+	 * no free blocks are skipped over whole, since a disk being filled up
+	 * has a long run of them at the start.
+	 */
+	protected int findFreeBlocks(byte[] volumeBitmap, int count) throws DiskFullException {
+		int block = findFreeRun(volumeBitmap, count, 1);
+		if (block < 0) {
+			throw new DiskFullException(textBundle.
+					format("ProdosFormatDisk.NoContiguousBlocksError", count)); //$NON-NLS-1$
+		}
+		return block;
+	}
+
+	/**
+	 * Locate a run of free blocks at or after the given block, answering
+	 * -1 if there is none.
+	 */
+	protected int findFreeRun(byte[] volumeBitmap, int count, int start) {
+		int blocksOnDisk = Math.min(getBitmapLength(), getPhysicalSize() / BLOCK_SIZE);
+		int run = 0;
+		for (int block = start; block < blocksOnDisk; block++) {
+			if ((block & 7) == 0 && volumeBitmap[block >> 3] == 0) {
+				run = 0;
+				block+= 7;
+				continue;
+			}
+			run = isBlockFree(volumeBitmap, block) ? run + 1 : 0;
+			if (run == count) {
+				return block - count + 1;
+			}
+		}
+		return -1;
+	}
+
 	/**
 	 * Read the Volume Bit Map.
 	 */
@@ -1140,6 +1569,7 @@ public class ProdosFormatDisk extends FormattedDisk {
 	 * @see com.webcodepro.applecommander.storage.FormattedDisk#format()
 	 */
 	public void format() {
+		resetOwnershipMap();
 		getImageOrder().format();
 		writeBootCode();
 		String volumeName = volumeHeader.getVolumeName();
@@ -1238,6 +1668,15 @@ public class ProdosFormatDisk extends FormattedDisk {
 		return prodostype.getString();
 	}
 
+	/**
+	 * Return the name of a ProDOS filetype without needing a disk; used
+	 * where ProDOS filetypes turn up outside of a ProDOS volume.
+	 */
+	public static String getFiletypeName(int filetype) {
+		initializeFileTypes();
+		return fileTypes[filetype & 0xff].getString();
+	}
+
 	/**
 	 * Get the numerical filetype.
 	 */
@@ -1327,6 +1766,13 @@ public class ProdosFormatDisk extends FormattedDisk {
 		return volumeHeader;
 	}
 
+	/**
+	 * Set the creation date of the volume.
+	 */
+	public void setCreationDate(Date date) {
+		volumeHeader.setCreationDate(date);
+	}
+
 	/**
 	 * Create a new DirectoryEntry.
 	 * @see com.webcodepro.applecommander.storage.DirectoryEntry#createDirectory()
@@ -1385,6 +1831,7 @@ public class ProdosFormatDisk extends FormattedDisk {
 					fileEntry.setFilename(name);
 					fileEntry.setFiletype(0x0f); // Filetype = subdirectory
 					directory.incrementFileCount();
+					updateOwnership(fileEntry);
 					return fileEntry;
 				}
 				offset+= ProdosCommonEntry.ENTRY_LENGTH;
@@ -1407,6 +1854,7 @@ public class ProdosFormatDisk extends FormattedDisk {
 				blockCount++;
 				header.getProdosDirectoryEntry().setBlocksUsed(blockCount);
 				header.getProdosDirectoryEntry().setEofPosition(blockCount * BLOCK_SIZE);
+				updateOwnership(header.getProdosDirectoryEntry());
 			}
 			blockNumber = nextBlockNumber;
 		}
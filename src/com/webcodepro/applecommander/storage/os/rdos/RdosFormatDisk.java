@@ -20,12 +20,12 @@
 package com.webcodepro.applecommander.storage.os.rdos;
 
 import java.util.ArrayList;
-import java.util.BitSet;
 import java.util.Iterator;
 import java.util.List;
 
 import com.webcodepro.applecommander.storage.DirectoryEntry;
 import com.webcodepro.applecommander.storage.DiskFullException;
+import com.webcodepro.applecommander.storage.DiskUsageSnapshot;
 import com.webcodepro.applecommander.storage.FileEntry;
 import com.webcodepro.applecommander.storage.FormattedDisk;
 import com.webcodepro.applecommander.storage.StorageBundle;
@@ -75,56 +75,6 @@ public class RdosFormatDisk extends FormattedDisk {
 	 */
 	public static final String[] filetypes = { "B", "A", "T" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
 
-	/**
-	 * Use this inner interface for managing the disk usage data.
-	 * This offloads format-specific implementation to the implementing class.
-	 * A BitSet is used to track all blocks, as RDOS disks do not have a
-	 * bitmap stored on the disk. This is safe since we know the number of blocks
-	 * that exist. (BitSet length is of last set bit - unset bits at the end are
-	 * "lost".)
-	 * <p>
-	 * Note one really unique point about RDOS - the entire disk is mapped out
-	 * by the file entries.  There are no blocks marked off, by default, by the
-	 * operating system.  However, the first file (RDOS itself) starts on block
-	 * 0 (track 0, sector 0) and runs for 26 blocks - which covers all of track 0
-	 * (the operating system) and the 10 sectors used for file entries.
-	 */
-	private class RdosDiskUsage implements DiskUsage {
-		private int location = -1;
-		private BitSet bitmap = null;
-		public boolean hasNext() {
-			return location == -1 || location < BLOCKS_ON_DISK - 1;
-		}
-		public void next() {
-			if (bitmap == null) {
-				bitmap = new BitSet(BLOCKS_ON_DISK);
-				// mark all blocks as unused
-				for (int b=0; b<BLOCKS_ON_DISK; b++) {
-					bitmap.set(b);
-				}
-				// for each file, mark the blocks used
-				Iterator files = getFiles().iterator();
-				while (files.hasNext()) {
-					RdosFileEntry fileEntry = (RdosFileEntry) files.next();
-					if (!fileEntry.isDeleted()) {
-						for (int b=0; b<fileEntry.getSizeInBlocks(); b++) {
-							bitmap.clear(fileEntry.getStartingBlock()+b);
-						}
-					}
-				}
-				location = 0;
-			} else {
-				location++;
-			}
-		}
-		public boolean isFree() {
-			return bitmap.get(location);	// true = free
-		}
-		public boolean isUsed() {
-			return !bitmap.get(location);	// false = used
-		}
-	}
-	
 	/**
 	 * Constructor for RdosFormatDisk.
 	 */
@@ -284,7 +234,32 @@ public class RdosFormatDisk extends FormattedDisk {
 	 * Get the disk usage iterator.
 	 */
 	public DiskUsage getDiskUsage() {
-		return new RdosDiskUsage();
+		return getUsageSnapshot().getDiskUsage();
+	}
+
+	/**
+	 * Get a snapshot of the disk usage.  RDOS disks do not have a bitmap
+	 * stored on the disk, so the usage is built from the file entries.
+	 * <p>
+	 * Note one really unique point about RDOS - the entire disk is mapped out
+	 * by the file entries.  There are no blocks marked off, by default, by the
+	 * operating system.  However, the first file (RDOS itself) starts on block
+	 * 0 (track 0, sector 0) and runs for 26 blocks - which covers all of track 0
+	 * (the operating system) and the 10 sectors used for file entries.
+	 */
+	public DiskUsageSnapshot getUsageSnapshot() {
+		DiskUsageSnapshot snapshot = new DiskUsageSnapshot(BLOCKS_ON_DISK, null);
+		snapshot.setFree(0, BLOCKS_ON_DISK);
+		Iterator<FileEntry> files = getFiles().iterator();
+		while (files.hasNext()) {
+			RdosFileEntry fileEntry = (RdosFileEntry) files.next();
+			if (!fileEntry.isDeleted()) {
+				int start = Math.min(fileEntry.getStartingBlock(), BLOCKS_ON_DISK);
+				int end = Math.min(start + fileEntry.getSizeInBlocks(), BLOCKS_ON_DISK);
+				snapshot.setUsed(start, end);
+			}
+		}
+		return snapshot;
 	}
 
 	/**
@@ -19,6 +19,10 @@
  */
 package com.webcodepro.applecommander.storage.physical;
 
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
 /**
  * Manages the layout of the physical disk.  This hides implementation details, 
  * such as if the disk is in 2IMG order.
@@ -26,6 +30,10 @@ package com.webcodepro.applecommander.storage.physical;
  * @author Rob Greene (RobGreene@users.sourceforge.net)
  */
 public class ByteArrayImageLayout {
+	/**
+	 * Changes are tracked in pieces of this many bytes.
+	 */
+	public static final int DIRTY_UNIT_SIZE = 512;
 	/**
 	 * This is the physical copy of the disk image which a particular
 	 * implementation of ImageOrder will interpret.
@@ -35,6 +43,14 @@ public class ByteArrayImageLayout {
 	 * Indicates if the disk image has changed.
 	 */
 	private boolean changed;
+	/**
+	 * The pieces of the disk image written since it was last saved.
+	 */
+	private BitSet dirtyUnits = new BitSet();
+	/**
+	 * Indicates that the whole disk image must be saved.
+	 */
+	private boolean allDirty;
 	
 	/**
 	 * Construct a ByteArrayImageLayout.
@@ -57,6 +73,7 @@ public class ByteArrayImageLayout {
 	public ByteArrayImageLayout(int size) {
 		diskImage = new byte[size];
 		changed = true;
+		allDirty = true;
 	}
 
 	/**
@@ -72,6 +89,7 @@ public class ByteArrayImageLayout {
 	public void setDiskImage(byte[] diskImage) {
 		this.diskImage = diskImage;
 		changed = true;
+		allDirty = true;
 	}
 
 	/**
@@ -96,6 +114,10 @@ public class ByteArrayImageLayout {
 	public void writeBytes(int start, byte[] bytes) {
 		changed = true;
 		System.arraycopy(bytes, 0, diskImage, start, bytes.length);
+		if (bytes.length > 0) {
+			dirtyUnits.set(start / DIRTY_UNIT_SIZE,
+				(start + bytes.length - 1) / DIRTY_UNIT_SIZE + 1);
+		}
 	}
 
 	/**
@@ -111,5 +133,37 @@ public class ByteArrayImageLayout {
 	 */
 	public void setChanged(boolean changed) {
 		this.changed = changed;
+		if (!changed) {
+			clearDirtyRanges();
+		}
+	}
+
+	/**
+	 * Answer with the ranges of the disk image written since it was last
+	 * saved, as { start, length } pairs in order.  Answers null when the
+	 * whole image must be written, such as after it was replaced.
+	 */
+	public List<int[]> getDirtyRanges() {
+		if (allDirty) {
+			return null;
+		}
+		List<int[]> ranges = new ArrayList<int[]>();
+		int unit = dirtyUnits.nextSetBit(0);
+		while (unit >= 0) {
+			int end = dirtyUnits.nextClearBit(unit);
+			int start = unit * DIRTY_UNIT_SIZE;
+			int length = Math.min(end * DIRTY_UNIT_SIZE, diskImage.length) - start;
+			ranges.add(new int[] { start, length });
+			unit = dirtyUnits.nextSetBit(end);
+		}
+		return ranges;
+	}
+
+	/**
+	 * Forget which ranges were written; the disk image now matches its file.
+	 */
+	public void clearDirtyRanges() {
+		dirtyUnits.clear();
+		allDirty = false;
 	}
 }
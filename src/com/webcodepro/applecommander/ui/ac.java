@@ -21,34 +21,87 @@
  */
 package com.webcodepro.applecommander.ui;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
+import com.webcodepro.applecommander.storage.CatalogCache;
+import com.webcodepro.applecommander.storage.DeletedFileScanner;
 import com.webcodepro.applecommander.storage.DirectoryEntry;
 import com.webcodepro.applecommander.storage.Disk;
+import com.webcodepro.applecommander.storage.DiskCheck;
 import com.webcodepro.applecommander.storage.DiskFullException;
 import com.webcodepro.applecommander.storage.FileEntry;
 import com.webcodepro.applecommander.storage.FileFilter;
 import com.webcodepro.applecommander.storage.FormattedDisk;
 import com.webcodepro.applecommander.storage.FormattedDisk.DiskInformation;
+import com.webcodepro.applecommander.storage.FragmentationReport;
+import com.webcodepro.applecommander.storage.RecoveryCandidate;
+import com.webcodepro.applecommander.storage.SearchIndex;
+import com.webcodepro.applecommander.storage.SyncState;
 import com.webcodepro.applecommander.storage.filters.BinaryFileFilter;
 import com.webcodepro.applecommander.storage.filters.HexDumpFileFilter;
 import com.webcodepro.applecommander.storage.os.dos33.DosFormatDisk;
+import com.webcodepro.applecommander.storage.os.nufx.NufxFileEntry;
+import com.webcodepro.applecommander.storage.os.nufx.NufxFormatDisk;
+import com.webcodepro.applecommander.storage.os.pascal.PascalFileEntry;
 import com.webcodepro.applecommander.storage.os.pascal.PascalFormatDisk;
+import com.webcodepro.applecommander.storage.os.prodos.ProdosDirectoryEntry;
+import com.webcodepro.applecommander.storage.os.prodos.ProdosFileEntry;
 import com.webcodepro.applecommander.storage.os.prodos.ProdosFormatDisk;
 import com.webcodepro.applecommander.storage.physical.ByteArrayImageLayout;
 import com.webcodepro.applecommander.storage.physical.DosOrder;
 import com.webcodepro.applecommander.storage.physical.ImageOrder;
 import com.webcodepro.applecommander.storage.physical.ProdosOrder;
 import com.webcodepro.applecommander.util.AppleUtil;
+import com.webcodepro.applecommander.util.JsonReader;
+import com.webcodepro.applecommander.util.TarInputStream;
+import com.webcodepro.applecommander.util.TarOutputStream;
 import com.webcodepro.applecommander.util.TextBundle;
 
 /**
@@ -64,10 +117,24 @@ import com.webcodepro.applecommander.util.TextBundle;
  * -e  &lt;imagename&gt; &lt;filename&gt; [&lt;output&gt;] export file from image to stdout
  *     or to an output file. 
  * -x  &lt;imagename&gt; [&lt;directory&gt;] extract all files from image to directory.
+ * -xr &lt;imagename&gt; [&lt;directory&gt;] extract the raw data of all files from image
+ *     to directory.
+ * -xz &lt;imagename&gt; &lt;zipfile&gt; write all files from image into one zip file
+ *     ("-" for stdout), keeping the directory tree.  -xzr writes raw data.
+ * -xt &lt;imagename&gt; &lt;tarfile&gt; write all files from image into one tar file
+ *     ("-" for stdout), keeping the directory tree.  -xtr writes raw data.
  * -g  &lt;imagename&gt; &lt;filename&gt; [&lt;output&gt;] get raw file from image to stdout
  *     or to an output file. 
  * -p  &lt;imagename&gt; &lt;filename&gt; &lt;type&gt; [[$|0x]&lt;addr&gt;] put stdin
  *     in filename on image, using file type and address [0x2000].
+ * -import &lt;imagename&gt; &lt;directory|zipfile|tarfile&gt; copy a host directory
+ *         tree or archive onto a ProDOS image, making subdirectories as
+ *         needed.  Types come from the extension or a "#tttaaaa" suffix.
+ * -sync &lt;directory&gt; &lt;imagename&gt; bring a ProDOS image up to date with a host
+ *       directory, writing only new or changed files and deleting those
+ *       removed since the last sync.
+ * -build &lt;manifest&gt; create the disk images described by a JSON manifest,
+ *        laying out their files in manifest order with the dates given.
  * -d  &lt;imagename&gt; &lt;filename&gt; delete file from image.
  * -k  &lt;imagename&gt; &lt;filename&gt; lock file on image.
  * -u  &lt;imagename&gt; &lt;filename&gt; unlock file on image.
@@ -82,64 +149,90 @@ import com.webcodepro.applecommander.util.TextBundle;
  * -pas800 &lt;imagename&gt; &lt;volname&gt; create an 800K Pascal image.
  * -convert &lt;filename&gt; &lt;imagename&gt; uncompress a ShrinkIt file or disk image
  *           or convert a DiskCopy 4.2 image into a ProDOS disk image.
+ * -check &lt;imagename&gt; [&lt;imagename&gt;] check the consistency of image(s).
+ * -repair &lt;imagename&gt; rebuild the bitmap of an image when it is the only
+ *         problem found (ProDOS or DOS 3.3).
+ * -frag &lt;imagename&gt; [&lt;imagename&gt;] report fragmentation of image(s) as
+ *       tab-separated volume and file lines.
+ * -deleted &lt;imagename&gt; [&lt;imagename&gt;] list deleted files which may be
+ *          recovered (ProDOS or DOS 3.3).
+ * -undelete &lt;imagename&gt; &lt;filename&gt; [&lt;targetimage&gt;] restore a deleted
+ *           file in place, or copy what remains of it to another image.
+ * An image within a zip file is named &lt;zipfile&gt;!/&lt;entry&gt;; a zip file given
+ * to -i, -ls, -l, -ll, -check, -frag or -deleted stands for all of its images.
+ * -script &lt;scriptfile&gt; run the commands in scriptfile, one per line, keeping
+ *         images open between commands and saving each changed image once
+ *         at the end.  A command may end with "&lt; filename" to read its
+ *         input from that file.
+ * -       run a script read from stdin.
+ * -j &lt;jobs&gt; &lt;command&gt; run -i, -ls, -l, -ll or -scan reading that many images
+ *          at once; the output is still in the order given.
+ * -scan &lt;directory&gt; [&lt;glob&gt;] find the disk images under directory and list
+ *       each volume as a tab-separated line (path, order, format, name,
+ *       files, free, used, status).
+ * -cache &lt;catalog&gt; &lt;command&gt; run -i, -ls, -l, -ll or -scan answering from the
+ *        catalog file, and only reading images which are new or have changed.
+ * -index &lt;indexfile&gt; &lt;imagename|directory&gt; [...] add the files on each image to
+ *        the search index, reading only images which are new or have changed.
+ * -search &lt;indexfile&gt; &lt;term&gt; [&lt;term&gt;] list the files matching every term as
+ *         tab-separated lines (image, path, type, aux, address, size).  A term
+ *         is a word in the text of a file (word* for a prefix), type:BIN,
+ *         name:HELLO*, or aux:, addr: or size: followed by an optional
+ *         &lt;, &lt;=, &gt; or &gt;= and a number such as $0800.
  * </pre>
  * 
  * @author John B. Matthews
  */
 public class ac {
 	private static TextBundle textBundle = UiBundle.getInstance();
+	/** The images opened by a script, by name; null unless a script is running. */
+	private static Map<String,Disk> session;
+	/** The images changed by a script, by filename, to be saved when it ends. */
+	private static Map<String,Disk> changedDisks;
+	/** The formats found on each image opened by a script, so they are found once. */
+	private static Map<Disk,FormattedDisk[]> sessionFormats;
+	/** The images opened or created by the script command now running. */
+	private static Set<Disk> commandDisks;
+	/** The number of images read at once by -i, -ls, -l, -ll and -scan. */
+	static int jobs = Runtime.getRuntime().availableProcessors();
+	/** How many finished reports may wait, per job, behind one still running. */
+	private static final int PENDING_REPORTS_PER_JOB = 4;
+	/** Groups of files extracted by one task of -x before it is split up. */
+	private static final int FILES_PER_TASK = 4;
+	/** The buffer used for each file written by -x. */
+	private static final int EXTRACT_BUFFER_SIZE = 65536;
+	/** How much file data -import reads before it is written to the image. */
+	private static final int IMPORT_BATCH_SIZE = 4 * 1024 * 1024;
+	/**
+	 * The zip extra field written by -xz for a ProDOS file: the header id,
+	 * a length of 3, the filetype byte and the auxiliary type word.
+	 */
+	static final int PRODOS_EXTRA_FIELD = 0x5043;	// "CP"
+	/** How often -x reports its progress, in milliseconds. */
+	private static final long PROGRESS_INTERVAL = 1000;
+	/** The catalog given with -cache, or null. */
+	private static CatalogCache catalogCache;
 
 	public static void main(String[] args) {
 		try {
 			if (args.length == 0) {
 				help();
-			} else if ("-i".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
-				getDiskInfo(args);
-			} else if ("-ls".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
-				showDirectory(args, FormattedDisk.FILE_DISPLAY_STANDARD);
-			} else if ("-l".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
-				showDirectory(args, FormattedDisk.FILE_DISPLAY_NATIVE);
-			} else if ("-ll".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
-				showDirectory(args, FormattedDisk.FILE_DISPLAY_DETAIL);
-			} else if ("-e".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
-				getFile(args[1], args[2], true,
-					(args.length > 3 ? new PrintStream(new FileOutputStream(args[3])) : System.out));
-			} else if ("-x".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
-				getFiles(args[1], (args.length > 2 ? args[2] : ""));
-			} else if ("-g".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
-				getFile(args[1], args[2], false,
-					(args.length > 3 ? new PrintStream(new FileOutputStream(args[3])) : System.out));
-			} else if ("-p".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
-				putFile(args[1], new Name(args[2]), args[3],
-					(args.length > 4 ? args[4] : "0x2000"));
-			} else if ("-d".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
-				deleteFile(args[1], args[2]);
-			} else if ("-k".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
-				setFileLocked(args[1], args[2], true);
-			} else if ("-u".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
-				setFileLocked(args[1], args[2], false);
-			} else if ("-n".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
-				setDiskName(args[1], args[2]);
-			} else if ("-cc65".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
-				putCC65(args[1], new Name(args[2]), args[3]);
-			} else if ("-geos".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
-				putGEOS(args[1]);
-			} else if ("-dos140".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
-				createDosDisk(args[1], Disk.APPLE_140KB_DISK);
-			} else if ("-pas140".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
-				createPasDisk(args[1], args[2], Disk.APPLE_140KB_DISK);
-			} else if ("-pas800".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
-				createPasDisk(args[1], args[2], Disk.APPLE_800KB_DISK);
-			} else if ("-pro140".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
-				createProDisk(args[1], args[2], Disk.APPLE_140KB_DISK);
-			} else if ("-pro800".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
-				createProDisk(args[1], args[2], Disk.APPLE_800KB_DISK);
-			} else if ("-convert".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
-				if (args.length > 3)
-					convert(args[1], args[2], Integer.parseInt(args[3]));
-				else
-					convert(args[1], args[2]);
-			} else {
+			} else if ("-".equals(args[0])) { //$NON-NLS-1$
+				if (!runScript(System.in)) {
+					System.exit(1);
+				}
+			} else if ("-script".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
+				boolean success;
+				InputStream input = new FileInputStream(args[1]);
+				try {
+					success = runScript(input);
+				} finally {
+					input.close();
+				}
+				if (!success) {
+					System.exit(1);
+				}
+			} else if (!execute(args)) {
 				help();
 			}
 		} catch (Exception ex) {
@@ -147,9 +240,322 @@ public class ac {
 				ex.getLocalizedMessage()));
 			ex.printStackTrace();
 			help();
+			if (args.length > 0 && ("-".equals(args[0]) //$NON-NLS-1$
+					|| "-script".equalsIgnoreCase(args[0]))) { //$NON-NLS-1$
+				System.exit(1);
+			}
+		}
+	}
+
+	/**
+	 * Run one command.  Answers false if the command is not recognized.
+	 */
+	static boolean execute(String[] args) throws Exception {
+		if ("-j".equalsIgnoreCase(args[0]) && args.length > 2) { //$NON-NLS-1$
+			int oldJobs = jobs;
+			jobs = Math.max(1, Integer.parseInt(args[1]));
+			try {
+				return execute(Arrays.copyOfRange(args, 2, args.length));
+			} finally {
+				jobs = oldJobs;
+			}
+		} else if ("-cache".equalsIgnoreCase(args[0]) && args.length > 2) { //$NON-NLS-1$
+			catalogCache = new CatalogCache(new File(args[1]));
+			try {
+				return execute(Arrays.copyOfRange(args, 2, args.length));
+			} finally {
+				catalogCache.close();
+				catalogCache = null;
+			}
+		} else if ("-i".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
+			getDiskInfo(expandImageNames(args));
+		} else if ("-ls".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
+			showDirectory(expandImageNames(args), FormattedDisk.FILE_DISPLAY_STANDARD);
+		} else if ("-l".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
+			showDirectory(expandImageNames(args), FormattedDisk.FILE_DISPLAY_NATIVE);
+		} else if ("-ll".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
+			showDirectory(expandImageNames(args), FormattedDisk.FILE_DISPLAY_DETAIL);
+		} else if ("-e".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
+			getFile(args[1], args[2], true,
+				(args.length > 3 ? new PrintStream(new FileOutputStream(args[3])) : System.out));
+		} else if ("-x".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
+			getFiles(args[1], (args.length > 2 ? args[2] : ""), true);
+		} else if ("-xr".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
+			getFiles(args[1], (args.length > 2 ? args[2] : ""), false);
+		} else if ("-xz".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
+			archiveFiles(args[1], args[2], true, false);
+		} else if ("-xzr".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
+			archiveFiles(args[1], args[2], false, false);
+		} else if ("-xt".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
+			archiveFiles(args[1], args[2], true, true);
+		} else if ("-xtr".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
+			archiveFiles(args[1], args[2], false, true);
+		} else if ("-g".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
+			getFile(args[1], args[2], false,
+				(args.length > 3 ? new PrintStream(new FileOutputStream(args[3])) : System.out));
+		} else if ("-p".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
+			putFile(args[1], new Name(args[2]), args[3],
+				(args.length > 4 ? args[4] : "0x2000"));
+		} else if ("-import".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
+			importFiles(args[1], args[2]);
+		} else if ("-sync".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
+			syncFiles(args[1], args[2]);
+		} else if ("-build".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
+			buildImages(args[1]);
+		} else if ("-d".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
+			deleteFile(args[1], args[2]);
+		} else if ("-k".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
+			setFileLocked(args[1], args[2], true);
+		} else if ("-u".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
+			setFileLocked(args[1], args[2], false);
+		} else if ("-n".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
+			setDiskName(args[1], args[2]);
+		} else if ("-cc65".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
+			putCC65(args[1], new Name(args[2]), args[3]);
+		} else if ("-geos".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
+			putGEOS(args[1]);
+		} else if ("-dos140".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
+			createDosDisk(args[1], Disk.APPLE_140KB_DISK);
+		} else if ("-pas140".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
+			createPasDisk(args[1], args[2], Disk.APPLE_140KB_DISK);
+		} else if ("-pas800".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
+			createPasDisk(args[1], args[2], Disk.APPLE_800KB_DISK);
+		} else if ("-pro140".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
+			createProDisk(args[1], args[2], Disk.APPLE_140KB_DISK);
+		} else if ("-pro800".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
+			createProDisk(args[1], args[2], Disk.APPLE_800KB_DISK);
+		} else if ("-convert".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
+			if (args.length > 3)
+				convert(args[1], args[2], Integer.parseInt(args[3]));
+			else
+				convert(args[1], args[2]);
+		} else if ("-check".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
+			checkDisks(expandImageNames(args), false);
+		} else if ("-repair".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
+			checkDisks(args, true);
+		} else if ("-frag".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
+			showFragmentation(expandImageNames(args));
+		} else if ("-deleted".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
+			showDeletedFiles(expandImageNames(args));
+		} else if ("-scan".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
+			scanImages(args[1], (args.length > 2 ? args[2] : null));
+		} else if ("-index".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
+			updateIndex(args);
+		} else if ("-search".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
+			searchIndex(args);
+		} else if ("-undelete".equalsIgnoreCase(args[0])) { //$NON-NLS-1$
+			undeleteFile(args[1], args[2], (args.length > 3 ? args[3] : null));
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Run each command in the script, one per line, as a single session.
+	 * The images are read once, kept open while the script runs, and each
+	 * image that was changed is saved once at the end.  A command may end
+	 * with "&lt; filename" to read its input from that file.  Blank lines
+	 * and lines starting with '#' are skipped.  The status and time taken
+	 * by each command is reported on &lt;stderr&gt;.  A command which fails
+	 * may have changed an image partway, so every image it used is dropped
+	 * from the session without being saved (see discardDisks); a later
+	 * command reads it again from its file.  Answers false if any command
+	 * failed or any image could not be saved.
+	 */
+	static boolean runScript(InputStream script) throws IOException {
+		session = new HashMap<String,Disk>();
+		changedDisks = new LinkedHashMap<String,Disk>();
+		sessionFormats = new IdentityHashMap<Disk,FormattedDisk[]>();
+		commandDisks = Collections.newSetFromMap(new IdentityHashMap<Disk,Boolean>());
+		long scriptStart = System.nanoTime();
+		int commands = 0;
+		int failures = 0;
+		int saved = 0;
+		BufferedReader reader = new BufferedReader(new InputStreamReader(script));
+		InputStream stdin = System.in;
+		try {
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				List<String> words = splitCommand(line);
+				if (words.isEmpty() || words.get(0).startsWith("#")) continue; //$NON-NLS-1$
+				commands++;
+				long start = System.nanoTime();
+				commandDisks.clear();
+				try {
+					int redirect = words.indexOf("<"); //$NON-NLS-1$
+					if (redirect != -1) {
+						if (redirect != words.size() - 2) {
+							throw new IllegalArgumentException(line);
+						}
+						System.setIn(new FileInputStream(words.get(redirect + 1)));
+						words = words.subList(0, redirect);
+					}
+					if (!execute(words.toArray(new String[words.size()]))) {
+						throw new IllegalArgumentException(textBundle.format(
+							"CommandLineScriptUnknown", words.get(0))); //$NON-NLS-1$
+					}
+					System.err.println(textBundle.format("CommandLineScriptOk", //$NON-NLS-1$
+						new Object[] { Integer.valueOf(lineNumber), words.get(0),
+						Long.valueOf(elapsedMillis(start)) }));
+				} catch (Exception ex) {
+					failures++;
+					System.err.println(textBundle.format("CommandLineScriptFailed", //$NON-NLS-1$
+						new Object[] { Integer.valueOf(lineNumber), words.get(0),
+						ex.getLocalizedMessage(), Long.valueOf(elapsedMillis(start)) }));
+					discardDisks();
+				} finally {
+					if (System.in != stdin) {
+						System.in.close();
+						System.setIn(stdin);
+					}
+				}
+			}
+		} finally {
+			Map<String,Disk> disks = changedDisks;
+			session = null;
+			changedDisks = null;
+			sessionFormats = null;
+			commandDisks = null;
+			// Each image is saved on its own, so one that fails does not stop the rest
+			for (Disk disk : disks.values()) {
+				long start = System.nanoTime();
+				try {
+					disk.save();
+					saved++;
+					System.err.println(textBundle.format("CommandLineScriptSaved", //$NON-NLS-1$
+						new Object[] { disk.getFilename(), Long.valueOf(elapsedMillis(start)) }));
+				} catch (Exception ex) {
+					failures++;
+					System.err.println(textBundle.format("CommandLineScriptSaveFailed", //$NON-NLS-1$
+						new Object[] { disk.getFilename(), ex.getLocalizedMessage(),
+						Long.valueOf(elapsedMillis(start)) }));
+				}
+			}
+			System.err.println(textBundle.format("CommandLineScriptSummary", //$NON-NLS-1$
+				new Object[] { Integer.valueOf(commands), Integer.valueOf(failures),
+				Integer.valueOf(saved), Long.valueOf(elapsedMillis(scriptStart)) }));
+		}
+		return failures == 0;
+	}
+
+	/**
+	 * Drop the images used by a command which failed from the session, so
+	 * that what it changed before failing is never saved.  An image with
+	 * changes not yet saved (from this command or earlier ones) is reported,
+	 * as those changes are lost too.
+	 */
+	static void discardDisks() {
+		for (Disk disk : commandDisks) {
+			session.values().removeAll(Collections.singleton(disk));
+			sessionFormats.remove(disk);
+			if (changedDisks.remove(disk.getFilename()) != null || disk.hasChanged()) {
+				System.err.println(textBundle.format("CommandLineScriptDiscarded", //$NON-NLS-1$
+					disk.getFilename()));
+			}
+		}
+		commandDisks.clear();
+	}
+
+	/**
+	 * Split a script line into words.  Double quotes group words that
+	 * contain spaces.
+	 */
+	static List<String> splitCommand(String line) {
+		List<String> words = new ArrayList<String>();
+		StringBuilder word = null;
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			char ch = line.charAt(i);
+			if (ch == '"') {
+				quoted = !quoted;
+				if (word == null) word = new StringBuilder();
+			} else if (Character.isWhitespace(ch) && !quoted) {
+				if (word != null) words.add(word.toString());
+				word = null;
+			} else {
+				if (word == null) word = new StringBuilder();
+				word.append(ch);
+			}
+		}
+		if (word != null) words.add(word.toString());
+		return words;
+	}
+
+	static long elapsedMillis(long start) {
+		return (System.nanoTime() - start) / 1000000;
+	}
+
+	/**
+	 * Open the named image.  While a script runs, each image is only read
+	 * the first time it is used.
+	 */
+	static Disk openDisk(String imageName) throws IOException {
+		if (session == null) {
+			return new Disk(imageName);
+		}
+		Disk disk = session.get(imageName);
+		if (disk == null) {
+			disk = new Disk(imageName);
+			session.put(imageName, disk);
+		}
+		commandDisks.add(disk);
+		return disk;
+	}
+
+	/**
+	 * Find the formats on an image.  While a script runs, this is done only
+	 * the first time, and every later command works on the same formatted
+	 * disks.
+	 */
+	static FormattedDisk[] getFormattedDisks(Disk disk) {
+		if (session == null) {
+			return disk.getFormattedDisks();
+		}
+		FormattedDisk[] formattedDisks = sessionFormats.get(disk);
+		if (formattedDisks == null) {
+			formattedDisks = disk.getFormattedDisks();
+			sessionFormats.put(disk, formattedDisks);
+		}
+		return formattedDisks;
+	}
+
+	/**
+	 * Save a changed image.  While a script runs, the save is put off until
+	 * the script is done.
+	 */
+	static void saveDisk(Disk disk) throws IOException {
+		if (session == null) {
+			disk.save();
+		} else {
+			changedDisks.put(disk.getFilename(), disk);
 		}
 	}
 
+	/**
+	 * Save a newly created image, which later commands in a script can use
+	 * without reading it back in.
+	 */
+	static void createDisk(String imageName, Disk disk) throws IOException {
+		if (session != null) {
+			session.put(imageName, disk);
+			commandDisks.add(disk);
+		}
+		saveDisk(disk);
+	}
+
+	/**
+	 * Save a newly formatted image, whose formats are already known.
+	 */
+	static void createDisk(String imageName, FormattedDisk[] formattedDisks) throws IOException {
+		if (session != null) {
+			sessionFormats.put(formattedDisks[0], formattedDisks);
+		}
+		createDisk(imageName, formattedDisks[0]);
+	}
+
 	/**
 	 * Put fileName from the local filesytem into the file named fileOnImageName on the disk named imageName;
 	 * Note: only volume level supported; input size unlimited.
@@ -168,8 +574,8 @@ public class ac {
 		while ((byteCount = is.read(inb)) > 0) {
 			buf.write(inb, 0, byteCount);
 		}
-		Disk disk = new Disk(imageName);
-		FormattedDisk[] formattedDisks = disk.getFormattedDisks();
+		Disk disk = openDisk(imageName);
+		FormattedDisk[] formattedDisks = getFormattedDisks(disk);
 		FormattedDisk formattedDisk = formattedDisks[0];
 		FileEntry entry = name.createEntry(formattedDisk);
 		if (entry != null) {
@@ -179,289 +585,2409 @@ public class ac {
 			if (entry.needsAddress()) {
 				entry.setAddress(stringToInt(address));
 			}
-			formattedDisk.save();
+			saveDisk(formattedDisk);
 		}
 	}
 
 	/**
-	 * Put &lt;stdin&gt. into the file named fileName on the disk named imageName;
-	 * Note: only volume level supported; input size unlimited.
+	 * Copy a host directory tree, zip file or tar file (which may be
+	 * gzipped) onto the ProDOS image named imageName, recreating its
+	 * directories as ProDOS subdirectories.  A name ending in a CiderPress
+	 * style "#tttaaaa" suffix gives the filetype and auxiliary type in hex;
+	 * otherwise the filetype comes from the extension.  The blocks needed by
+	 * every file and directory are added up before anything is changed, the
+	 * files are then read and laid out one after another a batch at a time
+	 * (see ImportBatch), and the image is saved once.  A file whose name is
+	 * already taken is reported and skipped.
 	 */
-	static void putFile(String imageName, Name name, String fileType,
-		String address) throws IOException, DiskFullException {
-
-		ByteArrayOutputStream buf = new ByteArrayOutputStream();
-		byte[] inb = new byte[1024];
-		int byteCount = 0;
-		while ((byteCount = System.in.read(inb)) > 0) {
-			buf.write(inb, 0, byteCount);
+	static void importFiles(String imageName, String source) throws IOException, DiskFullException {
+		long started = System.currentTimeMillis();
+		Disk disk = openDisk(imageName);
+		FormattedDisk[] formattedDisks = getFormattedDisks(disk);
+		if (formattedDisks == null || !(formattedDisks[0] instanceof ProdosFormatDisk)) {
+			throw new IOException(textBundle.get("CommandLineImportNotProdos")); //$NON-NLS-1$
 		}
-		Disk disk = new Disk(imageName);
-		FormattedDisk[] formattedDisks = disk.getFormattedDisks();
-		if (formattedDisks == null)
-			System.out.println("Dude, formattedDisks is null!");
-		FormattedDisk formattedDisk = formattedDisks[0];
-		if (!disk.isSDK() && !disk.isDC42()) {
-			FileEntry entry = name.createEntry(formattedDisk);
-			if (entry != null) {
-				entry.setFiletype(fileType);
-				entry.setFilename(name.name);
-				entry.setFileData(buf.toByteArray());
-				if (entry.needsAddress()) {
-					entry.setAddress(stringToInt(address));
+		ProdosFormatDisk pdDisk = (ProdosFormatDisk) formattedDisks[0];
+		List<ImportedFile> importedFiles = new ArrayList<ImportedFile>();
+		Set<String> directories = new TreeSet<String>();
+		ZipFile zipFile = null;
+		boolean tar = false;
+		try {
+			File sourceFile = new File(source);
+			if (sourceFile.isDirectory()) {
+				readImportDirectory(pdDisk, sourceFile, "", importedFiles, directories); //$NON-NLS-1$
+			} else if (Disk.isZipName(source)) {
+				zipFile = new ZipFile(sourceFile);
+				readImportZip(pdDisk, zipFile, importedFiles, directories);
+			} else {
+				readImportTar(pdDisk, source, importedFiles, directories);
+				tar = true;
+			}
+			Collections.sort(importedFiles);
+			Map<String,DirectoryEntry> directoryEntries = new HashMap<String,DirectoryEntry>();
+			removeExistingFiles(pdDisk, importedFiles, directoryEntries);
+			int blocks = planImport(pdDisk, importedFiles, directories, directoryEntries);
+			int freeBlocks = pdDisk.getFreeBlocks();
+			if (blocks > freeBlocks) {
+				throw new DiskFullException(textBundle.format("CommandLineImportTooBig", //$NON-NLS-1$
+					new Object[] { Integer.valueOf(blocks), Integer.valueOf(freeBlocks) }));
+			}
+			int createdDirectories = 0;
+			for (String directory : directories) {
+				if (!directoryEntries.containsKey(directory)) {
+					getImportDirectory(pdDisk, directory, directoryEntries, true);
+					createdDirectories++;
 				}
-				formattedDisk.save();
+			}
+			List<ProdosFileEntry> entries = new ArrayList<ProdosFileEntry>();
+			for (ImportedFile importedFile : importedFiles) {
+				DirectoryEntry directory = directoryEntries.get(importedFile.directory);
+				FileEntry entry = (directory == null) ? pdDisk.createFile() : directory.createFile();
+				ProdosFileEntry prodosEntry = (ProdosFileEntry) entry;
+				importedFile.setType(prodosEntry);
+				entries.add(prodosEntry);
+			}
+			ImportBatch batch = new ImportBatch(pdDisk);
+			if (tar) {
+				readImportTarData(source, importedFiles, entries, batch);
 			} else {
-				throw new IOException("Unable to create entry...");
+				for (int i = 0; i < importedFiles.size(); i++) {
+					batch.add(entries.get(i), importedFiles.get(i).readData(zipFile));
+				}
 			}
-				
+			batch.flush();
+			saveDisk(pdDisk);
+			System.err.println(textBundle.format("CommandLineImportSummary", //$NON-NLS-1$
+				new Object[] { Integer.valueOf(entries.size()), Integer.valueOf(createdDirectories),
+					Integer.valueOf(blocks), Long.valueOf(System.currentTimeMillis() - started) }));
+		} finally {
+			if (zipFile != null) zipFile.close();
 		}
-		else
-			throw new IOException(textBundle.get("CommandLineSDKReadOnly"));  //$NON-NLS-1$
 	}
 
 	/**
-	 * Put file fileName into the file named fileOnImageName on the disk named imageName;
-	 * Assume a cc65 style four-byte header with start address in bytes 0-1.
+	 * Drop the files whose names are already taken, either on the disk or
+	 * earlier in the import, reporting each one.
 	 */
-	public static void putCC65(String fileName, String imageName, String fileOnImageName, String fileType)
-		throws IOException, DiskFullException {
-
-		byte[] header = new byte[4];
-		if (System.in.read(header, 0, 4) == 4) {
-			int address = AppleUtil.getWordValue(header, 0);
-			putFile(fileName, imageName, fileOnImageName, fileType, Integer.toString(address));
+	static void removeExistingFiles(ProdosFormatDisk pdDisk, List<ImportedFile> importedFiles,
+			Map<String,DirectoryEntry> directoryEntries) {
+		Map<String,Set<String>> filenames = new HashMap<String,Set<String>>();
+		Iterator<ImportedFile> iterator = importedFiles.iterator();
+		while (iterator.hasNext()) {
+			ImportedFile importedFile = iterator.next();
+			Set<String> names = filenames.get(importedFile.directory);
+			if (names == null) {
+				names = new HashSet<String>();
+				List<FileEntry> files = null;
+				if (importedFile.directory.length() == 0) {
+					files = pdDisk.getFiles();
+				} else {
+					DirectoryEntry directory = getImportDirectory(pdDisk, importedFile.directory,
+						directoryEntries, false);
+					if (directory != null) files = directory.getFiles();
+				}
+				if (files != null) {
+					for (FileEntry entry : files) {
+						if (!entry.isDeleted()) names.add(entry.getFilename().toUpperCase());
+					}
+				}
+				filenames.put(importedFile.directory, names);
+			}
+			if (!names.add(importedFile.name)) {
+				System.err.println(textBundle.format("CommandLineImportExists", //$NON-NLS-1$
+					importedFile.getPath()));
+				iterator.remove();
+			}
 		}
 	}
 
 	/**
-	 * Put &lt;stdin> into the file named fileName on the disk named imageName;
-	 * Assume a cc65 style four-byte header with start address in bytes 0-1.
+	 * Add up the blocks the import needs: those of each file, those of each
+	 * directory which is not yet on the disk (its key block, and one more
+	 * block for every 13 entries after the first 12), and those a directory
+	 * already on the disk grows by once its free entries are taken (one for
+	 * every 13 more).  The directories already on the disk are noted in
+	 * directoryEntries.
 	 */
-	static void putCC65(String imageName, Name name, String fileType)
-		throws IOException, DiskFullException {
-
-		byte[] header = new byte[4];
-		if (System.in.read(header, 0, 4) == 4) {
-			int address = AppleUtil.getWordValue(header, 0);
-			putFile(imageName, name, fileType, Integer.toString(address));
+	static int planImport(ProdosFormatDisk pdDisk, List<ImportedFile> importedFiles,
+			Set<String> directories, Map<String,DirectoryEntry> directoryEntries) {
+		int blocks = 0;
+		Map<String,Integer> entryCounts = new HashMap<String,Integer>();
+		for (ImportedFile importedFile : importedFiles) {
+			blocks+= ProdosFormatDisk.getBlocksNeeded(importedFile.size);
+			countEntry(entryCounts, importedFile.directory);
+		}
+		for (String directory : directories) {
+			if (getImportDirectory(pdDisk, directory, directoryEntries, false) == null) {
+				int slash = directory.lastIndexOf('/');
+				countEntry(entryCounts, (slash < 0) ? "" : directory.substring(0, slash)); //$NON-NLS-1$
+			}
 		}
+		for (String directory : directories) {
+			DirectoryEntry entry = directoryEntries.get(directory);
+			Integer count = entryCounts.get(directory);
+			int entries = (count == null) ? 0 : count.intValue();
+			if (entry == null) {
+				blocks+= 1 + (Math.max(0, entries - 12) + 12) / 13;
+			} else {
+				blocks+= (Math.max(0, entries - getFreeEntries(entry)) + 12) / 13;
+			}
+		}
+		return blocks;
 	}
 
-	/**
-	 * Interpret &lt;stdin> as a GEOS file and place it on the disk named imageName.
-	 * This would only make sense for a ProDOS-formatted disk.
-	 */
-	static void putGEOS(String imageName)
-		throws IOException, DiskFullException {
-		putFile(imageName, new Name("GEOS-Should Be ProDOS"), "GEO", "0"); //$NON-NLS-2$ $NON-NLS-3$
+	static void countEntry(Map<String,Integer> entryCounts, String directory) {
+		Integer count = entryCounts.get(directory);
+		entryCounts.put(directory, Integer.valueOf((count == null) ? 1 : count.intValue() + 1));
 	}
 
 	/**
-	 * Delete the file named fileName from the disk named imageName.
+	 * The entries free in the blocks a ProDOS directory already has; each
+	 * block holds 13, and the first of them is the directory header.
 	 */
-	static void deleteFile(String imageName, String fileName)
-		throws IOException {
-		Disk disk = new Disk(imageName);
-		Name name = new Name(fileName);
-		if (!disk.isSDK() && !disk.isDC42()) {
-			FormattedDisk[] formattedDisks = disk.getFormattedDisks();
-			for (int i = 0; i < formattedDisks.length; i++) {
-				FormattedDisk formattedDisk = formattedDisks[i];
-				FileEntry entry = name.getEntry(formattedDisk);
-				if (entry != null) {
-					entry.delete();
-					disk.save();
-				} else {
-					System.err.println(textBundle.format(
-							"CommandLineNoMatchMessage", name.fullName)); //$NON-NLS-1$
-				}
-			}
+	static int getFreeEntries(DirectoryEntry directory) {
+		int used = 1;
+		for (FileEntry entry : directory.getFiles()) {
+			if (!entry.isDeleted()) used++;
 		}
-		else
-			throw new IOException(textBundle.get("CommandLineSDKReadOnly"));
+		return Math.max(0, ((ProdosFileEntry) directory).getBlocksUsed() * 13 - used);
 	}
 
 	/**
-	 * Get the file named filename from the disk named imageName; the file is
-	 * filtered according to its type and sent to &lt;stdout>.
+	 * Find the directory with the given path ("A/B"), creating it (and its
+	 * parents) if asked to.  Directories found are kept in directoryEntries.
+	 * Answers null if the directory is not there and was not created.
 	 */
-	static void getFile(String imageName, String fileName, boolean filter, PrintStream out)
-		throws IOException {
-		Disk disk = new Disk(imageName);
-		Name name = new Name(fileName);
-		FormattedDisk[] formattedDisks = disk.getFormattedDisks();
-		if (out == null)
-			out = System.out;
-		for (int i = 0; i < formattedDisks.length; i++) {
-			FormattedDisk formattedDisk = formattedDisks[i];
-			FileEntry entry = name.getEntry(formattedDisk);
-			if (entry != null) {
-				if (filter) {
-					FileFilter ff = entry.getSuggestedFilter();
-					if (ff instanceof BinaryFileFilter)
-						ff = new HexDumpFileFilter();
-					byte[] buf = ff.filter(entry);
-					out.write(buf, 0, buf.length);
-				} else {
-					byte[] buf = entry.getFileData();
-					out.write(buf, 0, buf.length);
-				}
-			} else {
-				System.err.println(textBundle.format(
-					"CommandLineNoMatchMessage", name.fullName)); //$NON-NLS-1$
+	static DirectoryEntry getImportDirectory(FormattedDisk pdDisk, String path,
+			Map<String,DirectoryEntry> directoryEntries, boolean create) {
+		if (directoryEntries.containsKey(path)) {
+			return directoryEntries.get(path);
+		}
+		int slash = path.lastIndexOf('/');
+		String parentPath = (slash < 0) ? "" : path.substring(0, slash); //$NON-NLS-1$
+		String name = path.substring(slash + 1);
+		DirectoryEntry parent = null;
+		if (parentPath.length() > 0) {
+			parent = getImportDirectory(pdDisk, parentPath, directoryEntries, create);
+			if (parent == null) return null;
+		}
+		List<FileEntry> files = (parent == null) ? pdDisk.getFiles() : parent.getFiles();
+		for (FileEntry entry : files) {
+			if (!entry.isDeleted() && entry.isDirectory() && name.equalsIgnoreCase(entry.getFilename())) {
+				directoryEntries.put(path, (DirectoryEntry) entry);
+				return (DirectoryEntry) entry;
 			}
 		}
+		if (!create) return null;
+		try {
+			DirectoryEntry directory = (parent == null) ? pdDisk.createDirectory(name)
+				: parent.createDirectory(name);
+			directoryEntries.put(path, directory);
+			return directory;
+		} catch (DiskFullException e) {
+			throw new IllegalArgumentException(e.getMessage(), e);
+		}
 	}
 
 	/**
-	 * Extract all files in the image according to their respective filetype.
+	 * Recursive routine to list the files in a host directory, in order.
 	 */
-	static void getFiles(String imageName, String directory) throws IOException {
-		Disk disk = new Disk(imageName);
-		if ((directory != null) && (directory.length() > 0)) {
-			// Add a final directory separator if the user didn't supply one
-			if (!directory.endsWith(File.separator))
-				directory = directory + File.separator;
-		} else {
-			directory = "."+File.separator;
+	static void readImportDirectory(ProdosFormatDisk pdDisk, File directory, String path,
+			List<ImportedFile> importedFiles, Set<String> directories) throws IOException {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			throw new IOException(textBundle.format("CommandLineDirectoryError", //$NON-NLS-1$
+				directory.getPath()));
 		}
-		FormattedDisk[] formattedDisks = disk.getFormattedDisks();
-		for (int i = 0; i < formattedDisks.length; i++) {
-			FormattedDisk formattedDisk = formattedDisks[i];
-			writeFiles(formattedDisk.getFiles(), directory);			
+		for (int i = 0; i < files.length; i++) {
+			if (files[i].isDirectory()) {
+				String subdirectory = addImportDirectory(pdDisk, path, files[i].getName(), directories);
+				readImportDirectory(pdDisk, files[i], subdirectory, importedFiles, directories);
+			} else if (files[i].isFile()) {
+				ImportedFile importedFile = new ImportedFile(pdDisk, path, files[i].getName());
+				importedFile.file = files[i];
+				importedFile.size = files[i].length();
+				importedFiles.add(importedFile);
+			}
 		}
 	}
 
 	/**
-	 * Recursive routine to write directory and file entries.
+	 * List the files in a zip file; the data is read when it is needed.
 	 */
-	static void writeFiles(List files, String directory) throws IOException {
-		Iterator it = files.iterator();
-		while (it.hasNext()) {
-			FileEntry entry = (FileEntry) it.next();
-			if ((entry != null) && (!entry.isDeleted()) && (!entry.isDirectory())) {
-				FileFilter ff = entry.getSuggestedFilter();
-				if (ff instanceof BinaryFileFilter)
-					ff = new HexDumpFileFilter();
-				byte[] buf = ff.filter(entry);
-				String filename = ff.getSuggestedFileName(entry);
-				File file = new File(directory + filename);
-				File dir = new File(directory);
-				dir.mkdirs();
-				OutputStream output = new FileOutputStream(file);
-				output.write(buf, 0, buf.length);
-				output.close();
-			} else if (entry.isDirectory()) {
-				writeFiles(((DirectoryEntry) entry).getFiles(),directory+entry.getFilename()+File.separator);
+	static void readImportZip(ProdosFormatDisk pdDisk, ZipFile zipFile,
+			List<ImportedFile> importedFiles, Set<String> directories) throws IOException {
+		Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+		while (zipEntries.hasMoreElements()) {
+			ZipEntry zipEntry = zipEntries.nextElement();
+			String path = addImportPath(pdDisk, zipEntry.getName(), zipEntry.isDirectory(), directories);
+			if (!zipEntry.isDirectory()) {
+				ImportedFile importedFile = new ImportedFile(pdDisk, path, getLastName(zipEntry.getName()));
+				importedFile.zipEntry = zipEntry;
+				importedFile.size = zipEntry.getSize();
+				importedFiles.add(importedFile);
 			}
 		}
 	}
-	
+
 	/**
-	 * Recursive routine to locate a specific file by filename; In the instance
-	 * of a system with directories (e.g. ProDOS), this really returns the first
-	 * file with the given filename.
-	 * @deprecated
+	 * List the files in a tar file.  A tar stream can only be read once, so
+	 * each file is known by its place in the stream, and the data is read
+	 * by going through it again (see readImportTarData).
 	 */
-	static FileEntry getEntry(List files, String fileName) {
-		FileEntry entry = null;
-		if (files != null) {
-			for (int i = 0; i < files.size(); i++) {
-				entry = (FileEntry) files.get(i);
-				String entryName = entry.getFilename();
-				if (!entry.isDeleted() && fileName.equalsIgnoreCase(entryName)) {
-					return entry;
-				}
-				if (entry.isDirectory()) {
-					entry = getEntry(((DirectoryEntry) entry).getFiles(), fileName);
-					if (entry != null) {
-						return entry;
-					}
+	static void readImportTar(ProdosFormatDisk pdDisk, String source,
+			List<ImportedFile> importedFiles, Set<String> directories) throws IOException {
+		TarInputStream tar = openImportTar(source);
+		try {
+			int index = 0;
+			while (tar.getNextEntry()) {
+				String path = addImportPath(pdDisk, tar.getName(), tar.isDirectory(), directories);
+				if (!tar.isDirectory()) {
+					ImportedFile importedFile = new ImportedFile(pdDisk, path, getLastName(tar.getName()));
+					importedFile.tarIndex = index++;
+					importedFile.size = tar.getSize();
+					importedFiles.add(importedFile);
 				}
 			}
+		} finally {
+			tar.close();
 		}
-		return null;
 	}
 
 	/**
-	 * Display a directory listing of each disk in args.
+	 * Read the tar file again, adding the data of each file still to be
+	 * imported to the batch along with its entry, in the order the files
+	 * are found.
 	 */
-	static void showDirectory(String[] args, int display) throws IOException {
-		for (int d = 1; d < args.length; d++) {
-			try {
-				Disk disk = new Disk(args[d]);
-				FormattedDisk[] formattedDisks = disk.getFormattedDisks();
-				for (int i = 0; i < formattedDisks.length; i++) {
-					FormattedDisk formattedDisk = formattedDisks[i];
-					System.out.print(args[d] + " ");
-					System.out.println(formattedDisk.getDiskName());
-					List files = formattedDisk.getFiles();
-					if (files != null) {
-						showFiles(files, "", display); //$NON-NLS-1$
-					}
-					System.out.println(textBundle.format("CommandLineStatus", //$NON-NLS-1$
-						new Object[] { formattedDisk.getFormat(),
-						new Integer(formattedDisk.getFreeSpace()),
-						new Integer(formattedDisk.getUsedSpace()) }));
-					System.out.println();
+	static void readImportTarData(String source, List<ImportedFile> importedFiles,
+			List<ProdosFileEntry> entries, ImportBatch batch) throws IOException, DiskFullException {
+		Map<Integer,Integer> positions = new HashMap<Integer,Integer>();
+		for (int i = 0; i < importedFiles.size(); i++) {
+			positions.put(Integer.valueOf(importedFiles.get(i).tarIndex), Integer.valueOf(i));
+		}
+		TarInputStream tar = openImportTar(source);
+		try {
+			int index = 0;
+			while (tar.getNextEntry()) {
+				if (tar.isDirectory()) continue;
+				Integer position = positions.get(Integer.valueOf(index++));
+				if (position != null) {
+					batch.add(entries.get(position.intValue()),
+						readImportData(tar, importedFiles.get(position.intValue()).size));
 				}
-			} catch (RuntimeException e) {
-				System.out.println(args[d] + ": " + e.getMessage()); //$NON-NLS-1$
-				System.out.println();
 			}
+		} finally {
+			tar.close();
 		}
 	}
 
 	/**
-	 * Recursive routine to display directory entries. In the instance of a
-	 * system with directories (e.g. ProDOS), this really returns the first file
-	 * with the given filename.
+	 * Open a tar file; a name ending in .gz or .tgz is gunzipped first.
 	 */
-	static void showFiles(List files, String indent, int display) {
-		for (int i = 0; i < files.size(); i++) {
-			FileEntry entry = (FileEntry) files.get(i);
-			if (!entry.isDeleted()) {
-				List data = entry.getFileColumnData(display);
-				System.out.print(indent);
-				for (int d = 0; d < data.size(); d++) {
-					System.out.print(data.get(d));
-					System.out.print(" "); //$NON-NLS-1$
-				}
-				System.out.println();
-			}
-			if (entry.isDirectory()) {
-				showFiles(((DirectoryEntry) entry).getFiles(),
-					indent + "  ", display); //$NON-NLS-1$
-			}
+	static TarInputStream openImportTar(String source) throws IOException {
+		InputStream input = new BufferedInputStream(new FileInputStream(source), EXTRACT_BUFFER_SIZE);
+		String lowerName = source.toLowerCase();
+		if (lowerName.endsWith(".gz") || lowerName.endsWith(".tgz")) { //$NON-NLS-1$ //$NON-NLS-2$
+			input = new GZIPInputStream(input, EXTRACT_BUFFER_SIZE);
 		}
+		return new TarInputStream(input);
 	}
 
 	/**
-	 * Display information about each disk in args.
+	 * Read the rest of a stream, expected to hold size bytes.
 	 */
-	static void getDiskInfo(String[] args) throws IOException {
-		for (int d = 1; d < args.length; d++) {
-			Disk disk = new Disk(args[d]);
-			FormattedDisk[] formattedDisks = disk.getFormattedDisks();
-			for (int i = 0; i < formattedDisks.length; i++) {
-				FormattedDisk formattedDisk = formattedDisks[i];
-				Iterator iterator = formattedDisk.getDiskInformation().iterator();
-				while (iterator.hasNext()) {
-					DiskInformation diskinfo = (DiskInformation) iterator.next();
-					System.out.println(diskinfo.getLabel() + ": " + diskinfo.getValue());
-				}
-			}
-			System.out.println();
+	static byte[] readImportData(InputStream input, long size) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) size);
+		byte[] inb = new byte[EXTRACT_BUFFER_SIZE];
+		int count;
+		while ((count = input.read(inb)) > 0) {
+			buffer.write(inb, 0, count);
 		}
+		return buffer.toByteArray();
 	}
 
 	/**
-	 * Set the lockState of the file named fileName on the disk named imageName.
-	 * Proposed by David Schmidt.
+	 * Note the directories in an archive path, answering with the ProDOS
+	 * path of the directory holding the entry (or the directory itself).
 	 */
-	public static void setFileLocked(String imageName, String name, boolean lockState) throws IOException {
-		setFileLocked(imageName, new Name(name), lockState);
+	static String addImportPath(ProdosFormatDisk pdDisk, String archivePath, boolean isDirectory,
+			Set<String> directories) {
+		String[] names = archivePath.split("/"); //$NON-NLS-1$
+		int count = isDirectory ? names.length : names.length - 1;
+		String path = ""; //$NON-NLS-1$
+		for (int i = 0; i < count; i++) {
+			if (names[i].length() == 0 || ".".equals(names[i])) continue; //$NON-NLS-1$
+			path = addImportDirectory(pdDisk, path, names[i], directories);
+		}
+		return path;
+	}
+
+	static String addImportDirectory(ProdosFormatDisk pdDisk, String path, String hostName,
+			Set<String> directories) {
+		String name = getImportName(pdDisk, hostName);
+		String directory = (path.length() == 0) ? name : path + "/" + name; //$NON-NLS-1$
+		directories.add(directory);
+		return directory;
+	}
+
+	static String getLastName(String archivePath) {
+		return archivePath.substring(archivePath.lastIndexOf('/') + 1);
+	}
+
+	/**
+	 * The ProDOS name for a host name: letters, digits and '.', starting with
+	 * a letter, at most 15 characters.
+	 */
+	static String getImportName(ProdosFormatDisk pdDisk, String hostName) {
+		return pdDisk.getSuggestedFilename(hostName.length() == 0 ? "A" : hostName); //$NON-NLS-1$
+	}
+
+	/**
+	 * A file to be imported: where it goes, its name and type, and where its
+	 * data comes from (a host file, a zip entry, or its place in a tar file).
+	 */
+	static class ImportedFile implements Comparable<ImportedFile> {
+		private String directory;
+		private String name;
+		private int filetype = -1;
+		private int auxType;
+		private String filetypeName;
+		private long size;
+		private File file;
+		private ZipEntry zipEntry;
+		private int tarIndex = -1;
+
+		/**
+		 * Work out the ProDOS name and type from the host name, which may end
+		 * in a CiderPress style "#tttaaaa" suffix.
+		 */
+		public ImportedFile(ProdosFormatDisk pdDisk, String directory, String hostName) {
+			this.directory = directory;
+			int hash = hostName.lastIndexOf('#');
+			if (hash >= 0 && hostName.length() - hash == 7) {
+				try {
+					filetype = Integer.parseInt(hostName.substring(hash + 1, hash + 3), 16);
+					auxType = Integer.parseInt(hostName.substring(hash + 3), 16);
+					hostName = hostName.substring(0, hash);
+				} catch (NumberFormatException e) {
+					filetype = -1;
+				}
+			}
+			if (filetype < 0) {
+				filetypeName = pdDisk.getSuggestedFiletype(hostName);
+			}
+			name = getImportName(pdDisk, hostName);
+		}
+
+		public String getPath() {
+			return (directory.length() == 0) ? name : directory + "/" + name; //$NON-NLS-1$
+		}
+
+		/**
+		 * Name the entry and give it the filetype (and, without a suffix,
+		 * the usual address for the type).
+		 */
+		public void setType(ProdosFileEntry prodosEntry) {
+			prodosEntry.setFilename(name);
+			if (filetype >= 0) {
+				prodosEntry.setFiletype(filetype);
+				prodosEntry.setAuxiliaryType(auxType);
+			} else {
+				prodosEntry.setFiletype(filetypeName);
+				if (prodosEntry.needsAddress()) {
+					prodosEntry.setAddress("BAS".equals(filetypeName) ? 0x0801 : 0x2000); //$NON-NLS-1$
+				}
+			}
+		}
+
+		/**
+		 * Indicates if the entry already has the type (and aux type) which
+		 * setType would give it.
+		 */
+		public boolean hasType(ProdosFileEntry prodosEntry) {
+			if (filetype >= 0) {
+				return prodosEntry.getFiletypeByte() == filetype
+					&& prodosEntry.getAuxiliaryType() == auxType;
+			}
+			if (!filetypeName.equals(prodosEntry.getFiletype())) {
+				return false;
+			}
+			return !prodosEntry.needsAddress() || prodosEntry.getAuxiliaryType()
+				== ("BAS".equals(filetypeName) ? 0x0801 : 0x2000); //$NON-NLS-1$
+		}
+
+		public byte[] readData(ZipFile zipFile) throws IOException {
+			InputStream input = (file != null) ? new FileInputStream(file)
+				: zipFile.getInputStream(zipEntry);
+			try {
+				return readImportData(input, size);
+			} finally {
+				input.close();
+			}
+		}
+
+		public int compareTo(ImportedFile other) {
+			return getPath().compareTo(other.getPath());
+		}
+	}
+
+	/**
+	 * The files read for -import and not yet written to the image.  Their
+	 * data is laid out (see ProdosFormatDisk.setFileData(List, List)) once
+	 * IMPORT_BATCH_SIZE bytes have been read, so that no more than that is
+	 * held at once however large the import is.
+	 */
+	static class ImportBatch {
+		private ProdosFormatDisk pdDisk;
+		private List<ProdosFileEntry> entries = new ArrayList<ProdosFileEntry>();
+		private List<byte[]> fileData = new ArrayList<byte[]>();
+		private long size;
+
+		public ImportBatch(ProdosFormatDisk pdDisk) {
+			this.pdDisk = pdDisk;
+		}
+
+		public void add(ProdosFileEntry entry, byte[] data) throws DiskFullException {
+			entries.add(entry);
+			fileData.add(data);
+			size+= data.length;
+			if (size >= IMPORT_BATCH_SIZE) flush();
+		}
+
+		public void flush() throws DiskFullException {
+			if (entries.isEmpty()) return;
+			pdDisk.setFileData(entries, fileData);
+			entries.clear();
+			fileData.clear();
+			size = 0;
+		}
+	}
+
+	/**
+	 * Bring a ProDOS image up to date with a host directory.  What the last
+	 * sync copied is kept beside the image (see SyncState): a host file with
+	 * the size and modification time it had then is not read at all, and
+	 * one whose data still has the same CRC-32 is not written.  When the
+	 * image has been changed since the last sync, or there was none, each
+	 * file is compared with the file on the image instead.  Either way, a
+	 * file whose type or aux type (from a "#tttaaaa" suffix) differs from
+	 * the entry on the image is written again.  Files removed
+	 * from the directory since the last sync are deleted from the image;
+	 * files on the image which the sync did not put there are left alone.
+	 * When nothing has changed the image is not read at all, and when it
+	 * has, only the blocks written are saved (see Disk.save).
+	 */
+	static void syncFiles(String source, String imageName) throws IOException, DiskFullException {
+		long started = System.currentTimeMillis();
+		File sourceDirectory = new File(source);
+		if (!sourceDirectory.isDirectory()) {
+			throw new IOException(textBundle.format("CommandLineSyncNotDirectory", source)); //$NON-NLS-1$
+		}
+		File imageFile = new File(imageName);
+		File stateFile = SyncState.getStateFile(imageName);
+		SyncState state = new SyncState(stateFile);
+		boolean imageMatches = state.matchesImage(imageFile);
+		Map<String,HostFile> hostFiles = listSyncFiles(sourceDirectory, imageFile, stateFile);
+		List<String> candidates = new ArrayList<String>();
+		for (Map.Entry<String,HostFile> hostFile : hostFiles.entrySet()) {
+			SyncState.Entry record = state.get(hostFile.getKey());
+			HostFile file = hostFile.getValue();
+			if (!imageMatches || record == null || record.getSize() != file.size
+					|| record.getModified() != file.modified) {
+				candidates.add(hostFile.getKey());
+			}
+		}
+		List<String> removed = new ArrayList<String>();
+		for (String hostPath : state.getHostPaths()) {
+			if (!hostFiles.containsKey(hostPath)) removed.add(hostPath);
+		}
+		int unchanged = hostFiles.size() - candidates.size();
+		if (candidates.isEmpty() && removed.isEmpty()) {
+			System.err.println(textBundle.format("CommandLineSyncSummary", //$NON-NLS-1$
+				new Object[] { Integer.valueOf(0), Integer.valueOf(0), Integer.valueOf(unchanged),
+					Long.valueOf(System.currentTimeMillis() - started) }));
+			return;
+		}
+
+		Disk disk = openDisk(imageName);
+		FormattedDisk[] formattedDisks = getFormattedDisks(disk);
+		if (formattedDisks == null || !(formattedDisks[0] instanceof ProdosFormatDisk)) {
+			throw new IOException(textBundle.get("CommandLineImportNotProdos")); //$NON-NLS-1$
+		}
+		ProdosFormatDisk pdDisk = (ProdosFormatDisk) formattedDisks[0];
+		Map<String,DirectoryEntry> directoryEntries = new HashMap<String,DirectoryEntry>();
+		Map<String,List<FileEntry>> fileLists = new HashMap<String,List<FileEntry>>();
+		int deleted = 0;
+		for (String hostPath : removed) {
+			FileEntry entry = findSyncEntry(pdDisk, state.get(hostPath).getImagePath(),
+				directoryEntries, fileLists);
+			if (entry != null && !entry.isDirectory()) {
+				entry.delete();
+				deleted++;
+			}
+			state.remove(hostPath);
+		}
+		Set<String> imagePaths = new HashSet<String>();
+		for (String hostPath : state.getHostPaths()) {
+			if (!candidates.contains(hostPath)) imagePaths.add(state.get(hostPath).getImagePath());
+		}
+
+		Set<String> directories = new TreeSet<String>();
+		List<ImportedFile> importedFiles = new ArrayList<ImportedFile>();
+		List<FileEntry> existingEntries = new ArrayList<FileEntry>();
+		List<byte[]> fileData = new ArrayList<byte[]>();
+		Map<String,SyncState.Entry> records = new HashMap<String,SyncState.Entry>();
+		int replacedBlocks = 0;
+		for (String hostPath : candidates) {
+			HostFile file = hostFiles.get(hostPath);
+			String directory = addImportPath(pdDisk, hostPath, false, directories);
+			ImportedFile importedFile = new ImportedFile(pdDisk, directory, getLastName(hostPath));
+			importedFile.file = file.file;
+			importedFile.size = file.size;
+			if (!imagePaths.add(importedFile.getPath())) {
+				System.err.println(textBundle.format("CommandLineImportExists", //$NON-NLS-1$
+					importedFile.getPath()));
+				state.remove(hostPath);
+				continue;
+			}
+			byte[] data = importedFile.readData(null);
+			int crc = SyncState.computeCrc(data);
+			SyncState.Entry record = state.get(hostPath);
+			FileEntry entry = findSyncEntry(pdDisk, importedFile.getPath(), directoryEntries, fileLists);
+			boolean same;
+			if (entry == null || entry.isDirectory()
+					|| !importedFile.hasType((ProdosFileEntry) entry)) {
+				same = false;
+			} else if (imageMatches && record != null && record.getImagePath().equals(importedFile.getPath())) {
+				same = (record.getSize() == data.length) && (record.getCrc() == crc);
+			} else {
+				same = isSameData(entry, data);
+			}
+			records.put(hostPath, new SyncState.Entry(importedFile.getPath(), data.length,
+				file.modified, crc));
+			if (same) {
+				unchanged++;
+				continue;
+			}
+			if (entry != null && entry.isDirectory()) {
+				System.err.println(textBundle.format("CommandLineImportExists", //$NON-NLS-1$
+					importedFile.getPath()));
+				records.remove(hostPath);
+				continue;
+			}
+			if (entry != null) replacedBlocks+= ((ProdosFileEntry) entry).getBlocksUsed();
+			importedFiles.add(importedFile);
+			existingEntries.add(entry);
+			fileData.add(data);
+		}
+
+		int blocks = planImport(pdDisk, importedFiles, directories, directoryEntries);
+		int freeBlocks = pdDisk.getFreeBlocks() + replacedBlocks;
+		if (blocks > freeBlocks) {
+			throw new DiskFullException(textBundle.format("CommandLineSyncTooBig", //$NON-NLS-1$
+				new Object[] { Integer.valueOf(blocks), Integer.valueOf(freeBlocks) }));
+		}
+		List<ProdosFileEntry> entries = new ArrayList<ProdosFileEntry>();
+		for (int i = 0; i < importedFiles.size(); i++) {
+			ImportedFile importedFile = importedFiles.get(i);
+			FileEntry entry = existingEntries.get(i);
+			if (entry == null) {
+				DirectoryEntry directory = (importedFile.directory.length() == 0) ? null
+					: getImportDirectory(pdDisk, importedFile.directory, directoryEntries, true);
+				entry = (directory == null) ? pdDisk.createFile() : directory.createFile();
+			}
+			ProdosFileEntry prodosEntry = (ProdosFileEntry) entry;
+			importedFile.setType(prodosEntry);
+			entries.add(prodosEntry);
+		}
+		pdDisk.setFileData(entries, fileData);
+		if (entries.size() > 0 || deleted > 0) {
+			saveDisk(pdDisk);
+		}
+		for (Map.Entry<String,SyncState.Entry> record : records.entrySet()) {
+			state.put(record.getKey(), record.getValue());
+		}
+		// While a script runs the image is saved later, so it is not noted
+		state.setImage(session == null ? imageFile : null);
+		state.save();
+		System.err.println(textBundle.format("CommandLineSyncSummary", //$NON-NLS-1$
+			new Object[] { Integer.valueOf(entries.size()), Integer.valueOf(deleted), Integer.valueOf(unchanged),
+				Long.valueOf(System.currentTimeMillis() - started) }));
+	}
+
+	/**
+	 * List the files in a host directory by their paths within it ("a/b"),
+	 * leaving out the image and its sync state should they be within it.
+	 * The size and modification time come with each file from the walk.
+	 */
+	static Map<String,HostFile> listSyncFiles(File directory, File imageFile, File stateFile)
+			throws IOException {
+		final Path root = directory.toPath();
+		Path absoluteRoot = root.toAbsolutePath().normalize();
+		final Set<String> excluded = new HashSet<String>();
+		File[] files = { imageFile, stateFile };
+		for (int i = 0; i < files.length; i++) {
+			Path path = files[i].toPath().toAbsolutePath().normalize();
+			if (path.startsWith(absoluteRoot)) {
+				excluded.add(getHostPath(absoluteRoot, path));
+			}
+		}
+		final Map<String,HostFile> hostFiles = new TreeMap<String,HostFile>();
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+				String hostPath = getHostPath(root, path);
+				if (attrs.isRegularFile() && !excluded.contains(hostPath)) {
+					hostFiles.put(hostPath, new HostFile(path.toFile(), attrs.size(),
+						attrs.lastModifiedTime().toMillis()));
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return hostFiles;
+	}
+
+	static String getHostPath(Path root, Path path) {
+		return root.relativize(path).toString().replace(File.separatorChar, '/');
+	}
+
+	/**
+	 * A host file found by listSyncFiles.
+	 */
+	static class HostFile {
+		private File file;
+		private long size;
+		private long modified;
+
+		public HostFile(File file, long size, long modified) {
+			this.file = file;
+			this.size = size;
+			this.modified = modified;
+		}
+	}
+
+	/**
+	 * Find the file with the given path ("A/B/FILE") on the image, or answer
+	 * null.  The directory listings read are kept in fileLists.
+	 */
+	static FileEntry findSyncEntry(ProdosFormatDisk pdDisk, String path,
+			Map<String,DirectoryEntry> directoryEntries, Map<String,List<FileEntry>> fileLists) {
+		int slash = path.lastIndexOf('/');
+		String directoryPath = (slash < 0) ? "" : path.substring(0, slash); //$NON-NLS-1$
+		List<FileEntry> files = fileLists.get(directoryPath);
+		if (files == null) {
+			if (slash < 0) {
+				files = pdDisk.getFiles();
+			} else {
+				DirectoryEntry directory = getImportDirectory(pdDisk, directoryPath,
+					directoryEntries, false);
+				if (directory == null) return null;
+				files = directory.getFiles();
+			}
+			fileLists.put(directoryPath, files);
+		}
+		String name = path.substring(slash + 1);
+		for (FileEntry entry : files) {
+			if (!entry.isDeleted() && name.equalsIgnoreCase(entry.getFilename())) {
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Indicates if a file on the image holds just the given data.
+	 */
+	static boolean isSameData(FileEntry entry, byte[] data) {
+		ProdosFileEntry prodosEntry = (ProdosFileEntry) entry;
+		if (prodosEntry.getEofPosition() != data.length) {
+			return false;
+		}
+		byte[] imageData = entry.getFileData();
+		return imageData != null && imageData.length >= data.length
+			&& Arrays.equals(Arrays.copyOf(imageData, data.length), data);
+	}
+
+	/**
+	 * Build the disk images described by a JSON manifest.  The manifest is
+	 * one image, or an object with an "images" array of them.  An image is
+	 * an object like this (paths are relative to the manifest):
+	 * <pre>
+	 * { "image": "game.po", "format": "pro800", "volume": "GAME",
+	 *   "date": "2026-10-18 12:00",
+	 *   "files": [
+	 *     { "source": "build/game.bin", "name": "GAME", "type": "BIN",
+	 *       "address": "$2000", "locked": true },
+	 *     { "directory": "DATA" },
+	 *     { "source": "build/level1", "name": "DATA/LEVEL1", "type": "BIN",
+	 *       "date": "2026-10-01" } ] }
+	 * </pre>
+	 * The format is pro140, pro800, prodos (with "blocks"), dos140, pas140
+	 * or pas800; or a "template" image is copied instead.  Files are written
+	 * in manifest order: on ProDOS each one is laid out in a run of blocks
+	 * following on from the one before (see ProdosFormatDisk.setFileData(List,
+	 * List)), and on the other formats the disk's own allocation is used.
+	 * Every date on the image comes from the manifest ("date" on an entry,
+	 * or else on the image), and is left blank where none is given, so the
+	 * same manifest and files always build the same bytes.  Each image is
+	 * saved once.
+	 */
+	static void buildImages(String manifestName) throws IOException, DiskFullException {
+		File manifestFile = new File(manifestName);
+		Object manifest;
+		Reader reader = new BufferedReader(new InputStreamReader(
+			new FileInputStream(manifestFile), "UTF-8")); //$NON-NLS-1$
+		try {
+			manifest = new JsonReader(reader).read();
+		} finally {
+			reader.close();
+		}
+		File baseDirectory = manifestFile.getAbsoluteFile().getParentFile();
+		Map<String,Object> top = getManifestObject("images", manifest); //$NON-NLS-1$
+		List<Object> images = top.containsKey("images") //$NON-NLS-1$
+			? getManifestList(top, "images") : Collections.<Object>singletonList(top); //$NON-NLS-1$
+		for (Object image : images) {
+			buildImage(getManifestObject("images", image), baseDirectory); //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * Build one image of the manifest.
+	 */
+	static void buildImage(Map<String,Object> image, File baseDirectory)
+			throws IOException, DiskFullException {
+		long started = System.currentTimeMillis();
+		String imageName = getManifestFile(baseDirectory, getManifestString(image, "image", true)); //$NON-NLS-1$
+		String volume = getManifestString(image, "volume", false); //$NON-NLS-1$
+		Date imageDate = getManifestDate(image, null);
+		String template = getManifestString(image, "template", false); //$NON-NLS-1$
+		FormattedDisk formattedDisk;
+		if (template != null) {
+			Disk disk = new Disk(getManifestFile(baseDirectory, template));
+			formattedDisk = disk.getFormattedDisks()[0];
+			formattedDisk.setFilename(imageName);
+			if (volume != null) {
+				formattedDisk.setDiskName(volume);
+			}
+		} else {
+			formattedDisk = createBuildImage(imageName, image, volume);
+		}
+		if (formattedDisk instanceof ProdosFormatDisk) {
+			((ProdosFormatDisk) formattedDisk).setCreationDate(imageDate);
+		} else if (formattedDisk instanceof PascalFormatDisk) {
+			((PascalFormatDisk) formattedDisk).setMostRecentDateSetting(imageDate);
+		}
+
+		List<Object> files = image.containsKey("files") //$NON-NLS-1$
+			? getManifestList(image, "files") : Collections.emptyList(); //$NON-NLS-1$
+		Map<String,DirectoryEntry> directoryEntries = new HashMap<String,DirectoryEntry>();
+		List<ProdosFileEntry> prodosEntries = new ArrayList<ProdosFileEntry>();
+		List<byte[]> prodosData = new ArrayList<byte[]>();
+		List<Date> prodosDates = new ArrayList<Date>();
+		int count = 0;
+		for (Object item : files) {
+			Map<String,Object> file = getManifestObject("files", item); //$NON-NLS-1$
+			Date date = getManifestDate(file, imageDate);
+			String directoryName = getManifestString(file, "directory", false); //$NON-NLS-1$
+			if (directoryName != null) {
+				getBuildDirectory(formattedDisk, directoryName, directoryEntries, date);
+				continue;
+			}
+			File source = new File(getManifestFile(baseDirectory,
+				getManifestString(file, "source", true))); //$NON-NLS-1$
+			String name = getManifestString(file, "name", false); //$NON-NLS-1$
+			if (name == null) {
+				name = formattedDisk.getSuggestedFilename(source.getName());
+			}
+			int slash = name.lastIndexOf('/');
+			FileEntry entry;
+			if (slash < 0) {
+				entry = formattedDisk.createFile();
+			} else {
+				entry = getBuildDirectory(formattedDisk, name.substring(0, slash),
+					directoryEntries, imageDate).createFile();
+			}
+			String type = getManifestString(file, "type", false); //$NON-NLS-1$
+			entry.setFiletype((type == null) ? formattedDisk.getSuggestedFiletype(source.getName()) : type);
+			entry.setFilename(name.substring(slash + 1));
+			if (file.containsKey("aux") && entry instanceof ProdosFileEntry) { //$NON-NLS-1$
+				((ProdosFileEntry) entry).setAuxiliaryType(getManifestNumber(file, "aux")); //$NON-NLS-1$
+			}
+			byte[] data = readBuildFile(source);
+			if (entry instanceof ProdosFileEntry) {
+				prodosEntries.add((ProdosFileEntry) entry);
+				prodosData.add(data);
+				prodosDates.add(date);
+			} else {
+				if (entry instanceof PascalFileEntry) {
+					((PascalFileEntry) entry).setModificationDate(date);
+				}
+				entry.setFileData(data);
+			}
+			if (entry.needsAddress() && !(file.containsKey("aux") && !file.containsKey("address"))) { //$NON-NLS-1$ //$NON-NLS-2$
+				int address = "BAS".equals(entry.getFiletype()) ? 0x0801 : 0x2000; //$NON-NLS-1$
+				if (file.containsKey("address")) { //$NON-NLS-1$
+					address = getManifestNumber(file, "address"); //$NON-NLS-1$
+				}
+				entry.setAddress(address);
+			}
+			if (Boolean.TRUE.equals(file.get("locked"))) { //$NON-NLS-1$
+				entry.setLocked(true);
+			}
+			count++;
+		}
+		if (formattedDisk instanceof ProdosFormatDisk) {
+			((ProdosFormatDisk) formattedDisk).setFileData(prodosEntries, prodosData);
+			for (int i = 0; i < prodosEntries.size(); i++) {
+				prodosEntries.get(i).setCreationDate(prodosDates.get(i));
+				prodosEntries.get(i).setLastModificationDate(prodosDates.get(i));
+			}
+		}
+		saveDisk(formattedDisk);
+		System.err.println(textBundle.format("CommandLineBuildSummary", //$NON-NLS-1$
+			new Object[] { imageName, Integer.valueOf(count),
+				Long.valueOf(System.currentTimeMillis() - started) }));
+	}
+
+	/**
+	 * Create a blank image in memory of the format the manifest names.
+	 */
+	static FormattedDisk createBuildImage(String imageName, Map<String,Object> image, String volume)
+			throws IOException {
+		String format = getManifestString(image, "format", true).toLowerCase(); //$NON-NLS-1$
+		if ("dos140".equals(format)) { //$NON-NLS-1$
+			ImageOrder imageOrder = new DosOrder(new ByteArrayImageLayout(Disk.APPLE_140KB_DISK));
+			return DosFormatDisk.create(imageName, imageOrder)[0];
+		}
+		int size;
+		if ("pro140".equals(format) || "pas140".equals(format)) { //$NON-NLS-1$ //$NON-NLS-2$
+			size = Disk.APPLE_140KB_DISK;
+		} else if ("pro800".equals(format) || "pas800".equals(format)) { //$NON-NLS-1$ //$NON-NLS-2$
+			size = Disk.APPLE_800KB_DISK;
+		} else if ("prodos".equals(format)) { //$NON-NLS-1$
+			int blocks = getManifestNumber(image, "blocks"); //$NON-NLS-1$
+			if (blocks < 280 || blocks > 65535) {
+				throw new IOException(textBundle.format("CommandLineBuildBadValue", //$NON-NLS-1$
+					new Object[] { "blocks", Integer.toString(blocks) })); //$NON-NLS-1$
+			}
+			size = blocks * Disk.BLOCK_SIZE;
+		} else {
+			throw new IOException(textBundle.format("CommandLineBuildFormat", format)); //$NON-NLS-1$
+		}
+		if (volume == null) {
+			throw new IOException(textBundle.format("CommandLineBuildMissing", "volume")); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		ImageOrder imageOrder = new ProdosOrder(new ByteArrayImageLayout(size));
+		if (format.startsWith("pas")) { //$NON-NLS-1$
+			return PascalFormatDisk.create(imageName, volume, imageOrder)[0];
+		}
+		return ProdosFormatDisk.create(imageName, volume, imageOrder)[0];
+	}
+
+	/**
+	 * Find or make the directory with the given path ("A/B"), giving any
+	 * ProDOS directory made the date from the manifest.
+	 */
+	static DirectoryEntry getBuildDirectory(FormattedDisk formattedDisk, String path,
+			Map<String,DirectoryEntry> directoryEntries, Date date) {
+		int slash = path.lastIndexOf('/');
+		if (slash > 0) {
+			getBuildDirectory(formattedDisk, path.substring(0, slash), directoryEntries, date);
+		}
+		DirectoryEntry directory = getImportDirectory(formattedDisk, path, directoryEntries, false);
+		if (directory == null) {
+			directory = getImportDirectory(formattedDisk, path, directoryEntries, true);
+			if (directory instanceof ProdosDirectoryEntry) {
+				ProdosDirectoryEntry prodosDirectory = (ProdosDirectoryEntry) directory;
+				prodosDirectory.setCreationDate(date);
+				prodosDirectory.setLastModificationDate(date);
+				prodosDirectory.getSubdirectoryHeader().setCreationDate(date);
+			}
+		}
+		return directory;
+	}
+
+	static byte[] readBuildFile(File source) throws IOException {
+		InputStream input = new FileInputStream(source);
+		try {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) source.length());
+			byte[] inb = new byte[EXTRACT_BUFFER_SIZE];
+			int count;
+			while ((count = input.read(inb)) > 0) {
+				buffer.write(inb, 0, count);
+			}
+			return buffer.toByteArray();
+		} finally {
+			input.close();
+		}
+	}
+
+	static String getManifestFile(File baseDirectory, String name) {
+		File file = new File(name);
+		return file.isAbsolute() ? name : new File(baseDirectory, name).getPath();
+	}
+
+	@SuppressWarnings("unchecked")
+	static Map<String,Object> getManifestObject(String key, Object value) throws IOException {
+		if (!(value instanceof Map)) {
+			throw new IOException(textBundle.format("CommandLineBuildBadValue", //$NON-NLS-1$
+				new Object[] { key, value }));
+		}
+		return (Map<String,Object>) value;
+	}
+
+	@SuppressWarnings("unchecked")
+	static List<Object> getManifestList(Map<String,Object> object, String key) throws IOException {
+		Object value = object.get(key);
+		if (!(value instanceof List)) {
+			throw new IOException(textBundle.format("CommandLineBuildBadValue", //$NON-NLS-1$
+				new Object[] { key, value }));
+		}
+		return (List<Object>) value;
+	}
+
+	static String getManifestString(Map<String,Object> object, String key, boolean required)
+			throws IOException {
+		Object value = object.get(key);
+		if (value == null) {
+			if (required) {
+				throw new IOException(textBundle.format("CommandLineBuildMissing", key)); //$NON-NLS-1$
+			}
+			return null;
+		}
+		if (!(value instanceof String)) {
+			throw new IOException(textBundle.format("CommandLineBuildBadValue", //$NON-NLS-1$
+				new Object[] { key, value }));
+		}
+		return (String) value;
+	}
+
+	/**
+	 * A number, given either as a JSON number or as a string such as
+	 * "$2000", "0x2000" or "8192".
+	 */
+	static int getManifestNumber(Map<String,Object> object, String key) throws IOException {
+		Object value = object.get(key);
+		if (value instanceof Long) {
+			return ((Long) value).intValue();
+		}
+		if (value instanceof String) {
+			String s = ((String) value).trim().toLowerCase();
+			try {
+				if (s.startsWith("$")) { //$NON-NLS-1$
+					return Integer.parseInt(s.substring(1), 0x10);
+				} else if (s.startsWith("0x")) { //$NON-NLS-1$
+					return Integer.parseInt(s.substring(2), 0x10);
+				}
+				return Integer.parseInt(s);
+			} catch (NumberFormatException e) {
+				// reported below
+			}
+		}
+		if (value == null) {
+			throw new IOException(textBundle.format("CommandLineBuildMissing", key)); //$NON-NLS-1$
+		}
+		throw new IOException(textBundle.format("CommandLineBuildBadValue", //$NON-NLS-1$
+			new Object[] { key, value }));
+	}
+
+	/**
+	 * The "date" of a manifest entry, as "yyyy-MM-dd" or "yyyy-MM-dd HH:mm"
+	 * (a 'T' may stand in for the space), or the given default.
+	 */
+	static Date getManifestDate(Map<String,Object> object, Date defaultDate) throws IOException {
+		String value = getManifestString(object, "date", false); //$NON-NLS-1$
+		if (value == null) {
+			return defaultDate;
+		}
+		String pattern = (value.length() > 10) ? "yyyy-MM-dd HH:mm" : "yyyy-MM-dd"; //$NON-NLS-1$ //$NON-NLS-2$
+		SimpleDateFormat dateFormat = new SimpleDateFormat(pattern);
+		dateFormat.setLenient(false);
+		try {
+			return dateFormat.parse(value.replace('T', ' '));
+		} catch (ParseException e) {
+			throw new IOException(textBundle.format("CommandLineBuildBadValue", //$NON-NLS-1$
+				new Object[] { "date", value })); //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * Put &lt;stdin&gt. into the file named fileName on the disk named imageName;
+	 * Note: only volume level supported; input size unlimited.
+	 */
+	static void putFile(String imageName, Name name, String fileType,
+		String address) throws IOException, DiskFullException {
+
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		byte[] inb = new byte[1024];
+		int byteCount = 0;
+		while ((byteCount = System.in.read(inb)) > 0) {
+			buf.write(inb, 0, byteCount);
+		}
+		Disk disk = openDisk(imageName);
+		FormattedDisk[] formattedDisks = getFormattedDisks(disk);
+		if (formattedDisks == null)
+			System.out.println("Dude, formattedDisks is null!");
+		FormattedDisk formattedDisk = formattedDisks[0];
+		if (!disk.isSDK() && !disk.isDC42()) {
+			FileEntry entry = name.createEntry(formattedDisk);
+			if (entry != null) {
+				entry.setFiletype(fileType);
+				entry.setFilename(name.name);
+				entry.setFileData(buf.toByteArray());
+				if (entry.needsAddress()) {
+					entry.setAddress(stringToInt(address));
+				}
+				saveDisk(formattedDisk);
+			} else {
+				throw new IOException("Unable to create entry...");
+			}
+				
+		}
+		else
+			throw new IOException(textBundle.get("CommandLineSDKReadOnly"));  //$NON-NLS-1$
+	}
+
+	/**
+	 * Put file fileName into the file named fileOnImageName on the disk named imageName;
+	 * Assume a cc65 style four-byte header with start address in bytes 0-1.
+	 */
+	public static void putCC65(String fileName, String imageName, String fileOnImageName, String fileType)
+		throws IOException, DiskFullException {
+
+		byte[] header = new byte[4];
+		if (System.in.read(header, 0, 4) == 4) {
+			int address = AppleUtil.getWordValue(header, 0);
+			putFile(fileName, imageName, fileOnImageName, fileType, Integer.toString(address));
+		}
+	}
+
+	/**
+	 * Put &lt;stdin> into the file named fileName on the disk named imageName;
+	 * Assume a cc65 style four-byte header with start address in bytes 0-1.
+	 */
+	static void putCC65(String imageName, Name name, String fileType)
+		throws IOException, DiskFullException {
+
+		byte[] header = new byte[4];
+		if (System.in.read(header, 0, 4) == 4) {
+			int address = AppleUtil.getWordValue(header, 0);
+			putFile(imageName, name, fileType, Integer.toString(address));
+		}
+	}
+
+	/**
+	 * Interpret &lt;stdin> as a GEOS file and place it on the disk named imageName.
+	 * This would only make sense for a ProDOS-formatted disk.
+	 */
+	static void putGEOS(String imageName)
+		throws IOException, DiskFullException {
+		putFile(imageName, new Name("GEOS-Should Be ProDOS"), "GEO", "0"); //$NON-NLS-2$ $NON-NLS-3$
+	}
+
+	/**
+	 * Delete the file named fileName from the disk named imageName.
+	 */
+	static void deleteFile(String imageName, String fileName)
+		throws IOException {
+		Disk disk = openDisk(imageName);
+		Name name = new Name(fileName);
+		if (!disk.isSDK() && !disk.isDC42()) {
+			FormattedDisk[] formattedDisks = getFormattedDisks(disk);
+			for (int i = 0; i < formattedDisks.length; i++) {
+				FormattedDisk formattedDisk = formattedDisks[i];
+				FileEntry entry = name.getEntry(formattedDisk);
+				if (entry != null) {
+					entry.delete();
+					saveDisk(disk);
+				} else {
+					System.err.println(textBundle.format(
+							"CommandLineNoMatchMessage", name.fullName)); //$NON-NLS-1$
+				}
+			}
+		}
+		else
+			throw new IOException(textBundle.get("CommandLineSDKReadOnly"));
+	}
+
+	/**
+	 * Replace each zip file named in args (after the command) with the disk
+	 * images it holds, so that batch commands work through the zip one
+	 * image at a time.
+	 */
+	static String[] expandImageNames(String[] args) throws IOException {
+		List<String> names = new ArrayList<String>();
+		names.add(args[0]);
+		for (int d = 1; d < args.length; d++) {
+			if (Disk.isZipName(args[d]) && new File(args[d]).isFile()) {
+				names.addAll(Disk.getZipImageNames(args[d]));
+			} else {
+				names.add(args[d]);
+			}
+		}
+		return names.toArray(new String[names.size()]);
+	}
+
+	/**
+	 * Open the formatted disks in an image.  ShrinkIt archives of files are
+	 * read straight from the archive, so that only the files asked for are
+	 * decompressed.
+	 */
+	static FormattedDisk[] readFormattedDisks(String imageName) throws IOException {
+		NufxFormatDisk archive = NufxFormatDisk.open(imageName);
+		if (archive != null) {
+			return new FormattedDisk[] { archive };
+		}
+		return getFormattedDisks(openDisk(imageName));
+	}
+
+	/**
+	 * Close any ShrinkIt archive opened by readFormattedDisks.  Other disks
+	 * do not hold their image file open.
+	 */
+	static void closeFormattedDisks(FormattedDisk[] formattedDisks) {
+		if (formattedDisks == null) return;
+		for (int i = 0; i < formattedDisks.length; i++) {
+			if (formattedDisks[i] instanceof NufxFormatDisk) {
+				try {
+					((NufxFormatDisk) formattedDisks[i]).close();
+				} catch (IOException ignored) {
+					// Nothing is written to an archive, so nothing is lost
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the file named filename from the disk named imageName; the file is
+	 * filtered according to its type and sent to &lt;stdout>.
+	 */
+	static void getFile(String imageName, String fileName, boolean filter, PrintStream out)
+		throws IOException {
+		Name name = new Name(fileName);
+		FormattedDisk[] formattedDisks = readFormattedDisks(imageName);
+		if (out == null)
+			out = System.out;
+		try {
+			for (int i = 0; i < formattedDisks.length; i++) {
+				FormattedDisk formattedDisk = formattedDisks[i];
+				FileEntry entry = name.getEntry(formattedDisk);
+				if (entry != null) {
+					if (filter) {
+						FileFilter ff = entry.getSuggestedFilter();
+						if (ff instanceof BinaryFileFilter)
+							ff = new HexDumpFileFilter();
+						byte[] buf = ff.filter(entry);
+						out.write(buf, 0, buf.length);
+					} else {
+						byte[] buf = entry.getFileData();
+						out.write(buf, 0, buf.length);
+					}
+				} else {
+					System.err.println(textBundle.format(
+						"CommandLineNoMatchMessage", name.fullName)); //$NON-NLS-1$
+				}
+			}
+		} finally {
+			closeFormattedDisks(formattedDisks);
+		}
+	}
+
+	/**
+	 * Extract all files in the image according to their respective filetype.
+	 */
+	static void getFiles(String imageName, String directory) throws IOException {
+		getFiles(imageName, directory, true);
+	}
+
+	/**
+	 * Extract all files in the image, either filtered according to their
+	 * respective filetype or as their raw data.  The directories are all
+	 * created first; the files are then read and written by a pool of jobs
+	 * threads, each one streamed from the volume through a buffer into its
+	 * host file.  Files which would be written to the same host file (the
+	 * same name when case is ignored, as it is by some file systems) are
+	 * written one after the other by one thread, so the last one wins just
+	 * as it would one file at a time.  Progress is reported on &lt;stderr&gt;.
+	 * A file which cannot be extracted is reported and does not stop the
+	 * others.
+	 */
+	static void getFiles(String imageName, String directory, boolean filter) throws IOException {
+		if ((directory != null) && (directory.length() > 0)) {
+			// Add a final directory separator if the user didn't supply one
+			if (!directory.endsWith(File.separator))
+				directory = directory + File.separator;
+		} else {
+			directory = "."+File.separator;
+		}
+		FormattedDisk[] formattedDisks = readFormattedDisks(imageName);
+		ExtractProgress progress;
+		try {
+			List<ExtractedFile> extractedFiles = new ArrayList<ExtractedFile>();
+			for (int i = 0; i < formattedDisks.length; i++) {
+				FormattedDisk formattedDisk = formattedDisks[i];
+				writeFiles(formattedDisk.getFiles(), directory, filter, extractedFiles);
+			}
+			progress = new ExtractProgress(extractedFiles.size());
+			List<List<ExtractedFile>> groups = groupExtractedFiles(extractedFiles);
+			ForkJoinPool pool = new ForkJoinPool(jobs);
+			try {
+				pool.invoke(new ExtractTask(groups, 0, groups.size(), progress));
+			} finally {
+				pool.shutdown();
+			}
+		} finally {
+			closeFormattedDisks(formattedDisks);
+		}
+		progress.finish();
+	}
+
+	/**
+	 * Recursive routine to create the directories and list the files to be
+	 * written into them.
+	 */
+	static void writeFiles(List<FileEntry> files, String directory, boolean filter,
+			List<ExtractedFile> extractedFiles) throws IOException {
+		File dir = new File(directory);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException(textBundle.format(
+				"CommandLineDirectoryError", directory)); //$NON-NLS-1$
+		}
+		Iterator<FileEntry> it = files.iterator();
+		while (it.hasNext()) {
+			FileEntry entry = it.next();
+			if ((entry != null) && (!entry.isDeleted()) && (!entry.isDirectory())) {
+				FileFilter ff = null;
+				String filename;
+				if (filter) {
+					ff = entry.getSuggestedFilter();
+					if (ff instanceof BinaryFileFilter)
+						ff = new HexDumpFileFilter();
+					filename = ff.getSuggestedFileName(entry);
+				} else {
+					filename = entry.getFilename().trim();
+				}
+				extractedFiles.add(new ExtractedFile(entry, ff, new File(directory + filename)));
+			} else if (entry.isDirectory()) {
+				writeFiles(((DirectoryEntry) entry).getFiles(),
+					directory+entry.getFilename()+File.separator, filter, extractedFiles);
+			}
+		}
+	}
+
+	/**
+	 * Group the files to be extracted by the host file they are written
+	 * to, ignoring case, keeping them in the order they were listed.
+	 */
+	static List<List<ExtractedFile>> groupExtractedFiles(List<ExtractedFile> extractedFiles) {
+		Map<String,List<ExtractedFile>> groups = new LinkedHashMap<String,List<ExtractedFile>>();
+		for (ExtractedFile extractedFile : extractedFiles) {
+			String key = extractedFile.file.getAbsolutePath().toLowerCase(Locale.ROOT);
+			List<ExtractedFile> group = groups.get(key);
+			if (group == null) {
+				group = new ArrayList<ExtractedFile>(1);
+				groups.put(key, group);
+			}
+			group.add(extractedFile);
+		}
+		return new ArrayList<List<ExtractedFile>>(groups.values());
+	}
+
+	/**
+	 * Write every file on every volume in the image into a single zip or
+	 * tar stream, named outputName or &lt;stdout&gt; for "-".  The files are
+	 * either filtered according to their respective filetype or their raw
+	 * data.  Paths follow the directory tree, with the volume name first
+	 * when the image holds more than one.  The filetype goes in the zip
+	 * entry comment or a tar pax header, along with the ProDOS filetype
+	 * and auxiliary type (a zip extra field, see PRODOS_EXTRA_FIELD).  The
+	 * files are written one at a time, each one read in full before its
+	 * entry is started, so a file which cannot be read is reported and
+	 * left out without breaking the stream.  Volumes, and files whose format
+	 * keeps no date, are given the modification time of the image, so the
+	 * same image always makes the same archive.
+	 */
+	static void archiveFiles(String imageName, String outputName, boolean filter, boolean tar)
+			throws IOException {
+		FormattedDisk[] formattedDisks = readFormattedDisks(imageName);
+		long modified = new File(imageName).lastModified();
+		List<ArchivedFile> archivedFiles = new ArrayList<ArchivedFile>();
+		for (int i = 0; i < formattedDisks.length; i++) {
+			String path = (formattedDisks.length > 1)
+				? formattedDisks[i].getDiskName().trim() + "/" : ""; //$NON-NLS-1$ //$NON-NLS-2$
+			if (path.length() > 0) {
+				archivedFiles.add(new ArchivedFile(path, null, modified));
+			}
+			listArchivedFiles(formattedDisks[i].getFiles(), path, modified, archivedFiles);
+		}
+		OutputStream output = "-".equals(outputName) ? (OutputStream) System.out //$NON-NLS-1$
+			: new FileOutputStream(outputName);
+		output = new BufferedOutputStream(output, EXTRACT_BUFFER_SIZE);
+		ZipOutputStream zip = null;
+		TarOutputStream tarOutput = null;
+		if (tar) {
+			tarOutput = new TarOutputStream(output);
+		} else {
+			zip = new ZipOutputStream(output);
+		}
+		int files = 0;
+		for (ArchivedFile archivedFile : archivedFiles) {
+			if (!archivedFile.isDirectory()) files++;
+		}
+		ExtractProgress progress = new ExtractProgress(files);
+		try {
+			for (ArchivedFile archivedFile : archivedFiles) {
+				byte[] data;
+				try {
+					data = archivedFile.readData(filter);
+				} catch (IOException e) {
+					progress.failed(new File(archivedFile.getName(filter)), e);
+					continue;
+				} catch (RuntimeException e) {
+					progress.failed(new File(archivedFile.getName(filter)), e);
+					continue;
+				}
+				if (tar) {
+					archivedFile.writeTo(tarOutput, filter, data);
+				} else {
+					archivedFile.writeTo(zip, filter, data);
+				}
+				if (!archivedFile.isDirectory()) progress.extracted(data.length);
+			}
+			if (tar) {
+				tarOutput.finish();
+			} else {
+				zip.finish();
+			}
+		} finally {
+			closeFormattedDisks(formattedDisks);
+			output.flush();
+			if (output != System.out) output.close();
+		}
+		progress.finish();
+	}
+
+	/**
+	 * Recursive routine to list the directories and files to be archived.
+	 */
+	static void listArchivedFiles(List<FileEntry> files, String path, long modified,
+			List<ArchivedFile> archivedFiles) {
+		Iterator<FileEntry> it = files.iterator();
+		while (it.hasNext()) {
+			FileEntry entry = it.next();
+			if ((entry == null) || entry.isDeleted()) continue;
+			if (entry.isDirectory()) {
+				String directory = path + entry.getFilename().trim() + "/"; //$NON-NLS-1$
+				archivedFiles.add(new ArchivedFile(directory, entry, modified));
+				listArchivedFiles(((DirectoryEntry) entry).getFiles(), directory, modified,
+					archivedFiles);
+			} else {
+				archivedFiles.add(new ArchivedFile(path, entry, modified));
+			}
+		}
+	}
+
+	/**
+	 * A directory or file to be archived.  The path of a file is that of its
+	 * directory; a directory with no entry stands for a volume.  The given
+	 * modification time is used where the entry has none.
+	 */
+	static class ArchivedFile {
+		private String path;
+		private FileEntry entry;
+		private long modified;
+
+		public ArchivedFile(String path, FileEntry entry, long modified) {
+			this.path = path;
+			this.entry = entry;
+			this.modified = modified;
+		}
+
+		public boolean isDirectory() {
+			return entry == null || entry.isDirectory();
+		}
+
+		/**
+		 * The name of the directory or file within the archive.
+		 */
+		public String getName(boolean filter) {
+			return isDirectory() ? path : path + getFilename(getFilter(filter));
+		}
+
+		/**
+		 * Read the file data, filtered or raw; a directory has none.
+		 */
+		public byte[] readData(boolean filter) throws IOException {
+			if (isDirectory()) {
+				return new byte[0];
+			}
+			FileFilter ff = getFilter(filter);
+			if (ff != null) {
+				return ff.filter(entry);
+			}
+			long length = entry.getFormattedDisk().getFileDataLength(entry);
+			if (length < 0) {
+				return entry.getFileData();
+			}
+			ByteArrayOutputStream output = new ByteArrayOutputStream((int) length);
+			entry.getFormattedDisk().writeFileData(entry, output);
+			return output.toByteArray();
+		}
+
+		/**
+		 * Add the directory or file, with the data read for it, to the zip
+		 * stream.
+		 */
+		public void writeTo(ZipOutputStream zip, boolean filter, byte[] data)
+				throws IOException {
+			ZipEntry zipEntry = new ZipEntry(getName(filter));
+			setAttributes(zipEntry);
+			zip.putNextEntry(zipEntry);
+			zip.write(data, 0, data.length);
+			zip.closeEntry();
+		}
+
+		/**
+		 * Add the directory or file, with the data read for it, to the tar
+		 * stream.
+		 */
+		public void writeTo(TarOutputStream tar, boolean filter, byte[] data)
+				throws IOException {
+			tar.putNextEntry(getName(filter), data.length, getModified(), isDirectory(),
+				getAttributes());
+			tar.write(data, 0, data.length);
+			tar.closeEntry();
+		}
+
+		protected FileFilter getFilter(boolean filter) {
+			if (!filter) return null;
+			FileFilter ff = entry.getSuggestedFilter();
+			if (ff instanceof BinaryFileFilter)
+				ff = new HexDumpFileFilter();
+			return ff;
+		}
+
+		protected String getFilename(FileFilter ff) {
+			return (ff != null) ? ff.getSuggestedFileName(entry) : entry.getFilename().trim();
+		}
+
+		/**
+		 * The modification date, where the format keeps one, or the one
+		 * given for the archive.
+		 */
+		protected long getModified() {
+			Date date = null;
+			if (entry instanceof ProdosFileEntry) {
+				date = ((ProdosFileEntry) entry).getLastModificationDate();
+			} else if (entry instanceof NufxFileEntry) {
+				date = ((NufxFileEntry) entry).getLastModificationDate();
+			}
+			return (date != null) ? date.getTime() : modified;
+		}
+
+		/**
+		 * The ProDOS filetype and auxiliary type, or -1 for each when the
+		 * file does not have them.
+		 */
+		protected int[] getProdosType() {
+			if (entry instanceof ProdosFileEntry) {
+				ProdosFileEntry prodosEntry = (ProdosFileEntry) entry;
+				return new int[] { prodosEntry.getFiletypeByte(), prodosEntry.getAuxiliaryType() };
+			} else if (entry instanceof NufxFileEntry) {
+				NufxFileEntry nufxEntry = (NufxFileEntry) entry;
+				return new int[] { nufxEntry.getFiletypeByte(), nufxEntry.getAuxiliaryType() };
+			}
+			return new int[] { -1, -1 };
+		}
+
+		/**
+		 * The zip entry gets the modification date, the filetype as its
+		 * comment and the ProDOS extra field.
+		 */
+		protected void setAttributes(ZipEntry zipEntry) {
+			zipEntry.setTime(getModified());
+			if (entry == null) return;
+			zipEntry.setComment(entry.getFiletype());
+			int[] prodosType = getProdosType();
+			if (prodosType[0] >= 0) {
+				byte[] extra = new byte[7];
+				AppleUtil.setWordValue(extra, 0, PRODOS_EXTRA_FIELD);
+				AppleUtil.setWordValue(extra, 2, 3);
+				extra[4] = (byte) prodosType[0];
+				AppleUtil.setWordValue(extra, 5, prodosType[1]);
+				zipEntry.setExtra(extra);
+			}
+		}
+
+		/**
+		 * The pax attributes for a tar entry: the filetype and, for ProDOS
+		 * files, the filetype and auxiliary type in hex.  These are written
+		 * as extended attributes, which tar can restore with --xattrs.
+		 */
+		protected Map<String,String> getAttributes() {
+			Map<String,String> attributes = new LinkedHashMap<String,String>();
+			if (entry == null) return attributes;
+			attributes.put("SCHILY.xattr.user.applecommander.filetype", entry.getFiletype()); //$NON-NLS-1$
+			int[] prodosType = getProdosType();
+			if (prodosType[0] >= 0) {
+				attributes.put("SCHILY.xattr.user.prodos.filetype", //$NON-NLS-1$
+					AppleUtil.getFormattedByte(prodosType[0]));
+				attributes.put("SCHILY.xattr.user.prodos.auxtype", //$NON-NLS-1$
+					AppleUtil.getFormattedWord(prodosType[1]));
+			}
+			return attributes;
+		}
+	}
+
+	/**
+	 * A file to be extracted: the entry, the filter to apply (null for the
+	 * raw data) and the host file to write.
+	 */
+	static class ExtractedFile {
+		private FileEntry entry;
+		private FileFilter filter;
+		private File file;
+
+		public ExtractedFile(FileEntry entry, FileFilter filter, File file) {
+			this.entry = entry;
+			this.filter = filter;
+			this.file = file;
+		}
+
+		/**
+		 * Write the file, answering with the number of bytes written.
+		 */
+		public long extract() throws IOException {
+			CountingOutputStream output = new CountingOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file), EXTRACT_BUFFER_SIZE));
+			try {
+				if (filter != null) {
+					// Filters work on the whole file, so this is held in memory
+					byte[] buf = filter.filter(entry);
+					output.write(buf, 0, buf.length);
+				} else {
+					entry.getFormattedDisk().writeFileData(entry, output);
+				}
+			} finally {
+				output.close();
+			}
+			return output.getCount();
+		}
+	}
+
+	/**
+	 * Extract a range of groups of files, splitting the range until each
+	 * task has only a few groups.  The files in a group share a host file,
+	 * and are written in order.
+	 */
+	static class ExtractTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private List<List<ExtractedFile>> files;
+		private int from;
+		private int to;
+		private ExtractProgress progress;
+
+		public ExtractTask(List<List<ExtractedFile>> files, int from, int to, ExtractProgress progress) {
+			this.files = files;
+			this.from = from;
+			this.to = to;
+			this.progress = progress;
+		}
+
+		protected void compute() {
+			if (to - from <= FILES_PER_TASK) {
+				for (int i = from; i < to; i++) {
+					for (ExtractedFile file : files.get(i)) {
+						try {
+							progress.extracted(file.extract());
+						} catch (Exception e) {
+							progress.failed(file.file, e);
+						}
+					}
+				}
+			} else {
+				int middle = (from + to) / 2;
+				invokeAll(new ExtractTask(files, from, middle, progress),
+					new ExtractTask(files, middle, to, progress));
+			}
+		}
+	}
+
+	/**
+	 * Counts the files and bytes extracted, and reports on &lt;stderr&gt;
+	 * about once a second and when done.
+	 */
+	static class ExtractProgress {
+		private int total;
+		private int files;
+		private int failures;
+		private long bytes;
+		private long started = System.currentTimeMillis();
+		private long reported = started;
+
+		public ExtractProgress(int total) {
+			this.total = total;
+		}
+
+		public synchronized void extracted(long length) {
+			files++;
+			bytes+= length;
+			long now = System.currentTimeMillis();
+			if (now - reported >= PROGRESS_INTERVAL) {
+				reported = now;
+				System.err.println(format("CommandLineExtractProgress", now)); //$NON-NLS-1$
+			}
+		}
+
+		public synchronized void failed(File file, Exception e) {
+			failures++;
+			System.err.println(file.getPath() + ": " + e.getMessage()); //$NON-NLS-1$
+		}
+
+		public synchronized void finish() {
+			System.err.println(format("CommandLineExtractSummary", System.currentTimeMillis())); //$NON-NLS-1$
+		}
+
+		protected String format(String key, long now) {
+			long elapsed = Math.max(1, now - started);
+			return textBundle.format(key, new Object[] { Integer.valueOf(files),
+				Integer.valueOf(total), Long.valueOf(bytes / 1024),
+				Long.valueOf(bytes / elapsed * 1000 / 1024),
+				Long.valueOf(elapsed), Integer.valueOf(failures) });
+		}
+	}
+
+	/**
+	 * Counts the bytes written to a stream.
+	 */
+	static class CountingOutputStream extends FilterOutputStream {
+		private long count;
+
+		public CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count+= len;
+		}
+		public long getCount() {
+			return count;
+		}
+	}
+	
+	/**
+	 * Recursive routine to locate a specific file by filename; In the instance
+	 * of a system with directories (e.g. ProDOS), this really returns the first
+	 * file with the given filename.
+	 * @deprecated
+	 */
+	static FileEntry getEntry(List files, String fileName) {
+		FileEntry entry = null;
+		if (files != null) {
+			for (int i = 0; i < files.size(); i++) {
+				entry = (FileEntry) files.get(i);
+				String entryName = entry.getFilename();
+				if (!entry.isDeleted() && fileName.equalsIgnoreCase(entryName)) {
+					return entry;
+				}
+				if (entry.isDirectory()) {
+					entry = getEntry(((DirectoryEntry) entry).getFiles(), fileName);
+					if (entry != null) {
+						return entry;
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Display a directory listing of each disk in args.
+	 */
+	static void showDirectory(String[] args, final int display) throws IOException {
+		forEachImage(args, new ImageReport() {
+			public void report(String imageName, PrintStream out) throws IOException {
+				if (isCatalogUsed()) {
+					showCatalog(imageName, display, out);
+					return;
+				}
+				FormattedDisk[] formattedDisks = readFormattedDisks(imageName);
+				if (formattedDisks == null) {
+					throw new IOException(textBundle.get("CommandLineUnknownFormat")); //$NON-NLS-1$
+				}
+				try {
+					for (int i = 0; i < formattedDisks.length; i++) {
+						FormattedDisk formattedDisk = formattedDisks[i];
+						out.print(imageName + " ");
+						out.println(formattedDisk.getDiskName());
+						List<FileEntry> files = formattedDisk.getFiles();
+						if (files != null) {
+							showFiles(files, "", display, out); //$NON-NLS-1$
+						}
+						out.println(textBundle.format("CommandLineStatus", //$NON-NLS-1$
+							new Object[] { formattedDisk.getFormat(),
+							Integer.valueOf(formattedDisk.getFreeSpace()),
+							Integer.valueOf(formattedDisk.getUsedSpace()) }));
+						out.println();
+					}
+				} finally {
+					closeFormattedDisks(formattedDisks);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Produces the report on one image for a command which takes many images.
+	 */
+	interface ImageReport {
+		void report(String imageName, PrintStream out) throws IOException;
+	}
+
+	/**
+	 * Run the report on each image named in args (after the command).  The
+	 * images are read and reported on by a pool of jobs threads, but the
+	 * reports are printed in the order the images were given: each report
+	 * is collected in memory, and only a limited number are kept waiting
+	 * behind one that is slow.  An image which cannot be read is reported
+	 * as an error without stopping the others.  While a script runs, the
+	 * images are shared with the other commands, so they are reported on
+	 * one at a time.
+	 */
+	static void forEachImage(String[] args, ImageReport report) {
+		int parallelism = (session == null) ? Math.min(jobs, args.length - 1) : 1;
+		ReportQueue queue = new ReportQueue(report, parallelism);
+		for (int d = 1; d < args.length; d++) {
+			queue.add(args[d]);
+		}
+		queue.finish();
+	}
+
+	/**
+	 * Reports on images as they are added, printing the reports in the order
+	 * the images were added.  Each image is only held in memory while its
+	 * report is being made, so no more than parallelism images are ever
+	 * loaded at once.
+	 */
+	static class ReportQueue {
+		private ImageReport report;
+		/** The pool, or null when reporting on one image at a time. */
+		private ForkJoinPool pool;
+		private int limit;
+		private LinkedList<ForkJoinTask<String>> pending = new LinkedList<ForkJoinTask<String>>();
+
+		public ReportQueue(ImageReport report, int parallelism) {
+			this.report = report;
+			if (parallelism > 1) {
+				pool = new ForkJoinPool(parallelism);
+				limit = parallelism * PENDING_REPORTS_PER_JOB;
+			}
+		}
+
+		/**
+		 * Queue up the report on an image.  When too many reports are
+		 * waiting, this prints the oldest one first (waiting for it if need
+		 * be).
+		 */
+		public void add(String imageName) {
+			add(imageName, report);
+		}
+
+		/**
+		 * Queue up a report of its own for an image, such as an error found
+		 * before the image was read, to be printed in its place.
+		 */
+		public void add(String imageName, ImageReport imageReport) {
+			if (pool == null) {
+				System.out.print(new ReportTask(imageReport, imageName).call());
+				return;
+			}
+			if (pending.size() >= limit) {
+				System.out.print(pending.removeFirst().join());
+			}
+			pending.add(pool.submit(new ReportTask(imageReport, imageName)));
+		}
+
+		/**
+		 * Print the remaining reports and shut down the pool.
+		 */
+		public void finish() {
+			while (!pending.isEmpty()) {
+				System.out.print(pending.removeFirst().join());
+			}
+			if (pool != null) {
+				pool.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * Walk the directory tree, reporting on each disk image found as one
+	 * tab-separated line per volume: path, order, format, volume name,
+	 * number of files, free bytes, used bytes and "ok" or the error which
+	 * stopped the image from being read.  Images are recognized by their
+	 * names or their contents (see Disk.isDiskImage), and the images within
+	 * zip files are included.  An optional glob, matched against the path
+	 * relative to the directory, narrows down the files looked at.  Up to
+	 * jobs images are read at a time.
+	 */
+	static void scanImages(String directory, String glob) throws IOException {
+		final ReportQueue queue = new ReportQueue(new ImageReport() {
+			public void report(String imageName, PrintStream out) throws IOException {
+				scanImage(imageName, out);
+			}
+		}, (session == null) ? jobs : 1);
+		walkImages(directory, glob, new ImageVisitor() {
+			public void visit(String imageName) {
+				queue.add(imageName);
+			}
+			public void failed(String name, final IOException e) {
+				// Printed in its place among the images, not ahead of them
+				queue.add(name, new ImageReport() {
+					public void report(String imageName, PrintStream out) {
+						out.println(scanError(imageName, e));
+					}
+				});
+			}
+		});
+		queue.finish();
+	}
+
+	/**
+	 * Receives each disk image found by walkImages.
+	 */
+	interface ImageVisitor {
+		void visit(String imageName);
+		void failed(String name, IOException e);
+	}
+
+	/**
+	 * Walk the directory tree, handing each disk image found to the visitor.
+	 * Images are recognized by their names or their contents (see
+	 * Disk.isDiskImage), and the images within zip files are included.  An
+	 * optional glob, matched against the path relative to the directory,
+	 * narrows down the files looked at.
+	 */
+	static void walkImages(String directory, String glob, final ImageVisitor visitor) throws IOException {
+		final Path root = Paths.get(directory);
+		final PathMatcher matcher = (glob == null) ? null
+			: root.getFileSystem().getPathMatcher("glob:" + glob); //$NON-NLS-1$
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException {
+				if (!attrs.isRegularFile()
+						|| (matcher != null && !matcher.matches(root.relativize(path)))) {
+					return FileVisitResult.CONTINUE;
+				}
+				String name = path.toString();
+				File file = path.toFile();
+				try {
+					if (Disk.isZipName(name)) {
+						Iterator<String> iterator = Disk.getZipImageNames(name).iterator();
+						while (iterator.hasNext()) {
+							visitor.visit(iterator.next());
+						}
+					} else if (Disk.isDiskImage(file)) {
+						visitor.visit(name);
+					}
+				} catch (IOException e) {
+					visitor.failed(name, e);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+			public FileVisitResult visitFileFailed(Path path, IOException e) {
+				visitor.failed(path.toString(), e);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Bring the search index up to date with the images named in args
+	 * (after the command and the index file).  A directory stands for all
+	 * of the images under it, and a zip file for the images it holds.
+	 * Images which have not changed since they were indexed are not read
+	 * again, and up to jobs images are read at a time.
+	 */
+	static void updateIndex(String[] args) throws IOException {
+		final List<String> imageNames = new ArrayList<String>();
+		String[] names = expandImageNames(Arrays.copyOfRange(args, 1, args.length));
+		for (int d = 1; d < names.length; d++) {
+			if (new File(names[d]).isDirectory()) {
+				walkImages(names[d], null, new ImageVisitor() {
+					public void visit(String imageName) {
+						imageNames.add(imageName);
+					}
+					public void failed(String name, IOException e) {
+						System.err.println(name + ": " + e.getMessage()); //$NON-NLS-1$
+					}
+				});
+			} else {
+				imageNames.add(names[d]);
+			}
+		}
+		SearchIndex index = new SearchIndex(new File(args[1]));
+		Map<String,Exception> errors = new TreeMap<String,Exception>();
+		int count = index.update(imageNames, jobs, errors);
+		index.save();
+		for (Map.Entry<String,Exception> error : errors.entrySet()) {
+			System.err.println(error.getKey() + ": " //$NON-NLS-1$
+				+ error.getValue().getMessage());
+		}
+		System.err.println(textBundle.format("CommandLineIndexStatus", //$NON-NLS-1$
+			new Object[] { Integer.valueOf(imageNames.size()), Integer.valueOf(count),
+				Integer.valueOf(errors.size()) }));
+	}
+
+	/**
+	 * Search the index for the files matching every term in args (after the
+	 * command and the index file).  Each file is one tab-separated line:
+	 * image, path, filetype, auxiliary type, address and size, where a
+	 * missing auxiliary type or address is left empty.
+	 */
+	static void searchIndex(String[] args) throws IOException {
+		List<SearchIndex.Hit> hits = SearchIndex.search(new File(args[1]),
+			Arrays.copyOfRange(args, 2, args.length));
+		for (SearchIndex.Hit hit : hits) {
+			System.out.println(hit.getImageName()
+				+ "\t" + hit.getPath() //$NON-NLS-1$
+				+ "\t" + hit.getFiletype() //$NON-NLS-1$
+				+ "\t" + formatHex(hit.getAuxType()) //$NON-NLS-1$
+				+ "\t" + formatHex(hit.getAddress()) //$NON-NLS-1$
+				+ "\t" + hit.getSize()); //$NON-NLS-1$
+		}
+	}
+
+	static String formatHex(int value) {
+		return (value == SearchIndex.NONE) ? "" //$NON-NLS-1$
+			: "$" + AppleUtil.getFormattedWord(value); //$NON-NLS-1$
+	}
+
+	/**
+	 * Report each volume on one image found by scanImages.
+	 */
+	static void scanImage(String imageName, PrintStream out) {
+		if (isCatalogUsed()) {
+			try {
+				Iterator<CatalogCache.Volume> iterator = getCatalogEntry(imageName).getVolumes().iterator();
+				while (iterator.hasNext()) {
+					CatalogCache.Volume volume = iterator.next();
+					out.println(scanLine(imageName, volume.getOrderName(), volume.getFormat(),
+						volume.getDiskName(), volume.getFileCount(),
+						volume.getFreeSpace(), volume.getUsedSpace()));
+				}
+			} catch (Exception e) {
+				out.println(scanError(imageName, e));
+			}
+			return;
+		}
+		FormattedDisk[] formattedDisks;
+		try {
+			formattedDisks = readFormattedDisks(imageName);
+			if (formattedDisks == null) {
+				throw new IOException(textBundle.get("CommandLineUnknownFormat")); //$NON-NLS-1$
+			}
+		} catch (Exception e) {
+			out.println(scanError(imageName, e));
+			return;
+		}
+		for (int i = 0; i < formattedDisks.length; i++) {
+			FormattedDisk formattedDisk = formattedDisks[i];
+			try {
+				List<FileEntry> files = formattedDisk.getFiles();
+				out.println(scanLine(imageName, formattedDisk.getOrderName(),
+					formattedDisk.getFormat(), formattedDisk.getDiskName(),
+					(files == null ? 0 : countFiles(files)),
+					formattedDisk.getFreeSpace(), formattedDisk.getUsedSpace()));
+			} catch (RuntimeException e) {
+				out.println(scanError(imageName, e));
+			}
+		}
+		closeFormattedDisks(formattedDisks);
+	}
+
+	/**
+	 * A scan line for one volume.
+	 */
+	static String scanLine(String imageName, String orderName, String format,
+			String diskName, int fileCount, int freeSpace, int usedSpace) {
+		return imageName
+			+ "\t" + orderName //$NON-NLS-1$
+			+ "\t" + format //$NON-NLS-1$
+			+ "\t" + diskName //$NON-NLS-1$
+			+ "\t" + fileCount //$NON-NLS-1$
+			+ "\t" + freeSpace //$NON-NLS-1$
+			+ "\t" + usedSpace //$NON-NLS-1$
+			+ "\tok"; //$NON-NLS-1$
+	}
+
+	/**
+	 * Indicates if listings come from the catalog given with -cache.  While
+	 * a script runs, images may have unsaved changes, so they are always
+	 * read.
+	 */
+	static boolean isCatalogUsed() {
+		return catalogCache != null && session == null;
+	}
+
+	/**
+	 * Answer with the catalog entry of an image, reading the image and
+	 * adding it to the catalog if it is new or has changed.  An image which
+	 * cannot be read is cataloged with its error, which is thrown.
+	 */
+	static CatalogCache.Entry getCatalogEntry(String imageName) throws IOException {
+		CatalogCache.Entry entry = catalogCache.lookup(imageName);
+		if (entry == null) {
+			FormattedDisk[] formattedDisks = null;
+			String error = null;
+			try {
+				formattedDisks = readFormattedDisks(imageName);
+				if (formattedDisks == null) {
+					error = textBundle.get("CommandLineUnknownFormat"); //$NON-NLS-1$
+				}
+			} catch (RuntimeException e) {
+				error = (e.getMessage() == null) ? e.toString() : e.getMessage();
+			}
+			if (error == null) {
+				try {
+					entry = catalogCache.add(imageName, formattedDisks);
+				} finally {
+					closeFormattedDisks(formattedDisks);
+				}
+			} else {
+				entry = catalogCache.addError(imageName, error);
+			}
+		}
+		if (entry.getError() != null) {
+			throw new IOException(entry.getError());
+		}
+		return entry;
+	}
+
+	/**
+	 * Display the directory listing of an image from the catalog.
+	 */
+	static void showCatalog(String imageName, int display, PrintStream out) throws IOException {
+		Iterator<CatalogCache.Volume> iterator = getCatalogEntry(imageName).getVolumes().iterator();
+		while (iterator.hasNext()) {
+			CatalogCache.Volume volume = iterator.next();
+			out.print(imageName + " ");
+			out.println(volume.getDiskName());
+			Iterator<CatalogCache.CatalogFile> files = volume.getFiles().iterator();
+			while (files.hasNext()) {
+				CatalogCache.CatalogFile file = files.next();
+				for (int i = 0; i < file.getDepth(); i++) {
+					out.print("  "); //$NON-NLS-1$
+				}
+				List<String> data = file.getFileColumnData(display);
+				for (int d = 0; d < data.size(); d++) {
+					out.print(data.get(d));
+					out.print(" "); //$NON-NLS-1$
+				}
+				out.println();
+			}
+			out.println(textBundle.format("CommandLineStatus", //$NON-NLS-1$
+				new Object[] { volume.getFormat(),
+				Integer.valueOf(volume.getFreeSpace()),
+				Integer.valueOf(volume.getUsedSpace()) }));
+			out.println();
+		}
+	}
+
+	/**
+	 * A scan line for an image which could not be read.
+	 */
+	static String scanError(String imageName, Exception e) {
+		String message = (e.getMessage() == null) ? e.toString() : e.getMessage();
+		return imageName + "\t\t\t\t\t\t\t" //$NON-NLS-1$
+			+ message.replace('\t', ' ').replace('\n', ' ');
+	}
+
+	/**
+	 * Count the files (but not directories) in a directory tree.
+	 */
+	static int countFiles(List<FileEntry> files) {
+		int count = 0;
+		for (int i = 0; i < files.size(); i++) {
+			FileEntry entry = files.get(i);
+			if (entry.isDeleted()) continue;
+			if (entry.isDirectory()) {
+				count+= countFiles(((DirectoryEntry) entry).getFiles());
+			} else {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Collects the report on one image, or the error that stopped it.
+	 */
+	static class ReportTask implements Callable<String> {
+		private ImageReport report;
+		private String imageName;
+
+		public ReportTask(ImageReport report, String imageName) {
+			this.report = report;
+			this.imageName = imageName;
+		}
+
+		public String call() {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			PrintStream out = new PrintStream(buffer);
+			try {
+				report.report(imageName, out);
+			} catch (Exception e) {
+				out.println(imageName + ": " + e.getMessage()); //$NON-NLS-1$
+				out.println();
+			}
+			out.flush();
+			return buffer.toString();
+		}
+	}
+
+	/**
+	 * Recursive routine to display directory entries. In the instance of a
+	 * system with directories (e.g. ProDOS), this really returns the first file
+	 * with the given filename.
+	 */
+	static void showFiles(List<FileEntry> files, String indent, int display) {
+		showFiles(files, indent, display, System.out);
+	}
+
+	/**
+	 * Recursive routine to display directory entries on the given stream.
+	 */
+	static void showFiles(List<FileEntry> files, String indent, int display, PrintStream out) {
+		for (int i = 0; i < files.size(); i++) {
+			FileEntry entry = files.get(i);
+			if (!entry.isDeleted()) {
+				List<String> data = entry.getFileColumnData(display);
+				out.print(indent);
+				for (int d = 0; d < data.size(); d++) {
+					out.print(data.get(d));
+					out.print(" "); //$NON-NLS-1$
+				}
+				out.println();
+			}
+			if (entry.isDirectory()) {
+				showFiles(((DirectoryEntry) entry).getFiles(),
+					indent + "  ", display, out); //$NON-NLS-1$
+			}
+		}
+	}
+
+	/**
+	 * Display information about each disk in args.
+	 */
+	static void getDiskInfo(String[] args) throws IOException {
+		forEachImage(args, new ImageReport() {
+			public void report(String imageName, PrintStream out) throws IOException {
+				if (isCatalogUsed()) {
+					Iterator<CatalogCache.Volume> iterator = getCatalogEntry(imageName).getVolumes().iterator();
+					while (iterator.hasNext()) {
+						CatalogCache.Volume volume = iterator.next();
+						Iterator<Map.Entry<String,String>> info = volume.getDiskInformation().entrySet().iterator();
+						while (info.hasNext()) {
+							Map.Entry<String,String> diskinfo = info.next();
+							out.println(diskinfo.getKey() + ": " + diskinfo.getValue());
+						}
+					}
+					out.println();
+					return;
+				}
+				FormattedDisk[] formattedDisks = readFormattedDisks(imageName);
+				if (formattedDisks == null) {
+					throw new IOException(textBundle.get("CommandLineUnknownFormat")); //$NON-NLS-1$
+				}
+				try {
+					for (int i = 0; i < formattedDisks.length; i++) {
+						FormattedDisk formattedDisk = formattedDisks[i];
+						Iterator<DiskInformation> iterator = formattedDisk.getDiskInformation().iterator();
+						while (iterator.hasNext()) {
+							DiskInformation diskinfo = iterator.next();
+							out.println(diskinfo.getLabel() + ": " + diskinfo.getValue());
+						}
+					}
+				} finally {
+					closeFormattedDisks(formattedDisks);
+				}
+				out.println();
+			}
+		});
+	}
+
+	/**
+	 * Check the consistency of each disk in args, optionally rebuilding the
+	 * bitmap.  Each problem is listed on its own line, prefixed with the
+	 * image name.
+	 */
+	static void checkDisks(String[] args, boolean repair) throws IOException {
+		for (int d = 1; d < args.length; d++) {
+			try {
+				Disk disk = openDisk(args[d]);
+				if (repair && (disk.isSDK() || disk.isDC42())) {
+					throw new IOException(textBundle.get("CommandLineSDKReadOnly")); //$NON-NLS-1$
+				}
+				boolean repaired = false;
+				FormattedDisk[] formattedDisks = getFormattedDisks(disk);
+				for (int i = 0; i < formattedDisks.length; i++) {
+					FormattedDisk formattedDisk = formattedDisks[i];
+					DiskCheck check = formattedDisk.checkDisk(repair);
+					if (check == null) {
+						System.out.println(args[d] + ": " + textBundle.format( //$NON-NLS-1$
+							"CommandLineCheckNotSupported", formattedDisk.getFormat())); //$NON-NLS-1$
+						continue;
+					}
+					Iterator<DiskCheck.Problem> iterator = check.getProblems().iterator();
+					while (iterator.hasNext()) {
+						System.out.println(args[d] + ": " + iterator.next()); //$NON-NLS-1$
+					}
+					System.out.println(args[d] + ": " + textBundle.format( //$NON-NLS-1$
+						"CommandLineCheckStatus", //$NON-NLS-1$
+						check.getFilesChecked(), check.getProblems().size()));
+					if (check.isRepaired()) {
+						System.out.println(args[d] + ": " //$NON-NLS-1$
+							+ textBundle.get("CommandLineCheckRepaired")); //$NON-NLS-1$
+						repaired = true;
+					}
+				}
+				if (repaired) {
+					saveDisk(disk);
+				}
+			} catch (RuntimeException e) {
+				System.out.println(args[d] + ": " + e.getMessage()); //$NON-NLS-1$
+			}
+		}
+	}
+
+	/**
+	 * Report the fragmentation of each disk in args.  The output is meant
+	 * for other programs: one tab-separated "volume" line per disk
+	 * (image, format, units, free units, free runs, largest free run, files,
+	 * fragmented files, extents, average run, seek tracks, score) followed
+	 * by a "file" line for each file (image, path, units, extents, average
+	 * run, seek tracks).
+	 */
+	static void showFragmentation(String[] args) throws IOException {
+		for (int d = 1; d < args.length; d++) {
+			try {
+				Disk disk = openDisk(args[d]);
+				FormattedDisk[] formattedDisks = getFormattedDisks(disk);
+				for (int i = 0; i < formattedDisks.length; i++) {
+					FormattedDisk formattedDisk = formattedDisks[i];
+					FragmentationReport report = FragmentationReport.analyze(formattedDisk);
+					if (report == null) {
+						System.err.println(args[d] + ": " + textBundle.format( //$NON-NLS-1$
+							"CommandLineFragNotSupported", formattedDisk.getFormat())); //$NON-NLS-1$
+						continue;
+					}
+					System.out.println("volume\t" + args[d] //$NON-NLS-1$
+						+ "\t" + formattedDisk.getFormat() //$NON-NLS-1$
+						+ "\t" + report.getLength() //$NON-NLS-1$
+						+ "\t" + report.getFreeUnits() //$NON-NLS-1$
+						+ "\t" + report.getFreeRuns() //$NON-NLS-1$
+						+ "\t" + report.getLargestFreeRun() //$NON-NLS-1$
+						+ "\t" + report.getFiles().size() //$NON-NLS-1$
+						+ "\t" + report.getFragmentedFiles() //$NON-NLS-1$
+						+ "\t" + report.getFileExtents() //$NON-NLS-1$
+						+ "\t" + formatRun(report.getAverageRunLength()) //$NON-NLS-1$
+						+ "\t" + report.getSeekTracks() //$NON-NLS-1$
+						+ "\t" + report.getScore()); //$NON-NLS-1$
+					Iterator<FragmentationReport.FileFragmentation> iterator = report.getFiles().iterator();
+					while (iterator.hasNext()) {
+						FragmentationReport.FileFragmentation file = iterator.next();
+						System.out.println("file\t" + args[d] //$NON-NLS-1$
+							+ "\t" + file.getPath() //$NON-NLS-1$
+							+ "\t" + file.getUnits() //$NON-NLS-1$
+							+ "\t" + file.getExtents() //$NON-NLS-1$
+							+ "\t" + formatRun(file.getAverageRunLength()) //$NON-NLS-1$
+							+ "\t" + file.getSeekTracks()); //$NON-NLS-1$
+					}
+				}
+			} catch (RuntimeException e) {
+				System.err.println(args[d] + ": " + e.getMessage()); //$NON-NLS-1$
+			}
+		}
+	}
+
+	/**
+	 * List the deleted files found on each disk in args.  The images are
+	 * scanned in parallel.  Each file is one tab-separated line (image,
+	 * filename, filetype, units, free units, score); a score of 100 means
+	 * the file can be restored in place.
+	 */
+	static void showDeletedFiles(String[] args) {
+		List<String> filenames = Arrays.asList(args).subList(1, args.length);
+		Map<String,Exception> errors = new HashMap<>();
+		List<RecoveryCandidate> candidates = DeletedFileScanner.scanImages(filenames, errors);
+		for (RecoveryCandidate candidate : candidates) {
+			System.out.println(candidate.getFormattedDisk().getFilename()
+				+ "\t" + candidate.getFilename() //$NON-NLS-1$
+				+ "\t" + candidate.getFiletype() //$NON-NLS-1$
+				+ "\t" + candidate.getUnits().length //$NON-NLS-1$
+				+ "\t" + candidate.getFreeUnits() //$NON-NLS-1$
+				+ "\t" + candidate.getScore()); //$NON-NLS-1$
+		}
+		for (Map.Entry<String,Exception> error : errors.entrySet()) {
+			System.err.println(error.getKey() + ": " //$NON-NLS-1$
+				+ error.getValue().getMessage());
+		}
+	}
+
+	/**
+	 * Recover the deleted file named fileName from the disk named imageName.
+	 * Without a target, the file is restored in place (which needs every
+	 * block or sector to still be free); otherwise, what remains of the file
+	 * is copied onto the disk named targetName.
+	 */
+	static void undeleteFile(String imageName, String fileName, String targetName)
+		throws IOException, DiskFullException {
+		Disk disk = openDisk(imageName);
+		if (targetName == null && (disk.isSDK() || disk.isDC42())) {
+			throw new IOException(textBundle.get("CommandLineSDKReadOnly")); //$NON-NLS-1$
+		}
+		FormattedDisk[] formattedDisks = getFormattedDisks(disk);
+		for (int i = 0; i < formattedDisks.length; i++) {
+			DeletedFileScanner scanner = formattedDisks[i].getDeletedFileScanner();
+			if (scanner == null) continue;
+			for (RecoveryCandidate candidate : scanner.scan()) {
+				if (candidate.getFilename().equalsIgnoreCase(fileName)) {
+					if (targetName == null) {
+						scanner.restore(candidate);
+						saveDisk(disk);
+					} else {
+						Disk target = openDisk(targetName);
+						if (target.isSDK() || target.isDC42()) {
+							throw new IOException(textBundle.get("CommandLineSDKReadOnly")); //$NON-NLS-1$
+						}
+						scanner.copyTo(candidate, getFormattedDisks(target)[0]);
+						saveDisk(target);
+					}
+					return;
+				}
+			}
+		}
+		System.err.println(textBundle.format(
+			"CommandLineNoMatchMessage", fileName)); //$NON-NLS-1$
+	}
+
+	/**
+	 * Format an average run length with two decimal places, independent of
+	 * the locale (the output is meant to be parsed).
+	 */
+	static String formatRun(double run) {
+		return String.format(Locale.ROOT, "%.2f", Double.valueOf(run)); //$NON-NLS-1$
+	}
+
+	/**
+	 * Set the lockState of the file named fileName on the disk named imageName.
+	 * Proposed by David Schmidt.
+	 */
+	public static void setFileLocked(String imageName, String name, boolean lockState) throws IOException {
+		setFileLocked(imageName, new Name(name), lockState);
 	}
 
 	/**
@@ -470,15 +2996,15 @@ public class ac {
 	 */
 	static void setFileLocked(String imageName, Name name,
 		boolean lockState) throws IOException {
-		Disk disk = new Disk(imageName);
+		Disk disk = openDisk(imageName);
 		if (!disk.isSDK() && !disk.isDC42()) {
-			FormattedDisk[] formattedDisks = disk.getFormattedDisks();
+			FormattedDisk[] formattedDisks = getFormattedDisks(disk);
 			for (int i = 0; i < formattedDisks.length; i++) {
 				FormattedDisk formattedDisk = formattedDisks[i];
 				FileEntry entry = name.getEntry(formattedDisk);
 				if (entry != null) {
 					entry.setLocked(lockState);
-					disk.save();
+					saveDisk(disk);
 				} else {
 					System.err.println(textBundle.format(
 						"CommandLineNoMatchMessage", name.fullName)); //$NON-NLS-1$
@@ -495,12 +3021,12 @@ public class ac {
 	 */
 	public static void setDiskName(String imageName, String volName)
 		throws IOException {
-		Disk disk = new Disk(imageName);
+		Disk disk = openDisk(imageName);
 		if (!disk.isSDK() && !disk.isDC42()) {
-			FormattedDisk[] formattedDisks = disk.getFormattedDisks();
+			FormattedDisk[] formattedDisks = getFormattedDisks(disk);
 			FormattedDisk formattedDisk = formattedDisks[0];
 			formattedDisk.setDiskName(volName);
-			formattedDisks[0].save();
+			saveDisk(formattedDisks[0]);
 		}
 		else
 			throw new IOException(textBundle.get("CommandLineSDKReadOnly"));
@@ -514,7 +3040,7 @@ public class ac {
 		ByteArrayImageLayout layout = new ByteArrayImageLayout(imageSize);
 		ImageOrder imageOrder = new DosOrder(layout);
 		FormattedDisk[] disks = DosFormatDisk.create(fileName, imageOrder);
-		disks[0].save();
+		createDisk(fileName, disks);
 	}
 
 	/**
@@ -525,7 +3051,7 @@ public class ac {
 		ByteArrayImageLayout layout = new ByteArrayImageLayout(imageSize);
 		ImageOrder imageOrder = new ProdosOrder(layout);
 		FormattedDisk[] disks = PascalFormatDisk.create(fileName, volName, imageOrder);
-		disks[0].save();
+		createDisk(fileName, disks);
 	}
 
 	/**
@@ -536,7 +3062,7 @@ public class ac {
 		ByteArrayImageLayout layout = new ByteArrayImageLayout(imageSize);
 		ImageOrder imageOrder = new ProdosOrder(layout);
 		FormattedDisk[] disks = ProdosFormatDisk.create(fileName, volName, imageOrder);
-		disks[0].save();
+		createDisk(fileName, disks);
 	}
 
 	/**
@@ -562,7 +3088,7 @@ public class ac {
 		throws IOException {
 		Disk disk = new Disk(shrinkName, imageSize);
 		disk.setFilename(imageName);
-		disk.save();
+		createDisk(imageName, disk);
 	}
 
 	static int stringToInt(String s) {
@@ -22,6 +22,8 @@ package com.webcodepro.applecommander.ui.swt;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.custom.CTabFolder;
 import org.eclipse.swt.custom.CTabItem;
+import org.eclipse.swt.events.MouseAdapter;
+import org.eclipse.swt.events.MouseEvent;
 import org.eclipse.swt.events.PaintEvent;
 import org.eclipse.swt.events.PaintListener;
 import org.eclipse.swt.graphics.Color;
@@ -35,8 +37,9 @@ import org.eclipse.swt.widgets.Canvas;
 import org.eclipse.swt.widgets.Composite;
 import org.eclipse.swt.widgets.Label;
 
+import com.webcodepro.applecommander.storage.DiskOwnershipMap;
+import com.webcodepro.applecommander.storage.DiskUsageSnapshot;
 import com.webcodepro.applecommander.storage.FormattedDisk;
-import com.webcodepro.applecommander.storage.FormattedDisk.DiskUsage;
 import com.webcodepro.applecommander.ui.UiBundle;
 import com.webcodepro.applecommander.util.TextBundle;
 
@@ -55,6 +58,13 @@ public class DiskMapTab {
 	private Color usedFill;
 	private Color black;
 	private Color gray;
+	private Color selectedFill;
+	private Color crossLinkedFill;
+	// layout of the most recently painted map - used to locate mouse clicks
+	private int mapXdim;
+	private int mapYdim;
+	private Rectangle mapArea;
+	private int selectedOwner = DiskOwnershipMap.NO_OWNER;
 	/**
 	 * Construct the DiskMapTab.
 	 */
@@ -66,6 +76,8 @@ public class DiskMapTab {
 		usedFill = new Color(tabFolder.getDisplay(), 200,100,100);
 		black = new Color(tabFolder.getDisplay(), 0,0,0);
 		gray = new Color(tabFolder.getDisplay(), 50,50,50);
+		selectedFill = new Color(tabFolder.getDisplay(), 220,200,60);
+		crossLinkedFill = new Color(tabFolder.getDisplay(), 140,60,200);
 		
 		createDiskMapTab(tabFolder);
 	}
@@ -140,6 +152,11 @@ public class DiskMapTab {
 				paintMap(event);
 			}
 		});
+		map.addMouseListener(new MouseAdapter() {
+			public void mouseDown(MouseEvent event) {
+				selectUnit((Canvas) event.widget, event.x, event.y);
+			}
+		});
 		map.setLayoutData(data);
 		
 		// ROW #5
@@ -162,6 +179,8 @@ public class DiskMapTab {
 		usedFill.dispose();
 		black.dispose();
 		gray.dispose();
+		selectedFill.dispose();
+		crossLinkedFill.dispose();
 	}
 	/**
 	 * Handle paint requests for horizontal ruler.
@@ -200,12 +219,13 @@ public class DiskMapTab {
 	 * Handle paint requests for disk map.
 	 */
 	protected void paintMap(PaintEvent event) {
-		if (disk.getDiskUsage() == null) {
+		DiskUsageSnapshot usage = disk.getUsageSnapshot();
+		if (usage == null) {
 			paintNoMap(event);
-		} else if (disk.getBitmapDimensions() == null) {
-			paintBlockMap(event);
+		} else if (usage.getDimensions() == null) {
+			paintBlockMap(usage, event);
 		} else {
-			paintSectorMap(event);
+			paintSectorMap(usage, event);
 		}
 	}
 	/**
@@ -216,30 +236,31 @@ public class DiskMapTab {
 		Canvas canvas = (Canvas) event.widget;
 
 		int height = event.gc.getFontMetrics().getHeight();
-		String freeText = textBundle.get("DiskMapTab.FreeLegend"); //$NON-NLS-1$
-		String usedText = textBundle.get("DiskMapTab.UsedLegend"); //$NON-NLS-1$
+		String[] texts = new String[] {
+			textBundle.get("DiskMapTab.FreeLegend"), //$NON-NLS-1$
+			textBundle.get("DiskMapTab.UsedLegend"), //$NON-NLS-1$
+			textBundle.get("DiskMapTab.SelectedLegend"), //$NON-NLS-1$
+			textBundle.get("DiskMapTab.CrossLinkedLegend") //$NON-NLS-1$
+		};
+		Color[] fills = new Color[] { freeFill, usedFill, selectedFill, crossLinkedFill };
 		int padding = 50;	// space between items
 		
-		int totalWidth =
-			(height + 5) * 2		// free/used box
-			+ event.gc.textExtent(freeText).x
-			+ event.gc.textExtent(usedText).x;
+		int totalWidth = padding * (texts.length - 1);
+		for (int i=0; i<texts.length; i++) {
+			totalWidth+= height + event.gc.textExtent(texts[i]).x;
+		}
 			
-		int offset = canvas.getClientArea().width / 2 - totalWidth;
+		int offset = (canvas.getClientArea().width - totalWidth) / 2;
 		
-		Rectangle box = new Rectangle(offset, 0, height, height);
-		drawBox(box, event.gc, freeFill, black, gray);
-		offset+= height;
-		event.gc.setBackground(background);
-		event.gc.drawText(freeText, offset, 0);
-		offset+= event.gc.textExtent(freeText).x;
-
-		offset+= padding;
-		box = new Rectangle(offset, 0, height, height);
-		drawBox(box, event.gc, usedFill, black, gray);
-		offset+= height;
-		event.gc.setBackground(background);
-		event.gc.drawText(usedText, offset, 0);
+		for (int i=0; i<texts.length; i++) {
+			if (i > 0) offset+= padding;
+			Rectangle box = new Rectangle(offset, 0, height, height);
+			drawBox(box, event.gc, fills[i], black, gray);
+			offset+= height;
+			event.gc.setBackground(background);
+			event.gc.drawText(texts[i], offset, 0);
+			offset+= event.gc.textExtent(texts[i]).x;
+		}
 	}
 	/**
 	 * Display message to user regarding no disk map being available.
@@ -250,21 +271,21 @@ public class DiskMapTab {
 	/**
 	 * Paint a track/sector map.
 	 */	
-	private void paintSectorMap(PaintEvent event) {
-		int[] dimensions = disk.getBitmapDimensions();
+	private void paintSectorMap(DiskUsageSnapshot usage, PaintEvent event) {
+		int[] dimensions = usage.getDimensions();
 		int ydim = dimensions[1];
 		int xdim = dimensions[0];
 		
-		paintDiskMap(xdim, ydim, event);
+		paintDiskMap(xdim, ydim, usage, event);
 	}
 	/**
 	 * Paint a block map.
 	 */	
-	private void paintBlockMap(PaintEvent event) {
+	private void paintBlockMap(DiskUsageSnapshot usage, PaintEvent event) {
 		Canvas canvas = (Canvas) event.widget;
 		Rectangle area = canvas.getClientArea();
 
-		double blocks = disk.getBitmapLength();
+		double blocks = usage.getLength();
 		double width = area.width;
 		double height = area.height;
 		double factor = Math.sqrt(blocks / (width * height));
@@ -277,16 +298,20 @@ public class DiskMapTab {
 			ydim++;
 		}
 		
-		paintDiskMap(xdim, ydim, event);
+		paintDiskMap(xdim, ydim, usage, event);
 	}
 	/**
 	 * Paint a map with the given dimensions.
 	 */
-	private void paintDiskMap(int xdim, int ydim, PaintEvent event) {
+	private void paintDiskMap(int xdim, int ydim, DiskUsageSnapshot usage, PaintEvent event) {
 		Canvas canvas = (Canvas) event.widget;
 		Rectangle area = canvas.getClientArea();
 		area.width-= 2;
 		area.height-= 2;
+		mapXdim = xdim;
+		mapYdim = ydim;
+		mapArea = area;
+		DiskOwnershipMap owners = disk.getOwnershipMap();
 
 		int[] ypos = new int[ydim + 1];
 		for (int i=0; i<ydim; i++) {
@@ -301,22 +326,93 @@ public class DiskMapTab {
 		
 		Image image = new Image(canvas.getDisplay(), area);
 		GC gc = new GC(image);
-		int x = 0;
-		int y = 0;
-		DiskUsage usage = disk.getDiskUsage();
-		for (x=0; x<xdim && usage.hasNext(); x++) {
-			for (y=0; y<ydim && usage.hasNext(); y++) {
-				usage.next();
-				boolean free = usage.isFree();
+		int length = usage.getLength();
+		int unit = 0;
+		for (int x=0; x<xdim && unit<length; x++) {
+			for (int y=0; y<ydim && unit<length; y++) {
+				Color fill = usage.isFree(unit) ? freeFill : usedFill;
+				if (owners != null) {
+					if (owners.isCrossLinked(unit)) {
+						fill = crossLinkedFill;
+					} else if (selectedOwner != DiskOwnershipMap.NO_OWNER
+							&& owners.getOwner(unit) == selectedOwner) {
+						fill = selectedFill;
+					}
+				}
+				unit++;
 				Rectangle box = new Rectangle(xpos[x], ypos[y], 
 						xpos[x+1]-xpos[x], ypos[y+1]-ypos[y]);
-				drawBox(box, gc, free ? freeFill : usedFill, black, gray);
+				drawBox(box, gc, fill, black, gray);
 			}
 		}
 		event.gc.drawImage(image, 0, 0);
 		gc.dispose();
 		image.dispose();
 	}
+	/**
+	 * Identify the block or sector under the mouse, highlight the file
+	 * which owns it and describe it in the tooltip.
+	 */
+	protected void selectUnit(Canvas map, int mouseX, int mouseY) {
+		DiskOwnershipMap owners = disk.getOwnershipMap();
+		if (owners == null || mapArea == null || mapArea.width <= 0 || mapArea.height <= 0) {
+			return;
+		}
+		int x = ((mouseX - 1) * mapXdim) / mapArea.width;
+		int y = ((mouseY - 1) * mapYdim) / mapArea.height;
+		if (x < 0 || x >= mapXdim || y < 0 || y >= mapYdim) {
+			return;
+		}
+		int unit = x * mapYdim + y;
+		if (unit >= owners.getLength()) {
+			return;
+		}
+		String location = describeUnit(unit);
+		int owner = owners.getOwner(unit);
+		String message;
+		if (owners.isCrossLinked(unit)) {
+			int[] ids = owners.getOwners(unit);
+			StringBuffer names = new StringBuffer();
+			for (int i=0; i<ids.length; i++) {
+				if (i > 0) names.append(", "); //$NON-NLS-1$
+				names.append(getOwnerName(owners, ids[i]));
+			}
+			message = textBundle.format("DiskMapTab.UnitCrossLinked", //$NON-NLS-1$
+					new Object[] { location, names.toString() });
+		} else if (owner == DiskOwnershipMap.SYSTEM_OWNER) {
+			message = textBundle.format("DiskMapTab.UnitSystem", location); //$NON-NLS-1$
+		} else if (owner >= 0) {
+			message = textBundle.format("DiskMapTab.UnitOwner", //$NON-NLS-1$
+					new Object[] { location, getOwnerName(owners, owner) });
+		} else if (disk.getUsageSnapshot().isFree(unit)) {
+			message = textBundle.format("DiskMapTab.UnitFree", location); //$NON-NLS-1$
+		} else {
+			message = textBundle.format("DiskMapTab.UnitUnowned", location); //$NON-NLS-1$
+		}
+		selectedOwner = (owner >= 0) ? owner : DiskOwnershipMap.NO_OWNER;
+		map.setToolTipText(message);
+		map.redraw();
+	}
+	/**
+	 * Describe a block or sector using the bitmap labels.
+	 */
+	protected String describeUnit(int unit) {
+		String[] labels = disk.getBitmapLabels();
+		if (labels.length == 2 && mapYdim > 0) {
+			return labels[0] + " " + (unit / mapYdim) + ", "  //$NON-NLS-1$ //$NON-NLS-2$
+				+ labels[1] + " " + (unit % mapYdim); //$NON-NLS-1$
+		}
+		return labels[0] + " " + unit; //$NON-NLS-1$
+	}
+	/**
+	 * Get the name of an owner.
+	 */
+	protected String getOwnerName(DiskOwnershipMap owners, int owner) {
+		if (owner == DiskOwnershipMap.SYSTEM_OWNER) {
+			return textBundle.get("DiskMapTab.SystemOwner"); //$NON-NLS-1$
+		}
+		return owners.getPath(owner);
+	}
 	/**
 	 * Draw a box on the screen.  The shadowed box is only drawn if there is
 	 * enough space within the box; otherwise, the box is just filled in with
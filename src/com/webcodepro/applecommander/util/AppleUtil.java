@@ -262,17 +262,21 @@ public class AppleUtil {
 	  * Set a Pascal data to the buffer.<br>
 	  * Bits 0-3: month (1-12)<br>
 	  * Bits 4-8: day (1-31)<br>
-	  * Bits 9-15: year (0-99)
+	  * Bits 9-15: year (0-99)<br>
+	  * A null date is written as zero.
 	  */
 	public static void setPascalDate(byte[] buffer, int offset, Date date) {
-		GregorianCalendar gc = new GregorianCalendar();
-		gc.setTime(date);
-		int month = gc.get(Calendar.MONTH) + 1;
-		int day = gc.get(Calendar.DAY_OF_MONTH);
-		int year = gc.get(Calendar.YEAR) % 100;
-		int pascalDate = (month & 0x000f)
-			| ((day << 4) & 0x01f0)
-			| ((year << 9) & 0xfe00);
+		int pascalDate = 0;
+		if (date != null) {
+			GregorianCalendar gc = new GregorianCalendar();
+			gc.setTime(date);
+			int month = gc.get(Calendar.MONTH) + 1;
+			int day = gc.get(Calendar.DAY_OF_MONTH);
+			int year = gc.get(Calendar.YEAR) % 100;
+			pascalDate = (month & 0x000f)
+				| ((day << 4) & 0x01f0)
+				| ((year << 9) & 0xfe00);
+		}
 		setWordValue(buffer, offset, pascalDate);
 	}
 
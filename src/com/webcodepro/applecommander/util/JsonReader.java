@@ -0,0 +1,220 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2002 by Robert Greene
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.util;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads JSON text into plain Java objects: an object becomes a Map which
+ * keeps its members in order, an array a List, a string a String, a number
+ * a Long (or a Double if it has a fraction or exponent), and true, false
+ * and null become Boolean.TRUE, Boolean.FALSE and null.  This is meant for
+ * small files written by hand, such as build manifests.
+ */
+public class JsonReader {
+	private Reader reader;
+	private int ch;
+	private int line = 1;
+
+	public JsonReader(Reader reader) throws IOException {
+		this.reader = reader;
+		next();
+	}
+
+	/**
+	 * Read the one value the text holds.
+	 * @throws IOException if the text is not valid JSON
+	 */
+	public Object read() throws IOException {
+		Object value = readValue();
+		skipWhitespace();
+		if (ch >= 0) {
+			throw error("end of text"); //$NON-NLS-1$
+		}
+		return value;
+	}
+
+	protected Object readValue() throws IOException {
+		skipWhitespace();
+		if (ch == '{') {
+			return readObject();
+		} else if (ch == '[') {
+			return readArray();
+		} else if (ch == '"') {
+			return readString();
+		} else if (ch == '-' || (ch >= '0' && ch <= '9')) {
+			return readNumber();
+		} else if (ch == 't') {
+			readWord("true"); //$NON-NLS-1$
+			return Boolean.TRUE;
+		} else if (ch == 'f') {
+			readWord("false"); //$NON-NLS-1$
+			return Boolean.FALSE;
+		} else if (ch == 'n') {
+			readWord("null"); //$NON-NLS-1$
+			return null;
+		}
+		throw error("a value"); //$NON-NLS-1$
+	}
+
+	protected Map<String,Object> readObject() throws IOException {
+		Map<String,Object> object = new LinkedHashMap<String,Object>();
+		next();
+		skipWhitespace();
+		if (ch == '}') {
+			next();
+			return object;
+		}
+		while (true) {
+			skipWhitespace();
+			if (ch != '"') {
+				throw error("a member name"); //$NON-NLS-1$
+			}
+			String name = readString();
+			skipWhitespace();
+			expect(':');
+			object.put(name, readValue());
+			skipWhitespace();
+			if (ch == '}') {
+				next();
+				return object;
+			}
+			expect(',');
+		}
+	}
+
+	protected List<Object> readArray() throws IOException {
+		List<Object> array = new ArrayList<Object>();
+		next();
+		skipWhitespace();
+		if (ch == ']') {
+			next();
+			return array;
+		}
+		while (true) {
+			array.add(readValue());
+			skipWhitespace();
+			if (ch == ']') {
+				next();
+				return array;
+			}
+			expect(',');
+		}
+	}
+
+	protected String readString() throws IOException {
+		StringBuffer string = new StringBuffer();
+		next();
+		while (ch != '"') {
+			if (ch < 0 || ch == '\n') {
+				throw error("the end of the string"); //$NON-NLS-1$
+			}
+			if (ch == '\\') {
+				next();
+				switch (ch) {
+					case 'b': string.append('\b'); break;
+					case 'f': string.append('\f'); break;
+					case 'n': string.append('\n'); break;
+					case 'r': string.append('\r'); break;
+					case 't': string.append('\t'); break;
+					case 'u':
+						int code = 0;
+						for (int i = 0; i < 4; i++) {
+							next();
+							int digit = Character.digit((char) ch, 16);
+							if (ch < 0 || digit < 0) {
+								throw error("a hex digit"); //$NON-NLS-1$
+							}
+							code = code * 16 + digit;
+						}
+						string.append((char) code);
+						break;
+					case '"':
+					case '\\':
+					case '/':
+						string.append((char) ch);
+						break;
+					default:
+						throw error("an escape"); //$NON-NLS-1$
+				}
+			} else {
+				string.append((char) ch);
+			}
+			next();
+		}
+		next();
+		return string.toString();
+	}
+
+	protected Number readNumber() throws IOException {
+		StringBuffer number = new StringBuffer();
+		boolean whole = true;
+		while (ch == '-' || ch == '+' || ch == '.' || ch == 'e' || ch == 'E'
+				|| (ch >= '0' && ch <= '9')) {
+			if (ch == '.' || ch == 'e' || ch == 'E') whole = false;
+			number.append((char) ch);
+			next();
+		}
+		try {
+			if (whole) {
+				return Long.valueOf(number.toString());
+			}
+			return Double.valueOf(number.toString());
+		} catch (NumberFormatException e) {
+			throw error("a number"); //$NON-NLS-1$
+		}
+	}
+
+	protected void readWord(String word) throws IOException {
+		for (int i = 0; i < word.length(); i++) {
+			if (ch != word.charAt(i)) {
+				throw error(word);
+			}
+			next();
+		}
+	}
+
+	protected void expect(char expected) throws IOException {
+		if (ch != expected) {
+			throw error("'" + expected + "'"); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		next();
+	}
+
+	protected void skipWhitespace() throws IOException {
+		while (ch == ' ' || ch == '\t' || ch == '\n' || ch == '\r') {
+			next();
+		}
+	}
+
+	protected void next() throws IOException {
+		if (ch == '\n') line++;
+		ch = reader.read();
+	}
+
+	protected IOException error(String expected) {
+		return new IOException("JSON line " + line + ": expected " + expected); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+}
@@ -0,0 +1,184 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2002 by Robert Greene
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a tar stream, one entry at a time, in the same way as
+ * ZipInputStream: getNextEntry moves on to the next file or directory, and
+ * read then answers with its data.  Plain ustar, pax path records and GNU
+ * long names are understood; other special entries are skipped.
+ * @see TarOutputStream
+ */
+public class TarInputStream extends FilterInputStream {
+	private static final int RECORD_SIZE = 512;
+	private long remaining;
+	private long padding;
+	private String name;
+	private boolean directory;
+	private long size;
+
+	public TarInputStream(InputStream in) {
+		super(in);
+	}
+
+	/**
+	 * Move on to the next file or directory, answering false at the end of
+	 * the archive.
+	 */
+	public boolean getNextEntry() throws IOException {
+		skipFully(remaining + padding);
+		remaining = 0;
+		padding = 0;
+		String longName = null;
+		while (true) {
+			byte[] header = new byte[RECORD_SIZE];
+			if (!readFully(header) || header[0] == 0) {
+				return false;
+			}
+			char type = (char) header[156];
+			long length = getOctal(header, 124, 12);
+			long pad = (RECORD_SIZE - length % RECORD_SIZE) % RECORD_SIZE;
+			if (type == 'x' || type == 'L') {
+				byte[] data = new byte[(int) length];
+				if (!readFully(data)) {
+					throw new IOException("Tar header ends early"); //$NON-NLS-1$
+				}
+				skipFully(pad);
+				String path = (type == 'L') ? getString(data, 0, data.length) : getPaxPath(data);
+				if (path != null) longName = path;
+				continue;
+			}
+			if (type != '0' && type != '\0' && type != '5') {
+				skipFully(length + pad);
+				longName = null;
+				continue;
+			}
+			if (longName != null) {
+				name = longName;
+			} else {
+				String prefix = getString(header, 345, 155);
+				name = getString(header, 0, 100);
+				if (prefix.length() > 0) name = prefix + "/" + name; //$NON-NLS-1$
+			}
+			directory = (type == '5') || name.endsWith("/"); //$NON-NLS-1$
+			size = directory ? 0 : length;
+			remaining = size;
+			padding = directory ? length + pad : pad;
+			return true;
+		}
+	}
+
+	/**
+	 * The path of the current entry; a directory ends in '/'.
+	 */
+	public String getName() {
+		return name;
+	}
+	public boolean isDirectory() {
+		return directory;
+	}
+	public long getSize() {
+		return size;
+	}
+
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (remaining <= 0) return -1;
+		int count = in.read(b, off, (int) Math.min(len, remaining));
+		if (count < 0) {
+			throw new IOException("Tar entry data ends early"); //$NON-NLS-1$
+		}
+		remaining-= count;
+		return count;
+	}
+
+	public long skip(long n) throws IOException {
+		long count = Math.min(n, remaining);
+		skipFully(count);
+		remaining-= count;
+		return count;
+	}
+
+	public int available() throws IOException {
+		return (int) Math.min(remaining, in.available());
+	}
+
+	/**
+	 * Find the path record in pax extended header data.
+	 */
+	protected String getPaxPath(byte[] data) throws IOException {
+		String records = new String(data, "UTF-8"); //$NON-NLS-1$
+		String path = null;
+		for (String record : records.split("\n")) { //$NON-NLS-1$
+			int space = record.indexOf(' ');
+			int equals = record.indexOf('=');
+			if (space > 0 && equals > space
+					&& "path".equals(record.substring(space + 1, equals))) { //$NON-NLS-1$
+				path = record.substring(equals + 1);
+			}
+		}
+		return path;
+	}
+
+	protected String getString(byte[] data, int offset, int length) throws IOException {
+		int end = offset;
+		while (end < offset + length && data[end] != 0) end++;
+		return new String(data, offset, end - offset, "UTF-8"); //$NON-NLS-1$
+	}
+
+	protected long getOctal(byte[] data, int offset, int length) {
+		long value = 0;
+		for (int i = offset; i < offset + length; i++) {
+			if (data[i] >= '0' && data[i] <= '7') {
+				value = value * 8 + (data[i] - '0');
+			} else if (value > 0 || data[i] == 0) {
+				break;
+			}
+		}
+		return value;
+	}
+
+	protected boolean readFully(byte[] data) throws IOException {
+		int offset = 0;
+		while (offset < data.length) {
+			int count = in.read(data, offset, data.length - offset);
+			if (count < 0) return false;
+			offset+= count;
+		}
+		return true;
+	}
+
+	protected void skipFully(long count) throws IOException {
+		byte[] buffer = new byte[RECORD_SIZE * 8];
+		while (count > 0) {
+			int n = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+			if (n < 0) return;
+			count-= n;
+		}
+	}
+}
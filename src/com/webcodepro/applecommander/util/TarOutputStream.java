@@ -0,0 +1,211 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2002 by Robert Greene
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Writes a POSIX (pax) tar stream.  Each entry is a ustar header followed
+ * by its data, padded out to 512 bytes.  Names which do not fit the ustar
+ * header, and any extra attributes, are written in a pax extended header
+ * ahead of the entry.  The size of an entry must be known before its data
+ * is written, so nothing needs to be held back.
+ */
+public class TarOutputStream extends FilterOutputStream {
+	private static final int RECORD_SIZE = 512;
+	private static final int NAME_LENGTH = 100;
+	private static final int PREFIX_LENGTH = 155;
+	private static final char REGULAR_FILE = '0';
+	private static final char DIRECTORY = '5';
+	private static final char EXTENDED_HEADER = 'x';
+	private long remaining;
+	private long written;
+	private boolean finished;
+
+	public TarOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	/**
+	 * Start an entry of size bytes.  A directory has no data and its name
+	 * should end in '/'.  The attributes, which may be null, go into a pax
+	 * extended header.
+	 */
+	public void putNextEntry(String name, long size, long modified, boolean directory,
+			Map<String,String> attributes) throws IOException {
+		closeEntry();
+		byte[] nameBytes = name.getBytes("UTF-8"); //$NON-NLS-1$
+		String[] split = splitName(name, nameBytes);
+		StringBuffer pax = new StringBuffer();
+		if (split == null) {
+			appendRecord(pax, "path", name); //$NON-NLS-1$
+			split = new String[] { "", truncate(name) }; //$NON-NLS-1$
+		}
+		if (attributes != null) {
+			Iterator<Map.Entry<String,String>> iterator = attributes.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<String,String> attribute = iterator.next();
+				appendRecord(pax, attribute.getKey(), attribute.getValue());
+			}
+		}
+		if (pax.length() > 0) {
+			byte[] data = pax.toString().getBytes("UTF-8"); //$NON-NLS-1$
+			writeHeader("", "PaxHeader", data.length, modified, EXTENDED_HEADER); //$NON-NLS-1$ //$NON-NLS-2$
+			out.write(data);
+			pad(data.length);
+		}
+		writeHeader(split[0], split[1], directory ? 0 : size, modified,
+				directory ? DIRECTORY : REGULAR_FILE);
+		remaining = directory ? 0 : size;
+		written = 0;
+	}
+
+	/**
+	 * Finish the current entry, padding its data out to a whole record.
+	 * @throws IOException if less data was written than the entry size
+	 */
+	public void closeEntry() throws IOException {
+		if (remaining > 0) {
+			throw new IOException("Tar entry is " + remaining + " bytes short"); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		pad(written);
+		written = 0;
+	}
+
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (len > remaining) {
+			throw new IOException("Tar entry data is longer than its size"); //$NON-NLS-1$
+		}
+		out.write(b, off, len);
+		remaining-= len;
+		written+= len;
+	}
+
+	/**
+	 * Write the two empty records which end the archive.  The underlying
+	 * stream is flushed but not closed.
+	 */
+	public void finish() throws IOException {
+		if (finished) return;
+		closeEntry();
+		out.write(new byte[RECORD_SIZE * 2]);
+		out.flush();
+		finished = true;
+	}
+
+	public void close() throws IOException {
+		finish();
+		out.close();
+	}
+
+	/**
+	 * Split a name into the ustar prefix and name fields, or answer null
+	 * if it cannot be held by them.
+	 */
+	protected String[] splitName(String name, byte[] nameBytes) {
+		if (nameBytes.length != name.length()) {
+			return null;	// not plain ASCII
+		}
+		if (name.length() <= NAME_LENGTH) {
+			return new String[] { "", name }; //$NON-NLS-1$
+		}
+		for (int i = name.indexOf('/'); i >= 0; i = name.indexOf('/', i + 1)) {
+			if (i <= PREFIX_LENGTH && name.length() - i - 1 <= NAME_LENGTH) {
+				return new String[] { name.substring(0, i), name.substring(i + 1) };
+			}
+		}
+		return null;
+	}
+
+	protected String truncate(String name) {
+		StringBuffer ascii = new StringBuffer();
+		for (int i = 0; i < name.length() && ascii.length() < NAME_LENGTH; i++) {
+			char ch = name.charAt(i);
+			ascii.append(ch < 0x80 ? ch : '_');
+		}
+		return ascii.toString();
+	}
+
+	/**
+	 * Add a pax record: "length key=value\n", where the length counts
+	 * itself.
+	 */
+	protected void appendRecord(StringBuffer pax, String key, String value)
+			throws UnsupportedEncodingException {
+		int length = key.getBytes("UTF-8").length + value.getBytes("UTF-8").length + 3; //$NON-NLS-1$ //$NON-NLS-2$
+		int total = length + Integer.toString(length).length();
+		if (Integer.toString(total).length() != Integer.toString(length).length()) {
+			total++;
+		}
+		pax.append(total).append(' ').append(key).append('=').append(value).append('\n');
+	}
+
+	protected void writeHeader(String prefix, String name, long size, long modified,
+			char type) throws IOException {
+		byte[] header = new byte[RECORD_SIZE];
+		putString(header, 0, NAME_LENGTH, name);
+		putOctal(header, 100, 8, (type == DIRECTORY) ? 0755 : 0644);
+		putOctal(header, 108, 8, 0);
+		putOctal(header, 116, 8, 0);
+		putOctal(header, 124, 12, size);
+		putOctal(header, 136, 12, modified / 1000);
+		header[156] = (byte) type;
+		putString(header, 257, 6, "ustar"); //$NON-NLS-1$
+		header[263] = '0';
+		header[264] = '0';
+		putString(header, 345, PREFIX_LENGTH, prefix);
+		for (int i = 148; i < 156; i++) header[i] = ' ';
+		int checksum = 0;
+		for (int i = 0; i < header.length; i++) checksum+= header[i] & 0xff;
+		putOctal(header, 148, 7, checksum);
+		out.write(header);
+	}
+
+	protected void pad(long length) throws IOException {
+		int partial = (int) (length % RECORD_SIZE);
+		if (partial > 0) {
+			out.write(new byte[RECORD_SIZE - partial]);
+		}
+	}
+
+	protected void putString(byte[] header, int offset, int length, String value) {
+		for (int i = 0; i < length && i < value.length(); i++) {
+			header[offset + i] = (byte) value.charAt(i);
+		}
+	}
+
+	/**
+	 * Write a zero-padded octal number followed by a NUL.
+	 */
+	protected void putOctal(byte[] header, int offset, int length, long value) {
+		String octal = Long.toOctalString(value);
+		while (octal.length() < length - 1) octal = "0" + octal; //$NON-NLS-1$
+		putString(header, offset, length - 1, octal);
+	}
+}
@@ -0,0 +1,265 @@
+package com.webcodepro.shrinkit;
+
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+
+import com.webcodepro.shrinkit.io.ByteConstants;
+
+/**
+ * The 128 byte header that comes before each file in a Binary II stream.
+ * The file data follows the header, padded out to a multiple of 128 bytes.
+ * A NuFX archive wrapped in Binary II (BXY) is a single file of type $E0
+ * and auxiliary type $8002.
+ *
+ * @see http://www.nulib.com/library/FTN.e08000.htm
+ */
+public class BinaryIIHeader {
+	public static final int HEADER_LENGTH = 128;
+	private static final int MAXIMUM_PATHNAME = 64;
+	private static final int VERSION = 1;
+	/** ProDOS filetype and auxiliary type of a NuFX archive. */
+	public static final int NUFX_FILETYPE = 0xe0;
+	public static final int NUFX_AUXTYPE = 0x8002;
+	/** ProDOS filetype of a directory. */
+	public static final int DIRECTORY_FILETYPE = 0x0f;
+	private int access = 0xe3;
+	private int fileType;
+	private int auxType;
+	private int storageType = 1;
+	private Date modWhen;
+	private Date createWhen;
+	private long eof;
+	private String filename;
+	private long diskSpace;
+	private int osType;
+	private int nativeFileType;
+	private boolean phantom;
+	private int dataFlags;
+	private int filesToFollow;
+
+	/**
+	 * Create an empty header, to be filled in and written.
+	 */
+	public BinaryIIHeader() {
+	}
+
+	/**
+	 * Decode a header from the given 128 bytes.
+	 * @throws IOException if this is not a Binary II header
+	 */
+	public BinaryIIHeader(byte[] header) throws IOException {
+		if (header[0] != ByteConstants.BXY_ID[0] || header[1] != ByteConstants.BXY_ID[1]
+				|| header[2] != ByteConstants.BXY_ID[2] || header[18] != 0x02) {
+			throw new IOException("This is not a Binary II header.");
+		}
+		access = (header[3] & 0xff) | (header[111] & 0xff) << 8;
+		fileType = (header[4] & 0xff) | (header[112] & 0xff) << 8;
+		auxType = getWord(header, 5) | getWord(header, 109) << 16;
+		storageType = (header[7] & 0xff) | (header[113] & 0xff) << 8;
+		modWhen = getProdosDate(header, 10);
+		createWhen = getProdosDate(header, 14);
+		eof = getWord(header, 20) | (header[22] & 0xff) << 16 | (long) (header[116] & 0xff) << 24;
+		int length = Math.min(header[23] & 0xff, MAXIMUM_PATHNAME);
+		filename = new String(header, 24, length, "ISO-8859-1");
+		diskSpace = getWord(header, 117) | (long) getWord(header, 119) << 16;
+		osType = header[121] & 0xff;
+		nativeFileType = getWord(header, 122);
+		phantom = header[124] != 0;
+		dataFlags = header[125] & 0xff;
+		filesToFollow = header[127] & 0xff;
+	}
+
+	/**
+	 * Encode the header as 128 bytes.
+	 */
+	public byte[] toBytes() {
+		byte[] header = new byte[HEADER_LENGTH];
+		System.arraycopy(ByteConstants.BXY_ID, 0, header, 0, ByteConstants.BXY_ID.length);
+		header[3] = (byte) access;
+		header[4] = (byte) fileType;
+		setWord(header, 5, auxType);
+		header[7] = (byte) storageType;
+		setWord(header, 8, (int) getBlocks());
+		setProdosDate(header, 10, modWhen);
+		setProdosDate(header, 14, createWhen);
+		header[18] = 0x02;
+		setWord(header, 20, (int) eof);
+		header[22] = (byte) (eof >> 16);
+		byte[] name = (filename == null) ? new byte[0] : filename.getBytes();
+		int length = Math.min(name.length, MAXIMUM_PATHNAME);
+		header[23] = (byte) length;
+		System.arraycopy(name, 0, header, 24, length);
+		setWord(header, 109, auxType >> 16);
+		header[111] = (byte) (access >> 8);
+		header[112] = (byte) (fileType >> 8);
+		header[113] = (byte) (storageType >> 8);
+		setWord(header, 114, (int) (getBlocks() >> 16));
+		header[116] = (byte) (eof >> 24);
+		setWord(header, 117, (int) diskSpace);
+		setWord(header, 119, (int) (diskSpace >> 16));
+		header[121] = (byte) osType;
+		setWord(header, 122, nativeFileType);
+		header[124] = (byte) (phantom ? 1 : 0);
+		header[125] = (byte) dataFlags;
+		header[126] = VERSION;
+		header[127] = (byte) filesToFollow;
+		return header;
+	}
+
+	/**
+	 * The length of the file data, padded out to a multiple of 128 bytes.
+	 */
+	public long getPaddedLength() {
+		return (eof + HEADER_LENGTH - 1) / HEADER_LENGTH * HEADER_LENGTH;
+	}
+
+	/**
+	 * The number of 512 byte blocks the file takes up on a ProDOS disk.
+	 */
+	public long getBlocks() {
+		return (eof + 511) / 512;
+	}
+
+	/**
+	 * Indicates if this entry is a directory, whose data is not used.
+	 */
+	public boolean isDirectory() {
+		return fileType == DIRECTORY_FILETYPE;
+	}
+
+	/**
+	 * Indicates if this entry wraps a NuFX archive (BXY).
+	 */
+	public boolean isNufxArchive() {
+		return fileType == NUFX_FILETYPE && auxType == NUFX_AUXTYPE;
+	}
+
+	/**
+	 * Final element in the pathname.
+	 */
+	public String getFinalFilename() {
+		String[] path = filename.split("/");
+		return path[path.length - 1];
+	}
+
+	private static int getWord(byte[] data, int offset) {
+		return (data[offset] & 0xff) | (data[offset+1] & 0xff) << 8;
+	}
+	private static void setWord(byte[] data, int offset, int value) {
+		data[offset] = (byte) value;
+		data[offset+1] = (byte) (value >> 8);
+	}
+
+	/**
+	 * Read a ProDOS date and time (two words each), which may be null.
+	 */
+	private static Date getProdosDate(byte[] data, int offset) {
+		int ymd = getWord(data, offset);
+		if (ymd == 0) return null;
+		int hm = getWord(data, offset+2);
+		int year = (ymd & 0xfe00) >> 9;
+		year+= (year < 50) ? 2000 : 1900;
+		return new GregorianCalendar(year, ((ymd & 0x01e0) >> 5) - 1, ymd & 0x001f,
+				(hm & 0x1f00) >> 8, hm & 0x003f).getTime();
+	}
+	/**
+	 * Write a ProDOS date and time; a null date is written as zeros.
+	 */
+	private static void setProdosDate(byte[] data, int offset, Date date) {
+		if (date == null) return;
+		GregorianCalendar gc = new GregorianCalendar();
+		gc.setTime(date);
+		int year = gc.get(Calendar.YEAR) % 100;
+		setWord(data, offset, year << 9 | (gc.get(Calendar.MONTH) + 1) << 5 | gc.get(Calendar.DAY_OF_MONTH));
+		setWord(data, offset+2, gc.get(Calendar.HOUR_OF_DAY) << 8 | gc.get(Calendar.MINUTE));
+	}
+
+	// GENERATED CODE
+
+	public int getAccess() {
+		return access;
+	}
+	public void setAccess(int access) {
+		this.access = access;
+	}
+	public int getFileType() {
+		return fileType;
+	}
+	public void setFileType(int fileType) {
+		this.fileType = fileType;
+	}
+	public int getAuxType() {
+		return auxType;
+	}
+	public void setAuxType(int auxType) {
+		this.auxType = auxType;
+	}
+	public int getStorageType() {
+		return storageType;
+	}
+	public void setStorageType(int storageType) {
+		this.storageType = storageType;
+	}
+	public Date getModWhen() {
+		return modWhen;
+	}
+	public void setModWhen(Date modWhen) {
+		this.modWhen = modWhen;
+	}
+	public Date getCreateWhen() {
+		return createWhen;
+	}
+	public void setCreateWhen(Date createWhen) {
+		this.createWhen = createWhen;
+	}
+	public long getEof() {
+		return eof;
+	}
+	public void setEof(long eof) {
+		this.eof = eof;
+	}
+	public String getFilename() {
+		return filename;
+	}
+	public void setFilename(String filename) {
+		this.filename = filename;
+	}
+	public long getDiskSpace() {
+		return diskSpace;
+	}
+	public void setDiskSpace(long diskSpace) {
+		this.diskSpace = diskSpace;
+	}
+	public int getOsType() {
+		return osType;
+	}
+	public void setOsType(int osType) {
+		this.osType = osType;
+	}
+	public int getNativeFileType() {
+		return nativeFileType;
+	}
+	public void setNativeFileType(int nativeFileType) {
+		this.nativeFileType = nativeFileType;
+	}
+	public boolean isPhantom() {
+		return phantom;
+	}
+	public void setPhantom(boolean phantom) {
+		this.phantom = phantom;
+	}
+	public int getDataFlags() {
+		return dataFlags;
+	}
+	public void setDataFlags(int dataFlags) {
+		this.dataFlags = dataFlags;
+	}
+	public int getFilesToFollow() {
+		return filesToFollow;
+	}
+	public void setFilesToFollow(int filesToFollow) {
+		this.filesToFollow = filesToFollow;
+	}
+}
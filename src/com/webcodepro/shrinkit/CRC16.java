@@ -1,10 +1,17 @@
 package com.webcodepro.shrinkit;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.zip.Checksum;
 
 /**
  * Crc16: Calculate 16-bit Cyclic Redundancy Check.
  * License: GPL, incorporated by reference.
+ * <p>
+ * Bulk updates work through the data 8 bytes at a time ("slicing-by-8"):
+ * table[k] holds the CRC of a byte followed by k zero bytes, so the effect
+ * of 8 bytes on the CRC is 8 independent table lookups.
  * 
  * @author John B. Matthews
  */
@@ -13,7 +20,14 @@ public class CRC16 implements Checksum {
 	/** CCITT polynomial: x^16 + x^12 + x^5 + 1 -> 0x1021 (1000000100001) */
 	private static final int poly = 0x1021;
 	private static final int[] table = new int[256];
-	private int value = 0;
+	private static final int[][] tables = new int[8][];
+	/** The effect of 2^n zero bytes on each bit of the CRC, for combine. */
+	private static final int[][] zeroOperators = new int[64][16];
+	/** Buffers at least this long are split up by <code>compute</code>. */
+	private static final int PARALLEL_THRESHOLD = 1024 * 1024;
+	private static final int PARALLEL_SLICE = 256 * 1024;
+	private final int initialValue;
+	private int value;
 
 	static { // initialize static lookup table
 		for (int i = 0; i < 256; i++) {
@@ -27,6 +41,38 @@ public class CRC16 implements Checksum {
 			}
 			table[i] = crc & 0xffff;
 		}
+		tables[0] = table;
+		for (int k = 1; k < 8; k++) {
+			tables[k] = new int[256];
+			for (int i = 0; i < 256; i++) {
+				int crc = tables[k-1][i];
+				tables[k][i] = (table[(crc >> 8) & 0xff] ^ (crc << 8)) & 0xffff;
+			}
+		}
+		for (int i = 0; i < 16; i++) {
+			int crc = 1 << i;
+			zeroOperators[0][i] = (table[(crc >> 8) & 0xff] ^ (crc << 8)) & 0xffff;
+		}
+		for (int n = 1; n < zeroOperators.length; n++) {
+			for (int i = 0; i < 16; i++) {
+				zeroOperators[n][i] = apply(zeroOperators[n-1], zeroOperators[n-1][i]);
+			}
+		}
+	}
+
+	/**
+	 * Create a CRC starting at 0, as used for headers and LZW/1 data.
+	 */
+	public CRC16() {
+		this(0);
+	}
+	/**
+	 * Create a CRC with the given starting value (0xffff for the thread
+	 * CRC of version 3 records).
+	 */
+	public CRC16(int initialValue) {
+		this.initialValue = initialValue & 0xffff;
+		this.value = this.initialValue;
 	}
 
 	/**
@@ -38,24 +84,91 @@ public class CRC16 implements Checksum {
 	 * @param len number of bytes to process
 	 * @return 16-bit unsigned CRC
 	 */
-	private int update(int crc, byte[] bytes, int off, int len) {
-		for (int i = off; i < (off + len); i++) {
+	private static int update(int crc, byte[] bytes, int off, int len) {
+		int end = off + len;
+		int[] t0 = tables[0], t1 = tables[1], t2 = tables[2], t3 = tables[3];
+		int[] t4 = tables[4], t5 = tables[5], t6 = tables[6], t7 = tables[7];
+		int i = off;
+		for (; i + 8 <= end; i += 8) {
+			crc = t7[((crc >> 8) ^ bytes[i]) & 0xff]
+				^ t6[(crc ^ bytes[i+1]) & 0xff]
+				^ t5[bytes[i+2] & 0xff]
+				^ t4[bytes[i+3] & 0xff]
+				^ t3[bytes[i+4] & 0xff]
+				^ t2[bytes[i+5] & 0xff]
+				^ t1[bytes[i+6] & 0xff]
+				^ t0[bytes[i+7] & 0xff];
+		}
+		for (; i < end; i++) {
 			int b = (bytes[i] & 0xff);
 			crc = (table[((crc >> 8) & 0xff) ^ b] ^ (crc << 8)) & 0xffff;
 		}
 		return crc;
 	}
 
+	/**
+	 * Compute the 16-bit CRC of a block of data, starting from the given
+	 * CRC.  Large blocks are split into slices whose CRCs are computed on
+	 * the fork/join pool and then combined.
+	 * 
+	 * @param crc starting CRC value
+	 * @param bytes input byte array
+	 * @param off start offset to data
+	 * @param len number of bytes to process
+	 * @return 16-bit unsigned CRC
+	 */
+	public static int compute(int crc, byte[] bytes, int off, int len) {
+		if (len < PARALLEL_THRESHOLD || ForkJoinPool.getCommonPoolParallelism() <= 1) {
+			return update(crc & 0xffff, bytes, off, len);
+		}
+		int sliceCrc = ForkJoinPool.commonPool().invoke(new SliceTask(bytes, off, len));
+		return combine(crc & 0xffff, sliceCrc, len);
+	}
+
 	public static int[] getTable() {
 		return table;
 	}
 
+	/**
+	 * Combine the CRC of two blocks of data into the CRC of both blocks
+	 * together, without going through the data again.  This works because
+	 * the CRC is linear: the CRC of the first block only needs to be
+	 * carried through as many zero bytes as the second block holds.
+	 * 
+	 * @param crc1 CRC of the first block
+	 * @param crc2 CRC of the second block
+	 * @param len2 length of the second block
+	 * @return 16-bit unsigned CRC of both blocks
+	 */
+	public static int combine(int crc1, int crc2, long len2) {
+		int crc = crc1;
+		for (int n = 0; len2 > 0; n++, len2 >>= 1) {
+			if ((len2 & 1) != 0) {
+				crc = apply(zeroOperators[n], crc);
+			}
+		}
+		return crc ^ crc2;
+	}
+
+	/**
+	 * Apply a linear operator (the image of each bit) to a CRC value.
+	 */
+	private static int apply(int[] operator, int crc) {
+		int result = 0;
+		for (int i = 0; crc != 0; i++, crc >>= 1) {
+			if ((crc & 1) != 0) {
+				result ^= operator[i];
+			}
+		}
+		return result;
+	}
+
 	public long getValue() {
 		return value;
 	}
 
 	public void reset() {
-		value = 0;
+		value = initialValue;
 	}
 
 	/**
@@ -64,8 +177,7 @@ public class CRC16 implements Checksum {
 	 * @param b input byte
 	 */
 	public void update(int b) {
-		byte[] ba = { (byte) (b & 0xff) };
-		value = update(value, ba, 0, 1);
+		value = (table[((value >> 8) ^ b) & 0xff] ^ (value << 8)) & 0xffff;
 	}
 
 	/**
@@ -88,4 +200,52 @@ public class CRC16 implements Checksum {
 		value = update(value, b, off, len);
 	}
 
-}
\ No newline at end of file
+	/**
+	 * Update 16-bit CRC with the remaining bytes of the buffer.
+	 * 
+	 * @param buffer input data; its position is moved to the limit
+	 */
+	public void update(ByteBuffer buffer) {
+		if (buffer.hasArray()) {
+			int len = buffer.remaining();
+			value = update(value, buffer.array(), buffer.arrayOffset() + buffer.position(), len);
+			buffer.position(buffer.limit());
+		} else {
+			byte[] b = new byte[Math.min(buffer.remaining(), 8192)];
+			while (buffer.hasRemaining()) {
+				int len = Math.min(buffer.remaining(), b.length);
+				buffer.get(b, 0, len);
+				value = update(value, b, 0, len);
+			}
+		}
+	}
+
+	/**
+	 * Computes the CRC (starting from 0) of a slice of a buffer, splitting it
+	 * in two until the slices are small enough.
+	 */
+	private static class SliceTask extends RecursiveTask<Integer> {
+		private static final long serialVersionUID = 1L;
+		private byte[] bytes;
+		private int off;
+		private int len;
+
+		public SliceTask(byte[] bytes, int off, int len) {
+			this.bytes = bytes;
+			this.off = off;
+			this.len = len;
+		}
+
+		protected Integer compute() {
+			if (len <= PARALLEL_SLICE) {
+				return update(0, bytes, off, len);
+			}
+			int half = len / 2;
+			SliceTask second = new SliceTask(bytes, off + half, len - half);
+			second.fork();
+			int crc1 = new SliceTask(bytes, off, half).compute();
+			int crc2 = second.join();
+			return combine(crc1, crc2, len - half);
+		}
+	}
+}
@@ -94,6 +94,23 @@ public class HeaderBlock {
 			headerSize += r.getThreadEof();
 		}
 	}
+	/**
+	 * Read in all ThreadRecords, but only note where each thread's data is
+	 * in the archive file.  The data is read from the archive when it is
+	 * first used.  Filenames are short and needed to list the archive, so
+	 * they are read right away.
+	 */
+	public void indexThreads(LittleEndianByteInputStream bs, NuFileArchive archive) throws IOException {
+		for (long l=0; l<totalThreads; l++) threads.add(new ThreadRecord(this, bs));
+		for (ThreadRecord r : threads) {
+			if (r.getThreadKind() == ThreadKind.FILENAME) {
+				r.readThreadData(bs);
+			} else {
+				r.skipThreadData(bs, archive);
+			}
+			headerSize += r.getThreadEof();
+		}
+	}
 
 	/**
 	 * Locate the filename and return it.  It may have been given in the old
@@ -1,7 +1,13 @@
 package com.webcodepro.shrinkit;
 
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -9,13 +15,21 @@ import com.webcodepro.shrinkit.io.LittleEndianByteInputStream;
 
 /**
  * Basic reading of a NuFX archive.
+ * <p>
+ * An archive read from a <code>File</code> only reads the headers up
+ * front; the data of each thread is read from the file when it is first
+ * used.  The file is not held open in between: it is opened again when
+ * thread data is first read, and stays open until the archive is closed.
  * 
  * @author robgreene@users.sourceforge.net
  */
-public class NuFileArchive {
+public class NuFileArchive implements Closeable {
 	private MasterHeaderBlock master;
 	private List<HeaderBlock> headers;
 	private long totalSize = 0;
+	private File file;
+	private FileChannel channel;
+	private boolean closed;
 
 	/**
 	 * Need to enumerate some basic sub-types of archives.
@@ -39,6 +53,57 @@ public class NuFileArchive {
 		}
 	}
 
+	/**
+	 * Read in the headers of the NuFile/NuFX/Shrinkit archive file.  Thread
+	 * data is read from the file as it is needed; the file is closed once
+	 * the headers have been read.
+	 */
+	public NuFileArchive(File file) throws IOException {
+		this.file = file;
+		FileChannel headerChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			LittleEndianByteInputStream bs = new LittleEndianByteInputStream(
+					new BufferedInputStream(Channels.newInputStream(headerChannel)));
+			master = new MasterHeaderBlock(bs);
+			headers = new ArrayList<HeaderBlock>();
+			for (int i=0; i<master.getTotalRecords(); i++) {
+				HeaderBlock header = new HeaderBlock(bs);
+				header.indexThreads(bs, this);
+				headers.add(header);
+				totalSize += header.getHeaderSize();
+			}
+		} finally {
+			headerChannel.close();
+		}
+	}
+
+	/**
+	 * Answer with the archive file, opening it if thread data has not been
+	 * read from it yet.
+	 * @throws IOException if the archive has been closed or cannot be opened
+	 */
+	synchronized FileChannel getChannel() throws IOException {
+		if (closed) {
+			throw new IOException("The archive " + file + " has been closed");
+		}
+		if (channel == null) {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		}
+		return channel;
+	}
+
+	/**
+	 * Close the archive file, if it is open.  Thread data which has not
+	 * been read can no longer be read.
+	 */
+	public synchronized void close() throws IOException {
+		closed = true;
+		if (channel != null) {
+			channel.close();
+			channel = null;
+		}
+	}
+
 	/**
 	 * @return long size in bytes of the archive
 	 */
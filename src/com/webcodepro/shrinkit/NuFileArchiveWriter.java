@@ -0,0 +1,206 @@
+package com.webcodepro.shrinkit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import com.webcodepro.shrinkit.io.LittleEndianByteOutputStream;
+import com.webcodepro.shrinkit.io.NufxLzw2OutputStream;
+
+/**
+ * Builds a NuFile archive: either a single disk image (SDK) or a set of
+ * files (SHK).  Records are compressed as they are added, and the whole
+ * archive is written out by <code>write</code>.
+ * <p>
+ * Records are written in version 3 format, with a filename thread, and
+ * thread data is either LZW/2 compressed or left uncompressed.  Filenames
+ * are written in Mac OS Roman (ProDOS names are plain ASCII).  The time the
+ * archive is stamped with is given when it is created, so that the same
+ * files always make the same archive.
+ *
+ * @see http://www.nulib.com/library/FTN.e08002.htm
+ */
+public class NuFileArchiveWriter {
+	/** File system ids from the NuFX specification. */
+	public static final int FILESYS_PRODOS = 1;
+	public static final int FILESYS_DOS33 = 2;
+	/** Full access: destroy, rename, write, read (and backup needed). */
+	public static final long DEFAULT_ACCESS = 0xe3;
+	private static final int MASTER_HEADER_LENGTH = 48;
+	private static final int MASTER_VERSION = 2;
+	private static final int RECORD_VERSION = 3;
+	/** The size of the fixed part of a record header, including option_size. */
+	private static final int ATTRIB_COUNT = 58;
+	private static final int FILENAME_SEPARATOR = ':';
+	private static final String FILENAME_CHARSET = "x-MacRoman";
+	private ThreadFormat threadFormat = ThreadFormat.DYNAMIC_LZW2;
+	private List<byte[]> records = new ArrayList<byte[]>();
+	private Date archiveWhen;
+
+	/**
+	 * Create the archive writer.
+	 * @param archiveWhen the time the archive and its records are stamped
+	 * with, also used for the dates of a disk image
+	 */
+	public NuFileArchiveWriter(Date archiveWhen) {
+		this.archiveWhen = archiveWhen;
+	}
+
+	/**
+	 * Choose how threads are stored; only UNCOMPRESSED and DYNAMIC_LZW2
+	 * are supported.  This applies to records added afterwards.
+	 */
+	public void setThreadFormat(ThreadFormat threadFormat) {
+		if (threadFormat != ThreadFormat.UNCOMPRESSED && threadFormat != ThreadFormat.DYNAMIC_LZW2) {
+			throw new IllegalArgumentException("Unable to write the thread format " + threadFormat);
+		}
+		this.threadFormat = threadFormat;
+	}
+	public ThreadFormat getThreadFormat() {
+		return threadFormat;
+	}
+
+	/**
+	 * Add a disk image, which must be a whole number of 512 byte blocks.
+	 */
+	public void addDiskImage(String name, byte[] image, int fileSysId) throws IOException {
+		if (image.length % 512 != 0) {
+			throw new IllegalArgumentException("A disk image must be made of 512 byte blocks");
+		}
+		List<byte[]> threads = new ArrayList<byte[]>();
+		threads.add(createThread(2, 1, image));
+		records.add(createRecord(name, fileSysId, DEFAULT_ACCESS, 0, image.length / 512,
+				512, archiveWhen, archiveWhen, threads));
+	}
+
+	/**
+	 * Add a file.  The pathname uses ':' between directory names.  The
+	 * resource fork may be null.
+	 */
+	public void addFile(String pathname, long access, long fileType, long extraType,
+			Date createWhen, Date modWhen, byte[] dataFork, byte[] resourceFork) throws IOException {
+		List<byte[]> threads = new ArrayList<byte[]>();
+		threads.add(createThread(2, 0, dataFork != null ? dataFork : new byte[0]));
+		int storageType;
+		if (resourceFork != null) {
+			threads.add(createThread(2, 2, resourceFork));
+			storageType = 5;
+		} else if (dataFork == null || dataFork.length <= 512) {
+			storageType = 1;
+		} else if (dataFork.length <= 128 * 1024) {
+			storageType = 2;
+		} else {
+			storageType = 3;
+		}
+		records.add(createRecord(pathname, FILESYS_PRODOS, access, fileType, extraType,
+				storageType, createWhen, modWhen, threads));
+	}
+
+	/**
+	 * Answer with the number of records added so far.
+	 */
+	public int getRecordCount() {
+		return records.size();
+	}
+
+	/**
+	 * Write the archive.  The stream is not closed.
+	 */
+	public void write(OutputStream os) throws IOException {
+		long eof = MASTER_HEADER_LENGTH;
+		for (byte[] record : records) eof+= record.length;
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(MASTER_HEADER_LENGTH);
+		LittleEndianByteOutputStream header = new LittleEndianByteOutputStream(buffer);
+		header.writeLong(records.size());
+		header.writeDate(archiveWhen);
+		header.writeDate(archiveWhen);
+		header.writeWord(MASTER_VERSION);
+		header.write(new byte[8]);
+		header.writeLong(eof);
+		while (header.getTotalBytesWritten() < MASTER_HEADER_LENGTH - 8) header.write(0);
+		LittleEndianByteOutputStream bs = new LittleEndianByteOutputStream(os);
+		bs.writeNuFileId();
+		bs.writeWord((int) header.getCrcValue());
+		buffer.writeTo(bs);
+		for (byte[] record : records) bs.write(record);
+		bs.flush();
+	}
+
+	/**
+	 * Build a thread: the 16 byte thread record followed by its data.
+	 */
+	protected byte[] createThread(int threadClass, int threadKind, byte[] data) throws IOException {
+		CRC16 crc = new CRC16(Utilities.THREAD_CRC_SEED);
+		crc.update(data);
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length + 16);
+		LittleEndianByteOutputStream cs = new LittleEndianByteOutputStream(compressed);
+		ThreadFormat format = threadFormat;
+		if (format == ThreadFormat.DYNAMIC_LZW2) {
+			NufxLzw2OutputStream lzw = new NufxLzw2OutputStream(cs);
+			lzw.write(data);
+			lzw.close();
+			if (compressed.size() >= data.length) {
+				format = ThreadFormat.UNCOMPRESSED;
+				compressed.reset();
+			}
+		}
+		if (format == ThreadFormat.UNCOMPRESSED) {
+			compressed.write(data);
+		}
+		ByteArrayOutputStream thread = new ByteArrayOutputStream(compressed.size() + 16);
+		LittleEndianByteOutputStream ts = new LittleEndianByteOutputStream(thread);
+		ts.writeWord(threadClass);
+		ts.writeWord(format.getThreadFormat());
+		ts.writeWord(threadKind);
+		ts.writeWord((int) crc.getValue());
+		ts.writeLong(data.length);
+		ts.writeLong(compressed.size());
+		compressed.writeTo(ts);
+		return thread.toByteArray();
+	}
+
+	/**
+	 * Build a record: the header block, the filename thread and the given
+	 * threads, with their thread records ahead of all of the data.
+	 */
+	protected byte[] createRecord(String filename, int fileSysId, long access, long fileType,
+			long extraType, int storageType, Date createWhen, Date modWhen,
+			List<byte[]> threads) throws IOException {
+		byte[] name = filename.getBytes(FILENAME_CHARSET);
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		LittleEndianByteOutputStream hs = new LittleEndianByteOutputStream(buffer);
+		hs.writeWord(ATTRIB_COUNT);
+		hs.writeWord(RECORD_VERSION);
+		hs.writeLong(threads.size() + 1);
+		hs.writeWord(fileSysId);
+		hs.writeWord(FILENAME_SEPARATOR);
+		hs.writeLong(access);
+		hs.writeLong(fileType);
+		hs.writeLong(extraType);
+		hs.writeWord(storageType);
+		hs.writeDate(createWhen);
+		hs.writeDate(modWhen);
+		hs.writeDate(archiveWhen);
+		hs.writeWord(0);		// option_size
+		hs.writeWord(0);		// the old filename_length; the name is in a thread
+		// Thread records, starting with the filename
+		hs.writeWord(3);
+		hs.writeWord(ThreadFormat.UNCOMPRESSED.getThreadFormat());
+		hs.writeWord(0);
+		hs.writeWord(0);
+		hs.writeLong(name.length);
+		hs.writeLong(name.length);
+		for (byte[] thread : threads) hs.write(thread, 0, 16);
+		ByteArrayOutputStream record = new ByteArrayOutputStream();
+		LittleEndianByteOutputStream rs = new LittleEndianByteOutputStream(record);
+		rs.writeNuFxId();
+		rs.writeWord((int) hs.getCrcValue());
+		buffer.writeTo(rs);
+		rs.write(name);
+		for (byte[] thread : threads) rs.write(thread, 16, thread.length - 16);
+		return record.toByteArray();
+	}
+}
@@ -3,6 +3,8 @@ package com.webcodepro.shrinkit;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import com.webcodepro.shrinkit.io.LittleEndianByteInputStream;
 import com.webcodepro.shrinkit.io.NufxLzw1InputStream;
@@ -12,7 +14,8 @@ import com.webcodepro.shrinkit.io.NufxLzw2InputStream;
  * This represents a single thread from the Shrinkit archive.
  * As it is constructed, the thread "header" is read.  Once all
  * threads have been constructed, use <code>readThreadData</code>
- * to load up the data.
+ * to load up the data, or <code>skipThreadData</code> to note where
+ * the data is so that it can be read when it is first used.
  * <p>
  * Depending on the type of thread, the data may be text.  If so,
  * <code>isText</code> will return true and <code>getText</code>
@@ -26,9 +29,15 @@ public class ThreadRecord {
 	private ThreadFormat threadFormat;
 	private ThreadKind threadKind;
 	private int threadCrc;
+	/** Version 3 records give the CRC of the uncompressed data in threadCrc. */
+	private boolean dataCrc;
 	private long threadEof;
 	private long compThreadEof;
 	private byte[] threadData;
+	/** The archive holding the thread data, if it has not been read yet. */
+	private NuFileArchive archive;
+	/** The position of the thread data within the archive file. */
+	private long dataOffset;
 
 	/**
 	 * Construct the ThreadRecord and read the header details with no hints
@@ -48,6 +57,7 @@ public class ThreadRecord {
 		threadCrc = bs.readWord();
 		threadEof = bs.readLong();
 		compThreadEof = bs.readLong();
+		dataCrc = (hb != null) && (hb.getVersionNumber() >= 3);
 		if ((threadKind == ThreadKind.DISK_IMAGE) && (hb != null)) {
 			/* If we have hints from the header block, repair some disk image related bugs. */
 			if (hb.getStorageType() <= 13 ) {
@@ -76,6 +86,41 @@ public class ThreadRecord {
 	public void readThreadData(LittleEndianByteInputStream bs) throws IOException {
 		threadData = bs.readBytes((int)compThreadEof);
 	}
+	/**
+	 * Skip over the raw thread data, noting its position in the archive
+	 * file.  The data is read from the archive on first use.
+	 */
+	public void skipThreadData(LittleEndianByteInputStream bs, NuFileArchive archive) throws IOException {
+		this.archive = archive;
+		this.dataOffset = bs.getTotalBytesRead();
+		bs.skipBytes(compThreadEof);
+	}
+	/**
+	 * Read the raw thread data from the archive file if that has not been
+	 * done yet.
+	 */
+	private byte[] loadThreadData() throws IOException {
+		if (threadData == null && archive != null) {
+			FileChannel channel = archive.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocate((int)compThreadEof);
+			while (buffer.hasRemaining()) {
+				int count = channel.read(buffer, dataOffset + buffer.position());
+				if (count == -1) {
+					throw new IOException("Requested " + compThreadEof + " bytes, but " + buffer.position() + " read");
+				}
+			}
+			threadData = buffer.array();
+			archive = null;
+		}
+		return threadData;
+	}
+	/**
+	 * Indicates if the thread CRC covers the uncompressed data, which is
+	 * true for threads in version 3 records.
+	 */
+	public boolean hasDataCrc() {
+		return dataCrc;
+	}
 	/**
 	 * Determine if this is a text-type field.
 	 */
@@ -86,19 +131,19 @@ public class ThreadRecord {
 	 * Return the text data.
 	 */
 	public String getText() {
-		return isText() ? new String(threadData, 0, (int)threadEof) : null;
+		return isText() ? new String(getThreadData(), 0, (int)threadEof) : null;
 	}
 	/**
 	 * Get raw data bytes (compressed).
 	 */
 	public byte[] getBytes() {
-		return threadData;
+		return getThreadData();
 	}
 	/**
 	 * Get the raw data input stream.
 	 */
-	public InputStream getRawInputStream() {
-		return new ByteArrayInputStream(threadData);
+	public InputStream getRawInputStream() throws IOException {
+		return new ByteArrayInputStream(loadThreadData());
 	}
 	/**
 	 * Get the appropriate input data stream for this thread to decompress the contents.
@@ -154,10 +199,19 @@ public class ThreadRecord {
 	public void setCompThreadEof(long compThreadEof) {
 		this.compThreadEof = compThreadEof;
 	}
+	/**
+	 * Get the raw thread data, reading it from the archive file if needed.
+	 * @throws IllegalStateException if the data cannot be read
+	 */
 	public byte[] getThreadData() {
-		return threadData;
+		try {
+			return loadThreadData();
+		} catch (IOException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
 	}
 	public void setThreadData(byte[] threadData) {
 		this.threadData = threadData;
+		this.archive = null;
 	}
 }
@@ -19,23 +19,39 @@ package com.webcodepro.shrinkit;
  * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
  */
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
+import com.webcodepro.applecommander.storage.DirectoryEntry;
 import com.webcodepro.applecommander.storage.Disk;
+import com.webcodepro.applecommander.storage.DiskFullException;
 import com.webcodepro.applecommander.storage.FileEntry;
 import com.webcodepro.applecommander.storage.FormattedDisk;
 import com.webcodepro.applecommander.storage.StorageBundle;
+import com.webcodepro.applecommander.storage.os.dos33.DosFileEntry;
 import com.webcodepro.applecommander.storage.os.prodos.ProdosFileEntry;
 import com.webcodepro.applecommander.storage.os.prodos.ProdosFormatDisk;
 import com.webcodepro.applecommander.storage.physical.ByteArrayImageLayout;
 import com.webcodepro.applecommander.storage.physical.ImageOrder;
 import com.webcodepro.applecommander.storage.physical.ProdosOrder;
 import com.webcodepro.applecommander.ui.ac.Name;
+import com.webcodepro.applecommander.util.AppleUtil;
 import com.webcodepro.applecommander.util.TextBundle;
-import com.webcodepro.shrinkit.io.LittleEndianByteInputStream;
+import com.webcodepro.shrinkit.io.BinaryIIInputStream;
+import com.webcodepro.shrinkit.io.BinaryIIOutputStream;
+import com.webcodepro.shrinkit.io.NufxLzw1Decoder;
 
 /**
  * Some higher-level utilities for dealing with a NuFX archive.
@@ -44,6 +60,10 @@ import com.webcodepro.shrinkit.io.LittleEndianByteInputStream;
  */
 public class Utilities
 {
+	/** Version 3 thread CRCs start from 0xffff. */
+	public static final int THREAD_CRC_SEED = 0xffff;
+	private static volatile boolean verifyCrc = true;
+
 	/**
 	 * Interpret a NuFile/NuFX/Shrinkit archive as a full disk image.
 	 * 
@@ -72,60 +92,72 @@ public class Utilities
 	public static byte[] unpackSHKFile(String fileName, int startBlocks) throws IOException
 	{
 		TextBundle textBundle = StorageBundle.getInstance();
-		byte dmgBuffer[] = null;
 		File file = new File(fileName);
 		if (file.isDirectory() || !file.canRead())
 		{
 			throw new IOException(textBundle.format("NotAFile", fileName, 1)); //$NON-NLS-1$ 
 		}
-		InputStream is = new FileInputStream(file);
-		NuFileArchive a = new NuFileArchive(is);
-		// If we need to build a disk to hold files (i.e. .shk vs. .sdk), how big would that disk need to be?
-		int newDiskSize = Disk.sizeToFit(a.getArchiveSize());
-		if (startBlocks > 0)
-			newDiskSize = startBlocks*512;
-		ByteArrayImageLayout layout = new ByteArrayImageLayout(newDiskSize);
-		ImageOrder imageOrder = new ProdosOrder(layout);
-		// Create a new disk in anticipation of unpacking files - we don't actually know if we'll need it yet, though.
-		FormattedDisk[] disks = ProdosFormatDisk.create(fileName, "APPLECOMMANDER", imageOrder); //$NON-NLS-1$
-		// Make some typing easier... get a handle to the disk we created, with ProdosFormatDisk extensions. 
-		ProdosFormatDisk pdDisk = (ProdosFormatDisk) disks[0];
-		ThreadRecord dataFork, resourceFork;
-		for (HeaderBlock b : a.getHeaderBlocks())
+		NuFileArchive a = new NuFileArchive(file);
+		try
 		{
-			ProdosFileEntry newFile = null;
-			dataFork = null;
-			resourceFork = null;
-			for (ThreadRecord r : b.getThreadRecords())
+			// Disk images take precedence... if they have both disk images and files, just return the disk.
+			for (HeaderBlock b : a.getHeaderBlocks())
+			{
+				ThreadRecord diskImage = b.findThreadRecord(ThreadKind.DISK_IMAGE);
+				if (diskImage != null)
+				{
+					return readThread(diskImage);
+				}
+			}
+			// Build a disk just big enough to hold the files (i.e. .shk vs. .sdk)
+			int newDiskSize = getDiskSizeNeeded(a);
+			if (startBlocks > 0)
+				newDiskSize = startBlocks*512;
+			checkDiskSize(fileName, newDiskSize);
+			ByteArrayImageLayout layout = new ByteArrayImageLayout(newDiskSize);
+			ImageOrder imageOrder = new ProdosOrder(layout);
+			FormattedDisk[] disks = ProdosFormatDisk.create(fileName, "APPLECOMMANDER", imageOrder); //$NON-NLS-1$
+			// Make some typing easier... get a handle to the disk we created, with ProdosFormatDisk extensions. 
+			ProdosFormatDisk pdDisk = (ProdosFormatDisk) disks[0];
+			ThreadRecord dataFork, resourceFork;
+			for (HeaderBlock b : a.getHeaderBlocks())
 			{
+				ProdosFileEntry newFile = null;
+				// This is a normal-ish file - hang on to the thread records
+				dataFork = b.findThreadRecord(ThreadKind.DATA_FORK);
+				// This is a resource fork - we're talking GSOS FST here
+				resourceFork = b.findThreadRecord(ThreadKind.RESOURCE_FORK);
 				try
 				{
-					switch (r.getThreadKind())
+					if ((dataFork != null) || (resourceFork != null))
 					{
-					case ASCII_TEXT:
-						break;
-					case ALLOCATED_SPACE:
-						break;
-					case APPLE_IIGS_ICON:
-						break;
-					case CREATE_DIRECTORY:
-						break;
-					case DATA_FORK:
-						// This is a normal-ish file - hang on to the thread record
-						dataFork = r;
-						break;
-					case DISK_IMAGE:
-						dmgBuffer = readThread(r);
-						break;
-					case RESOURCE_FORK:
-						// This is a resource fork - we're talking GSOS FST here
-						resourceFork = r;
-						break;
-					case FILENAME:
-						break;
-					default:
-						// Hmmm, this should not occur - but let us not fret about it.
-						break;
+						Name name = new Name(b.getFilename());
+						newFile = (ProdosFileEntry)name.createEntry(pdDisk);
+						if (newFile != null)
+						{
+							if (resourceFork != null)
+							{
+								// If we have a resource fork in addition to a data fork,
+								// then we've got a GSOS storage type $5. 
+								newFile.setFileData(readThread(dataFork), readThread(resourceFork));
+								newFile.setStorageType(0x05);
+							}
+							else
+							{
+								// We have a traditional file, no resource fork: decompress
+								// it straight into the blocks set aside for it.
+								int length = (int) dataFork.getThreadEof();
+								int block = pdDisk.allocateContiguousFile(newFile, length);
+								readThread(dataFork, layout.getDiskImage(), block * Disk.BLOCK_SIZE);
+							}
+							newFile.setFilename(b.getFinalFilename());
+							newFile.setFiletype(b.getFileType());
+							newFile.setAuxiliaryType((int) b.getExtraType());
+							// TODO: dates differ by a month or so from what CiderPress reports.  
+							newFile.setCreationDate(b.getCreateWhen());
+							newFile.setLastModificationDate(b.getModWhen());
+							newFile = null;
+						}
 					}
 				}
 				catch (Exception ex)
@@ -133,54 +165,221 @@ public class Utilities
 					throw new IOException(ex.getMessage());
 				}
 			}
-			try
+			return layout.getDiskImage();
+		}
+		finally
+		{
+			a.close();
+		}
+	}
+
+	/**
+	 * Work out the size of a ProDOS disk that will hold all of the files in
+	 * the archive, as given by the thread EOFs.
+	 */
+	protected static int getDiskSizeNeeded(NuFileArchive a)
+	{
+		DiskSpace space = new DiskSpace();
+		for (HeaderBlock b : a.getHeaderBlocks())
+		{
+			ThreadRecord dataFork = b.findThreadRecord(ThreadKind.DATA_FORK);
+			ThreadRecord resourceFork = b.findThreadRecord(ThreadKind.RESOURCE_FORK);
+			if (dataFork == null && resourceFork == null) continue;
+			space.addFile(b.getFilename(), dataFork == null ? 0 : dataFork.getThreadEof(),
+				resourceFork == null ? -1 : resourceFork.getThreadEof());
+		}
+		return space.getDiskSize();
+	}
+
+	/**
+	 * Make sure the files will fit on a ProDOS volume.
+	 */
+	protected static void checkDiskSize(String fileName, long diskSize) throws IOException
+	{
+		if (diskSize > Disk.APPLE_32MB_HARDDISK)
+		{
+			throw new IOException(StorageBundle.getInstance().format("ArchiveTooLarge", //$NON-NLS-1$
+				new Object[] { fileName, diskSize }));
+		}
+	}
+
+	/**
+	 * Adds up the size of a ProDOS disk that will hold a set of files: the
+	 * boot blocks, volume bitmap and directories, and the data and index
+	 * blocks of each file.  Up to 800K, the smallest standard floppy size
+	 * that fits is used.
+	 */
+	protected static class DiskSpace
+	{
+		private Map<String,Integer> directories = new HashMap<String,Integer>();
+		private int blocks = 2;		// boot blocks
+
+		public DiskSpace()
+		{
+			directories.put("", 0); //$NON-NLS-1$
+		}
+
+		/**
+		 * Add a file, given its pathname ('/' between directories) and the
+		 * length of each fork.  The resource fork length is -1 if there is none.
+		 */
+		public void addFile(String filename, long dataLength, long resourceLength)
+		{
+			if (resourceLength >= 0)
+			{
+				blocks+= 1 + ProdosFormatDisk.getBlocksNeeded(resourceLength)
+					+ ProdosFormatDisk.getBlocksNeeded(dataLength);
+			}
+			else
+			{
+				blocks+= ProdosFormatDisk.getBlocksNeeded(dataLength);
+			}
+			// Count the entries in each directory along the path
+			if (filename.startsWith("/")) filename = filename.substring(1); //$NON-NLS-1$
+			String[] path = filename.split("/"); //$NON-NLS-1$
+			String directory = ""; //$NON-NLS-1$
+			for (int i = 0; i < path.length; i++)
 			{
-				if ((dataFork != null) || (resourceFork != null))
+				Integer count = directories.get(directory);
+				String child = directory + "/" + path[i].toUpperCase(); //$NON-NLS-1$
+				if (i == path.length - 1 || !directories.containsKey(child))
 				{
-					Name name = new Name(b.getFilename());
-					newFile = (ProdosFileEntry)name.createEntry(pdDisk);
-					if (newFile != null)
-					{
-						if (resourceFork != null)
-						{
-							// If we have a resource fork in addition to a data fork,
-							// then we've got a GSOS storage type $5. 
-							newFile.setFileData(readThread(dataFork), readThread(resourceFork));
-							newFile.setStorageType(0x05);
-						}
-						else
-						{
-							// We have a traditional file, no resource fork.
-							newFile.setFileData(readThread(dataFork));
-						}
-						newFile.setFilename(b.getFinalFilename());
-						newFile.setFiletype(b.getFileType());
-						newFile.setAuxiliaryType((int) b.getExtraType());
-						// TODO: dates differ by a month or so from what CiderPress reports.  
-						newFile.setCreationDate(b.getCreateWhen());
-						newFile.setLastModificationDate(b.getModWhen());
-						newFile = null;
-					}
+					directories.put(directory, count + 1);
 				}
+				if (i < path.length - 1 && !directories.containsKey(child))
+				{
+					directories.put(child, 0);
+				}
+				directory = child;
 			}
-			catch (Exception ex)
+		}
+
+		/**
+		 * Answer with the size of the disk in bytes.
+		 */
+		public int getDiskSize()
+		{
+			int total = blocks;
+			// Directory blocks hold 13 entries, with the header taking up one
+			for (Map.Entry<String,Integer> directory : directories.entrySet())
 			{
-				throw new IOException(ex.getMessage());
+				int directoryBlocks = (directory.getValue() + 13) / 13;
+				if (directory.getKey().length() == 0)
+					directoryBlocks = Math.max(4, directoryBlocks);
+				total+= directoryBlocks;
 			}
+			// The volume bitmap covers every block, including its own
+			int bitmapBlocks = 1;
+			while ((total + bitmapBlocks) / 4096 + 1 > bitmapBlocks)
+				bitmapBlocks++;
+			total+= bitmapBlocks;
+			total++;		// ProdosFormatDisk.findFreeBlock does not hand out the last block
+			int size = total * Disk.BLOCK_SIZE;
+			if (size <= Disk.APPLE_800KB_DISK)
+				size = Disk.sizeToFit(size);
+			return size;
 		}
-		if (dmgBuffer != null)
+	}
+
+	/**
+	 * Interpret a Binary II archive (BNY) as a disk image: a ProDOS disk just
+	 * big enough to hold the files is built and the files are read straight
+	 * into it.  The archive is read twice, once for the headers alone to
+	 * size the disk and once for the data; neither pass buffers any file.
+	 * 
+	 * @return byte[] buffer containing the full disk image
+	 * @throws IOException
+	 *             the file is not a Binary II archive or is damaged
+	 */
+	public static byte[] unpackBNYFile(String fileName, int startBlocks) throws IOException
+	{
+		TextBundle textBundle = StorageBundle.getInstance();
+		File file = new File(fileName);
+		if (file.isDirectory() || !file.canRead())
 		{
-			// Disk images take precedence... if they have both disk images and files, just return the disk.
-			return dmgBuffer;
+			throw new IOException(textBundle.format("NotAFile", fileName, 1)); //$NON-NLS-1$ 
+		}
+		DiskSpace space = new DiskSpace();
+		BinaryIIInputStream bs = new BinaryIIInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try
+		{
+			BinaryIIHeader header;
+			while ((header = bs.getNextEntry()) != null)
+			{
+				if (!header.isDirectory()) space.addFile(header.getFilename(), header.getEof(), -1);
+			}
+		}
+		finally
+		{
+			bs.close();
+		}
+		int newDiskSize = (startBlocks > 0) ? startBlocks * Disk.BLOCK_SIZE : space.getDiskSize();
+		checkDiskSize(fileName, newDiskSize);
+		ByteArrayImageLayout layout = new ByteArrayImageLayout(newDiskSize);
+		ProdosFormatDisk pdDisk = ProdosFormatDisk.create(fileName,
+				"APPLECOMMANDER", new ProdosOrder(layout))[0]; //$NON-NLS-1$
+		bs = new BinaryIIInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try
+		{
+			importBinaryII(bs, pdDisk);
+		}
+		finally
+		{
+			bs.close();
+		}
+		return layout.getDiskImage();
+	}
+
+	/**
+	 * Copy every file in a Binary II stream onto a ProDOS disk.  Each file is
+	 * given contiguous blocks and its data is read straight into the disk
+	 * image.  Directories are created as they are needed.
+	 * 
+	 * @throws IOException
+	 *             the stream is damaged or the disk is full
+	 */
+	public static void importBinaryII(BinaryIIInputStream bs, ProdosFormatDisk pdDisk) throws IOException
+	{
+		byte[] image = pdDisk.getImageOrder().getDiskImageManager().getDiskImage();
+		// Directories are looked up once and then kept, rather than for each file
+		Map<String,DirectoryEntry> directories = new HashMap<String,DirectoryEntry>();
+		directories.put("", pdDisk); //$NON-NLS-1$
+		BinaryIIHeader header;
+		while ((header = bs.getNextEntry()) != null)
+		{
+			try
+			{
+				String filename = header.getFilename();
+				if (filename.startsWith("/")) filename = filename.substring(1); //$NON-NLS-1$
+				if (header.isDirectory())
+				{
+					getDirectory(directories, filename);
+					continue;
+				}
+				int slash = filename.lastIndexOf('/');
+				DirectoryEntry directory = getDirectory(directories, slash < 0 ? "" : filename.substring(0, slash)); //$NON-NLS-1$
+				ProdosFileEntry newFile = (ProdosFileEntry) directory.createFile();
+				int length = (int) header.getEof();
+				int block = pdDisk.allocateContiguousFile(newFile, length);
+				bs.readFully(image, block * Disk.BLOCK_SIZE, length);
+				newFile.setFilename(header.getFinalFilename());
+				newFile.setFiletype(header.getFileType() & 0xff);
+				newFile.setAuxiliaryType(header.getAuxType() & 0xffff);
+				newFile.setCreationDate(header.getCreateWhen());
+				newFile.setLastModificationDate(header.getModWhen());
+			}
+			catch (DiskFullException ex)
+			{
+				throw new IOException(ex.getMessage());
+			}
 		}
-		else
-			return imageOrder.readBytes(0, newDiskSize);
 	}
 
 	/**
 	 * readThread
 	 * 
-	 * Reads the data from a thread
+	 * Reads the data from a thread.  LZW/1 threads are decoded a chunk at
+	 * a time in parallel.
 	 * 
 	 * @returns byte[] buffer, possibly null
 	 */
@@ -189,12 +388,322 @@ public class Utilities
 		byte[] buffer = null;
 		if (thread != null)
 		{
-			thread.readThreadData(new LittleEndianByteInputStream(thread.getRawInputStream()));
-			InputStream fis = thread.getInputStream();
 			buffer = new byte[(int) (thread.getThreadEof())];
-			fis.read(buffer, 0, buffer.length);
-			fis.close();
+			readThread(thread, buffer, 0);
 		}
 		return buffer;
 	}
+
+	/**
+	 * Reads the data from a thread into the buffer at the given offset.
+	 * The buffer must have room for the whole thread.
+	 */
+	public static void readThread(ThreadRecord thread, byte[] buffer, int offset) throws IOException
+	{
+		int length = (int) thread.getThreadEof();
+		if (thread.getThreadFormat() == ThreadFormat.DYNAMIC_LZW1)
+		{
+			NufxLzw1Decoder.decode(thread.getThreadData(), buffer, offset, length, verifyCrc);
+		}
+		else
+		{
+			InputStream fis = thread.getInputStream();
+			int count = 0;
+			while (count < length) {
+				int n = fis.read(buffer, offset + count, length - count);
+				if (n == -1) break;
+				count+= n;
+			}
+			fis.close();
+			if (count < length)
+			{
+				throw new IOException("Thread data ends after " + count + " of " + length + " bytes");
+			}
+		}
+		if (verifyCrc && thread.hasDataCrc())
+		{
+			int crc = CRC16.compute(THREAD_CRC_SEED, buffer, offset, length);
+			if (crc != thread.getThreadCrc())
+			{
+				throw new IOException("Thread CRC mismatch: expected " + thread.getThreadCrc() + " but found " + crc);
+			}
+		}
+	}
+
+	/**
+	 * Turn CRC checks of extracted thread data on or off.  They are on by
+	 * default; turning them off saves a little time on archives that are
+	 * known to be good.
+	 */
+	public static void setVerifyCrc(boolean verify)
+	{
+		verifyCrc = verify;
+	}
+
+	public static boolean isVerifyCrc()
+	{
+		return verifyCrc;
+	}
+
+	/**
+	 * Find a directory by its pathname, creating it (and any directories above
+	 * it) if need be.
+	 */
+	protected static DirectoryEntry getDirectory(Map<String,DirectoryEntry> directories, String pathname) throws DiskFullException
+	{
+		String key = pathname.toUpperCase();
+		DirectoryEntry directory = directories.get(key);
+		if (directory == null)
+		{
+			int slash = pathname.lastIndexOf('/');
+			DirectoryEntry parent = getDirectory(directories, slash < 0 ? "" : pathname.substring(0, slash)); //$NON-NLS-1$
+			String name = pathname.substring(slash + 1);
+			for (FileEntry entry : parent.getFiles())
+			{
+				if (!entry.isDeleted() && entry.isDirectory() && name.equalsIgnoreCase(entry.getFilename()))
+				{
+					directory = (DirectoryEntry) entry;
+				}
+			}
+			if (directory == null)
+			{
+				directory = parent.createDirectory(name.toUpperCase());
+			}
+			directories.put(key, directory);
+		}
+		return directory;
+	}
+
+	/**
+	 * Package a whole disk as a NuFX disk image archive (SDK).  The image
+	 * is stored in ProDOS block order, as SDKs always are.  The archive and
+	 * the image in it are dated archiveWhen.
+	 * 
+	 * @throws IOException
+	 *             the archive could not be written
+	 */
+	public static void packSDKFile(Disk disk, String fileName, Date archiveWhen) throws IOException
+	{
+		int blocks = disk.getImageOrder().getBlocksOnDevice();
+		byte[] image = new byte[blocks * Disk.BLOCK_SIZE];
+		for (int block = 0; block < blocks; block++)
+		{
+			System.arraycopy(disk.readBlock(block), 0, image, block * Disk.BLOCK_SIZE, Disk.BLOCK_SIZE);
+		}
+		int fileSysId = 0;
+		if (disk.isProdosFormat())
+			fileSysId = NuFileArchiveWriter.FILESYS_PRODOS;
+		else if (disk.isDosFormat())
+			fileSysId = NuFileArchiveWriter.FILESYS_DOS33;
+		String name = new File(disk.getFilename()).getName();
+		if (name.lastIndexOf('.') > 0)
+			name = name.substring(0, name.lastIndexOf('.'));
+		NuFileArchiveWriter writer = new NuFileArchiveWriter(archiveWhen);
+		writer.addDiskImage(name, image, fileSysId);
+		writeArchive(writer, fileName, archiveWhen);
+	}
+
+	/**
+	 * Package the files on a disk as a NuFX file archive (SHK).  Directories
+	 * become part of each pathname.  ProDOS files keep their filetype,
+	 * auxiliary type and dates; DOS 3.3 files are given the nearest ProDOS
+	 * filetype (binary files keep their address as the auxiliary type).  The
+	 * archive is dated archiveWhen.
+	 * 
+	 * @throws IOException
+	 *             the archive could not be written
+	 */
+	public static void packSHKFile(FormattedDisk disk, String fileName, Date archiveWhen) throws IOException
+	{
+		NuFileArchiveWriter writer = new NuFileArchiveWriter(archiveWhen);
+		addFiles(writer, disk.getFiles(), ""); //$NON-NLS-1$
+		writeArchive(writer, fileName, archiveWhen);
+	}
+
+	/**
+	 * Package the files on a disk as a Binary II archive (BNY).  Files are
+	 * not compressed; pathnames, filetypes and dates are kept as they are
+	 * for an SHK.
+	 * 
+	 * @throws IOException
+	 *             the archive could not be written
+	 */
+	public static void packBNYFile(FormattedDisk disk, String fileName) throws IOException
+	{
+		List<FileEntry> files = new ArrayList<FileEntry>();
+		List<String> pathnames = new ArrayList<String>();
+		collectFiles(disk.getFiles(), "", files, pathnames); //$NON-NLS-1$
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(fileName));
+		try
+		{
+			BinaryIIOutputStream bs = new BinaryIIOutputStream(os, files.size());
+			for (int i = 0; i < files.size(); i++)
+			{
+				FileEntry entry = files.get(i);
+				byte[] data = entry.getFileData();
+				int[] types = getProdosTypes(entry);
+				BinaryIIHeader header = new BinaryIIHeader();
+				header.setFilename(pathnames.get(i).replace(':', '/'));
+				header.setFileType(types[0]);
+				header.setAuxType(types[1]);
+				header.setAccess(getProdosAccess(entry));
+				header.setStorageType(data.length <= 512 ? 1 : data.length <= 128 * 1024 ? 2 : 3);
+				header.setEof(data.length);
+				if (entry instanceof ProdosFileEntry)
+				{
+					header.setCreateWhen(((ProdosFileEntry) entry).getCreationDate());
+					header.setModWhen(((ProdosFileEntry) entry).getLastModificationDate());
+				}
+				bs.putNextEntry(header);
+				bs.write(data, 0, data.length);
+			}
+			bs.finish();
+		}
+		finally
+		{
+			os.close();
+		}
+	}
+
+	/**
+	 * Add every file in the list, and those in any directories, to the archive.
+	 */
+	protected static void addFiles(NuFileArchiveWriter writer, List<FileEntry> files, String path) throws IOException
+	{
+		List<FileEntry> entries = new ArrayList<FileEntry>();
+		List<String> pathnames = new ArrayList<String>();
+		collectFiles(files, path, entries, pathnames);
+		for (int i = 0; i < entries.size(); i++)
+		{
+			FileEntry entry = entries.get(i);
+			int[] types = getProdosTypes(entry);
+			Date createWhen = null;
+			Date modWhen = null;
+			if (entry instanceof ProdosFileEntry)
+			{
+				createWhen = ((ProdosFileEntry) entry).getCreationDate();
+				modWhen = ((ProdosFileEntry) entry).getLastModificationDate();
+			}
+			writer.addFile(pathnames.get(i), getProdosAccess(entry), types[0], types[1],
+					createWhen, modWhen, entry.getFileData(), null);
+		}
+	}
+
+	/**
+	 * Gather up every file in the list, and those in any directories, along
+	 * with their pathnames (':' between directories).
+	 */
+	protected static void collectFiles(List<FileEntry> files, String path, List<FileEntry> entries, List<String> pathnames)
+	{
+		if (files == null) return;
+		for (FileEntry entry : files)
+		{
+			if (entry.isDeleted()) continue;
+			String pathname = path + entry.getFilename().trim();
+			if (entry.isDirectory())
+			{
+				collectFiles(((DirectoryEntry) entry).getFiles(), pathname + ":", entries, pathnames); //$NON-NLS-1$
+			}
+			else
+			{
+				entries.add(entry);
+				pathnames.add(pathname);
+			}
+		}
+	}
+
+	/**
+	 * Answer with the ProDOS filetype and auxiliary type of a file.  DOS 3.3
+	 * files are given the nearest ProDOS filetype (binary files keep their
+	 * address as the auxiliary type).
+	 */
+	protected static int[] getProdosTypes(FileEntry entry)
+	{
+		int fileType = 0;
+		int auxType = 0;
+		if (entry instanceof ProdosFileEntry)
+		{
+			ProdosFileEntry prodosEntry = (ProdosFileEntry) entry;
+			fileType = prodosEntry.getFiletypeByte();
+			auxType = prodosEntry.getAuxiliaryType();
+		}
+		else if (entry instanceof DosFileEntry)
+		{
+			DosFileEntry dosEntry = (DosFileEntry) entry;
+			if (dosEntry.isTextFile())
+				fileType = 0x04;
+			else if (dosEntry.isIntegerBasicFile())
+				fileType = 0xfa;
+			else if (dosEntry.isApplesoftBasicFile())
+			{
+				fileType = 0xfc;
+				auxType = 0x0801;
+			}
+			else if (dosEntry.isBinaryFile())
+			{
+				fileType = 0x06;
+				auxType = AppleUtil.getWordValue(dosEntry.getFormattedDisk().getFileData(dosEntry), 0);
+			}
+		}
+		return new int[] { fileType, auxType };
+	}
+
+	/**
+	 * Answer with the ProDOS access bits of a file.  ProDOS files keep their
+	 * own (the invisible bit is not available); other files are either
+	 * locked (read only) or not.
+	 */
+	protected static int getProdosAccess(FileEntry entry)
+	{
+		if (entry instanceof ProdosFileEntry)
+		{
+			ProdosFileEntry prodosEntry = (ProdosFileEntry) entry;
+			int access = 0;
+			if (prodosEntry.canDestroy()) access|= 0x80;
+			if (prodosEntry.canRename()) access|= 0x40;
+			if (prodosEntry.hasChanged()) access|= 0x20;
+			if (prodosEntry.canWrite()) access|= 0x02;
+			if (prodosEntry.canRead()) access|= 0x01;
+			return access;
+		}
+		return entry.isLocked() ? 0x01 : (int) NuFileArchiveWriter.DEFAULT_ACCESS;
+	}
+
+	/**
+	 * Write the archive out to the named file.  A name ending in .bxy gets
+	 * the archive wrapped in Binary II, dated archiveWhen.
+	 */
+	protected static void writeArchive(NuFileArchiveWriter writer, String fileName, Date archiveWhen) throws IOException
+	{
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(fileName));
+		try
+		{
+			if (fileName.toLowerCase().endsWith(".bxy")) //$NON-NLS-1$
+			{
+				ByteArrayOutputStream archive = new ByteArrayOutputStream();
+				writer.write(archive);
+				String name = new File(fileName).getName();
+				BinaryIIHeader header = new BinaryIIHeader();
+				header.setFilename(name.substring(0, name.length() - 4).toUpperCase());
+				header.setFileType(BinaryIIHeader.NUFX_FILETYPE);
+				header.setAuxType(BinaryIIHeader.NUFX_AUXTYPE);
+				header.setStorageType(archive.size() <= 512 ? 1 : archive.size() <= 128 * 1024 ? 2 : 3);
+				header.setEof(archive.size());
+				header.setModWhen(archiveWhen);
+				header.setCreateWhen(header.getModWhen());
+				BinaryIIOutputStream bs = new BinaryIIOutputStream(os, 1);
+				bs.putNextEntry(header);
+				archive.writeTo(bs);
+				bs.finish();
+			}
+			else
+			{
+				writer.write(os);
+			}
+		}
+		finally
+		{
+			os.close();
+		}
+	}
 }
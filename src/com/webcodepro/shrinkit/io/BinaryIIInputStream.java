@@ -0,0 +1,140 @@
+package com.webcodepro.shrinkit.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.webcodepro.shrinkit.BinaryIIHeader;
+
+/**
+ * Reads the files out of a Binary II stream in a single pass, in the
+ * manner of <code>java.util.zip.ZipInputStream</code>: <code>getNextEntry</code>
+ * reads the next header and <code>read</code> then returns that file's data.
+ * Nothing is buffered beyond the current header; the padding after each
+ * file is skipped when the next header is read.
+ */
+public class BinaryIIInputStream extends InputStream {
+	private InputStream inputStream;
+	private BinaryIIHeader entry;
+	/** Bytes of the current file's data still to be read. */
+	private long remaining;
+	/** Bytes (data and padding) to skip before the next header. */
+	private long skip;
+	private boolean lastEntry;
+
+	/**
+	 * Create the Binary II stream.
+	 */
+	public BinaryIIInputStream(InputStream inputStream) {
+		this.inputStream = inputStream;
+	}
+
+	/**
+	 * Read the header of the next file, skipping whatever remains of the
+	 * current one.  Answers with null once the last file has been read.
+	 * @throws IOException if the stream is damaged or not Binary II
+	 */
+	public BinaryIIHeader getNextEntry() throws IOException {
+		entry = null;
+		remaining = 0;
+		if (lastEntry) return null;		// the padding of the last file may be missing
+		skipFully(skip);
+		skip = 0;
+		byte[] header = new byte[BinaryIIHeader.HEADER_LENGTH];
+		int count = readBytes(header, 0, header.length);
+		if (count == 0) return null;
+		if (count < header.length) {
+			throw new EOFException("Binary II header is short (" + count + " bytes)");
+		}
+		entry = new BinaryIIHeader(header);
+		lastEntry = entry.getFilesToFollow() == 0;
+		if (!entry.isDirectory()) {		// only the header is sent for a directory
+			remaining = entry.getEof();
+			skip = entry.getPaddedLength();
+		}
+		return entry;
+	}
+
+	/**
+	 * Read a byte of the current file, or -1 at its end.
+	 */
+	public int read() throws IOException {
+		if (remaining == 0) return -1;
+		int b = inputStream.read();
+		if (b == -1) throw new EOFException("Binary II data ends early");
+		remaining--;
+		skip--;
+		return b;
+	}
+
+	/**
+	 * Read up to len bytes of the current file.
+	 */
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) return 0;
+		if (remaining == 0) return -1;
+		int n = inputStream.read(b, off, (int) Math.min(len, remaining));
+		if (n == -1) throw new EOFException("Binary II data ends early");
+		remaining-= n;
+		skip-= n;
+		return n;
+	}
+
+	/**
+	 * Read exactly len bytes of the current file.
+	 * @throws EOFException if the file does not have that many bytes left
+	 */
+	public void readFully(byte[] b, int off, int len) throws IOException {
+		if (len > remaining || readBytes(b, off, len) < len) {
+			throw new EOFException("Binary II data ends early");
+		}
+		remaining-= len;
+		skip-= len;
+	}
+
+	/**
+	 * Skip over bytes of the current file.
+	 */
+	public long skip(long n) throws IOException {
+		n = Math.min(n, remaining);
+		skipFully(n);
+		remaining-= n;
+		skip-= n;
+		return n;
+	}
+
+	public int available() throws IOException {
+		return (int) Math.min(remaining, inputStream.available());
+	}
+
+	public void close() throws IOException {
+		inputStream.close();
+	}
+
+	/**
+	 * Read until the buffer is full or the underlying stream ends.
+	 */
+	private int readBytes(byte[] b, int off, int len) throws IOException {
+		int count = 0;
+		while (count < len) {
+			int n = inputStream.read(b, off + count, len - count);
+			if (n == -1) break;
+			count+= n;
+		}
+		return count;
+	}
+
+	/**
+	 * Skip bytes of the underlying stream, which must have them.
+	 */
+	private void skipFully(long n) throws IOException {
+		while (n > 0) {
+			long skipped = inputStream.skip(n);
+			if (skipped <= 0) {
+				if (inputStream.read() == -1) throw new EOFException("Binary II data ends early");
+				skipped = 1;
+			}
+			n-= skipped;
+		}
+	}
+}
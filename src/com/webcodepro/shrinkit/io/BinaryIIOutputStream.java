@@ -0,0 +1,95 @@
+package com.webcodepro.shrinkit.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.webcodepro.shrinkit.BinaryIIHeader;
+
+/**
+ * Writes files as a Binary II stream, in the manner of
+ * <code>java.util.zip.ZipOutputStream</code>.  Since the header comes first,
+ * the EOF of each file must be set before <code>putNextEntry</code>; the
+ * data written must match it.  The count of files to follow is filled in
+ * from the number of files given to the constructor.
+ */
+public class BinaryIIOutputStream extends OutputStream {
+	private static final byte[] PADDING = new byte[BinaryIIHeader.HEADER_LENGTH];
+	private OutputStream outputStream;
+	private int filesLeft;
+	private BinaryIIHeader entry;
+	/** Bytes of the current file still to be written. */
+	private long remaining;
+
+	/**
+	 * Create the Binary II stream for the given number of files.
+	 */
+	public BinaryIIOutputStream(OutputStream outputStream, int fileCount) {
+		this.outputStream = outputStream;
+		this.filesLeft = fileCount;
+	}
+
+	/**
+	 * Write the header of the next file.  Directories have no data.
+	 */
+	public void putNextEntry(BinaryIIHeader header) throws IOException {
+		closeEntry();
+		if (filesLeft == 0) {
+			throw new IOException("More files were written than the Binary II stream was created for");
+		}
+		filesLeft--;
+		header.setFilesToFollow(Math.min(filesLeft, 0xff));
+		outputStream.write(header.toBytes());
+		entry = header;
+		remaining = header.isDirectory() ? 0 : header.getEof();
+	}
+
+	/**
+	 * Finish the current file, padding it out to 128 bytes.
+	 */
+	public void closeEntry() throws IOException {
+		if (entry == null) return;
+		if (remaining != 0) {
+			throw new IOException(remaining + " bytes are missing from " + entry.getFilename());
+		}
+		long dataLength = entry.isDirectory() ? 0 : entry.getEof();
+		int padding = (int) ((BinaryIIHeader.HEADER_LENGTH - dataLength % BinaryIIHeader.HEADER_LENGTH) % BinaryIIHeader.HEADER_LENGTH);
+		outputStream.write(PADDING, 0, padding);
+		entry = null;
+	}
+
+	public void write(int b) throws IOException {
+		checkLength(1);
+		outputStream.write(b);
+		remaining--;
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		checkLength(len);
+		outputStream.write(b, off, len);
+		remaining-= len;
+	}
+
+	private void checkLength(int len) throws IOException {
+		if (entry == null || len > remaining) {
+			throw new IOException("Data written past the EOF given in the Binary II header");
+		}
+	}
+
+	/**
+	 * Finish the last file and flush the stream.  The underlying stream is
+	 * not closed.
+	 */
+	public void finish() throws IOException {
+		closeEntry();
+		outputStream.flush();
+	}
+
+	public void flush() throws IOException {
+		outputStream.flush();
+	}
+
+	public void close() throws IOException {
+		finish();
+		outputStream.close();
+	}
+}
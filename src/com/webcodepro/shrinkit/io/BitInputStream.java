@@ -77,6 +77,18 @@ public class BitInputStream extends InputStream implements BitConstants {
         bitsOfData-= requestedNumberOfBits; 
         return b; 
     }
+
+    /**
+     * Pass a block read straight through to the wrapped InputStream when reading
+     * 8 bits at a time with no bits left over.  Otherwise, each value is read with
+     * <code>read()</code> (see the warning above).
+     */
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (requestedNumberOfBits == 8 && bitsOfData == 0) {
+            return is.read(b, off, len);
+        }
+        return super.read(b, off, len);
+    }
     
     /**
      * When shifting from buffer to buffer, the input stream also should be reset.
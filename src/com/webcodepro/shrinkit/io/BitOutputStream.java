@@ -83,6 +83,17 @@ public class BitOutputStream extends OutputStream implements BitConstants {
     	this.data = 0;
     }
 
+    /**
+     * Write out any remaining bits, padding the last byte with zeros, so that
+     * the next code starts on a byte boundary.
+     */
+    public void writeRemainingBits() throws IOException {
+    	if (bitsOfData > 0) {
+    		os.write(data & 0xff);
+    	}
+    	clearRemainingBitsOfData();
+    }
+
     /**
      * Close the output stream and write any remaining byte to the output.
      * Note that we may very well end up with extra bits if there are &lt; 8
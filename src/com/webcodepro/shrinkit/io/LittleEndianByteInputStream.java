@@ -45,6 +45,17 @@ public class LittleEndianByteInputStream extends InputStream implements ByteCons
 		}
 		return b;
 	}
+	/**
+	 * Read up to len bytes into b, updating the CRC for the whole block.
+	 */
+	public int read(byte[] b, int off, int len) throws IOException {
+		int read = inputStream.read(b, off, len);
+		if (read > 0) {
+			crc.update(b, off, read);
+			bytesRead+= read;
+		}
+		return read;
+	}
 	/**
 	 * Get the next byte and fail if we are at EOF.
 	 * Note that an unsigned byte needs to be returned in a larger container (ie, a short or int or long).
@@ -60,11 +71,14 @@ public class LittleEndianByteInputStream extends InputStream implements ByteCons
 	 */
 	public byte[] readBytes(int bytes) throws IOException {
 		byte[] data = new byte[bytes];
-		int read = inputStream.read(data);
+		// The underlying stream may return fewer bytes than asked for; keep reading until EOF.
+		int read = 0;
+		while (read < bytes) {
+			int count = inputStream.read(data, read, bytes - read);
+			if (count == -1) break;
+			read+= count;
+		}
 		bytesRead+= read;
-		// In the case where we have a zero-byte file, 'read' stays at -1, which is not correct.  Fix it.
-		if ((bytes == 0) && (read == -1))
-			read = 0;
 		if (read < bytes) {
 			throw new IOException("Requested " + bytes + " bytes, but " + read + " read");
 		}
@@ -72,6 +86,26 @@ public class LittleEndianByteInputStream extends InputStream implements ByteCons
 		return data;
 	}
 
+	/**
+	 * Skip over the next set of bytes without reading them into memory.
+	 * If EOF encountered, an IOException is thrown.
+	 */
+	public void skipBytes(long bytes) throws IOException {
+		long skipped = 0;
+		while (skipped < bytes) {
+			long count = inputStream.skip(bytes - skipped);
+			if (count <= 0) {
+				if (inputStream.read() == -1) break;
+				count = 1;
+			}
+			skipped+= count;
+		}
+		bytesRead+= skipped;
+		if (skipped < bytes) {
+			throw new IOException("Requested " + bytes + " bytes, but " + skipped + " read");
+		}
+	}
+
 	/**
 	 * Test the beginning of the data stream for a magic signature, for up to a total
 	 * of 2k bytes of leading garbage
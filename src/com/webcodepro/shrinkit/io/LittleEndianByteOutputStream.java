@@ -32,6 +32,16 @@ public class LittleEndianByteOutputStream extends OutputStream implements ByteCo
 	public void write(int b) throws IOException {
 		outputStream.write(b);
 		crc.update(b);
+		bytesWritten++;
+	}
+
+	/**
+	 * Write a block of bytes.
+	 */
+	public void write(byte[] b, int off, int len) throws IOException {
+		outputStream.write(b, off, len);
+		crc.update(b, off, len);
+		bytesWritten+= len;
 	}
 
 	/**
@@ -2,30 +2,45 @@ package com.webcodepro.shrinkit.io;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * This is the generic Shrinkit LZW decompression algorithm.
  * It does not deal with the vagaries of the LZW/1 and LZW/2 data streams.
- * It does, however, deal with dictionary clears (0x100) and the 
+ * It does, however, deal with dictionary clears (0x100) and the
  * <code>BitInputStream</code> bit sizes.
- *  
+ * <p>
+ * The dictionary is kept as prefix/suffix tables: each code is the code of
+ * its prefix plus one byte, so a string is written out by walking the
+ * prefixes back from its last byte.  Since the length of every string is
+ * known, it can be written straight into the caller's buffer.
+ *
  * @author robgreene@users.sourceforge.net
  */
 public class LzwInputStream extends InputStream {
+	/** First code that is not a single byte (0x100 is the clear code). */
+	private static final int FIRST_CODE = 0x101;
+	/** Initial size of the dictionary tables; they grow if needed. */
+	private static final int INITIAL_TABLE_SIZE = 4096;
 	private BitInputStream is;
-	private List<int[]> dictionary;
-	private Queue<Integer> outputBuffer = new ConcurrentLinkedQueue<Integer>();
+	/** The code of the prefix string for each code. */
+	private short[] prefix = new short[INITIAL_TABLE_SIZE];
+	/** The last byte of the string for each code. */
+	private byte[] suffix = new byte[INITIAL_TABLE_SIZE];
+	/** The length of the string for each code. */
+	private short[] length = new short[INITIAL_TABLE_SIZE];
+	/** The number of codes in the dictionary; -1 if it needs to be built. */
+	private int dictionarySize = -1;
+	/** The length of the longest string in the dictionary. */
+	private int longest;
+	/** Decoded bytes not yet handed out. */
+	private byte[] outputBuffer = new byte[INITIAL_TABLE_SIZE];
+	private int outputPosition;
+	private int outputLength;
 	private boolean newBuffer = true;
 	// See Wikipedia entry on LZW for variable naming
-	private int k;
-	private int[] w;
-	private int[] entry;
-	
+	private int w;
+
 	/**
 	 * Create the <code>LzwInputStream</code> based on the given
 	 * <code>BitInputStream</code>.
@@ -33,104 +48,182 @@ public class LzwInputStream extends InputStream {
 	 */
 	public LzwInputStream(BitInputStream is) {
 		this.is = is;
+		for (int i=0; i<256; i++) {
+			suffix[i] = (byte) i;
+			length[i] = 1;
+		}
 	}
 
 	/**
 	 * Answer with the next byte from the (now) decompressed input stream.
 	 */
 	public int read() throws IOException {
-		if (outputBuffer.isEmpty()) {
+		if (outputPosition == outputLength) {
 			fillBuffer();
+			if (outputLength == 0) return -1;
 		}
-		return outputBuffer.remove();
+		return outputBuffer[outputPosition++] & 0xff;
+	}
+
+	/**
+	 * Read up to len decompressed bytes into b.  Strings which fit are
+	 * decoded directly into b; the rest go through the output buffer.
+	 */
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) return 0;
+		int count = 0;
+		while (count < len) {
+			if (outputPosition < outputLength) {
+				int n = Math.min(len - count, outputLength - outputPosition);
+				System.arraycopy(outputBuffer, outputPosition, b, off + count, n);
+				outputPosition+= n;
+				count+= n;
+			} else if (len - count > longest) {
+				int n = decode(b, off + count);
+				if (n == -1) break;
+				count+= n;
+			} else {
+				fillBuffer();
+				if (outputLength == 0) break;
+			}
+		}
+		return (count == 0) ? -1 : count;
 	}
 
 	/**
 	 * Fill the buffer up with some decompressed data.
 	 * This may range from one byte to many bytes, depending on what is in the
-	 * dictionary.
+	 * dictionary.  The buffer is left empty at the end of the stream.
 	 * @see http://en.wikipedia.org/wiki/Lzw for the general algorithm
 	 */
 	public void fillBuffer() throws IOException {
-		if (dictionary == null) {
-			is.setRequestedNumberOfBits(9);
-			// Setup default dictionary for all bytes
-			dictionary = new ArrayList<int[]>();
-			for (short i=0; i<256; i++) dictionary.add(new int[] { i });
-			dictionary.add(new int[] { 0x100 });	// 0x100 not used by NuFX
+		outputPosition = 0;
+		outputLength = 0;
+		int n = 0;
+		while (n == 0) {
+			if (outputBuffer.length <= longest) {
+				outputBuffer = new byte[Math.max(outputBuffer.length * 2, longest + 1)];
+			}
+			n = decode(outputBuffer, 0);
 		}
-		if (newBuffer) {
-			// Setup for decompression;
-			k = is.read();
-			outputBuffer.add(k);
-			if (k == -1) return; 
-			w = new int[] { k };
-			newBuffer = false;
+		if (n > 0) outputLength = n;
+	}
+
+	/**
+	 * Decode the next code into b at off, which must have room for
+	 * <code>longest + 1</code> bytes.
+	 * @return the number of bytes written (0 for a dictionary clear), or -1
+	 * at the end of the stream
+	 */
+	protected int decode(byte[] b, int off) throws IOException {
+		if (dictionarySize == -1) {
+			resetDictionary();
 		}
-		// LZW decompression
-		k = is.read();
+		int k = is.read();
 		if (k == -1) {
-			outputBuffer.add(k);
-			return;
+			return -1;
+		}
+		if (newBuffer) {
+			if (k > 0xff) {
+				throw new IOException("Invalid code of <" + k + "> encountered");
+			}
+			b[off] = (byte) k;
+			w = k;
+			newBuffer = false;
+			return 1;
 		}
 		if (k == 0x100) {
-			dictionary = null;
-			is.setRequestedNumberOfBits(9);
-			k = 0;
-			w = null;
-			entry = null;
-			newBuffer = true;
-			fillBuffer();	// Warning: recursive call
-			return;
+			resetDictionary();
+			return 0;
 		}
-		if (k < dictionary.size()) {
-			entry = dictionary.get(k);
-		} else if (k == dictionary.size()) {
-			//entry = Arrays.copyOf(w, w.length+1);
-			entry = new int[w.length+1];
-			System.arraycopy(w, 0, entry, 0, w.length);
-			entry[w.length] = w[0];
+		int n;
+		byte first;
+		if (k < dictionarySize) {
+			n = writeString(k, b, off);
+			first = b[off];
+		} else if (k == dictionarySize) {
+			// The code being defined: w followed by the first byte of w
+			n = writeString(w, b, off);
+			first = b[off];
+			b[off + n] = first;
+			n++;
 		} else {
 			throw new IOException("Invalid code of <" + k + "> encountered");
 		}
-		for (int i : entry) outputBuffer.add(i);
-		//int[] newEntry = Arrays.copyOf(w, w.length+1);
-		int[] newEntry = new int[w.length+1];
-		System.arraycopy(w, 0, newEntry, 0, w.length);
-		newEntry[w.length] = entry[0];
-		dictionary.add(newEntry);
-		w = entry;
+		addCode(w, first);
+		w = k;
 		// Exclusive-OR the current bitmask against the new dictionary size -- if all bits are
-		// on, we'll get 0.  (That is, all 9 bits on is 0x01ff exclusive or bit mask of 0x01ff 
+		// on, we'll get 0.  (That is, all 9 bits on is 0x01ff exclusive or bit mask of 0x01ff
 		// yields 0x0000.)  This tells us we need to increase the number of bits we're pulling
 		// from the bit stream.
-		if ((dictionary.size() ^ is.getBitMask()) == 0) {
+		if ((dictionarySize ^ is.getBitMask()) == 0) {
 			is.increaseRequestedNumberOfBits();
 		}
+		return n;
+	}
+
+	/**
+	 * Write the string for code into b at off, last byte first.
+	 */
+	private int writeString(int code, byte[] b, int off) {
+		int n = length[code] & 0xffff;
+		for (int i=off+n-1; i>=off; i--) {
+			b[i] = suffix[code];
+			code = prefix[code] & 0xffff;
+		}
+		return n;
 	}
-	
+
+	/**
+	 * Add the string for code w followed by the given byte.
+	 */
+	private void addCode(int w, byte c) {
+		if (dictionarySize == prefix.length) {
+			prefix = Arrays.copyOf(prefix, prefix.length * 2);
+			suffix = Arrays.copyOf(suffix, suffix.length * 2);
+			length = Arrays.copyOf(length, length.length * 2);
+		}
+		int n = (length[w] & 0xffff) + 1;
+		prefix[dictionarySize] = (short) w;
+		suffix[dictionarySize] = c;
+		length[dictionarySize] = (short) n;
+		dictionarySize++;
+		if (n > longest) longest = n;
+	}
+
+	/**
+	 * Reset the dictionary to the single byte codes and start a new string.
+	 */
+	private void resetDictionary() {
+		dictionarySize = FIRST_CODE;
+		longest = 1;
+		is.setRequestedNumberOfBits(9);
+		w = 0;
+		newBuffer = true;
+	}
+
 	/**
 	 * Clear out the dictionary.  It will be rebuilt on the next call to
 	 * <code>fillBuffer</code>.
 	 */
 	public void clearDictionary() {
-		dictionary = null;
+		dictionarySize = -1;
 		is.setRequestedNumberOfBits(9);
 		is.clearRemainingBitsOfData();
-		outputBuffer.clear();
-		k = 0;
-		w = null;
-		entry = null;
+		outputPosition = 0;
+		outputLength = 0;
+		w = 0;
 		newBuffer = true;
 	}
-	
+
 	/**
 	 * Provide necessary housekeeping to reset LZW stream between NuFX buffer changes.
 	 * The dictionary is the only item that is not cleared -- that needs to be done
-	 * explicitly since behavior between LZW/1 and LZW/2 differ. 
+	 * explicitly since behavior between LZW/1 and LZW/2 differ.
 	 */
 	public void clearData() {
 		is.clearRemainingBitsOfData();
-		outputBuffer.clear();
+		outputPosition = 0;
+		outputLength = 0;
 	}
 }
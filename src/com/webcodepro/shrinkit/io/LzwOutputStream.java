@@ -2,95 +2,201 @@ package com.webcodepro.shrinkit.io;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.HashMap;
-import java.util.Map;
-
-import com.webcodepro.shrinkit.CRC16;
 
 /**
  * This is the generic Shrinkit LZW compression algorithm.
- * It does not deal with the vagaries of the LZW/1 and LZW/2 data streams.
- *  
+ * It does not deal with the vagaries of the LZW/1 and LZW/2 data streams,
+ * but it does provide what they need: chunks that end on a byte boundary,
+ * dictionary resets, and (for LZW/2) dictionary clears (0x100) before the
+ * codes outgrow 12 bits.
+ * <p>
+ * The dictionary is an open-addressing hash table keyed on the code of the
+ * current string and the next byte, holding the code for the longer
+ * string.  The bit sizes follow <code>LzwInputStream</code>, which adds
+ * each entry one code later than the encoder does.
+ *
  * @author robgreene@users.sourceforge.net
  */
 public class LzwOutputStream extends OutputStream {
+	/** First code that is not a single byte (0x100 is the clear code). */
+	private static final int FIRST_CODE = 0x101;
+	/** Clear the dictionary before the decoder would need 13 bit codes. */
+	private static final int MAXIMUM_SIZE = 0xffe;
+	/** Hash table size; a power of 2 that keeps the table under a third full. */
+	private static final int HASH_BITS = 14;
+	private static final int HASH_SIZE = 1 << HASH_BITS;
 	private BitOutputStream os;
-	private Map<ByteArray,Integer> dictionary = new HashMap<ByteArray,Integer>();
-	private int[] w = new int[0];
-	private int nextCode = 0x101;
-	
+	/** When true, 0x100 is written when the dictionary fills up (LZW/2). */
+	private boolean clearCodes;
+	/** Hash keys: (code &lt;&lt; 8 | byte) + 1, or 0 for an empty slot. */
+	private int[] keys = new int[HASH_SIZE];
+	private short[] codes = new short[HASH_SIZE];
+	/** Slots in use, so that a reset only touches those. */
+	private int[] usedSlots = new int[HASH_SIZE];
+	private int usedCount;
+	private int nextCode = FIRST_CODE;
+	/** The code of the current string, or -1 if there is none. */
+	private int w = -1;
+	/** The last code of the previous chunk, whose entry still needs its final byte. */
+	private int pending = -1;
+	/** The dictionary size as the decoder sees it. */
+	private int decoderSize = FIRST_CODE;
+	/** Indicates that the decoder expects the next code to be a single byte. */
+	private boolean decoderFirst = true;
+
 	/**
-	 * This simple class can be used as a key into a Map.
-	 *  
-	 * @author robgreene@users.sourceforge.net
+	 * Create an LZW stream that does not write clear codes (LZW/1 style,
+	 * where the dictionary is reset for every chunk).
 	 */
-	private class ByteArray {
-		/** Data being managed. */
-		private int[] data;
-		/** The computed hash code -- CRC-16 for lack of imagination. */
-		private int hashCode;
-		
-		public ByteArray(int d) {
-			this(new int[] { d });
-		}
-		public ByteArray(int[] data) {
-			this.data = data;
-			CRC16 crc = new CRC16();
-			for (int b : data) crc.update(b);
-			hashCode = (int)crc.getValue();
+	public LzwOutputStream(BitOutputStream os) {
+		this(os, false);
+	}
+	/**
+	 * Create an LZW stream, indicating if clear codes are written when the
+	 * dictionary fills up (LZW/2 style).
+	 */
+	public LzwOutputStream(BitOutputStream os, boolean clearCodes) {
+		this.os = os;
+		this.clearCodes = clearCodes;
+		os.setRequestedNumberOfBits(9);
+	}
+
+	@Override
+	public void write(int c) throws IOException {
+		encode(c & 0xff);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		for (int i=off; i<off+len; i++) {
+			encode(b[i] & 0xff);
 		}
-		public boolean equals(Object obj) {
-			ByteArray ba = (ByteArray)obj;
-			if (data.length != ba.data.length) return false;
-			for (int i=0; i<data.length; i++) {
-				if (data[i] != ba.data[i]) return false;
+	}
+
+	/**
+	 * Add the next byte to the current string, writing out the code for the
+	 * string once it cannot be extended any further.
+	 */
+	private void encode(int c) throws IOException {
+		if (w == -1) {
+			if (pending != -1) {
+				// The decoder defines the entry for the previous chunk's last code now
+				defineCode(pending, c, findSlot(pending, c));
+				pending = -1;
 			}
-			return true;
+			w = c;
+			return;
 		}
-		public int hashCode() {
-			return hashCode;
+		int slot = findSlot(w, c);
+		if (keys[slot] != 0) {
+			w = codes[slot];
+			return;
 		}
+		writeCode(w);
+		defineCode(w, c, slot);
+		w = c;
 	}
-	
-	public LzwOutputStream(BitOutputStream os) {
-		this.os = os;
+
+	/**
+	 * Add the entry for string w followed by c, or clear the dictionary if
+	 * it is full.
+	 */
+	private void defineCode(int w, int c, int slot) throws IOException {
+		if (clearCodes && decoderSize >= MAXIMUM_SIZE) {
+			writeCode(0x100);
+			resetDictionary();
+		} else {
+			keys[slot] = ((w << 8) | c) + 1;
+			codes[slot] = (short) nextCode++;
+			usedSlots[usedCount++] = slot;
+		}
 	}
 
-	@Override
-	public void write(int c) throws IOException {
-		if (dictionary.isEmpty()) {
-			for (int i=0; i<256; i++) dictionary.put(new ByteArray(i), i);
-			dictionary.put(new ByteArray(0x100), null);	// just to mark its spot
+	/**
+	 * Locate the slot for string w followed by c: either the slot holding it
+	 * or the empty slot where it belongs.
+	 */
+	private int findSlot(int w, int c) {
+		int key = ((w << 8) | c) + 1;
+		int slot = (key * 0x9e3779b1) >>> (32 - HASH_BITS);
+		while (keys[slot] != 0 && keys[slot] != key) {
+			slot = (slot + 1) & (HASH_SIZE - 1);
 		}
-		c &= 0xff;
-		int[] wc = new int[w.length + 1];
-		if (w.length > 0) System.arraycopy(w, 0, wc, 0, w.length);
-		wc[wc.length-1]= c;
-		if (dictionary.containsKey(new ByteArray(wc))) {
-			w = wc;
+		return slot;
+	}
+
+	/**
+	 * Write a code, tracking the dictionary size the decoder will have and
+	 * so the bit size it will read the next code with.
+	 */
+	private void writeCode(int code) throws IOException {
+		os.write(code);
+		if (code == 0x100) {
+			return;
+		} else if (decoderFirst) {
+			decoderFirst = false;
 		} else {
-			dictionary.put(new ByteArray(wc), nextCode++);
-			os.write(dictionary.get(new ByteArray(w)));
-			w = new int[] { c };
+			decoderSize++;
+			// Exclusive-OR the current bitmask against the new dictionary size -- if all bits are
+			// on, we'll get 0.  (That is, all 9 bits on is 0x01ff exclusive or bit mask of 0x01ff
+			// yields 0x0000.)  This tells us we need to increase the number of bits we're writing
+			// to the bit stream.
+			if ((decoderSize ^ os.getBitMask()) == 0) {
+				os.increaseRequestedNumberOfBits();
+			}
+		}
+	}
+
+	/**
+	 * Empty the dictionary and return to 9 bit codes.
+	 */
+	private void resetDictionary() {
+		for (int i=0; i<usedCount; i++) {
+			keys[usedSlots[i]] = 0;
 		}
-		// Exclusive-OR the current bitmask against the new dictionary size -- if all bits are
-		// on, we'll get 0.  (That is, all 9 bits on is 0x01ff exclusive or bit mask of 0x01ff 
-		// yields 0x0000.)  This tells us we need to increase the number of bits we're writing
-		// to the bit stream.
-		if ((dictionary.size() ^ os.getBitMask()) == 0) {
-			os.increaseRequestedNumberOfBits();
+		usedCount = 0;
+		nextCode = FIRST_CODE;
+		decoderSize = FIRST_CODE;
+		decoderFirst = true;
+		os.setRequestedNumberOfBits(9);
+	}
+
+	/**
+	 * Start over with an empty dictionary, as the decoder does at the start
+	 * of an LZW/1 chunk or after an LZW/2 chunk that is not compressed.
+	 */
+	public void clearDictionary() {
+		resetDictionary();
+		os.clearRemainingBitsOfData();
+		w = -1;
+		pending = -1;
+	}
+
+	/**
+	 * Finish a chunk: write the code for the current string and pad out the
+	 * last byte.  The dictionary is kept for the next chunk.
+	 */
+	public void endChunk() throws IOException {
+		if (w != -1) {
+			writeCode(w);
+			pending = w;
+			w = -1;
 		}
+		os.writeRemainingBits();
 	}
 
+	/**
+	 * Flush out the current string, ending the chunk.
+	 */
 	@Override
 	public void flush() throws IOException {
-		os.write(dictionary.get(new ByteArray(w)));
+		endChunk();
+		os.flush();
 	}
-	
+
 	@Override
 	public void close() throws IOException {
 		flush();
-		os.flush();
 		os.close();
 	}
 }
@@ -0,0 +1,297 @@
+package com.webcodepro.shrinkit.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.webcodepro.shrinkit.CRC16;
+
+/**
+ * Decompresses a complete LZW/1 thread (see <code>NufxLzw1InputStream</code>
+ * for the layout) on the fork/join pool.
+ * <p>
+ * Since LZW/1 clears the dictionary at the start of every 4K chunk, the
+ * chunks can be decoded independently once it is known where each one
+ * starts.  LZW/1 does not record the compressed length of a chunk, so a
+ * first pass walks the codes of each LZW chunk, counting only the length
+ * of each string, to find where the next chunk begins.  The chunks are then
+ * decoded in parallel straight into the target buffer.  Each task computes
+ * the CRC of its own chunks, and these are combined to check the CRC given
+ * in the thread.  As ShrinkIt writes it, that CRC covers every chunk in
+ * full, including the zeros padding out the last one.
+ */
+public class NufxLzw1Decoder {
+	/** The number of bytes in each chunk once decompressed. */
+	private static final int CHUNK_SIZE = 4096;
+	/** Chunks decoded by one task before it is split up. */
+	private static final int CHUNKS_PER_TASK = 16;
+	private byte[] data;
+	private int givenCrc;
+	private int rleCharacter;
+	/** Offset of each chunk header within data. */
+	private List<Integer> chunks = new ArrayList<Integer>();
+	private byte[] target;
+	private int targetOffset;
+	private int targetLength;
+	/** The CRC of each chunk, padding included. */
+	private int[] chunkCrcs;
+	private boolean verifyCrc = true;
+
+	/**
+	 * Create the decoder for the raw thread data and find the chunks.
+	 * @throws IOException if the data ends before the last chunk
+	 */
+	public NufxLzw1Decoder(byte[] data, int length) throws IOException {
+		this.data = data;
+		if (data.length < 4) {
+			throw new IOException("LZW/1 data is too short");
+		}
+		givenCrc = (data[0] & 0xff) | (data[1] & 0xff) << 8;
+		rleCharacter = data[3] & 0xff;
+		int pos = 4;
+		for (int produced = 0; produced < length; produced+= CHUNK_SIZE) {
+			chunks.add(pos);
+			pos = findChunkEnd(pos);
+		}
+	}
+
+	/**
+	 * Decompress a whole LZW/1 thread.
+	 * @throws IOException if the data is damaged or the CRC does not match
+	 */
+	public static byte[] decode(byte[] data, int length) throws IOException {
+		byte[] target = new byte[length];
+		decode(data, target, 0, length);
+		return target;
+	}
+
+	/**
+	 * Decompress a whole LZW/1 thread into target at the given offset.  With
+	 * only one processor, finding the chunks first is wasted effort, so the
+	 * thread is simply read through a <code>NufxLzw1InputStream</code>.
+	 * @throws IOException if the data is damaged or the CRC does not match
+	 */
+	public static void decode(byte[] data, byte[] target, int offset, int length) throws IOException {
+		decode(data, target, offset, length, true);
+	}
+
+	/**
+	 * Decompress a whole LZW/1 thread into target at the given offset,
+	 * optionally skipping the CRC check.
+	 * @throws IOException if the data is damaged or the CRC does not match
+	 */
+	public static void decode(byte[] data, byte[] target, int offset, int length, boolean verifyCrc) throws IOException {
+		if (ForkJoinPool.getCommonPoolParallelism() > 1) {
+			NufxLzw1Decoder decoder = new NufxLzw1Decoder(data, length);
+			decoder.verifyCrc = verifyCrc;
+			decoder.decode(target, offset, length);
+		} else {
+			decodeStream(data, target, offset, length, verifyCrc);
+		}
+	}
+
+	/**
+	 * Decompress a whole LZW/1 thread through a <code>NufxLzw1InputStream</code>.
+	 * The CRC is checked the same way as the parallel decoder does, so the
+	 * padding of the last chunk is read as well.
+	 * @throws IOException if the data is damaged or the CRC does not match
+	 */
+	static void decodeStream(byte[] data, byte[] target, int offset, int length, boolean verifyCrc) throws IOException {
+		NufxLzw1InputStream is = new NufxLzw1InputStream(new LittleEndianByteInputStream(data));
+		int count = (length == 0) ? 0 : is.read(target, offset, length);
+		if (count < length) {
+			throw new IOException("LZW/1 data ends after " + Math.max(count, 0) + " of " + length + " bytes");
+		}
+		if (verifyCrc && length > 0) {
+			int padding = (CHUNK_SIZE - length % CHUNK_SIZE) % CHUNK_SIZE;
+			if (padding > 0 && is.read(new byte[padding], 0, padding) < padding) {
+				throw new IOException("LZW/1 data ends within the padding of the last chunk");
+			}
+			if (!is.isCrcValid()) {
+				throw new IOException("LZW/1 CRC mismatch: expected " + is.getGivenCrc() + " but found " + is.getDataCrc());
+			}
+		}
+	}
+
+	/**
+	 * Decompress the thread into target, in parallel.
+	 * @throws IOException if the data is damaged or the CRC does not match
+	 */
+	public void decode(byte[] target, int offset, int length) throws IOException {
+		this.target = target;
+		this.targetOffset = offset;
+		this.targetLength = length;
+		this.chunkCrcs = new int[chunks.size()];
+		try {
+			ForkJoinPool.commonPool().invoke(new ChunkTask(0, chunks.size()));
+		} catch (ChunkException e) {
+			Throwable cause = e.getCause();
+			while (cause != null && !(cause instanceof IOException)) cause = cause.getCause();
+			throw (cause != null) ? (IOException) cause : new IOException(e.getMessage());
+		}
+		if (verifyCrc && !chunks.isEmpty()) {
+			int crc = 0;
+			for (int i = 0; i < chunkCrcs.length; i++) {
+				crc = CRC16.combine(crc, chunkCrcs[i], CHUNK_SIZE);
+			}
+			if (givenCrc != crc) {
+				throw new IOException("LZW/1 CRC mismatch: expected " + givenCrc + " but found " + crc);
+			}
+		}
+	}
+
+	/**
+	 * Find where the chunk starting at pos ends.  Only LZW chunks need any
+	 * work: the codes are read with the same bit widths as the decoder would
+	 * use, and the length of each string is tracked until the chunk is
+	 * complete.  Any bits left in the last byte are unused.
+	 */
+	private int findChunkEnd(int pos) throws IOException {
+		if (pos + 3 > data.length) {
+			throw new IOException("LZW/1 data ends before the last chunk");
+		}
+		int length = (data[pos] & 0xff) | (data[pos+1] & 0xff) << 8;
+		int lzwFlag = data[pos+2] & 0xff;
+		pos+= 3;
+		if (lzwFlag == 0) {
+			return pos + length;
+		} else if (lzwFlag != 1) {
+			throw new IOException("Unknown type of decompression, flag = " + (lzwFlag + (length == CHUNK_SIZE ? 0 : 2)));
+		}
+		short[] lengths = new short[CHUNK_SIZE + 0x200];
+		long bitPosition = pos * 8L;
+		int bits = 9;
+		int size = -1;
+		int w = 0;
+		int produced = 0;
+		while (produced < length) {
+			if ((bitPosition + bits + 7) / 8 > data.length) {
+				throw new IOException("LZW/1 data ends within a chunk");
+			}
+			int k = readBits(bitPosition, bits);
+			bitPosition+= bits;
+			if (size == -1) {
+				if (k > 0xff) throw new IOException("Invalid code of <" + k + "> encountered");
+				produced++;
+				size = 0x101;
+				w = k;
+				for (int i=0; i<0x100; i++) lengths[i] = 1;
+				continue;
+			}
+			if (k == 0x100) {
+				size = -1;
+				bits = 9;
+				continue;
+			}
+			int n;
+			if (k < size) {
+				n = lengths[k];
+			} else if (k == size) {
+				n = lengths[w] + 1;
+			} else {
+				throw new IOException("Invalid code of <" + k + "> encountered");
+			}
+			if (size == lengths.length) {
+				throw new IOException("LZW/1 dictionary overflow");
+			}
+			lengths[size++] = (short) (lengths[w] + 1);
+			if ((size ^ BitConstants.BIT_MASKS[bits]) == 0) bits++;
+			produced+= n;
+			w = k;
+		}
+		return (int) ((bitPosition + 7) / 8);
+	}
+
+	/**
+	 * Read a code of the given width, least significant bit first.
+	 */
+	private int readBits(long bitPosition, int bits) {
+		int index = (int) (bitPosition >> 3);
+		int value = 0;
+		for (int i = 0; i < 3 && index + i < data.length; i++) {
+			value|= (data[index + i] & 0xff) << (8 * i);
+		}
+		return (value >> (int) (bitPosition & 7)) & BitConstants.BIT_MASKS[bits];
+	}
+
+	/**
+	 * Decode one chunk into the target, along with its CRC.
+	 */
+	private void decodeChunk(int index) throws IOException {
+		int pos = chunks.get(index);
+		int end = (index + 1 < chunks.size()) ? chunks.get(index + 1) : data.length;
+		int length = (data[pos] & 0xff) | (data[pos+1] & 0xff) << 8;
+		int lzwFlag = data[pos+2] & 0xff;
+		LittleEndianByteInputStream dataStream = new LittleEndianByteInputStream(
+				new ByteArrayInputStream(data, pos + 3, end - pos - 3));
+		InputStream is = dataStream;
+		if (lzwFlag == 1) is = new LzwInputStream(new BitInputStream(dataStream, 9));
+		if (length != CHUNK_SIZE) is = new RleInputStream(is, rleCharacter);
+		int offset = index * CHUNK_SIZE;
+		int wanted = Math.min(CHUNK_SIZE, targetLength - offset);
+		byte[] buffer = target;
+		int bufferOffset = targetOffset + offset;
+		if (wanted < CHUNK_SIZE) {
+			buffer = new byte[CHUNK_SIZE];
+			bufferOffset = 0;
+		}
+		int count = 0;
+		while (count < CHUNK_SIZE) {
+			int n = is.read(buffer, bufferOffset + count, CHUNK_SIZE - count);
+			if (n <= 0) break;
+			count+= n;
+		}
+		if (count < wanted || (verifyCrc && count < CHUNK_SIZE)) {
+			throw new IOException("LZW/1 chunk " + index + " is short");
+		}
+		if (wanted < CHUNK_SIZE) {
+			System.arraycopy(buffer, 0, target, targetOffset + offset, wanted);
+		}
+		if (!verifyCrc) return;
+		chunkCrcs[index] = CRC16.compute(0, buffer, bufferOffset, count);
+	}
+
+	/**
+	 * Carries an IOException out of the fork/join pool.
+	 */
+	private static class ChunkException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		public ChunkException(IOException cause) {
+			super(cause);
+		}
+	}
+
+	/**
+	 * Decode a range of chunks, splitting the range until each task has
+	 * only a few chunks.
+	 */
+	private class ChunkTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private int from;
+		private int to;
+
+		public ChunkTask(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute() {
+			if (to - from <= CHUNKS_PER_TASK) {
+				try {
+					for (int i = from; i < to; i++) {
+						decodeChunk(i);
+					}
+				} catch (IOException e) {
+					throw new ChunkException(e);
+				}
+			} else {
+				int middle = (from + to) / 2;
+				invokeAll(new ChunkTask(from, middle), new ChunkTask(middle, to));
+			}
+		}
+	}
+}
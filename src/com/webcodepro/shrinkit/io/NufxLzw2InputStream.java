@@ -73,6 +73,36 @@ public class NufxLzw2InputStream extends InputStream {
 	 * Read the next byte in the decompressed data stream.
 	 */
 	public int read() throws IOException {
+		prepareChunk();
+		// Now we can read a data byte
+		int b = decompressionStream.read();
+		bytesLeftInChunk--;
+		dataCrc.update(b);
+		return b;
+	}
+
+	/**
+	 * Read up to len bytes of decompressed data, a chunk at a time.  The
+	 * buffer is filled unless the end of the data is reached.
+	 */
+	public int read(byte[] b, int off, int len) throws IOException {
+		int count = 0;
+		while (count < len) {
+			prepareChunk();
+			int n = decompressionStream.read(b, off + count, Math.min(len - count, bytesLeftInChunk));
+			if (n <= 0) break;
+			dataCrc.update(b, off + count, n);
+			bytesLeftInChunk-= n;
+			count+= n;
+		}
+		return (count == 0 && len > 0) ? -1 : count;
+	}
+
+	/**
+	 * Read the fork header on first use, and the chunk header whenever
+	 * the current chunk is used up.
+	 */
+	private void prepareChunk() throws IOException {
 		if (volumeNumber == -1) {				// read the data or resource fork header
 			volumeNumber = dataStream.readByte();
 			rleCharacter = dataStream.readByte();
@@ -104,11 +134,6 @@ public class NufxLzw2InputStream extends InputStream {
 			default:	throw new IOException("Unknown type of decompression, flag = " + flag);
 			}
 		}
-		// Now we can read a data byte
-		int b = decompressionStream.read();
-		bytesLeftInChunk--;
-		dataCrc.update(b);
-		return b;
 	}
 	
 	// GENERATED CODE
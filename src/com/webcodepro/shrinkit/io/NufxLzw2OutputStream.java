@@ -0,0 +1,118 @@
+package com.webcodepro.shrinkit.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The <code>NufxLzw2OutputStream</code> writes a data fork or
+ * resource fork in the NuFX LZW/2 format; see
+ * <code>NufxLzw2InputStream</code> for the layout.
+ * <p>
+ * Data is collected into 4K chunks.  Each chunk is RLE encoded if that makes
+ * it smaller, and then LZW encoded if that makes it smaller still.  The LZW
+ * dictionary carries over from chunk to chunk, as the reader expects, but
+ * it has to be reset whenever a chunk is stored without LZW.  The last chunk
+ * is padded out with zeros.
+ */
+public class NufxLzw2OutputStream extends OutputStream {
+	/** The number of bytes in each chunk before compression. */
+	private static final int CHUNK_SIZE = 4096;
+	/** The RLE character used by this stream. */
+	private static final int RLE_CHARACTER = 0xdb;
+	/** This is the raw data stream that receives all markers and compressed data. */
+	private LittleEndianByteOutputStream dataStream;
+	/** This is the volume number for 5.25" disks. */
+	private int volumeNumber;
+	/** The data of the current chunk. */
+	private byte[] chunk = new byte[CHUNK_SIZE];
+	private int chunkLength;
+	/** Receives the RLE encoded chunk. */
+	private ByteArrayOutputStream rleBuffer = new ByteArrayOutputStream(CHUNK_SIZE * 3 / 2);
+	private RleOutputStream rleStream = new RleOutputStream(rleBuffer, RLE_CHARACTER);
+	/** Receives the LZW encoded chunk. */
+	private ByteArrayOutputStream lzwBuffer = new ByteArrayOutputStream(CHUNK_SIZE * 2);
+	private LzwOutputStream lzwStream = new LzwOutputStream(new BitOutputStream(lzwBuffer, 9), true);
+	private boolean headerWritten;
+
+	/**
+	 * Create the LZW/2 output stream.
+	 */
+	public NufxLzw2OutputStream(LittleEndianByteOutputStream dataStream) {
+		this(dataStream, 0);
+	}
+	/**
+	 * Create the LZW/2 output stream, giving the volume number of a 5.25" disk.
+	 */
+	public NufxLzw2OutputStream(LittleEndianByteOutputStream dataStream, int volumeNumber) {
+		this.dataStream = dataStream;
+		this.volumeNumber = volumeNumber;
+	}
+
+	/**
+	 * Write the next byte of uncompressed data.
+	 */
+	public void write(int b) throws IOException {
+		chunk[chunkLength++] = (byte) b;
+		if (chunkLength == CHUNK_SIZE) writeChunk();
+	}
+
+	/**
+	 * Write a block of uncompressed data.
+	 */
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int n = Math.min(len, CHUNK_SIZE - chunkLength);
+			System.arraycopy(b, off, chunk, chunkLength, n);
+			chunkLength+= n;
+			off+= n;
+			len-= n;
+			if (chunkLength == CHUNK_SIZE) writeChunk();
+		}
+	}
+
+	/**
+	 * Compress and write out the current chunk, which must be full.
+	 */
+	private void writeChunk() throws IOException {
+		if (!headerWritten) {
+			dataStream.write(volumeNumber);
+			dataStream.write(RLE_CHARACTER);
+			headerWritten = true;
+		}
+		byte[] data = chunk;
+		int length = CHUNK_SIZE;
+		rleBuffer.reset();
+		rleStream.write(chunk, 0, CHUNK_SIZE);
+		rleStream.flush();
+		if (rleBuffer.size() < CHUNK_SIZE) {
+			data = rleBuffer.toByteArray();
+			length = data.length;
+		}
+		lzwBuffer.reset();
+		lzwStream.write(data, 0, length);
+		lzwStream.endChunk();
+		if (lzwBuffer.size() < length) {
+			dataStream.writeWord(length | 0x8000);
+			dataStream.writeWord(lzwBuffer.size() + 4);
+			lzwBuffer.writeTo(dataStream);
+		} else {
+			// The reader clears the dictionary for a chunk without LZW
+			lzwStream.clearDictionary();
+			dataStream.writeWord(length);
+			dataStream.write(data, 0, length);
+		}
+		chunkLength = 0;
+	}
+
+	/**
+	 * Pad out and write the last chunk.  Nothing at all is written for
+	 * an empty stream.
+	 */
+	public void close() throws IOException {
+		if (chunkLength > 0) {
+			while (chunkLength < CHUNK_SIZE) chunk[chunkLength++] = 0;
+			writeChunk();
+		}
+	}
+}
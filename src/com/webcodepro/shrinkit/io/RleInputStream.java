@@ -2,6 +2,7 @@ package com.webcodepro.shrinkit.io;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 
 
 /**
@@ -50,4 +51,29 @@ public class RleInputStream extends InputStream {
 		return repeatedByte;
 	}
 
+	/**
+	 * Read up to len bytes.  Runs are filled in a block at a time.
+	 */
+	public int read(byte[] b, int off, int len) throws IOException {
+		int count = 0;
+		while (count < len) {
+			if (numBytes >= 0) {
+				int n = Math.min(numBytes + 1, len - count);
+				Arrays.fill(b, off + count, off + count + n, (byte) repeatedByte);
+				numBytes-= n;
+				count+= n;
+			} else {
+				int c = bs.read();
+				if (c == -1) break;
+				if (c == escapeChar) {
+					repeatedByte = bs.read();
+					numBytes = bs.read();
+				} else {
+					b[off + count++] = (byte) c;
+				}
+			}
+		}
+		return (count == 0 && len > 0) ? -1 : count;
+	}
+
 }
@@ -36,12 +36,13 @@ public class RleOutputStream extends OutputStream {
 	 * Write the next byte to the output stream.
 	 */
 	public void write(int b) throws IOException {
+		b&= 0xff;		// OutputStream.write(byte[]) hands over signed bytes
 		if (numBytes == -1) {
 			repeatedByte = b;
 			numBytes++;
 		} else if (repeatedByte == b) {
 			numBytes++;
-			if (numBytes > 255) {
+			if (numBytes == 255) {		// the count is one byte, so 256 is the longest run
 				flush();
 			}
 		} else {
@@ -53,15 +54,15 @@ public class RleOutputStream extends OutputStream {
 	
 	/**
 	 * Flush out any remaining data.
-	 * If we only have 1 byte and it is <em>not</em> the repeated
-	 * byte, we can just dump that byte.  Otherwise, we need to
-	 * write out the escape character, the repeated byte, and
-	 * the number of bytes. 
+	 * If we only have up to 3 bytes and they are <em>not</em> the
+	 * escape character, we can just dump those bytes.  Otherwise,
+	 * we need to write out the escape character, the repeated byte,
+	 * and the number of bytes. 
 	 */
 	public void flush() throws IOException {
 		if (numBytes != -1) {
-			if (numBytes == 0 && escapeChar != repeatedByte) {
-				os.write(repeatedByte);
+			if (numBytes < 3 && escapeChar != repeatedByte) {
+				for (int i=0; i<=numBytes; i++) os.write(repeatedByte);
 			} else {
 				os.write(escapeChar);
 				os.write(repeatedByte);
@@ -0,0 +1,243 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2002 by Robert Greene
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+import com.webcodepro.applecommander.storage.os.prodos.ProdosFormatDisk;
+import com.webcodepro.applecommander.storage.physical.ByteArrayImageLayout;
+import com.webcodepro.applecommander.storage.physical.ProdosOrder;
+
+/**
+ * Test keeping image listings in a catalog between runs.
+ */
+public class CatalogCacheTest extends TestCase {
+	/** A time to give files, well in the past, to the second. */
+	private static final long TIME = 1000000000000L;
+	private File catalogFile;
+	/** The images made so far, so the same one is never made twice with different dates. */
+	private Map<String,byte[]> images = new HashMap<String,byte[]>();
+
+	public CatalogCacheTest(String name) {
+		super(name);
+	}
+
+	public static void main(String[] args) {
+		junit.textui.TestRunner.run(CatalogCacheTest.class);
+	}
+
+	protected void setUp() throws Exception {
+		catalogFile = createTempFile(".acc"); //$NON-NLS-1$
+		catalogFile.delete();
+	}
+
+	/**
+	 * An image which has not changed is listed from the catalog, even after
+	 * it is closed and opened again.
+	 */
+	public void testUnchangedImage() throws IOException, DiskFullException {
+		File image = writeImage(createTempFile(".po"), "FIRST", 1); //$NON-NLS-1$ //$NON-NLS-2$
+		CatalogCache cache = new CatalogCache(catalogFile);
+		assertNull(cache.lookup(image.getPath()));
+		cache.add(image.getPath(), openImage(image.getPath()));
+		cache.close();
+		cache = new CatalogCache(catalogFile);
+		try {
+			CatalogCache.Entry entry = cache.lookup(image.getPath());
+			assertNotNull(entry);
+			assertNull(entry.getError());
+			assertEquals(1, entry.getVolumes().size());
+			CatalogCache.Volume volume = entry.getVolumes().get(0);
+			assertEquals("/FIRST/", volume.getDiskName()); //$NON-NLS-1$
+			assertEquals(1, volume.getFileCount());
+			assertTrue(volume.getFiles().get(0).getFileColumnData(
+					FormattedDisk.FILE_DISPLAY_STANDARD).contains("FILE0")); //$NON-NLS-1$
+		} finally {
+			cache.close();
+		}
+	}
+
+	/**
+	 * A changed image is read again; one which was only touched is not.
+	 */
+	public void testChangedImage() throws IOException, DiskFullException {
+		File image = writeImage(createTempFile(".po"), "FIRST", 1); //$NON-NLS-1$ //$NON-NLS-2$
+		CatalogCache cache = new CatalogCache(catalogFile);
+		try {
+			cache.add(image.getPath(), openImage(image.getPath()));
+			image.setLastModified(TIME + 60000);
+			assertNotNull(cache.lookup(image.getPath()));
+			// The same size, but different contents
+			writeImage(image, "FIRST", 2); //$NON-NLS-1$
+			assertNull(cache.lookup(image.getPath()));
+		} finally {
+			cache.close();
+		}
+	}
+
+	/**
+	 * Each image in a zip file is checked on its own, so changing one does
+	 * not throw out the others.
+	 */
+	public void testZipImages() throws IOException, DiskFullException {
+		File zip = createTempFile(".zip"); //$NON-NLS-1$
+		writeZip(zip, 1);
+		String first = zip.getPath() + Disk.ZIP_SEPARATOR + "first.po"; //$NON-NLS-1$
+		String second = zip.getPath() + Disk.ZIP_SEPARATOR + "second.po"; //$NON-NLS-1$
+		CatalogCache cache = new CatalogCache(catalogFile);
+		try {
+			cache.add(first, openImage(first));
+			cache.add(second, openImage(second));
+			writeZip(zip, 2);
+			assertNotNull(cache.lookup(first));
+			assertNull(cache.lookup(second));
+			assertNull(cache.lookup(zip.getPath() + Disk.ZIP_SEPARATOR + "missing.po")); //$NON-NLS-1$
+		} finally {
+			cache.close();
+		}
+	}
+
+	/**
+	 * An image in a zip file is measured by its zip entry.
+	 */
+	public void testZipFingerprint() throws IOException, DiskFullException {
+		File zip = createTempFile(".zip"); //$NON-NLS-1$
+		writeZip(zip, 1);
+		CatalogCache.Fingerprint fingerprint = CatalogCache.Fingerprint.of(
+				zip.getPath() + Disk.ZIP_SEPARATOR + "second.po"); //$NON-NLS-1$
+		byte[] image = createImage("SECOND", 1); //$NON-NLS-1$
+		CRC32 crc = new CRC32();
+		crc.update(image);
+		assertEquals(image.length, fingerprint.getSize());
+		assertEquals(TIME, fingerprint.getModified());
+		assertEquals(crc.getValue(), fingerprint.getCrc());
+		assertNull(CatalogCache.Fingerprint.of(zip.getPath() + ".missing")); //$NON-NLS-1$
+	}
+
+	/**
+	 * An image which could not be read is remembered until it changes.
+	 */
+	public void testError() throws IOException {
+		File image = createTempFile(".dsk"); //$NON-NLS-1$
+		CatalogCache cache = new CatalogCache(catalogFile);
+		try {
+			cache.addError(image.getPath(), "unreadable"); //$NON-NLS-1$
+			assertEquals("unreadable", cache.lookup(image.getPath()).getError()); //$NON-NLS-1$
+			FileOutputStream output = new FileOutputStream(image);
+			output.write(new byte[10]);
+			output.close();
+			assertNull(cache.lookup(image.getPath()));
+		} finally {
+			cache.close();
+		}
+	}
+
+	/**
+	 * A record cut short at the end of the catalog is dropped, and the
+	 * records before it are kept.
+	 */
+	public void testDamagedRecord() throws IOException, DiskFullException {
+		File image = writeImage(createTempFile(".po"), "FIRST", 1); //$NON-NLS-1$ //$NON-NLS-2$
+		CatalogCache cache = new CatalogCache(catalogFile);
+		cache.add(image.getPath(), openImage(image.getPath()));
+		cache.close();
+		long length = catalogFile.length();
+		FileOutputStream output = new FileOutputStream(catalogFile, true);
+		output.write(new byte[] { 0, 0, 1, 0, 42 });
+		output.close();
+		cache = new CatalogCache(catalogFile);
+		try {
+			assertEquals(length, catalogFile.length());
+			assertNotNull(cache.lookup(image.getPath()));
+		} finally {
+			cache.close();
+		}
+	}
+
+	protected FormattedDisk[] openImage(String imageName) throws IOException {
+		return new Disk(imageName).getFormattedDisks();
+	}
+
+	protected void writeZip(File zip, int version) throws IOException, DiskFullException {
+		ZipOutputStream output = new ZipOutputStream(new FileOutputStream(zip));
+		try {
+			ZipEntry entry = new ZipEntry("first.po"); //$NON-NLS-1$
+			entry.setTime(TIME);
+			output.putNextEntry(entry);
+			output.write(createImage("FIRST", 1)); //$NON-NLS-1$
+			entry = new ZipEntry("second.po"); //$NON-NLS-1$
+			entry.setTime(TIME);
+			output.putNextEntry(entry);
+			output.write(createImage("SECOND", version)); //$NON-NLS-1$
+		} finally {
+			output.close();
+		}
+		zip.setLastModified(TIME + version * 60000);
+	}
+
+	protected File writeImage(File file, String volumeName, int version)
+			throws IOException, DiskFullException {
+		FileOutputStream output = new FileOutputStream(file);
+		try {
+			output.write(createImage(volumeName, version));
+		} finally {
+			output.close();
+		}
+		file.setLastModified(TIME);
+		return file;
+	}
+
+	/**
+	 * A ProDOS image with one file, whose contents depend on the version.
+	 */
+	protected byte[] createImage(String volumeName, int version) throws DiskFullException {
+		byte[] image = images.get(volumeName + version);
+		if (image != null) {
+			return image;
+		}
+		ByteArrayImageLayout layout = new ByteArrayImageLayout(Disk.APPLE_140KB_DISK);
+		ProdosFormatDisk disk = ProdosFormatDisk.create("test.po", volumeName, //$NON-NLS-1$
+				new ProdosOrder(layout))[0];
+		FileEntry entry = disk.createFile();
+		entry.setFilename("FILE0"); //$NON-NLS-1$
+		entry.setFiletype("BIN"); //$NON-NLS-1$
+		byte[] data = new byte[100];
+		data[0] = (byte) version;
+		entry.setFileData(data);
+		image = layout.getDiskImage();
+		images.put(volumeName + version, image);
+		return image;
+	}
+
+	protected File createTempFile(String suffix) throws IOException {
+		File file = File.createTempFile("CatalogCacheTest", suffix); //$NON-NLS-1$
+		file.deleteOnExit();
+		return file;
+	}
+}
@@ -0,0 +1,148 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2002 by Robert Greene
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.webcodepro.applecommander.storage.os.dos33.DosFormatDisk;
+import com.webcodepro.applecommander.storage.os.prodos.ProdosFormatDisk;
+import com.webcodepro.applecommander.storage.physical.ByteArrayImageLayout;
+import com.webcodepro.applecommander.storage.physical.DosOrder;
+import com.webcodepro.applecommander.storage.physical.ProdosOrder;
+
+/**
+ * Test finding and recovering deleted files.
+ */
+public class DeletedFileScannerTest extends TestCase {
+	public DeletedFileScannerTest(String name) {
+		super(name);
+	}
+
+	public static void main(String[] args) {
+		junit.textui.TestRunner.run(DeletedFileScannerTest.class);
+	}
+
+	public void testProdosRestore() throws DiskFullException {
+		ProdosFormatDisk disk = createProdosDisk();
+		byte[] data = createData(3000);
+		FileEntry entry = writeFile(disk, "RECORDS", "BIN", data); //$NON-NLS-1$ //$NON-NLS-2$
+		writeFile(disk, "KEEP", "TXT", createData(100)); //$NON-NLS-1$ //$NON-NLS-2$
+		entry.delete();
+
+		RecoveryCandidate candidate = findCandidate(disk, "RECORDS"); //$NON-NLS-1$
+		assertTrue(candidate.isIntact());
+		assertEquals(100, candidate.getScore());
+		assertTrue(Arrays.equals(data, disk.getDeletedFileScanner().getFileData(candidate)));
+		disk.getDeletedFileScanner().restore(candidate);
+		assertTrue(Arrays.equals(data, findFile(disk, "RECORDS").getFileData())); //$NON-NLS-1$
+		assertFalse(disk.checkDisk(false).hasProblems());
+	}
+
+	public void testDosRestore() throws DiskFullException {
+		ByteArrayImageLayout layout = new ByteArrayImageLayout(Disk.APPLE_140KB_DISK);
+		DosFormatDisk disk = DosFormatDisk.create("test.dsk", new DosOrder(layout))[0]; //$NON-NLS-1$
+		byte[] data = createData(2000);
+		FileEntry entry = writeFile(disk, "PROGRAM", "B", data); //$NON-NLS-1$ //$NON-NLS-2$
+		entry.setAddress(0x0803);
+		entry.delete();
+
+		RecoveryCandidate candidate = findCandidate(disk, "PROGRAM"); //$NON-NLS-1$
+		assertTrue(candidate.isIntact());
+		assertEquals(0x0803, disk.getDeletedFileScanner().getAddress(candidate));
+		disk.getDeletedFileScanner().restore(candidate);
+		FileEntry restored = findFile(disk, "PROGRAM"); //$NON-NLS-1$
+		assertTrue(Arrays.equals(data, restored.getFileData()));
+		assertFalse(disk.checkDisk(false).hasProblems());
+	}
+
+	/**
+	 * Once some of a deleted file's blocks are reused it cannot be restored
+	 * in place, but what is left can be copied to another disk.
+	 */
+	public void testProdosPartlyOverwritten() throws DiskFullException {
+		ProdosFormatDisk disk = createProdosDisk();
+		FileEntry entry = writeFile(disk, "RECORDS", "BIN", createData(3000)); //$NON-NLS-1$ //$NON-NLS-2$
+		FileEntry other = writeFile(disk, "OTHER", "BIN", createData(100)); //$NON-NLS-1$ //$NON-NLS-2$
+		entry.delete();
+		// A new file would reuse the directory entry, so grow another one
+		other.setFileData(createData(1000));
+
+		RecoveryCandidate candidate = findCandidate(disk, "RECORDS"); //$NON-NLS-1$
+		assertFalse(candidate.isIntact());
+		assertTrue(candidate.getScore() < 100);
+		try {
+			disk.getDeletedFileScanner().restore(candidate);
+			fail("A damaged file was restored in place"); //$NON-NLS-1$
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		ProdosFormatDisk target = createProdosDisk();
+		FileEntry copy = disk.getDeletedFileScanner().copyTo(candidate, target);
+		assertEquals("RECORDS", copy.getFilename()); //$NON-NLS-1$
+		assertEquals(3000, copy.getFileData().length);
+	}
+
+	protected ProdosFormatDisk createProdosDisk() {
+		ByteArrayImageLayout layout = new ByteArrayImageLayout(Disk.APPLE_140KB_DISK);
+		return ProdosFormatDisk.create("test.po", "TEST", //$NON-NLS-1$ //$NON-NLS-2$
+			new ProdosOrder(layout))[0];
+	}
+
+	protected byte[] createData(int length) {
+		byte[] data = new byte[length];
+		for (int i=0; i<length; i++) {
+			data[i] = (byte) (i * 7 + i / 256);
+		}
+		return data;
+	}
+
+	protected FileEntry writeFile(FormattedDisk disk, String filename, String filetype,
+			byte[] data) throws DiskFullException {
+		FileEntry entry = disk.createFile();
+		entry.setFilename(filename);
+		entry.setFiletype(filetype);
+		entry.setFileData(data);
+		return entry;
+	}
+
+	protected RecoveryCandidate findCandidate(FormattedDisk disk, String filename) {
+		List<RecoveryCandidate> candidates = disk.getDeletedFileScanner().scan();
+		for (RecoveryCandidate candidate : candidates) {
+			if (filename.equals(candidate.getFilename())) {
+				return candidate;
+			}
+		}
+		fail("No candidate for " + filename); //$NON-NLS-1$
+		return null;
+	}
+
+	protected FileEntry findFile(FormattedDisk disk, String filename) {
+		for (FileEntry entry : disk.getFiles()) {
+			if (!entry.isDeleted() && filename.equals(entry.getFilename())) {
+				return entry;
+			}
+		}
+		fail("No file " + filename); //$NON-NLS-1$
+		return null;
+	}
+}
@@ -0,0 +1,166 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2002 by Robert Greene
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage;
+
+import junit.framework.TestCase;
+
+import com.webcodepro.applecommander.storage.os.dos33.DosFileEntry;
+import com.webcodepro.applecommander.storage.os.dos33.DosFormatDisk;
+import com.webcodepro.applecommander.storage.os.prodos.ProdosDiskChecker;
+import com.webcodepro.applecommander.storage.os.prodos.ProdosFormatDisk;
+import com.webcodepro.applecommander.storage.physical.ByteArrayImageLayout;
+import com.webcodepro.applecommander.storage.physical.DosOrder;
+import com.webcodepro.applecommander.storage.physical.ProdosOrder;
+
+/**
+ * Test the disk consistency checks by damaging freshly created disks.
+ */
+public class DiskCheckTest extends TestCase {
+	public DiskCheckTest(String name) {
+		super(name);
+	}
+
+	public static void main(String[] args) {
+		junit.textui.TestRunner.run(DiskCheckTest.class);
+	}
+
+	public void testProdosBitmapRepair() throws DiskFullException {
+		ByteArrayImageLayout layout = new ByteArrayImageLayout(Disk.APPLE_800KB_DISK);
+		ProdosFormatDisk disk = ProdosFormatDisk.create("test.po", "TEST", //$NON-NLS-1$ //$NON-NLS-2$
+			new ProdosOrder(layout))[0];
+		FileEntry entry = disk.createFile();
+		entry.setFilename("DATA"); //$NON-NLS-1$
+		entry.setFiletype("BIN"); //$NON-NLS-1$
+		entry.setFileData(new byte[70000]);
+		DirectoryEntry directory = disk.createDirectory("SUB"); //$NON-NLS-1$
+		entry = directory.createFile();
+		entry.setFilename("MORE"); //$NON-NLS-1$
+		entry.setFiletype("TXT"); //$NON-NLS-1$
+		entry.setFileData(new byte[3000]);
+		assertFalse(disk.checkDisk(false).hasProblems());
+
+		byte[] bitmap = disk.readVolumeBitMap();
+		disk.setBlockFree(bitmap, 10);
+		disk.setBlockUsed(bitmap, 1500);
+		disk.writeVolumeBitMap(bitmap);
+		DiskCheck check = disk.checkDisk(true);
+		assertEquals(1, check.getProblemCount(DiskCheck.ALLOCATED_MARKED_FREE));
+		assertEquals(1, check.getProblemCount(DiskCheck.LOST_ALLOCATION));
+		assertTrue(check.isRepaired());
+		assertFalse(disk.checkDisk(false).hasProblems());
+	}
+
+	/**
+	 * One checker run twice walks every directory both times, and reports
+	 * the same problems in the same order.
+	 */
+	public void testProdosCheckRepeated() throws DiskFullException {
+		ByteArrayImageLayout layout = new ByteArrayImageLayout(Disk.APPLE_800KB_DISK);
+		ProdosFormatDisk disk = ProdosFormatDisk.create("test.po", "TEST", //$NON-NLS-1$ //$NON-NLS-2$
+			new ProdosOrder(layout))[0];
+		for (int i=0; i<4; i++) {
+			DirectoryEntry directory = disk.createDirectory("SUB" + i); //$NON-NLS-1$
+			for (int j=0; j<3; j++) {
+				FileEntry entry = directory.createFile();
+				entry.setFilename("FILE" + j); //$NON-NLS-1$
+				entry.setFiletype("BIN"); //$NON-NLS-1$
+				entry.setFileData(new byte[1000 * (j + 1)]);
+			}
+		}
+		byte[] bitmap = disk.readVolumeBitMap();
+		for (int block=1000; block<1400; block+= 50) {
+			disk.setBlockUsed(bitmap, block);
+		}
+		disk.writeVolumeBitMap(bitmap);
+
+		ProdosDiskChecker checker = new ProdosDiskChecker(disk);
+		DiskCheck first = checker.check(false);
+		DiskCheck second = checker.check(false);
+		assertEquals(16, first.getFilesChecked());
+		assertEquals(first.getFilesChecked(), second.getFilesChecked());
+		assertEquals(8, first.getProblemCount(DiskCheck.LOST_ALLOCATION));
+		assertEquals(first.getProblems().toString(), second.getProblems().toString());
+		int unit = -1;
+		for (DiskCheck.Problem problem : first.getProblems()) {
+			assertTrue(problem.getUnit() > unit);
+			unit = problem.getUnit();
+		}
+	}
+
+	public void testDosCrossLink() throws DiskFullException {
+		ByteArrayImageLayout layout = new ByteArrayImageLayout(Disk.APPLE_140KB_DISK);
+		DosFormatDisk disk = DosFormatDisk.create("test.dsk", new DosOrder(layout))[0]; //$NON-NLS-1$
+		for (int i=0; i<2; i++) {
+			FileEntry entry = disk.createFile();
+			entry.setFilename("FILE" + i); //$NON-NLS-1$
+			entry.setFiletype("B"); //$NON-NLS-1$
+			entry.setFileData(new byte[2000]);
+		}
+		assertFalse(disk.checkDisk(false).hasProblems());
+
+		// Point the first data sector of FILE1 at the first data sector of FILE0
+		DosFileEntry file0 = (DosFileEntry) disk.getFiles().get(0);
+		DosFileEntry file1 = (DosFileEntry) disk.getFiles().get(1);
+		byte[] list0 = disk.readSector(file0.getTrack(), file0.getSector());
+		byte[] list1 = disk.readSector(file1.getTrack(), file1.getSector());
+		list1[0x0c] = list0[0x0c];
+		list1[0x0d] = list0[0x0d];
+		disk.writeSector(file1.getTrack(), file1.getSector(), list1);
+		DiskCheck check = disk.checkDisk(true);
+		assertEquals(1, check.getProblemCount(DiskCheck.CROSS_LINKED));
+		assertFalse(check.isBitmapOnly());
+		assertFalse(check.isRepaired());
+	}
+
+	/**
+	 * A random-access text file may have holes in its track/sector list.
+	 * These read back as sectors of zeros so that the records after them
+	 * keep their offsets, and the disk check accepts them.
+	 */
+	public void testDosSparseFile() throws DiskFullException {
+		ByteArrayImageLayout layout = new ByteArrayImageLayout(Disk.APPLE_140KB_DISK);
+		DosFormatDisk disk = DosFormatDisk.create("test.dsk", new DosOrder(layout))[0]; //$NON-NLS-1$
+		FileEntry entry = disk.createFile();
+		entry.setFilename("RECORDS"); //$NON-NLS-1$
+		entry.setFiletype("T"); //$NON-NLS-1$
+		byte[] data = new byte[3 * Disk.SECTOR_SIZE];
+		for (int i=0; i<data.length; i++) {
+			data[i] = (byte) (i / Disk.SECTOR_SIZE + 1);
+		}
+		entry.setFileData(data);
+
+		// Punch out the second sector, leaving the sector itself to be freed
+		DosFileEntry file = (DosFileEntry) disk.getFiles().get(0);
+		byte[] list = disk.readSector(file.getTrack(), file.getSector());
+		list[0x0e] = 0;
+		list[0x0f] = 0;
+		disk.writeSector(file.getTrack(), file.getSector(), list);
+		file.setSectorsUsed(file.getSectorsUsed() - 1);
+		disk.checkDisk(true);
+		assertFalse(disk.checkDisk(false).hasProblems());
+
+		byte[] sparse = disk.getFileData(file);
+		assertEquals(data.length, sparse.length);
+		for (int i=0; i<sparse.length; i++) {
+			byte expected = (i < Disk.SECTOR_SIZE || i >= 2 * Disk.SECTOR_SIZE) ? data[i] : 0;
+			assertEquals(expected, sparse[i]);
+		}
+	}
+}
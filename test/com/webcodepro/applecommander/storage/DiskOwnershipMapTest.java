@@ -0,0 +1,161 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2002 by Robert Greene
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage;
+
+import junit.framework.TestCase;
+
+import com.webcodepro.applecommander.storage.os.dos33.DosFormatDisk;
+import com.webcodepro.applecommander.storage.os.prodos.ProdosFormatDisk;
+import com.webcodepro.applecommander.storage.physical.ByteArrayImageLayout;
+import com.webcodepro.applecommander.storage.physical.DosOrder;
+import com.webcodepro.applecommander.storage.physical.ProdosOrder;
+
+/**
+ * Test the DiskOwnershipMap, both directly and as built by each format.
+ */
+public class DiskOwnershipMapTest extends TestCase {
+	public DiskOwnershipMapTest(String name) {
+		super(name);
+	}
+
+	public static void main(String[] args) {
+		junit.textui.TestRunner.run(DiskOwnershipMapTest.class);
+	}
+
+	public void testOwnersAndExtents() {
+		DiskOwnershipMap map = new DiskOwnershipMap(20, null);
+		map.claimSystem(0);
+		int first = map.add("A", null, new int[] { 2, 3, 4, 9 }); //$NON-NLS-1$
+		int second = map.add("B", null, new int[] { 5, 6, 99 }); //$NON-NLS-1$
+		assertEquals(DiskOwnershipMap.SYSTEM_OWNER, map.getOwner(0));
+		assertEquals(DiskOwnershipMap.NO_OWNER, map.getOwner(1));
+		assertEquals(first, map.getOwner(3));
+		assertEquals(second, map.getOwner(6));
+		assertEquals(first, map.getEntryId("A")); //$NON-NLS-1$
+		assertEquals(DiskOwnershipMap.NO_OWNER, map.getEntryId("C")); //$NON-NLS-1$
+		// Units off the disk are dropped
+		assertEquals(2, map.getUnits(second).length);
+		int[][] extents = map.getExtents(first);
+		assertEquals(2, extents.length);
+		assertEquals(2, extents[0][0]);
+		assertEquals(3, extents[0][1]);
+		assertEquals(9, extents[1][0]);
+		assertEquals(1, extents[1][1]);
+		assertFalse(map.hasCrossLinks());
+	}
+
+	public void testCrossLinksAndRelease() {
+		DiskOwnershipMap map = new DiskOwnershipMap(10, null);
+		map.claimSystem(4);
+		int first = map.add("A", null, new int[] { 1, 2, 4 }); //$NON-NLS-1$
+		int second = map.add("B", null, new int[] { 2, 3 }); //$NON-NLS-1$
+		assertTrue(map.isCrossLinked(2));
+		assertTrue(map.isCrossLinked(4));
+		int[] crossLinked = map.getCrossLinkedUnits();
+		assertEquals(2, crossLinked.length);
+		assertEquals(2, crossLinked[0]);
+		assertEquals(4, crossLinked[1]);
+		int[] owners = map.getOwners(4);
+		assertEquals(2, owners.length);
+		assertEquals(DiskOwnershipMap.SYSTEM_OWNER, owners[0]);
+		assertEquals(first, owners[1]);
+		map.release("A"); //$NON-NLS-1$
+		assertFalse(map.hasCrossLinks());
+		assertFalse(map.isClaimed(1));
+		assertEquals(second, map.getOwner(2));
+		assertEquals(DiskOwnershipMap.SYSTEM_OWNER, map.getOwner(4));
+		assertEquals(first, map.update("A", null, new int[] { 7 })); //$NON-NLS-1$
+		assertEquals(first, map.getOwner(7));
+		assertEquals(2, map.getEntryCount());
+	}
+
+	public void testProdosOwnership() throws DiskFullException {
+		ByteArrayImageLayout layout = new ByteArrayImageLayout(Disk.APPLE_800KB_DISK);
+		ProdosFormatDisk disk = ProdosFormatDisk.create("test.po", "TEST", //$NON-NLS-1$ //$NON-NLS-2$
+			new ProdosOrder(layout))[0];
+		writeFile(disk, "ONE", "BIN", 70000); //$NON-NLS-1$ //$NON-NLS-2$
+		writeFile(disk, "TWO", "BIN", 300); //$NON-NLS-1$ //$NON-NLS-2$
+		checkOwnership(disk);
+	}
+
+	public void testDosOwnership() throws DiskFullException {
+		ByteArrayImageLayout layout = new ByteArrayImageLayout(Disk.APPLE_140KB_DISK);
+		DosFormatDisk disk = DosFormatDisk.create("test.dsk", new DosOrder(layout))[0]; //$NON-NLS-1$
+		writeFile(disk, "ONE", "B", 5000); //$NON-NLS-1$ //$NON-NLS-2$
+		writeFile(disk, "TWO", "B", 300); //$NON-NLS-1$ //$NON-NLS-2$
+		checkOwnership(disk);
+	}
+
+	/**
+	 * The map is kept current as files are written and deleted once it
+	 * has been built.
+	 */
+	public void testDosOwnershipKeptCurrent() throws DiskFullException {
+		ByteArrayImageLayout layout = new ByteArrayImageLayout(Disk.APPLE_140KB_DISK);
+		DosFormatDisk disk = DosFormatDisk.create("test.dsk", new DosOrder(layout))[0]; //$NON-NLS-1$
+		FileEntry one = writeFile(disk, "ONE", "B", 5000); //$NON-NLS-1$ //$NON-NLS-2$
+		DiskOwnershipMap map = disk.getOwnershipMap();
+		writeFile(disk, "TWO", "B", 3000); //$NON-NLS-1$ //$NON-NLS-2$
+		assertSame(map, disk.getOwnershipMap());
+		checkOwnership(disk);
+		one.delete();
+		checkOwnership(disk);
+	}
+
+	protected FileEntry writeFile(FormattedDisk disk, String filename, String filetype,
+			int length) throws DiskFullException {
+		FileEntry entry = disk.createFile();
+		entry.setFilename(filename);
+		entry.setFiletype(filetype);
+		byte[] data = new byte[length];
+		for (int i=0; i<length; i++) {
+			data[i] = (byte) (i + 1);
+		}
+		entry.setFileData(data);
+		return entry;
+	}
+
+	/**
+	 * Every unit in use is claimed by exactly one owner, and every free
+	 * unit is unclaimed.  Each file which has not been deleted has an entry.
+	 */
+	protected void checkOwnership(FormattedDisk disk) {
+		DiskOwnershipMap map = disk.getOwnershipMap();
+		DiskUsageSnapshot snapshot = disk.getUsageSnapshot();
+		assertEquals(snapshot.getLength(), map.getLength());
+		for (int unit=0; unit<map.getLength(); unit++) {
+			assertEquals("unit " + unit, snapshot.isUsed(unit), map.isClaimed(unit)); //$NON-NLS-1$
+			assertFalse("unit " + unit, map.isCrossLinked(unit)); //$NON-NLS-1$
+		}
+		int files = 0;
+		for (int id=0; id<map.getEntryCount(); id++) {
+			FileEntry entry = map.getFileEntry(id);
+			if (map.getUnits(id).length > 0) {
+				assertFalse(entry.isDeleted());
+				files++;
+			}
+		}
+		int expected = 0;
+		for (FileEntry entry : disk.getFiles()) {
+			if (!entry.isDeleted()) expected++;
+		}
+		assertEquals(expected, files);
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2002 by Robert Greene
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.webcodepro.applecommander.storage.os.prodos.ProdosFormatDisk;
+import com.webcodepro.applecommander.storage.physical.ByteArrayImageLayout;
+import com.webcodepro.applecommander.storage.physical.ProdosOrder;
+
+/**
+ * Test saving only the parts of an image written since it was read.
+ */
+public class DiskSaveTest extends TestCase {
+	public DiskSaveTest(String name) {
+		super(name);
+	}
+
+	public static void main(String[] args) {
+		junit.textui.TestRunner.run(DiskSaveTest.class);
+	}
+
+	/**
+	 * Writing back just the changed ranges leaves the file holding the
+	 * same bytes as writing the whole image would.
+	 */
+	public void testDirtySave() throws IOException, DiskFullException {
+		File file = createImage();
+		Disk disk = new Disk(file.getPath());
+		FormattedDisk formattedDisk = disk.getFormattedDisks()[0];
+		writeFile(formattedDisk, "SECOND", 5000); //$NON-NLS-1$
+		List<int[]> dirtyRanges = disk.getDiskImageManager().getDirtyRanges();
+		assertNotNull(dirtyRanges);
+		int dirty = 0;
+		for (int[] range : dirtyRanges) {
+			dirty+= range[1];
+		}
+		assertTrue(dirty < Disk.APPLE_140KB_DISK);
+		byte[] image = disk.getDiskImageManager().getDiskImage().clone();
+		disk.save();
+		assertTrue(Arrays.equals(image, readFile(file)));
+		assertTrue(disk.getDiskImageManager().getDirtyRanges().isEmpty());
+		// Saved again without changes, nothing moves
+		disk.save();
+		assertTrue(Arrays.equals(image, readFile(file)));
+	}
+
+	/**
+	 * Only the changed ranges are written: a byte beyond them, marked in the
+	 * file without changing its time, is left alone.
+	 */
+	public void testOnlyDirtyRangesWritten() throws IOException, DiskFullException {
+		File file = createImage();
+		Disk disk = new Disk(file.getPath());
+		writeFile(disk.getFormattedDisks()[0], "SECOND", 5000); //$NON-NLS-1$
+		long modified = file.lastModified();
+		RandomAccessFile output = new RandomAccessFile(file, "rw"); //$NON-NLS-1$
+		try {
+			output.seek(Disk.APPLE_140KB_DISK - 1);
+			output.write(0x42);
+		} finally {
+			output.close();
+		}
+		file.setLastModified(modified);
+		disk.save();
+		byte[] data = readFile(file);
+		assertEquals(0x42, data[Disk.APPLE_140KB_DISK - 1]);
+		data[Disk.APPLE_140KB_DISK - 1] = 0;
+		assertTrue(Arrays.equals(disk.getDiskImageManager().getDiskImage(), data));
+	}
+
+	/**
+	 * When the file was changed by something else since it was read, the
+	 * whole image is written.
+	 */
+	public void testChangedFileSave() throws IOException, DiskFullException {
+		File file = createImage();
+		Disk disk = new Disk(file.getPath());
+		writeFile(disk.getFormattedDisks()[0], "SECOND", 5000); //$NON-NLS-1$
+		FileOutputStream output = new FileOutputStream(file);
+		try {
+			output.write(new byte[Disk.APPLE_140KB_DISK]);
+		} finally {
+			output.close();
+		}
+		file.setLastModified(file.lastModified() - 60000);
+		disk.save();
+		assertTrue(Arrays.equals(disk.getDiskImageManager().getDiskImage(), readFile(file)));
+	}
+
+	/**
+	 * A ProDOS image file holding one file.
+	 */
+	protected File createImage() throws IOException, DiskFullException {
+		File file = File.createTempFile("DiskSaveTest", ".po"); //$NON-NLS-1$ //$NON-NLS-2$
+		file.deleteOnExit();
+		ByteArrayImageLayout layout = new ByteArrayImageLayout(Disk.APPLE_140KB_DISK);
+		ProdosFormatDisk disk = ProdosFormatDisk.create(file.getPath(), "SAVE", //$NON-NLS-1$
+				new ProdosOrder(layout))[0];
+		writeFile(disk, "FIRST", 1000); //$NON-NLS-1$
+		disk.save();
+		return file;
+	}
+
+	protected void writeFile(FormattedDisk disk, String filename, int length)
+			throws DiskFullException {
+		FileEntry entry = disk.createFile();
+		entry.setFilename(filename);
+		entry.setFiletype("BIN"); //$NON-NLS-1$
+		byte[] data = new byte[length];
+		for (int i=0; i<length; i++) {
+			data[i] = (byte) (i * 5 + length);
+		}
+		entry.setFileData(data);
+	}
+
+	protected byte[] readFile(File file) throws IOException {
+		byte[] data = new byte[(int) file.length()];
+		FileInputStream input = new FileInputStream(file);
+		try {
+			assertEquals(data.length, input.read(data));
+		} finally {
+			input.close();
+		}
+		return data;
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2002 by Robert Greene
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage;
+
+import junit.framework.TestCase;
+
+import com.webcodepro.applecommander.storage.FormattedDisk.DiskUsage;
+import com.webcodepro.applecommander.storage.os.dos33.DosFormatDisk;
+import com.webcodepro.applecommander.storage.os.pascal.PascalFormatDisk;
+import com.webcodepro.applecommander.storage.os.prodos.ProdosFormatDisk;
+import com.webcodepro.applecommander.storage.physical.ByteArrayImageLayout;
+import com.webcodepro.applecommander.storage.physical.DosOrder;
+import com.webcodepro.applecommander.storage.physical.ProdosOrder;
+
+/**
+ * Test the DiskUsageSnapshot against the free space reported by each format.
+ */
+public class DiskUsageSnapshotTest extends TestCase {
+	public DiskUsageSnapshotTest(String name) {
+		super(name);
+	}
+
+	public static void main(String[] args) {
+		junit.textui.TestRunner.run(DiskUsageSnapshotTest.class);
+	}
+
+	public void testRanges() {
+		DiskUsageSnapshot snapshot = new DiskUsageSnapshot(200, null);
+		assertEquals(0, snapshot.getFreeCount());
+		snapshot.setFree(10, 150);
+		assertEquals(140, snapshot.getFreeCount());
+		assertEquals(10, snapshot.nextFree(0));
+		assertEquals(150, snapshot.nextUsed(10));
+		snapshot.setUsed(64, 128);
+		assertEquals(76, snapshot.getFreeCount());
+		assertEquals(128, snapshot.nextFree(64));
+		assertEquals(-1, snapshot.nextFree(150));
+		assertTrue(snapshot.isUsed(199));
+	}
+
+	public void testProdosSnapshot() throws DiskFullException {
+		ByteArrayImageLayout layout = new ByteArrayImageLayout(Disk.APPLE_800KB_DISK);
+		ProdosFormatDisk disk = ProdosFormatDisk.create("test.po", "TEST", //$NON-NLS-1$ //$NON-NLS-2$
+			new ProdosOrder(layout))[0];
+		FileEntry entry = disk.createFile();
+		entry.setFilename("DATA"); //$NON-NLS-1$
+		entry.setFiletype("BIN"); //$NON-NLS-1$
+		entry.setFileData(new byte[70000]);
+		checkSnapshot(disk, disk.getFreeBlocks());
+	}
+
+	public void testDosSnapshot() throws DiskFullException {
+		ByteArrayImageLayout layout = new ByteArrayImageLayout(Disk.APPLE_140KB_DISK);
+		DosFormatDisk disk = DosFormatDisk.create("test.dsk", new DosOrder(layout))[0]; //$NON-NLS-1$
+		FileEntry entry = disk.createFile();
+		entry.setFilename("DATA"); //$NON-NLS-1$
+		entry.setFiletype("B"); //$NON-NLS-1$
+		entry.setFileData(new byte[5000]);
+		checkSnapshot(disk, disk.getFreeSpace() / Disk.SECTOR_SIZE);
+	}
+
+	public void testPascalSnapshot() {
+		ByteArrayImageLayout layout = new ByteArrayImageLayout(Disk.APPLE_140KB_DISK);
+		PascalFormatDisk disk = PascalFormatDisk.create("test.po", "TEST", //$NON-NLS-1$ //$NON-NLS-2$
+			new ProdosOrder(layout))[0];
+		checkSnapshot(disk, disk.getFreeBlocks());
+	}
+
+	/**
+	 * Verify the snapshot matches both the free count and the iterator.
+	 */
+	protected void checkSnapshot(FormattedDisk disk, int expectedFree) {
+		DiskUsageSnapshot snapshot = disk.getUsageSnapshot();
+		assertEquals(disk.getBitmapLength(), snapshot.getLength());
+		assertEquals(expectedFree, snapshot.getFreeCount());
+		DiskUsage usage = disk.getDiskUsage();
+		int unit = 0;
+		while (usage.hasNext()) {
+			usage.next();
+			assertEquals(snapshot.isFree(unit), usage.isFree());
+			unit++;
+		}
+		assertEquals(snapshot.getLength(), unit);
+	}
+}
@@ -0,0 +1,115 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2002 by Robert Greene
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.webcodepro.applecommander.storage.os.prodos.ProdosFormatDisk;
+import com.webcodepro.applecommander.storage.physical.ByteArrayImageLayout;
+import com.webcodepro.applecommander.storage.physical.ProdosOrder;
+
+/**
+ * Test the FragmentationReport figures and the paths it gives for files.
+ */
+public class FragmentationReportTest extends TestCase {
+	public FragmentationReportTest(String name) {
+		super(name);
+	}
+
+	public static void main(String[] args) {
+		junit.textui.TestRunner.run(FragmentationReportTest.class);
+	}
+
+	public void testFragmentedFile() throws DiskFullException {
+		FileEntry entry = createDisk().createFile();
+		entry.setFilename("A"); //$NON-NLS-1$
+		DiskOwnershipMap map = new DiskOwnershipMap(100, null);
+		map.add("A", entry, new int[] { 0, 1, 50, 51, 90 }); //$NON-NLS-1$
+		DiskUsageSnapshot snapshot = new DiskUsageSnapshot(100, null);
+		snapshot.setFree(10, 20);
+		snapshot.setFree(60, 70);
+		FragmentationReport report = new FragmentationReport(map, snapshot);
+		assertEquals(1, report.getFiles().size());
+		FragmentationReport.FileFragmentation file = report.getFiles().get(0);
+		assertEquals("A", file.getPath()); //$NON-NLS-1$
+		assertEquals(5, file.getUnits());
+		assertEquals(3, file.getExtents());
+		assertTrue(file.isFragmented());
+		// 8 units per track: track 0 to 6, then 6 to 11
+		assertEquals(11, file.getSeekTracks());
+		assertEquals(20, report.getFreeUnits());
+		assertEquals(2, report.getFreeRuns());
+		assertEquals(10, report.getLargestFreeRun());
+		assertEquals(1, report.getFragmentedFiles());
+		assertEquals(51, report.getScore());
+	}
+
+	public void testContiguousDisk() throws DiskFullException {
+		ProdosFormatDisk disk = createDisk();
+		// Seedling files have no index block, so each is a single extent
+		writeFile(disk, "ONE", 500); //$NON-NLS-1$
+		writeFile(disk, "TWO", 300); //$NON-NLS-1$
+		FragmentationReport report = FragmentationReport.analyze(disk);
+		assertEquals(disk.getFreeBlocks(), report.getFreeUnits());
+		assertEquals(1, report.getFreeRuns());
+		assertEquals(0, report.getFragmentedFiles());
+		assertEquals(0, report.getScore());
+	}
+
+	/**
+	 * Files of the same name in different directories are told apart by
+	 * their paths, whether the map was built before or after they were
+	 * written.
+	 */
+	public void testPaths() throws DiskFullException {
+		ProdosFormatDisk disk = createDisk();
+		DirectoryEntry first = disk.createDirectory("A"); //$NON-NLS-1$
+		writeFile(first, "DATA", 3000); //$NON-NLS-1$
+		assertEquals("[A, A/DATA]", getPaths(disk).toString()); //$NON-NLS-1$
+		DirectoryEntry second = disk.createDirectory("B"); //$NON-NLS-1$
+		writeFile(second, "DATA", 700); //$NON-NLS-1$
+		assertEquals("[A, A/DATA, B, B/DATA]", getPaths(disk).toString()); //$NON-NLS-1$
+	}
+
+	protected ProdosFormatDisk createDisk() {
+		ByteArrayImageLayout layout = new ByteArrayImageLayout(Disk.APPLE_140KB_DISK);
+		return ProdosFormatDisk.create("test.po", "TEST", //$NON-NLS-1$ //$NON-NLS-2$
+			new ProdosOrder(layout))[0];
+	}
+
+	protected void writeFile(DirectoryEntry directory, String filename, int length)
+			throws DiskFullException {
+		FileEntry entry = directory.createFile();
+		entry.setFilename(filename);
+		entry.setFiletype("BIN"); //$NON-NLS-1$
+		entry.setFileData(new byte[length]);
+	}
+
+	protected List<String> getPaths(FormattedDisk disk) {
+		List<String> paths = new ArrayList<String>();
+		for (FragmentationReport.FileFragmentation file : FragmentationReport.analyze(disk).getFiles()) {
+			paths.add(file.getPath());
+		}
+		return paths;
+	}
+}
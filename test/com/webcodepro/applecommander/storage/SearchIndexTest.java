@@ -0,0 +1,277 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2002 by Robert Greene
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+import com.webcodepro.applecommander.storage.os.prodos.ProdosFileEntry;
+import com.webcodepro.applecommander.storage.os.prodos.ProdosFormatDisk;
+import com.webcodepro.applecommander.storage.physical.ByteArrayImageLayout;
+import com.webcodepro.applecommander.storage.physical.ProdosOrder;
+import com.webcodepro.shrinkit.NuFileArchiveWriter;
+
+/**
+ * Test building and searching an index over the files in many images.
+ */
+public class SearchIndexTest extends TestCase {
+	/** A time to give files, well in the past, to the second. */
+	private static final long TIME = 1000000000000L;
+	private File indexFile;
+	/** The images made so far, so the same one is never made twice with different dates. */
+	private Map<String,byte[]> images = new HashMap<String,byte[]>();
+
+	public SearchIndexTest(String name) {
+		super(name);
+	}
+
+	public static void main(String[] args) {
+		junit.textui.TestRunner.run(SearchIndexTest.class);
+	}
+
+	protected void setUp() throws Exception {
+		indexFile = createTempFile(".idx"); //$NON-NLS-1$
+		indexFile.delete();
+		new File(indexFile.getPath() + ".docs").deleteOnExit(); //$NON-NLS-1$
+	}
+
+	/**
+	 * Files are found by their words, and by their type, name, address and
+	 * size.
+	 */
+	public void testSearch() throws IOException, DiskFullException {
+		String first = writeImage("FIRST", "HELLO WORLD OF APPLE"); //$NON-NLS-1$ //$NON-NLS-2$
+		String second = writeImage("SECOND", "APPLESOFT WORLD"); //$NON-NLS-1$ //$NON-NLS-2$
+		assertEquals(2, update(new String[] { first, second }));
+		assertHits(new String[] { first, second }, "world"); //$NON-NLS-1$
+		assertHits(new String[] { first }, "Hello"); //$NON-NLS-1$
+		assertHits(new String[] { first, second }, "appl*"); //$NON-NLS-1$
+		assertHits(new String[] { second }, "applesoft*"); //$NON-NLS-1$
+		assertHits(new String[] { first }, "world", "of"); //$NON-NLS-1$ //$NON-NLS-2$
+		assertHits(new String[0], "hello", "applesoft"); //$NON-NLS-1$ //$NON-NLS-2$
+		assertHits(new String[0], "missing"); //$NON-NLS-1$
+		assertHits(new String[0], "zzz*"); //$NON-NLS-1$
+		assertHits(new String[] { first, second }, "type:bin"); //$NON-NLS-1$
+		assertHits(new String[] { first, second }, "name:prog*", "addr:$0800"); //$NON-NLS-1$ //$NON-NLS-2$
+		assertHits(new String[0], "addr:>$0800"); //$NON-NLS-1$
+		assertHits(new String[] { first }, "world", "size:>16"); //$NON-NLS-1$ //$NON-NLS-2$
+		List<SearchIndex.Hit> hits = SearchIndex.search(indexFile, new String[] { "hello" }); //$NON-NLS-1$
+		SearchIndex.Hit hit = hits.get(0);
+		assertEquals("NOTES", hit.getPath()); //$NON-NLS-1$
+		assertEquals("TXT", hit.getFiletype()); //$NON-NLS-1$
+		assertEquals(SearchIndex.NONE, hit.getAddress());
+		hit = SearchIndex.search(indexFile, new String[] { "type:BIN" }).get(0); //$NON-NLS-1$
+		assertEquals("PROGRAM", hit.getPath()); //$NON-NLS-1$
+		assertEquals(0x800, hit.getAddress());
+		assertEquals(0x800, hit.getAuxType());
+		assertEquals(10, hit.getSize());
+	}
+
+	/**
+	 * A removed image is no longer found, and the others still are.
+	 */
+	public void testRemove() throws IOException, DiskFullException {
+		String first = writeImage("FIRST", "HELLO WORLD"); //$NON-NLS-1$ //$NON-NLS-2$
+		String second = writeImage("SECOND", "GOODBYE WORLD"); //$NON-NLS-1$ //$NON-NLS-2$
+		update(new String[] { first, second });
+		SearchIndex index = new SearchIndex(indexFile);
+		index.remove(first);
+		index.save();
+		assertHits(new String[] { second }, "world"); //$NON-NLS-1$
+		assertHits(new String[0], "hello"); //$NON-NLS-1$
+	}
+
+	/**
+	 * The files in a ShrinkIt archive are indexed without unpacking it.
+	 */
+	public void testShrinkItArchive() throws IOException {
+		Date now = new Date();
+		NuFileArchiveWriter writer = new NuFileArchiveWriter(now);
+		writer.addFile("DOCS:README", NuFileArchiveWriter.DEFAULT_ACCESS, 0x04, 0, //$NON-NLS-1$
+				now, now, "SHRUNK WORDS\r".getBytes(), null); //$NON-NLS-1$
+		File shk = createTempFile(".shk"); //$NON-NLS-1$
+		FileOutputStream output = new FileOutputStream(shk);
+		try {
+			writer.write(output);
+		} finally {
+			output.close();
+		}
+		update(new String[] { shk.getPath() });
+		List<SearchIndex.Hit> hits = SearchIndex.search(indexFile, new String[] { "shrunk" }); //$NON-NLS-1$
+		assertEquals(1, hits.size());
+		assertEquals("DOCS/README", hits.get(0).getPath()); //$NON-NLS-1$
+	}
+
+	/**
+	 * An image which cannot be read is reported, and left out.
+	 */
+	public void testUnreadableImage() throws IOException, DiskFullException {
+		String first = writeImage("FIRST", "HELLO WORLD"); //$NON-NLS-1$ //$NON-NLS-2$
+		File broken = createTempFile(".po"); //$NON-NLS-1$
+		SearchIndex index = new SearchIndex(indexFile);
+		Map<String,Exception> errors = new HashMap<String,Exception>();
+		index.update(Arrays.asList(new String[] { first, broken.getPath() }), 2, errors);
+		index.save();
+		assertEquals(1, errors.size());
+		assertTrue(errors.containsKey(broken.getPath()));
+		assertHits(new String[] { first }, "world"); //$NON-NLS-1$
+	}
+
+	public void testEmptyIndex() throws IOException {
+		new SearchIndex(indexFile).save();
+		assertHits(new String[0], "world"); //$NON-NLS-1$
+		assertHits(new String[0], "type:BIN"); //$NON-NLS-1$
+	}
+
+	public void testNotAnIndex() throws IOException {
+		File file = createTempFile(".idx"); //$NON-NLS-1$
+		FileOutputStream output = new FileOutputStream(file);
+		output.write(new byte[100]);
+		output.close();
+		try {
+			SearchIndex.search(file, new String[] { "world" }); //$NON-NLS-1$
+			fail("A file of zeros was searched"); //$NON-NLS-1$
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Each image in a zip file is checked on its own, so only the one that
+	 * changed is read again.
+	 */
+	public void testZipImages() throws IOException, DiskFullException {
+		File zip = createTempFile(".zip"); //$NON-NLS-1$
+		writeZip(zip, 1);
+		String[] imageNames = {
+			zip.getPath() + Disk.ZIP_SEPARATOR + "first.po", //$NON-NLS-1$
+			zip.getPath() + Disk.ZIP_SEPARATOR + "second.po" //$NON-NLS-1$
+		};
+		assertEquals(2, update(imageNames));
+		assertEquals(0, update(imageNames));
+		writeZip(zip, 2);
+		assertEquals(1, update(imageNames));
+	}
+
+	/**
+	 * Check that the search finds a file on each of the images given, and
+	 * no others.
+	 */
+	protected void assertHits(String[] imageNames, String... terms) throws IOException {
+		List<SearchIndex.Hit> hits = SearchIndex.search(indexFile, terms);
+		assertEquals(imageNames.length, hits.size());
+		for (int i = 0; i < imageNames.length; i++) {
+			assertEquals(imageNames[i], hits.get(i).getImageName());
+		}
+	}
+
+	/**
+	 * Write a ProDOS image holding a text file and a BIN file, answering
+	 * with its name.
+	 */
+	protected String writeImage(String volumeName, String text)
+			throws IOException, DiskFullException {
+		ByteArrayImageLayout layout = new ByteArrayImageLayout(Disk.APPLE_140KB_DISK);
+		ProdosFormatDisk disk = ProdosFormatDisk.create("test.po", volumeName, //$NON-NLS-1$
+				new ProdosOrder(layout))[0];
+		FileEntry entry = disk.createFile();
+		entry.setFilename("NOTES"); //$NON-NLS-1$
+		entry.setFiletype("TXT"); //$NON-NLS-1$
+		entry.setFileData((text + "\r").getBytes()); //$NON-NLS-1$
+		ProdosFileEntry program = (ProdosFileEntry) disk.createFile();
+		program.setFilename("PROGRAM"); //$NON-NLS-1$
+		program.setFiletype("BIN"); //$NON-NLS-1$
+		program.setAuxiliaryType(0x800);
+		program.setFileData(new byte[10]);
+		File file = createTempFile(".po"); //$NON-NLS-1$
+		FileOutputStream output = new FileOutputStream(file);
+		try {
+			output.write(layout.getDiskImage());
+		} finally {
+			output.close();
+		}
+		return file.getPath();
+	}
+
+	/**
+	 * Update the index with the images, answering with how many were read.
+	 */
+	protected int update(String[] imageNames) throws IOException {
+		SearchIndex index = new SearchIndex(indexFile);
+		Map<String,Exception> errors = new HashMap<String,Exception>();
+		int count = index.update(Arrays.asList(imageNames), 2, errors);
+		assertTrue(errors.isEmpty());
+		index.save();
+		return count;
+	}
+
+	protected void writeZip(File zip, int version) throws IOException, DiskFullException {
+		ZipOutputStream output = new ZipOutputStream(new FileOutputStream(zip));
+		try {
+			ZipEntry entry = new ZipEntry("first.po"); //$NON-NLS-1$
+			entry.setTime(TIME);
+			output.putNextEntry(entry);
+			output.write(createImage("FIRST", 1)); //$NON-NLS-1$
+			entry = new ZipEntry("second.po"); //$NON-NLS-1$
+			entry.setTime(TIME);
+			output.putNextEntry(entry);
+			output.write(createImage("SECOND", version)); //$NON-NLS-1$
+		} finally {
+			output.close();
+		}
+		zip.setLastModified(TIME + version * 60000);
+	}
+
+	/**
+	 * A ProDOS image with a text file, whose words depend on the version.
+	 */
+	protected byte[] createImage(String volumeName, int version) throws DiskFullException {
+		byte[] image = images.get(volumeName + version);
+		if (image != null) {
+			return image;
+		}
+		ByteArrayImageLayout layout = new ByteArrayImageLayout(Disk.APPLE_140KB_DISK);
+		ProdosFormatDisk disk = ProdosFormatDisk.create("test.po", volumeName, //$NON-NLS-1$
+				new ProdosOrder(layout))[0];
+		FileEntry entry = disk.createFile();
+		entry.setFilename("NOTES"); //$NON-NLS-1$
+		entry.setFiletype("TXT"); //$NON-NLS-1$
+		entry.setFileData(("VERSION" + version + " OF " + volumeName + "\r").getBytes()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		image = layout.getDiskImage();
+		images.put(volumeName + version, image);
+		return image;
+	}
+
+	protected File createTempFile(String suffix) throws IOException {
+		File file = File.createTempFile("SearchIndexTest", suffix); //$NON-NLS-1$
+		file.deleteOnExit();
+		return file;
+	}
+}
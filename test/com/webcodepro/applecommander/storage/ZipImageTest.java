@@ -0,0 +1,199 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2002 by Robert Greene
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+import com.webcodepro.applecommander.storage.os.dos33.DosFormatDisk;
+import com.webcodepro.applecommander.storage.os.prodos.ProdosFormatDisk;
+import com.webcodepro.applecommander.storage.physical.ByteArrayImageLayout;
+import com.webcodepro.applecommander.storage.physical.DosOrder;
+import com.webcodepro.applecommander.storage.physical.ProdosOrder;
+
+/**
+ * Test opening disk images from within a zip file.
+ */
+public class ZipImageTest extends TestCase {
+	private String zipFilename;
+
+	public ZipImageTest(String name) {
+		super(name);
+	}
+
+	public static void main(String[] args) {
+		junit.textui.TestRunner.run(ZipImageTest.class);
+	}
+
+	protected void setUp() throws Exception {
+		File file = File.createTempFile("ZipImageTest", ".zip"); //$NON-NLS-1$ //$NON-NLS-2$
+		file.deleteOnExit();
+		zipFilename = file.getPath();
+		ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file));
+		try {
+			addEntry(zip, "readme.txt", "Not a disk".getBytes()); //$NON-NLS-1$ //$NON-NLS-2$
+			addEntry(zip, "games/dos.dsk", createDosImage()); //$NON-NLS-1$
+			addEntry(zip, "prodos.po", createProdosImage()); //$NON-NLS-1$
+			addEntry(zip, "packed.dsk.gz", gzip(createDosImage())); //$NON-NLS-1$
+			addEntry(zip, "archive.shk", new byte[100]); //$NON-NLS-1$
+		} finally {
+			zip.close();
+		}
+	}
+
+	/**
+	 * Only disk images are listed, in the order they are in the zip, and
+	 * ShrinkIt archives are left out.
+	 */
+	public void testImageNames() throws IOException {
+		List<String> names = Disk.getZipImageNames(zipFilename);
+		assertEquals(3, names.size());
+		assertEquals(zipFilename + "!/games/dos.dsk", names.get(0)); //$NON-NLS-1$
+		assertEquals(zipFilename + "!/prodos.po", names.get(1)); //$NON-NLS-1$
+		assertEquals(zipFilename + "!/packed.dsk.gz", names.get(2)); //$NON-NLS-1$
+		assertTrue(Disk.isZipName(zipFilename));
+		assertTrue(Disk.isImageName("PRODOS.PO")); //$NON-NLS-1$
+		assertFalse(Disk.isImageName("readme.txt")); //$NON-NLS-1$
+	}
+
+	public void testOpenDosImage() throws IOException {
+		Disk disk = new Disk(zipFilename + "!/games/dos.dsk"); //$NON-NLS-1$
+		assertTrue(disk.isZipEntry());
+		assertEquals(zipFilename, disk.getZipFilename());
+		assertEquals("games/dos.dsk", disk.getZipEntryName()); //$NON-NLS-1$
+		checkFile(disk.getFormattedDisks()[0]);
+	}
+
+	public void testOpenProdosImage() throws IOException {
+		Disk disk = new Disk(zipFilename + "!/prodos.po"); //$NON-NLS-1$
+		FormattedDisk formattedDisk = disk.getFormattedDisks()[0];
+		assertEquals("ZIPPED", formattedDisk.getDiskName().replace("/", "")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		checkFile(formattedDisk);
+	}
+
+	public void testOpenCompressedImage() throws IOException {
+		Disk disk = new Disk(zipFilename + "!/packed.dsk.gz"); //$NON-NLS-1$
+		assertEquals(Disk.APPLE_140KB_DISK, disk.getPhysicalSize());
+		checkFile(disk.getFormattedDisks()[0]);
+	}
+
+	public void testMissingEntry() {
+		try {
+			new Disk(zipFilename + "!/missing.dsk"); //$NON-NLS-1$
+			fail("A missing entry was opened"); //$NON-NLS-1$
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	public void testArchiveInZip() {
+		try {
+			new Disk(zipFilename + "!/archive.shk"); //$NON-NLS-1$
+			fail("A ShrinkIt archive was opened from within a zip"); //$NON-NLS-1$
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	public void testSaveIntoZip() throws IOException {
+		Disk disk = new Disk(zipFilename + "!/games/dos.dsk"); //$NON-NLS-1$
+		long length = new File(zipFilename).length();
+		try {
+			disk.save();
+			fail("An image was saved back into a zip"); //$NON-NLS-1$
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals(length, new File(zipFilename).length());
+	}
+
+	protected void checkFile(FormattedDisk formattedDisk) {
+		FileEntry entry = null;
+		for (FileEntry file : formattedDisk.getFiles()) {
+			if (!file.isDeleted()) entry = file;
+		}
+		assertNotNull(entry);
+		assertEquals("ZIPPED", entry.getFilename().trim()); //$NON-NLS-1$
+		// DOS text files come back in whole sectors, with the high bit set
+		byte[] data = entry.getFileData();
+		assertTrue(data.length >= 600);
+		for (int i=0; i<data.length; i++) {
+			data[i] &= 0x7f;
+		}
+		assertTrue(Arrays.equals(createData(), Arrays.copyOf(data, 600)));
+	}
+
+	protected byte[] createDosImage() throws IOException {
+		ByteArrayImageLayout layout = new ByteArrayImageLayout(Disk.APPLE_140KB_DISK);
+		DosFormatDisk disk = DosFormatDisk.create("test.dsk", new DosOrder(layout))[0]; //$NON-NLS-1$
+		writeFile(disk, "T"); //$NON-NLS-1$
+		return layout.getDiskImage();
+	}
+
+	protected byte[] createProdosImage() throws IOException {
+		ByteArrayImageLayout layout = new ByteArrayImageLayout(Disk.APPLE_140KB_DISK);
+		ProdosFormatDisk disk = ProdosFormatDisk.create("test.po", "ZIPPED", //$NON-NLS-1$ //$NON-NLS-2$
+				new ProdosOrder(layout))[0];
+		writeFile(disk, "TXT"); //$NON-NLS-1$
+		return layout.getDiskImage();
+	}
+
+	protected void writeFile(FormattedDisk disk, String filetype) throws IOException {
+		try {
+			FileEntry entry = disk.createFile();
+			entry.setFilename("ZIPPED"); //$NON-NLS-1$
+			entry.setFiletype(filetype);
+			entry.setFileData(createData());
+		} catch (DiskFullException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	protected byte[] createData() {
+		byte[] data = new byte[600];
+		for (int i=0; i<data.length; i++) {
+			data[i] = (byte) ('A' + i % 26);
+		}
+		return data;
+	}
+
+	protected byte[] gzip(byte[] data) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		GZIPOutputStream gzip = new GZIPOutputStream(output);
+		gzip.write(data);
+		gzip.close();
+		return output.toByteArray();
+	}
+
+	protected void addEntry(ZipOutputStream zip, String name, byte[] data) throws IOException {
+		zip.putNextEntry(new ZipEntry(name));
+		zip.write(data);
+		zip.closeEntry();
+	}
+}
@@ -0,0 +1,144 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2002 by Robert Greene
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage.os.nufx;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.sun.management.UnixOperatingSystemMXBean;
+import com.webcodepro.applecommander.storage.DirectoryEntry;
+import com.webcodepro.applecommander.storage.FileEntry;
+import com.webcodepro.shrinkit.NuFileArchiveWriter;
+
+/**
+ * Test reading files from a ShrinkIt archive without unpacking it.
+ */
+public class NufxFormatDiskTest extends TestCase {
+	public NufxFormatDiskTest(String name) {
+		super(name);
+	}
+
+	public static void main(String[] args) {
+		junit.textui.TestRunner.run(NufxFormatDiskTest.class);
+	}
+
+	public void testReadFiles() throws IOException {
+		NufxFormatDisk disk = NufxFormatDisk.open(createArchive(false).getPath());
+		try {
+			List<FileEntry> files = disk.getFiles();
+			assertEquals(2, files.size());
+			assertEquals("HELLO", files.get(0).getFilename()); //$NON-NLS-1$
+			assertTrue(Arrays.equals(createData(3000), files.get(0).getFileData()));
+			DirectoryEntry directory = (DirectoryEntry) files.get(1);
+			assertEquals("DIR", files.get(1).getFilename()); //$NON-NLS-1$
+			FileEntry inner = directory.getFiles().get(0);
+			assertEquals("INNER", inner.getFilename()); //$NON-NLS-1$
+			assertTrue(Arrays.equals(createData(100), inner.getFileData()));
+		} finally {
+			disk.close();
+		}
+	}
+
+	public void testDiskImageArchive() throws IOException {
+		assertNull(NufxFormatDisk.open(createArchive(true).getPath()));
+	}
+
+	/**
+	 * An open archive does not hold its file open, so more archives can be
+	 * open at once than the process may have open files.
+	 */
+	public void testMoreArchivesThanFiles() throws IOException {
+		String filename = createArchive(false).getPath();
+		int count = 4096;
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof UnixOperatingSystemMXBean) {
+			long limit = ((UnixOperatingSystemMXBean) os).getMaxFileDescriptorCount();
+			if (limit < 100000) count = (int) limit + 16;
+		}
+		List<NufxFormatDisk> disks = new ArrayList<NufxFormatDisk>();
+		try {
+			for (int i=0; i<count; i++) {
+				NufxFormatDisk disk = NufxFormatDisk.open(filename);
+				assertEquals(2, disk.getFiles().size());
+				disks.add(disk);
+			}
+			FileEntry entry = disks.get(count - 1).getFiles().get(0);
+			assertTrue(Arrays.equals(createData(3000), entry.getFileData()));
+		} finally {
+			for (NufxFormatDisk disk : disks) {
+				disk.close();
+			}
+		}
+	}
+
+	/**
+	 * Once an archive is closed, file data that was not read is gone.
+	 */
+	public void testClose() throws IOException {
+		NufxFormatDisk disk = NufxFormatDisk.open(createArchive(false).getPath());
+		FileEntry entry = disk.getFiles().get(0);
+		disk.close();
+		try {
+			entry.getFileData();
+			fail("File data was read from a closed archive"); //$NON-NLS-1$
+		} catch (RuntimeException e) {
+			// expected
+		}
+	}
+
+	protected File createArchive(boolean diskImage) throws IOException {
+		Date now = new Date();
+		NuFileArchiveWriter writer = new NuFileArchiveWriter(now);
+		if (diskImage) {
+			writer.addDiskImage("DISK", new byte[280 * 512], NuFileArchiveWriter.FILESYS_PRODOS); //$NON-NLS-1$
+		} else {
+			writer.addFile("HELLO", NuFileArchiveWriter.DEFAULT_ACCESS, 0x06, 0x2000, //$NON-NLS-1$
+					now, now, createData(3000), null);
+			writer.addFile("DIR:INNER", NuFileArchiveWriter.DEFAULT_ACCESS, 0x04, 0, //$NON-NLS-1$
+					now, now, createData(100), null);
+		}
+		File file = File.createTempFile("NufxFormatDiskTest", ".shk"); //$NON-NLS-1$ //$NON-NLS-2$
+		file.deleteOnExit();
+		FileOutputStream output = new FileOutputStream(file);
+		try {
+			writer.write(output);
+		} finally {
+			output.close();
+		}
+		return file;
+	}
+
+	protected byte[] createData(int length) {
+		byte[] data = new byte[length];
+		for (int i=0; i<length; i++) {
+			data[i] = (byte) (i * 5 + i / 256);
+		}
+		return data;
+	}
+}
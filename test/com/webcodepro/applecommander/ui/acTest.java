@@ -0,0 +1,789 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2002 by Robert Greene
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.ui;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+import com.webcodepro.applecommander.storage.DirectoryEntry;
+import com.webcodepro.applecommander.storage.Disk;
+import com.webcodepro.applecommander.storage.FileEntry;
+import com.webcodepro.applecommander.storage.FormattedDisk;
+import com.webcodepro.applecommander.storage.SyncState;
+import com.webcodepro.applecommander.storage.os.dos33.DosFormatDisk;
+import com.webcodepro.applecommander.storage.os.prodos.ProdosFileEntry;
+import com.webcodepro.applecommander.storage.os.prodos.ProdosFormatDisk;
+import com.webcodepro.applecommander.storage.physical.ByteArrayImageLayout;
+import com.webcodepro.applecommander.storage.physical.DosOrder;
+import com.webcodepro.applecommander.storage.physical.ProdosOrder;
+import com.webcodepro.applecommander.util.TarInputStream;
+import com.webcodepro.applecommander.util.TarOutputStream;
+
+/**
+ * Test the ac command line.
+ */
+public class acTest extends TestCase {
+	private static final int IMAGES = 40;
+	private static final int FILES = 10;
+
+	public acTest(String name) {
+		super(name);
+	}
+
+	public static void main(String[] args) {
+		junit.textui.TestRunner.run(acTest.class);
+	}
+
+	/**
+	 * Reports finish out of order, as the later images are quicker, yet
+	 * they are printed in the order the images were added.
+	 */
+	public void testReportsInOrder() throws Exception {
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger mostRunning = new AtomicInteger();
+		String output = captureOutput(new Command() {
+			public void run() {
+				ac.ReportQueue queue = new ac.ReportQueue(new ac.ImageReport() {
+					public void report(String imageName, PrintStream out) throws IOException {
+						int now = running.incrementAndGet();
+						while (mostRunning.get() < now) {
+							mostRunning.compareAndSet(mostRunning.get(), now);
+						}
+						try {
+							Thread.sleep(IMAGES - Integer.parseInt(imageName));
+						} catch (InterruptedException e) {
+							throw new IOException(e.getMessage());
+						} finally {
+							running.decrementAndGet();
+						}
+						out.println(imageName);
+					}
+				}, 4);
+				for (int i = 0; i < IMAGES; i++) {
+					queue.add(Integer.toString(i));
+				}
+				queue.finish();
+			}
+		});
+		assertEquals(expectedReports(null), output);
+		assertTrue(mostRunning.get() > 1);
+		assertTrue(mostRunning.get() <= 4);
+	}
+
+	/**
+	 * An image whose report fails is reported in its place, and the others
+	 * still follow.
+	 */
+	public void testFailedReport() throws Exception {
+		String output = captureOutput(new Command() {
+			public void run() {
+				ac.ReportQueue queue = new ac.ReportQueue(new ac.ImageReport() {
+					public void report(String imageName, PrintStream out) throws IOException {
+						if ("7".equals(imageName)) { //$NON-NLS-1$
+							throw new IOException("unreadable"); //$NON-NLS-1$
+						}
+						out.println(imageName);
+					}
+				}, 4);
+				for (int i = 0; i < IMAGES; i++) {
+					queue.add(Integer.toString(i));
+				}
+				queue.finish();
+			}
+		});
+		assertEquals(expectedReports("7"), output); //$NON-NLS-1$
+	}
+
+	/**
+	 * Listing many images at once prints just what listing them one at a
+	 * time does.
+	 */
+	public void testParallelListing() throws Exception {
+		final String[] serial = new String[IMAGES / 4 + 2];
+		final String[] parallel = new String[serial.length];
+		serial[0] = "-j"; //$NON-NLS-1$
+		serial[1] = "1"; //$NON-NLS-1$
+		parallel[0] = "-j"; //$NON-NLS-1$
+		parallel[1] = "4"; //$NON-NLS-1$
+		for (int i = 2; i < serial.length; i++) {
+			File file = File.createTempFile("acTest", ".po"); //$NON-NLS-1$ //$NON-NLS-2$
+			file.deleteOnExit();
+			ac.createProDisk(file.getPath(), "VOLUME" + i, Disk.APPLE_140KB_DISK); //$NON-NLS-1$
+			serial[i] = file.getPath();
+		}
+		// An image that cannot be read is reported in its place
+		serial[serial.length / 2] = "missing.po"; //$NON-NLS-1$
+		System.arraycopy(serial, 2, parallel, 2, serial.length - 2);
+		String expected = captureOutput(new Command() {
+			public void run() throws Exception {
+				ac.execute(insertCommand(serial, "-ls")); //$NON-NLS-1$
+			}
+		});
+		String output = captureOutput(new Command() {
+			public void run() throws Exception {
+				ac.execute(insertCommand(parallel, "-ls")); //$NON-NLS-1$
+			}
+		});
+		assertTrue(expected.indexOf("VOLUME3") < expected.indexOf("missing.po")); //$NON-NLS-1$ //$NON-NLS-2$
+		assertTrue(expected.indexOf("missing.po") < expected.indexOf("VOLUME" + (serial.length - 1))); //$NON-NLS-1$ //$NON-NLS-2$
+		assertEquals(expected, output);
+	}
+
+	/**
+	 * The number of jobs given with -j lasts only for its command.
+	 */
+	public void testJobsRestored() throws Exception {
+		final int jobs = ac.jobs;
+		final File file = File.createTempFile("acTest", ".po"); //$NON-NLS-1$ //$NON-NLS-2$
+		file.deleteOnExit();
+		ac.createProDisk(file.getPath(), "JOBS", Disk.APPLE_140KB_DISK); //$NON-NLS-1$
+		captureOutput(new Command() {
+			public void run() throws Exception {
+				ac.execute(new String[] { "-j", Integer.toString(jobs + 3), "-ls", file.getPath() }); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+		});
+		assertEquals(jobs, ac.jobs);
+		String script = "-j 1 -ls \"" + file.getPath() + "\"\n-j 1 -ls missing.po\n"; //$NON-NLS-1$ //$NON-NLS-2$
+		ac.runScript(new ByteArrayInputStream(script.getBytes()));
+		assertEquals(jobs, ac.jobs);
+	}
+
+	/**
+	 * Files which cannot be looked into while the tree is walked are
+	 * reported in their place among the images, just as in a serial scan.
+	 */
+	public void testScanErrorsInOrder() throws Exception {
+		File directory = File.createTempFile("acTest", ""); //$NON-NLS-1$ //$NON-NLS-2$
+		directory.delete();
+		directory.mkdir();
+		directory.deleteOnExit();
+		for (int i = 0; i < IMAGES / 2; i++) {
+			File file = new File(directory, "image" + i + ".po"); //$NON-NLS-1$ //$NON-NLS-2$
+			file.deleteOnExit();
+			ac.createProDisk(file.getPath(), "VOLUME" + i, Disk.APPLE_140KB_DISK); //$NON-NLS-1$
+			if (i % 5 == 4) {
+				// Not really a zip file
+				File zip = new File(directory, "broken" + i + ".zip"); //$NON-NLS-1$ //$NON-NLS-2$
+				zip.deleteOnExit();
+				FileOutputStream output = new FileOutputStream(zip);
+				output.write(new byte[100]);
+				output.close();
+			}
+		}
+		final String path = directory.getPath();
+		String expected = captureOutput(new Command() {
+			public void run() throws Exception {
+				ac.execute(new String[] { "-j", "1", "-scan", path }); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			}
+		});
+		String output = captureOutput(new Command() {
+			public void run() throws Exception {
+				ac.execute(new String[] { "-j", "4", "-scan", path }); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			}
+		});
+		assertTrue(expected.indexOf("broken4.zip") != -1); //$NON-NLS-1$
+		assertEquals(expected, output);
+	}
+
+	/**
+	 * Two catalog entries named HELLO are both extracted to the same host
+	 * file, among many others; the later entry is written last.
+	 */
+	public void testExtractSameName() throws Exception {
+		File image = File.createTempFile("acTest", ".dsk"); //$NON-NLS-1$ //$NON-NLS-2$
+		image.deleteOnExit();
+		ByteArrayImageLayout layout = new ByteArrayImageLayout(Disk.APPLE_140KB_DISK);
+		FormattedDisk disk = DosFormatDisk.create(image.getPath(), new DosOrder(layout))[0];
+		for (int f = 0; f < FILES; f++) {
+			FileEntry entry = disk.createFile();
+			entry.setFilename((f == 0 || f == FILES - 1) ? "HELLO" : "FILE" + f); //$NON-NLS-1$ //$NON-NLS-2$
+			entry.setFiletype("B"); //$NON-NLS-1$
+			entry.setFileData(createData(1000 * (f + 1)));
+		}
+		disk.save();
+		File directory = File.createTempFile("acTest", ""); //$NON-NLS-1$ //$NON-NLS-2$
+		directory.delete();
+		ac.execute(new String[] { "-j", "4", "-xr", image.getPath(), directory.getPath() }); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		File hello = new File(directory, "HELLO"); //$NON-NLS-1$
+		byte[] data = new byte[(int) hello.length()];
+		FileInputStream input = new FileInputStream(hello);
+		try {
+			assertEquals(data.length, input.read(data));
+		} finally {
+			input.close();
+		}
+		String[] names = directory.list();
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+		assertEquals(FILES - 1, names.length);
+		assertTrue(Arrays.equals(createData(1000 * FILES), Arrays.copyOf(data, 1000 * FILES)));
+	}
+
+	/**
+	 * Files whose names differ only in case go to one host file on some
+	 * file systems, so they are extracted one after the other.
+	 */
+	public void testGroupExtractedFiles() {
+		List<ac.ExtractedFile> files = new ArrayList<ac.ExtractedFile>();
+		files.add(new ac.ExtractedFile(null, null, new File("NOTES.TXT"))); //$NON-NLS-1$
+		files.add(new ac.ExtractedFile(null, null, new File("OTHER"))); //$NON-NLS-1$
+		files.add(new ac.ExtractedFile(null, null, new File("NOTES.txt"))); //$NON-NLS-1$
+		List<List<ac.ExtractedFile>> groups = ac.groupExtractedFiles(files);
+		assertEquals(2, groups.size());
+		assertEquals(2, groups.get(0).size());
+		assertSame(files.get(0), groups.get(0).get(0));
+		assertSame(files.get(2), groups.get(0).get(1));
+		assertSame(files.get(1), groups.get(1).get(0));
+	}
+
+	/**
+	 * A file which cannot be read is left out of a zip file, and the files
+	 * around it are whole.
+	 */
+	public void testArchiveZip() throws Exception {
+		File zip = File.createTempFile("acTest", ".zip"); //$NON-NLS-1$ //$NON-NLS-2$
+		zip.deleteOnExit();
+		ac.execute(new String[] { "-xzr", createArchiveImage(), zip.getPath() }); //$NON-NLS-1$
+		ZipInputStream input = new ZipInputStream(new FileInputStream(zip));
+		try {
+			assertEquals("FIRST", input.getNextEntry().getName()); //$NON-NLS-1$
+			assertTrue(Arrays.equals(createData(1000), readFully(input)));
+			assertEquals("SUBDIR/", input.getNextEntry().getName()); //$NON-NLS-1$
+			assertEquals("SUBDIR/LAST", input.getNextEntry().getName()); //$NON-NLS-1$
+			assertTrue(Arrays.equals(createData(3000), readFully(input)));
+			assertNull(input.getNextEntry());
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * DOS files keep no date, so they are given the time of the image, and
+	 * archiving the image again makes the same zip file.
+	 */
+	public void testArchiveZipDates() throws Exception {
+		File image = File.createTempFile("acTest", ".dsk"); //$NON-NLS-1$ //$NON-NLS-2$
+		image.deleteOnExit();
+		ac.createDosDisk(image.getPath(), Disk.APPLE_140KB_DISK);
+		File data = File.createTempFile("acTest", ".bin"); //$NON-NLS-1$ //$NON-NLS-2$
+		data.deleteOnExit();
+		writeHostFile(data, createData(500));
+		ac.putFile(data.getPath(), image.getPath(), "DATA", "B", "0x2000"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		long modified = 1792324800000L;
+		image.setLastModified(modified);
+		File zip = File.createTempFile("acTest", ".zip"); //$NON-NLS-1$ //$NON-NLS-2$
+		zip.deleteOnExit();
+		String[] args = { "-xzr", image.getPath(), zip.getPath() }; //$NON-NLS-1$
+		ac.execute(args);
+		byte[] first = readHostFile(zip);
+		ZipInputStream input = new ZipInputStream(new FileInputStream(zip));
+		try {
+			ZipEntry entry = input.getNextEntry();
+			assertEquals("DATA", entry.getName()); //$NON-NLS-1$
+			assertEquals(modified, entry.getTime());
+		} finally {
+			input.close();
+		}
+		Thread.sleep(2000);
+		ac.execute(args);
+		assertTrue(Arrays.equals(first, readHostFile(zip)));
+	}
+
+	/**
+	 * A file which cannot be read is left out of a tar file, which can still
+	 * be read to its end.
+	 */
+	public void testArchiveTar() throws Exception {
+		File tar = File.createTempFile("acTest", ".tar"); //$NON-NLS-1$ //$NON-NLS-2$
+		tar.deleteOnExit();
+		ac.execute(new String[] { "-xtr", createArchiveImage(), tar.getPath() }); //$NON-NLS-1$
+		TarInputStream input = new TarInputStream(new FileInputStream(tar));
+		try {
+			assertTrue(input.getNextEntry());
+			assertEquals("FIRST", input.getName()); //$NON-NLS-1$
+			assertTrue(Arrays.equals(createData(1000), readFully(input)));
+			assertTrue(input.getNextEntry());
+			assertEquals("SUBDIR/", input.getName()); //$NON-NLS-1$
+			assertTrue(input.isDirectory());
+			assertTrue(input.getNextEntry());
+			assertEquals("SUBDIR/LAST", input.getName()); //$NON-NLS-1$
+			assertTrue(Arrays.equals(createData(3000), readFully(input)));
+			assertFalse(input.getNextEntry());
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * A host directory tree is copied onto an image, with the types given
+	 * by the names.
+	 */
+	public void testImportDirectory() throws Exception {
+		File directory = File.createTempFile("acTest", ""); //$NON-NLS-1$ //$NON-NLS-2$
+		directory.delete();
+		new File(directory, "SUBDIR").mkdirs(); //$NON-NLS-1$
+		writeHostFile(new File(directory, "FIRST#062000"), createData(1000)); //$NON-NLS-1$
+		writeHostFile(new File(directory, "SUBDIR/LAST#040000"), createData(3000)); //$NON-NLS-1$
+		try {
+			checkImport(directory.getPath());
+		} finally {
+			new File(directory, "FIRST#062000").delete(); //$NON-NLS-1$
+			new File(directory, "SUBDIR/LAST#040000").delete(); //$NON-NLS-1$
+			new File(directory, "SUBDIR").delete(); //$NON-NLS-1$
+			directory.delete();
+		}
+	}
+
+	public void testImportZip() throws Exception {
+		File zip = File.createTempFile("acTest", ".zip"); //$NON-NLS-1$ //$NON-NLS-2$
+		zip.deleteOnExit();
+		ZipOutputStream output = new ZipOutputStream(new FileOutputStream(zip));
+		try {
+			output.putNextEntry(new ZipEntry("FIRST#062000")); //$NON-NLS-1$
+			output.write(createData(1000));
+			output.putNextEntry(new ZipEntry("SUBDIR/")); //$NON-NLS-1$
+			output.putNextEntry(new ZipEntry("SUBDIR/LAST#040000")); //$NON-NLS-1$
+			output.write(createData(3000));
+		} finally {
+			output.close();
+		}
+		checkImport(zip.getPath());
+	}
+
+	/**
+	 * The data of a tar file is read on a second pass through it.
+	 */
+	public void testImportTar() throws Exception {
+		File tar = File.createTempFile("acTest", ".tar"); //$NON-NLS-1$ //$NON-NLS-2$
+		tar.deleteOnExit();
+		TarOutputStream output = new TarOutputStream(new FileOutputStream(tar));
+		try {
+			// Out of order, so the files are not read in the order they are written
+			output.putNextEntry("SUBDIR/LAST#040000", 3000, 0, false, null); //$NON-NLS-1$
+			output.write(createData(3000));
+			output.putNextEntry("FIRST#062000", 1000, 0, false, null); //$NON-NLS-1$
+			output.write(createData(1000));
+		} finally {
+			output.close();
+		}
+		checkImport(tar.getPath());
+	}
+
+	/**
+	 * A second sync writes only what changed and deletes what was removed;
+	 * a third, with nothing changed, leaves the image alone.
+	 */
+	public void testIncrementalSync() throws Exception {
+		File directory = File.createTempFile("acTest", ""); //$NON-NLS-1$ //$NON-NLS-2$
+		directory.delete();
+		directory.mkdir();
+		File image = File.createTempFile("acTest", ".po"); //$NON-NLS-1$ //$NON-NLS-2$
+		image.deleteOnExit();
+		SyncState.getStateFile(image.getPath()).deleteOnExit();
+		ac.createProDisk(image.getPath(), "SYNC", Disk.APPLE_140KB_DISK); //$NON-NLS-1$
+		File first = new File(directory, "FIRST#062000"); //$NON-NLS-1$
+		File second = new File(directory, "SECOND#062000"); //$NON-NLS-1$
+		File third = new File(directory, "THIRD#062000"); //$NON-NLS-1$
+		try {
+			writeHostFile(first, createData(1000));
+			writeHostFile(second, createData(2000));
+			String[] args = { "-sync", directory.getPath(), image.getPath() }; //$NON-NLS-1$
+			ac.execute(args);
+			first.delete();
+			writeHostFile(second, createData(2500));
+			second.setLastModified(second.lastModified() + 2000);
+			writeHostFile(third, createData(3000));
+			ac.execute(args);
+			List<FileEntry> files = getLiveFiles(image);
+			assertEquals(2, files.size());
+			// THIRD takes the entry FIRST was deleted from
+			assertEquals("THIRD", files.get(0).getFilename()); //$NON-NLS-1$
+			assertTrue(Arrays.equals(createData(3000), files.get(0).getFileData()));
+			assertEquals("SECOND", files.get(1).getFilename()); //$NON-NLS-1$
+			assertTrue(Arrays.equals(createData(2500), files.get(1).getFileData()));
+			long modified = image.lastModified() - 60000;
+			image.setLastModified(modified);
+			File stateFile = SyncState.getStateFile(image.getPath());
+			stateFile.delete();
+			// Without its state the image is compared file by file, and not changed
+			ac.execute(args);
+			assertEquals(modified, image.lastModified());
+			ac.execute(args);
+			assertEquals(modified, image.lastModified());
+		} finally {
+			second.delete();
+			third.delete();
+			directory.delete();
+		}
+	}
+
+	/**
+	 * Renaming a host file only to change its type or aux type writes the
+	 * file again, with or without the sync state.
+	 */
+	public void testSyncTypeChange() throws Exception {
+		File directory = File.createTempFile("acTest", ""); //$NON-NLS-1$ //$NON-NLS-2$
+		directory.delete();
+		directory.mkdir();
+		File image = File.createTempFile("acTest", ".po"); //$NON-NLS-1$ //$NON-NLS-2$
+		image.deleteOnExit();
+		File stateFile = SyncState.getStateFile(image.getPath());
+		stateFile.deleteOnExit();
+		ac.createProDisk(image.getPath(), "SYNC", Disk.APPLE_140KB_DISK); //$NON-NLS-1$
+		File binary = new File(directory, "GAME#062000"); //$NON-NLS-1$
+		File moved = new File(directory, "GAME#060800"); //$NON-NLS-1$
+		File text = new File(directory, "GAME#040000"); //$NON-NLS-1$
+		try {
+			writeHostFile(binary, createData(1000));
+			String[] args = { "-sync", directory.getPath(), image.getPath() }; //$NON-NLS-1$
+			ac.execute(args);
+			assertTrue(binary.renameTo(moved));
+			ac.execute(args);
+			ProdosFileEntry entry = (ProdosFileEntry) getLiveFiles(image).get(0);
+			assertEquals("BIN", entry.getFiletype()); //$NON-NLS-1$
+			assertEquals(0x0800, entry.getAuxiliaryType());
+			stateFile.delete();
+			assertTrue(moved.renameTo(text));
+			ac.execute(args);
+			List<FileEntry> files = getLiveFiles(image);
+			assertEquals(1, files.size());
+			entry = (ProdosFileEntry) files.get(0);
+			assertEquals("TXT", entry.getFiletype()); //$NON-NLS-1$
+			assertEquals(0, entry.getAuxiliaryType());
+			assertTrue(Arrays.equals(createData(1000), entry.getFileData()));
+		} finally {
+			binary.delete();
+			moved.delete();
+			text.delete();
+			directory.delete();
+		}
+	}
+
+	protected List<FileEntry> getLiveFiles(File image) throws IOException {
+		List<FileEntry> files = new ArrayList<FileEntry>();
+		for (FileEntry entry : new Disk(image.getPath()).getFormattedDisks()[0].getFiles()) {
+			if (!entry.isDeleted()) files.add(entry);
+		}
+		return files;
+	}
+
+	/**
+	 * A command which fails partway leaves nothing of itself on the image,
+	 * even when a later command changes the same image and it is saved.
+	 */
+	public void testScriptFailedCommand() throws Exception {
+		File image = File.createTempFile("acTest", ".po"); //$NON-NLS-1$ //$NON-NLS-2$
+		image.deleteOnExit();
+		ac.createProDisk(image.getPath(), "SCRIPT", Disk.APPLE_140KB_DISK); //$NON-NLS-1$
+		File big = File.createTempFile("acTest", ".bin"); //$NON-NLS-1$ //$NON-NLS-2$
+		big.deleteOnExit();
+		writeHostFile(big, createData(200000));
+		File small = File.createTempFile("acTest", ".bin"); //$NON-NLS-1$ //$NON-NLS-2$
+		small.deleteOnExit();
+		writeHostFile(small, createData(1000));
+		String script = "-p \"" + image.getPath() + "\" BIG BIN < \"" + big.getPath() + "\"\n" //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+			+ "-p \"" + image.getPath() + "\" SMALL BIN < \"" + small.getPath() + "\"\n"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+		assertFalse(ac.runScript(new ByteArrayInputStream(script.getBytes())));
+		FormattedDisk disk = new Disk(image.getPath()).getFormattedDisks()[0];
+		List<FileEntry> files = getLiveFiles(image);
+		assertEquals(1, files.size());
+		assertEquals("SMALL", files.get(0).getFilename()); //$NON-NLS-1$
+		assertTrue(Arrays.equals(createData(1000), files.get(0).getFileData()));
+		assertFalse(disk.checkDisk(false).hasProblems());
+	}
+
+	/**
+	 * Building the same manifest twice makes the same bytes, with the
+	 * dates the manifest gives.
+	 */
+	public void testBuildReproducible() throws Exception {
+		File directory = File.createTempFile("acTest", ""); //$NON-NLS-1$ //$NON-NLS-2$
+		directory.delete();
+		directory.mkdir();
+		File manifest = new File(directory, "manifest.json"); //$NON-NLS-1$
+		File game = new File(directory, "game.bin"); //$NON-NLS-1$
+		File level = new File(directory, "level1"); //$NON-NLS-1$
+		File prodos = new File(directory, "game.po"); //$NON-NLS-1$
+		File dos = new File(directory, "game.dsk"); //$NON-NLS-1$
+		try {
+			writeHostFile(game, createData(3000));
+			writeHostFile(level, createData(700));
+			writeHostFile(manifest, ("{ \"images\": [\n" //$NON-NLS-1$
+				+ "  { \"image\": \"game.po\", \"format\": \"pro140\", \"volume\": \"GAME\",\n" //$NON-NLS-1$
+				+ "    \"date\": \"2026-10-18 12:00\", \"files\": [\n" //$NON-NLS-1$
+				+ "      { \"source\": \"game.bin\", \"name\": \"GAME\", \"type\": \"BIN\",\n" //$NON-NLS-1$
+				+ "        \"address\": \"$4000\", \"locked\": true },\n" //$NON-NLS-1$
+				+ "      { \"directory\": \"DATA\" },\n" //$NON-NLS-1$
+				+ "      { \"source\": \"level1\", \"name\": \"DATA/LEVEL1\", \"type\": \"BIN\",\n" //$NON-NLS-1$
+				+ "        \"date\": \"2026-10-01\" } ] },\n" //$NON-NLS-1$
+				+ "  { \"image\": \"game.dsk\", \"format\": \"dos140\", \"files\": [\n" //$NON-NLS-1$
+				+ "      { \"source\": \"game.bin\", \"name\": \"GAME\", \"type\": \"B\" } ] } ] }") //$NON-NLS-1$
+				.getBytes("UTF-8")); //$NON-NLS-1$
+			String[] args = { "-build", manifest.getPath() }; //$NON-NLS-1$
+			ac.execute(args);
+			byte[] firstProdos = readHostFile(prodos);
+			byte[] firstDos = readHostFile(dos);
+			Thread.sleep(1100);
+			ac.execute(args);
+			assertTrue(Arrays.equals(firstProdos, readHostFile(prodos)));
+			assertTrue(Arrays.equals(firstDos, readHostFile(dos)));
+
+			FormattedDisk disk = new Disk(prodos.getPath()).getFormattedDisks()[0];
+			ProdosFileEntry entry = (ProdosFileEntry) disk.getFiles().get(0);
+			assertEquals("GAME", entry.getFilename()); //$NON-NLS-1$
+			assertEquals(0x4000, entry.getAuxiliaryType());
+			assertTrue(entry.isLocked());
+			assertTrue(Arrays.equals(createData(3000), entry.getFileData()));
+			SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm"); //$NON-NLS-1$
+			assertEquals("2026-10-18 12:00", //$NON-NLS-1$
+				dateFormat.format(entry.getLastModificationDate()));
+			DirectoryEntry data = (DirectoryEntry) disk.getFiles().get(1);
+			ProdosFileEntry level1 = (ProdosFileEntry) data.getFiles().get(0);
+			assertEquals("2026-10-01 00:00", //$NON-NLS-1$
+				dateFormat.format(level1.getLastModificationDate()));
+			assertTrue(Arrays.equals(createData(700), level1.getFileData()));
+		} finally {
+			manifest.delete();
+			game.delete();
+			level.delete();
+			prodos.delete();
+			dos.delete();
+			directory.delete();
+		}
+	}
+
+	/**
+	 * A manifest which leaves out what is needed, or gives something which
+	 * cannot be used, is refused before any image is written.
+	 */
+	public void testBuildBadManifest() throws Exception {
+		assertBuildError("{ \"format\": \"pro140\", \"volume\": \"A\" }", "\"image\""); //$NON-NLS-1$ //$NON-NLS-2$
+		assertBuildError("{ \"image\": \"a.po\", \"format\": \"pro140\" }", "\"volume\""); //$NON-NLS-1$ //$NON-NLS-2$
+		assertBuildError("{ \"image\": \"a.po\", \"format\": \"cpm\" }", "cpm"); //$NON-NLS-1$ //$NON-NLS-2$
+		assertBuildError("{ \"image\": \"a.po\", \"format\": \"pro140\", \"volume\": \"A\",\n" //$NON-NLS-1$
+			+ "  \"date\": \"2026-13-01\" }", "2026-13-01"); //$NON-NLS-1$ //$NON-NLS-2$
+		assertBuildError("{ \"images\": 1 }", "\"images\""); //$NON-NLS-1$ //$NON-NLS-2$
+		assertBuildError("{ \"image\": ", "JSON line 1"); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	protected void assertBuildError(String manifest, String message) throws Exception {
+		File file = File.createTempFile("acTest", ".json"); //$NON-NLS-1$ //$NON-NLS-2$
+		file.deleteOnExit();
+		writeHostFile(file, manifest.getBytes("UTF-8")); //$NON-NLS-1$
+		try {
+			ac.buildImages(file.getPath());
+			fail("Built from " + manifest); //$NON-NLS-1$
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().indexOf(message) != -1);
+		}
+		assertFalse(new File(file.getParentFile(), "a.po").exists()); //$NON-NLS-1$
+	}
+
+	protected byte[] readHostFile(File file) throws IOException {
+		byte[] data = new byte[(int) file.length()];
+		FileInputStream input = new FileInputStream(file);
+		try {
+			assertEquals(data.length, input.read(data));
+		} finally {
+			input.close();
+		}
+		return data;
+	}
+
+	/**
+	 * A directory already on the image needs another block once the import
+	 * fills its free entries.
+	 */
+	public void testPlanImportExistingDirectory() throws Exception {
+		assertEquals(1, planImportInto(11));
+		assertEquals(2, planImportInto(12));
+	}
+
+	/**
+	 * The blocks needed to import an empty file into a directory already
+	 * holding the given number of files.
+	 */
+	protected int planImportInto(int files) throws Exception {
+		ByteArrayImageLayout layout = new ByteArrayImageLayout(Disk.APPLE_140KB_DISK);
+		ProdosFormatDisk disk = ProdosFormatDisk.create("test.po", "IMPORT", //$NON-NLS-1$ //$NON-NLS-2$
+				new ProdosOrder(layout))[0];
+		DirectoryEntry directory = disk.createDirectory("SUBDIR"); //$NON-NLS-1$
+		for (int i = 0; i < files; i++) {
+			FileEntry entry = directory.createFile();
+			entry.setFilename("FILE" + i); //$NON-NLS-1$
+			entry.setFiletype("BIN"); //$NON-NLS-1$
+			entry.setFileData(new byte[0]);
+		}
+		List<ac.ImportedFile> importedFiles = new ArrayList<ac.ImportedFile>();
+		importedFiles.add(new ac.ImportedFile(disk, "SUBDIR", "NEW")); //$NON-NLS-1$ //$NON-NLS-2$
+		Set<String> directories = new TreeSet<String>();
+		directories.add("SUBDIR"); //$NON-NLS-1$
+		return ac.planImport(disk, importedFiles, directories,
+				new HashMap<String,DirectoryEntry>());
+	}
+
+	/**
+	 * Import the source onto a new image, and check that FIRST and
+	 * SUBDIR/LAST arrived whole.
+	 */
+	protected void checkImport(String source) throws Exception {
+		File image = File.createTempFile("acTest", ".po"); //$NON-NLS-1$ //$NON-NLS-2$
+		image.deleteOnExit();
+		ac.createProDisk(image.getPath(), "IMPORT", Disk.APPLE_140KB_DISK); //$NON-NLS-1$
+		ac.execute(new String[] { "-import", image.getPath(), source }); //$NON-NLS-1$
+		FormattedDisk disk = new Disk(image.getPath()).getFormattedDisks()[0];
+		List<FileEntry> files = disk.getFiles();
+		assertEquals(2, files.size());
+		// Directories are made before the files are written
+		ProdosFileEntry first = (ProdosFileEntry) files.get(1);
+		assertEquals("FIRST", first.getFilename()); //$NON-NLS-1$
+		assertEquals("BIN", first.getFiletype()); //$NON-NLS-1$
+		assertEquals(0x2000, first.getAuxiliaryType());
+		assertTrue(Arrays.equals(createData(1000), first.getFileData()));
+		DirectoryEntry directory = (DirectoryEntry) files.get(0);
+		assertEquals("SUBDIR", ((FileEntry) directory).getFilename()); //$NON-NLS-1$
+		FileEntry last = directory.getFiles().get(0);
+		assertEquals("LAST", last.getFilename()); //$NON-NLS-1$
+		assertEquals("TXT", last.getFiletype()); //$NON-NLS-1$
+		assertTrue(Arrays.equals(createData(3000), last.getFileData()));
+		assertFalse(disk.checkDisk(false).hasProblems());
+	}
+
+	protected void writeHostFile(File file, byte[] data) throws IOException {
+		FileOutputStream output = new FileOutputStream(file);
+		try {
+			output.write(data);
+		} finally {
+			output.close();
+		}
+	}
+
+	/**
+	 * A ProDOS image with a file, a file of an unknown storage type and a
+	 * file in a directory.
+	 */
+	protected String createArchiveImage() throws Exception {
+		File image = File.createTempFile("acTest", ".po"); //$NON-NLS-1$ //$NON-NLS-2$
+		image.deleteOnExit();
+		ByteArrayImageLayout layout = new ByteArrayImageLayout(Disk.APPLE_140KB_DISK);
+		ProdosFormatDisk disk = ProdosFormatDisk.create(image.getPath(), "ARCHIVE", //$NON-NLS-1$
+				new ProdosOrder(layout))[0];
+		FileEntry entry = disk.createFile();
+		entry.setFilename("FIRST"); //$NON-NLS-1$
+		entry.setFiletype("BIN"); //$NON-NLS-1$
+		entry.setFileData(createData(1000));
+		ProdosFileEntry broken = (ProdosFileEntry) disk.createFile();
+		broken.setFilename("BROKEN"); //$NON-NLS-1$
+		broken.setFiletype("BIN"); //$NON-NLS-1$
+		broken.setFileData(createData(2000));
+		broken.setStorageType(0x05);
+		entry = disk.createDirectory("SUBDIR").createFile(); //$NON-NLS-1$
+		entry.setFilename("LAST"); //$NON-NLS-1$
+		entry.setFiletype("BIN"); //$NON-NLS-1$
+		entry.setFileData(createData(3000));
+		disk.save();
+		return image.getPath();
+	}
+
+	protected byte[] readFully(InputStream input) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int length;
+		while ((length = input.read(buffer)) > 0) {
+			output.write(buffer, 0, length);
+		}
+		return output.toByteArray();
+	}
+
+	protected byte[] createData(int length) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) (i * 7 + length);
+		}
+		return data;
+	}
+
+	/**
+	 * The reports on images "0" and up, with the one named failed (if any)
+	 * in its place as an error.
+	 */
+	protected String expectedReports(String failed) {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		PrintStream out = new PrintStream(buffer);
+		for (int i = 0; i < IMAGES; i++) {
+			String imageName = Integer.toString(i);
+			if (imageName.equals(failed)) {
+				out.println(imageName + ": unreadable"); //$NON-NLS-1$
+				out.println();
+			} else {
+				out.println(imageName);
+			}
+		}
+		out.flush();
+		return buffer.toString();
+	}
+
+	protected String[] insertCommand(String[] args, String command) {
+		String[] result = new String[args.length + 1];
+		result[0] = args[0];
+		result[1] = args[1];
+		result[2] = command;
+		System.arraycopy(args, 2, result, 3, args.length - 2);
+		return result;
+	}
+
+	interface Command {
+		void run() throws Exception;
+	}
+
+	protected String captureOutput(Command command) throws Exception {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(buffer));
+		try {
+			command.run();
+		} finally {
+			System.out.flush();
+			System.setOut(out);
+		}
+		return buffer.toString();
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2002 by Robert Greene
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.util;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Test reading JSON text.
+ */
+public class JsonReaderTest extends TestCase {
+	public JsonReaderTest(String name) {
+		super(name);
+	}
+
+	public static void main(String[] args) {
+		junit.textui.TestRunner.run(JsonReaderTest.class);
+	}
+
+	/**
+	 * The members of an object keep the order they were written in.
+	 */
+	@SuppressWarnings("unchecked")
+	public void testObject() throws IOException {
+		Map<String,Object> object = (Map<String,Object>) read(
+				"{ \"image\": \"game.po\", \"blocks\": 1600, \"locked\": true,\n" //$NON-NLS-1$
+				+ "  \"ratio\": 1.5, \"none\": null, \"files\": [ {}, [] ] }"); //$NON-NLS-1$
+		Iterator<String> keys = object.keySet().iterator();
+		assertEquals("image", keys.next()); //$NON-NLS-1$
+		assertEquals("blocks", keys.next()); //$NON-NLS-1$
+		assertEquals("game.po", object.get("image")); //$NON-NLS-1$ //$NON-NLS-2$
+		assertEquals(Long.valueOf(1600), object.get("blocks")); //$NON-NLS-1$
+		assertEquals(Boolean.TRUE, object.get("locked")); //$NON-NLS-1$
+		assertEquals(Double.valueOf(1.5), object.get("ratio")); //$NON-NLS-1$
+		assertTrue(object.containsKey("none")); //$NON-NLS-1$
+		assertNull(object.get("none")); //$NON-NLS-1$
+		List<Object> files = (List<Object>) object.get("files"); //$NON-NLS-1$
+		assertEquals(2, files.size());
+		assertTrue(files.get(0) instanceof Map);
+		assertTrue(files.get(1) instanceof List);
+	}
+
+	public void testNumbers() throws IOException {
+		assertEquals(Long.valueOf(-42), read("-42")); //$NON-NLS-1$
+		assertEquals(Double.valueOf(2000.0), read("2e3")); //$NON-NLS-1$
+		assertEquals(Double.valueOf(-0.25), read(" -0.25 ")); //$NON-NLS-1$
+	}
+
+	public void testEscapes() throws IOException {
+		assertEquals("a\"b\\c/d\n\u00e9", read("\"a\\\"b\\\\c\\/d\\n\\u00E9\"")); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	/**
+	 * Bad text is reported with the line it is on.
+	 */
+	public void testErrors() {
+		assertError("{ \"a\": 1,\n  \"b\" 2 }", 2); //$NON-NLS-1$
+		assertError("[ 1, 2", 1); //$NON-NLS-1$
+		assertError("\"open", 1); //$NON-NLS-1$
+		assertError("tru", 1); //$NON-NLS-1$
+		assertError("1 2", 1); //$NON-NLS-1$
+		assertError("-", 1); //$NON-NLS-1$
+	}
+
+	protected Object read(String text) throws IOException {
+		return new JsonReader(new StringReader(text)).read();
+	}
+
+	protected void assertError(String text, int line) {
+		try {
+			read(text);
+			fail("Read bad JSON: " + text); //$NON-NLS-1$
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("JSON line " + line + ":")); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2002 by Robert Greene
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.shrinkit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Test that a NuFX archive file has its headers read when it is opened and
+ * its thread data read only when that is used.
+ */
+public class NuFileArchiveTest extends TestCase {
+	public NuFileArchiveTest(String name) {
+		super(name);
+	}
+
+	public static void main(String[] args) {
+		junit.textui.TestRunner.run(NuFileArchiveTest.class);
+	}
+
+	public void testHeaders() throws IOException {
+		File file = createArchive(ThreadFormat.UNCOMPRESSED);
+		NuFileArchive archive = new NuFileArchive(file);
+		try {
+			assertEquals(2, archive.getMasterHeaderBlock().getTotalRecords());
+			List<HeaderBlock> headers = archive.getHeaderBlocks();
+			assertEquals(2, headers.size());
+			assertEquals("FIRST", headers.get(0).getFilename()); //$NON-NLS-1$
+			assertEquals(0x06, headers.get(0).getFileType());
+			assertEquals(0x2000, headers.get(0).getExtraType());
+			assertEquals(0xc3, headers.get(0).getAccess());
+			assertEquals("DIR/SECOND", headers.get(1).getFilename()); //$NON-NLS-1$
+			assertEquals("SECOND", headers.get(1).getFinalFilename()); //$NON-NLS-1$
+			assertEquals(0x04, headers.get(1).getFileType());
+		} finally {
+			archive.close();
+		}
+	}
+
+	/**
+	 * Thread data which has been used stays available once the archive is
+	 * closed; thread data which has not been used was never read.
+	 */
+	public void testThreadDataOnDemand() throws IOException {
+		File file = createArchive(ThreadFormat.UNCOMPRESSED);
+		NuFileArchive archive = new NuFileArchive(file);
+		List<HeaderBlock> headers = archive.getHeaderBlocks();
+		ThreadRecord first = headers.get(0).getDataForkInputStream();
+		ThreadRecord second = headers.get(1).getDataForkInputStream();
+		assertEquals(8192, first.getThreadEof());
+		assertEquals(1000, second.getThreadEof());
+		assertTrue(Arrays.equals(createData(8192), read(first.getInputStream(), 8192)));
+		archive.close();
+		assertTrue(Arrays.equals(createData(8192), first.getThreadData()));
+		try {
+			second.getThreadData();
+			fail("Thread data was read before it was used"); //$NON-NLS-1$
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * The data read from the file on demand matches the data read from a
+	 * stream in one pass.
+	 */
+	public void testFileMatchesStream() throws IOException {
+		File file = createArchive(ThreadFormat.DYNAMIC_LZW2);
+		NuFileArchive archive = new NuFileArchive(file);
+		try {
+			InputStream input = new FileInputStream(file);
+			NuFileArchive stream;
+			try {
+				stream = new NuFileArchive(input);
+			} finally {
+				input.close();
+			}
+			assertEquals(stream.getArchiveSize(), archive.getArchiveSize());
+			ThreadRecord fromFile = archive.getHeaderBlocks().get(0).getDataForkInputStream();
+			ThreadRecord fromStream = stream.getHeaderBlocks().get(0).getDataForkInputStream();
+			assertEquals(ThreadFormat.DYNAMIC_LZW2, fromFile.getThreadFormat());
+			assertTrue(fromFile.getCompThreadEof() < fromFile.getThreadEof());
+			assertTrue(Arrays.equals(fromStream.getThreadData(), fromFile.getThreadData()));
+			assertTrue(Arrays.equals(createData(8192), read(fromFile.getInputStream(), 8192)));
+		} finally {
+			archive.close();
+		}
+	}
+
+	protected File createArchive(ThreadFormat threadFormat) throws IOException {
+		Date now = new Date();
+		NuFileArchiveWriter writer = new NuFileArchiveWriter(now);
+		writer.setThreadFormat(threadFormat);
+		writer.addFile("FIRST", 0xc3, 0x06, 0x2000, now, now, createData(8192), null); //$NON-NLS-1$
+		writer.addFile("DIR:SECOND", 0xe3, 0x04, 0, now, now, createData(1000), null); //$NON-NLS-1$
+		File file = File.createTempFile("NuFileArchiveTest", ".shk"); //$NON-NLS-1$ //$NON-NLS-2$
+		file.deleteOnExit();
+		FileOutputStream output = new FileOutputStream(file);
+		try {
+			writer.write(output);
+		} finally {
+			output.close();
+		}
+		return file;
+	}
+
+	protected byte[] createData(int length) {
+		byte[] data = new byte[length];
+		for (int i=0; i<length; i++) {
+			data[i] = (byte) ((i / 32) % 2 == 0 ? i : 0);
+		}
+		return data;
+	}
+
+	/**
+	 * Read exactly length bytes; the LZW streams do not mark the end.
+	 */
+	protected byte[] read(InputStream input, int length) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream(length);
+		while (output.size() < length) {
+			int b = input.read();
+			if (b == -1) break;
+			output.write(b);
+		}
+		return output.toByteArray();
+	}
+}
@@ -0,0 +1,302 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2002 by Robert Greene
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.shrinkit;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.webcodepro.applecommander.storage.DirectoryEntry;
+import com.webcodepro.applecommander.storage.Disk;
+import com.webcodepro.applecommander.storage.DiskFullException;
+import com.webcodepro.applecommander.storage.FileEntry;
+import com.webcodepro.applecommander.storage.os.dos33.DosFormatDisk;
+import com.webcodepro.applecommander.storage.os.prodos.ProdosFileEntry;
+import com.webcodepro.applecommander.storage.os.prodos.ProdosFormatDisk;
+import com.webcodepro.applecommander.storage.physical.ByteArrayImageLayout;
+import com.webcodepro.applecommander.storage.physical.DosOrder;
+import com.webcodepro.applecommander.storage.physical.ProdosOrder;
+import com.webcodepro.shrinkit.io.BinaryIIInputStream;
+
+/**
+ * Test packing disks into, and unpacking disks from, ShrinkIt and Binary II
+ * archives.
+ */
+public class UtilitiesTest extends TestCase {
+	/** 2026-10-18 12:00 UTC, so that the archives written never change. */
+	private static final Date ARCHIVE_WHEN = new Date(1792324800000L);
+
+	public UtilitiesTest(String name) {
+		super(name);
+	}
+
+	public static void main(String[] args) {
+		junit.textui.TestRunner.run(UtilitiesTest.class);
+	}
+
+	public void testShkAccess() throws IOException, DiskFullException {
+		File shk = createTempFile(".shk"); //$NON-NLS-1$
+		Utilities.packSHKFile(createProdosDisk(), shk.getPath(), ARCHIVE_WHEN);
+		NuFileArchive archive = new NuFileArchive(shk);
+		try {
+			List<HeaderBlock> headers = archive.getHeaderBlocks();
+			assertEquals(2, headers.size());
+			assertEquals("LOCKED", headers.get(0).getFilename()); //$NON-NLS-1$
+			assertEquals(0x01, headers.get(0).getAccess());
+			assertEquals("OPEN", headers.get(1).getFilename()); //$NON-NLS-1$
+			assertEquals(0xc3, headers.get(1).getAccess());
+		} finally {
+			archive.close();
+		}
+	}
+
+	public void testBnyAccess() throws IOException, DiskFullException {
+		File bny = createTempFile(".bny"); //$NON-NLS-1$
+		Utilities.packBNYFile(createProdosDisk(), bny.getPath());
+		BinaryIIInputStream bs = new BinaryIIInputStream(new FileInputStream(bny));
+		try {
+			assertEquals(0x01, bs.getNextEntry().getAccess());
+			assertEquals(0xc3, bs.getNextEntry().getAccess());
+		} finally {
+			bs.close();
+		}
+	}
+
+	/**
+	 * DOS 3.3 files have only a lock, which becomes read only access.
+	 */
+	public void testDosAccess() throws IOException, DiskFullException {
+		ByteArrayImageLayout layout = new ByteArrayImageLayout(Disk.APPLE_140KB_DISK);
+		DosFormatDisk disk = DosFormatDisk.create("test.dsk", new DosOrder(layout))[0]; //$NON-NLS-1$
+		writeFile(disk.createFile(), "LOCKED", "T", 100).setLocked(true); //$NON-NLS-1$ //$NON-NLS-2$
+		writeFile(disk.createFile(), "OPEN", "T", 100); //$NON-NLS-1$ //$NON-NLS-2$
+		File shk = createTempFile(".shk"); //$NON-NLS-1$
+		Utilities.packSHKFile(disk, shk.getPath(), ARCHIVE_WHEN);
+		NuFileArchive archive = new NuFileArchive(shk);
+		try {
+			List<HeaderBlock> headers = archive.getHeaderBlocks();
+			assertEquals(0x01, headers.get(0).getAccess());
+			assertEquals(NuFileArchiveWriter.DEFAULT_ACCESS, headers.get(1).getAccess());
+		} finally {
+			archive.close();
+		}
+	}
+
+	/**
+	 * A disk image in an SDK comes back byte for byte.
+	 */
+	public void testUnpackDiskImage() throws IOException, DiskFullException {
+		ProdosFormatDisk disk = createProdosDisk();
+		File sdk = createTempFile(".sdk"); //$NON-NLS-1$
+		Utilities.packSDKFile(disk, sdk.getPath(), ARCHIVE_WHEN);
+		byte[] image = Utilities.unpackSHKFile(sdk.getPath());
+		assertTrue(Arrays.equals(disk.getDiskImageManager().getDiskImage(), image));
+	}
+
+	/**
+	 * A few small files fit on the smallest standard floppy.
+	 */
+	public void testUnpackSmallArchive() throws IOException, DiskFullException {
+		File shk = createTempFile(".shk"); //$NON-NLS-1$
+		Utilities.packSHKFile(createProdosDisk(), shk.getPath(), ARCHIVE_WHEN);
+		byte[] image = Utilities.unpackSHKFile(shk.getPath());
+		assertEquals(Disk.APPLE_140KB_DISK, image.length);
+		ProdosFormatDisk disk = openImage(image);
+		List<FileEntry> files = disk.getFiles();
+		assertEquals(2, files.size());
+		assertEquals("LOCKED", files.get(0).getFilename()); //$NON-NLS-1$
+		assertTrue(Arrays.equals(createData(1000), files.get(0).getFileData()));
+		assertTrue(Arrays.equals(createData(100), files.get(1).getFileData()));
+	}
+
+	/**
+	 * Past 800K the image is sized to the files, leaving almost no blocks
+	 * free, and every file is read back from the blocks it was given.
+	 */
+	public void testUnpackLargeArchive() throws IOException {
+		NuFileArchiveWriter writer = new NuFileArchiveWriter(ARCHIVE_WHEN);
+		writer.setThreadFormat(ThreadFormat.DYNAMIC_LZW2);
+		for (int i=0; i<6; i++) {
+			writer.addFile("DIR:FILE" + i, NuFileArchiveWriter.DEFAULT_ACCESS, 0x06, 0, //$NON-NLS-1$
+					ARCHIVE_WHEN, ARCHIVE_WHEN, createData(150000 + i), null);
+		}
+		File shk = createTempFile(".shk"); //$NON-NLS-1$
+		FileOutputStream output = new FileOutputStream(shk);
+		try {
+			writer.write(output);
+		} finally {
+			output.close();
+		}
+		byte[] image = Utilities.unpackSHKFile(shk.getPath());
+		assertTrue(image.length > Disk.APPLE_800KB_DISK);
+		assertEquals(0, image.length % Disk.BLOCK_SIZE);
+		ProdosFormatDisk disk = openImage(image);
+		assertTrue(disk.getFreeBlocks() <= 2);
+		assertFalse(disk.checkDisk(false).hasProblems());
+		DirectoryEntry directory = (DirectoryEntry) disk.getFiles().get(0);
+		List<FileEntry> files = directory.getFiles();
+		assertEquals(6, files.size());
+		for (int i=0; i<6; i++) {
+			assertEquals("FILE" + i, files.get(i).getFilename()); //$NON-NLS-1$
+			assertTrue(Arrays.equals(createData(150000 + i), files.get(i).getFileData()));
+		}
+	}
+
+	/**
+	 * Files packed into a BNY, directories included, come back unchanged
+	 * when it is unpacked.
+	 */
+	public void testBnyRoundTrip() throws IOException, DiskFullException {
+		File bny = createTempFile(".bny"); //$NON-NLS-1$
+		Utilities.packBNYFile(createNestedDisk(), bny.getPath());
+		checkNestedDisk(openImage(Utilities.unpackBNYFile(bny.getPath(), 0)));
+	}
+
+	/**
+	 * A BXY is an SHK wrapped in Binary II.
+	 */
+	public void testBxyRoundTrip() throws IOException, DiskFullException {
+		File bxy = createTempFile(".bxy"); //$NON-NLS-1$
+		Utilities.packSHKFile(createNestedDisk(), bxy.getPath(), ARCHIVE_WHEN);
+		BinaryIIInputStream bs = new BinaryIIInputStream(new FileInputStream(bxy));
+		try {
+			BinaryIIHeader header = bs.getNextEntry();
+			assertTrue(header.isNufxArchive());
+			assertNull(bs.getNextEntry());
+		} finally {
+			bs.close();
+		}
+		checkNestedDisk(openImage(Utilities.unpackSHKFile(bxy.getPath())));
+	}
+
+	/**
+	 * Packing the same disk twice makes the same archive, with the given
+	 * time in it.
+	 */
+	public void testReproducibleArchives() throws IOException, DiskFullException {
+		ProdosFormatDisk disk = createNestedDisk();
+		String[] suffixes = { ".shk", ".sdk", ".bxy" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		for (int i=0; i<suffixes.length; i++) {
+			File file = createTempFile(suffixes[i]);
+			byte[][] archives = new byte[2][];
+			for (int j=0; j<archives.length; j++) {
+				if (i == 1) {
+					Utilities.packSDKFile(disk, file.getPath(), ARCHIVE_WHEN);
+				} else {
+					Utilities.packSHKFile(disk, file.getPath(), ARCHIVE_WHEN);
+				}
+				archives[j] = readFile(file);
+			}
+			assertTrue(suffixes[i], Arrays.equals(archives[0], archives[1]));
+		}
+		File shk = createTempFile(".shk"); //$NON-NLS-1$
+		Utilities.packSHKFile(disk, shk.getPath(), ARCHIVE_WHEN);
+		NuFileArchive archive = new NuFileArchive(shk);
+		try {
+			assertEquals(ARCHIVE_WHEN, archive.getMasterHeaderBlock().getArchiveCreateWhen());
+			assertEquals(ARCHIVE_WHEN, archive.getHeaderBlocks().get(0).getArchiveWhen());
+		} finally {
+			archive.close();
+		}
+	}
+
+	protected ProdosFormatDisk createNestedDisk() throws DiskFullException {
+		ProdosFormatDisk disk = createProdosDisk();
+		DirectoryEntry directory = disk.createDirectory("SUBDIR"); //$NON-NLS-1$
+		writeFile(directory.createFile(), "NESTED", "BIN", 20000); //$NON-NLS-1$ //$NON-NLS-2$
+		return disk;
+	}
+
+	protected void checkNestedDisk(ProdosFormatDisk disk) {
+		List<FileEntry> files = disk.getFiles();
+		assertEquals(3, files.size());
+		assertEquals("LOCKED", files.get(0).getFilename()); //$NON-NLS-1$
+		assertTrue(Arrays.equals(createData(1000), files.get(0).getFileData()));
+		assertEquals("OPEN", files.get(1).getFilename()); //$NON-NLS-1$
+		assertTrue(Arrays.equals(createData(100), files.get(1).getFileData()));
+		assertEquals("SUBDIR", files.get(2).getFilename()); //$NON-NLS-1$
+		FileEntry nested = ((DirectoryEntry) files.get(2)).getFiles().get(0);
+		assertEquals("NESTED", nested.getFilename()); //$NON-NLS-1$
+		assertEquals("BIN", nested.getFiletype()); //$NON-NLS-1$
+		assertTrue(Arrays.equals(createData(20000), nested.getFileData()));
+		assertFalse(disk.checkDisk(false).hasProblems());
+	}
+
+	protected ProdosFormatDisk openImage(byte[] image) {
+		return new ProdosFormatDisk("test.po", new ProdosOrder(new ByteArrayImageLayout(image))); //$NON-NLS-1$
+	}
+
+	/**
+	 * A ProDOS disk with a locked file and a file which may be destroyed,
+	 * renamed, read and written.
+	 */
+	protected ProdosFormatDisk createProdosDisk() throws DiskFullException {
+		ByteArrayImageLayout layout = new ByteArrayImageLayout(Disk.APPLE_140KB_DISK);
+		ProdosFormatDisk disk = ProdosFormatDisk.create("test.po", "TEST", //$NON-NLS-1$ //$NON-NLS-2$
+			new ProdosOrder(layout))[0];
+		ProdosFileEntry locked = (ProdosFileEntry) writeFile(disk.createFile(), "LOCKED", "BIN", 1000); //$NON-NLS-1$ //$NON-NLS-2$
+		locked.setCanDestroy(false);
+		locked.setCanRename(false);
+		locked.setCanWrite(false);
+		locked.setHasChanged(false);
+		ProdosFileEntry open = (ProdosFileEntry) writeFile(disk.createFile(), "OPEN", "TXT", 100); //$NON-NLS-1$ //$NON-NLS-2$
+		open.setHasChanged(false);
+		return disk;
+	}
+
+	protected FileEntry writeFile(FileEntry entry, String filename, String filetype, int length)
+			throws DiskFullException {
+		entry.setFilename(filename);
+		entry.setFiletype(filetype);
+		entry.setFileData(createData(length));
+		return entry;
+	}
+
+	protected byte[] createData(int length) {
+		byte[] data = new byte[length];
+		for (int i=0; i<length; i++) {
+			data[i] = (byte) (i * 3 + i / 1000);
+		}
+		return data;
+	}
+
+	protected byte[] readFile(File file) throws IOException {
+		byte[] data = new byte[(int) file.length()];
+		FileInputStream input = new FileInputStream(file);
+		try {
+			assertEquals(data.length, input.read(data));
+		} finally {
+			input.close();
+		}
+		return data;
+	}
+
+	protected File createTempFile(String suffix) throws IOException {
+		File file = File.createTempFile("UtilitiesTest", suffix); //$NON-NLS-1$
+		file.deleteOnExit();
+		return file;
+	}
+}
@@ -0,0 +1,188 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2002 by Robert Greene
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.shrinkit.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+
+import junit.framework.TestCase;
+
+import com.webcodepro.shrinkit.BinaryIIHeader;
+
+/**
+ * Test writing and reading Binary II streams.
+ */
+public class BinaryIIStreamTest extends TestCase {
+	public BinaryIIStreamTest(String name) {
+		super(name);
+	}
+
+	public static void main(String[] args) {
+		junit.textui.TestRunner.run(BinaryIIStreamTest.class);
+	}
+
+	public void testRoundTrip() throws IOException {
+		Date when = createDate();
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		BinaryIIOutputStream bs = new BinaryIIOutputStream(output, 3);
+		bs.putNextEntry(createHeader("DIR", BinaryIIHeader.DIRECTORY_FILETYPE, 0, 0, when)); //$NON-NLS-1$
+		bs.putNextEntry(createHeader("DIR/PROGRAM", 0x06, 0x2000, 300, when)); //$NON-NLS-1$
+		bs.write(createData(300), 0, 300);
+		bs.putNextEntry(createHeader("NOTES", 0x04, 0, 256, when)); //$NON-NLS-1$
+		byte[] notes = createData(256);
+		bs.write(notes, 0, 100);
+		bs.write(notes, 100, 156);
+		bs.finish();
+		// Each file is padded out to 128 bytes
+		assertEquals(3 * 128 + 384 + 256, output.size());
+
+		BinaryIIInputStream is = new BinaryIIInputStream(new ByteArrayInputStream(output.toByteArray()));
+		BinaryIIHeader header = is.getNextEntry();
+		assertEquals("DIR", header.getFilename()); //$NON-NLS-1$
+		assertTrue(header.isDirectory());
+		assertEquals(2, header.getFilesToFollow());
+		assertEquals(-1, is.read());
+		header = is.getNextEntry();
+		assertEquals("DIR/PROGRAM", header.getFilename()); //$NON-NLS-1$
+		assertEquals("PROGRAM", header.getFinalFilename()); //$NON-NLS-1$
+		assertEquals(0x06, header.getFileType());
+		assertEquals(0x2000, header.getAuxType());
+		assertEquals(0xe3, header.getAccess());
+		assertEquals(300, header.getEof());
+		assertEquals(when, header.getModWhen());
+		assertEquals(when, header.getCreateWhen());
+		byte[] data = new byte[300];
+		is.readFully(data, 0, data.length);
+		assertTrue(Arrays.equals(createData(300), data));
+		assertEquals(-1, is.read());
+		header = is.getNextEntry();
+		assertEquals("NOTES", header.getFilename()); //$NON-NLS-1$
+		assertEquals(0, header.getFilesToFollow());
+		assertNull(is.getNextEntry());
+	}
+
+	/**
+	 * Whatever is left of a file is skipped by the next getNextEntry.
+	 */
+	public void testSkipUnreadData() throws IOException {
+		byte[] archive = createArchive(1000, 50);
+		BinaryIIInputStream is = new BinaryIIInputStream(new ByteArrayInputStream(archive));
+		is.getNextEntry();
+		assertEquals(createData(1000)[0] & 0xff, is.read());
+		assertEquals(10, is.skip(10));
+		BinaryIIHeader header = is.getNextEntry();
+		assertEquals("SECOND", header.getFilename()); //$NON-NLS-1$
+		byte[] data = new byte[50];
+		assertEquals(50, is.read(data, 0, 100));
+		assertTrue(Arrays.equals(createData(50), data));
+		assertNull(is.getNextEntry());
+	}
+
+	public void testTruncated() throws IOException {
+		byte[] archive = createArchive(1000, 50);
+		BinaryIIInputStream is = new BinaryIIInputStream(
+				new ByteArrayInputStream(archive, 0, 128 + 500));
+		is.getNextEntry();
+		try {
+			is.readFully(new byte[1000], 0, 1000);
+			fail("A short file was read in full"); //$NON-NLS-1$
+		} catch (EOFException e) {
+			// expected
+		}
+	}
+
+	public void testNotBinaryII() {
+		byte[] archive = new byte[256];
+		try {
+			new BinaryIIInputStream(new ByteArrayInputStream(archive)).getNextEntry();
+			fail("Zeros were read as a Binary II header"); //$NON-NLS-1$
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * The stream will not take more data than the header gives, nor end a
+	 * file that is short.
+	 */
+	public void testLengthChecks() throws IOException {
+		BinaryIIOutputStream bs = new BinaryIIOutputStream(new ByteArrayOutputStream(), 2);
+		bs.putNextEntry(createHeader("FIRST", 0x06, 0, 10, createDate())); //$NON-NLS-1$
+		try {
+			bs.write(new byte[11], 0, 11);
+			fail("Data was written past the EOF"); //$NON-NLS-1$
+		} catch (IOException e) {
+			// expected
+		}
+		bs.write(new byte[5], 0, 5);
+		try {
+			bs.putNextEntry(createHeader("SECOND", 0x06, 0, 10, createDate())); //$NON-NLS-1$
+			fail("A short file was ended"); //$NON-NLS-1$
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	protected byte[] createArchive(int firstLength, int secondLength) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		BinaryIIOutputStream bs = new BinaryIIOutputStream(output, 2);
+		bs.putNextEntry(createHeader("FIRST", 0x06, 0, firstLength, createDate())); //$NON-NLS-1$
+		bs.write(createData(firstLength), 0, firstLength);
+		bs.putNextEntry(createHeader("SECOND", 0x06, 0, secondLength, createDate())); //$NON-NLS-1$
+		bs.write(createData(secondLength), 0, secondLength);
+		bs.finish();
+		return output.toByteArray();
+	}
+
+	protected BinaryIIHeader createHeader(String filename, int fileType, int auxType, int eof, Date when) {
+		BinaryIIHeader header = new BinaryIIHeader();
+		header.setFilename(filename);
+		header.setFileType(fileType);
+		header.setAuxType(auxType);
+		header.setStorageType(fileType == BinaryIIHeader.DIRECTORY_FILETYPE ? 0x0d : 1);
+		header.setEof(eof);
+		header.setModWhen(when);
+		header.setCreateWhen(when);
+		return header;
+	}
+
+	/**
+	 * ProDOS dates are kept to the minute.
+	 */
+	protected Date createDate() {
+		Calendar calendar = Calendar.getInstance();
+		calendar.set(1988, Calendar.MAY, 12, 14, 30, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		return calendar.getTime();
+	}
+
+	protected byte[] createData(int length) {
+		byte[] data = new byte[length];
+		for (int i=0; i<length; i++) {
+			data[i] = (byte) (i * 11 + 1);
+		}
+		return data;
+	}
+}
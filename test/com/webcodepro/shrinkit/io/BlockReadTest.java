@@ -0,0 +1,135 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2002 by Robert Greene
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.shrinkit.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Test that reading the ShrinkIt input streams a block at a time gives the
+ * same data (and CRCs) as reading them a byte at a time.
+ */
+public class BlockReadTest extends TestCase {
+	private static final int CHUNK_SIZE = 4096;
+
+	public BlockReadTest(String name) {
+		super(name);
+	}
+
+	public static void main(String[] args) {
+		junit.textui.TestRunner.run(BlockReadTest.class);
+	}
+
+	public void testRle() throws IOException {
+		byte[] data = createData(10000);
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		RleOutputStream rle = new RleOutputStream(encoded, 0xdb);
+		rle.write(data, 0, data.length);
+		rle.flush();
+		assertTrue(encoded.size() < data.length);
+		byte[] bytes = read(new RleInputStream(new ByteArrayInputStream(encoded.toByteArray()), 0xdb),
+				data.length, false);
+		byte[] blocks = read(new RleInputStream(new ByteArrayInputStream(encoded.toByteArray()), 0xdb),
+				data.length, true);
+		assertTrue(Arrays.equals(data, bytes));
+		assertTrue(Arrays.equals(data, blocks));
+	}
+
+	public void testLittleEndianCrc() throws IOException {
+		byte[] data = createData(5000);
+		LittleEndianByteInputStream bytes = new LittleEndianByteInputStream(data);
+		read(bytes, data.length, false);
+		LittleEndianByteInputStream blocks = new LittleEndianByteInputStream(data);
+		read(blocks, data.length, true);
+		assertEquals(bytes.getCrcValue(), blocks.getCrcValue());
+		assertEquals(data.length, blocks.getTotalBytesRead());
+		LittleEndianByteInputStream array = new LittleEndianByteInputStream(data);
+		array.readBytes(data.length);
+		assertEquals(bytes.getCrcValue(), array.getCrcValue());
+	}
+
+	/**
+	 * The data mixes chunks which RLE, LZW and neither suit, so each kind
+	 * of LZW/2 chunk is read.
+	 */
+	public void testLzw2() throws IOException {
+		byte[] data = new byte[5 * CHUNK_SIZE];
+		byte[] pattern = createData(CHUNK_SIZE);
+		System.arraycopy(pattern, 0, data, 0, CHUNK_SIZE);
+		byte[] random = new byte[CHUNK_SIZE];
+		new Random(32).nextBytes(random);
+		System.arraycopy(random, 0, data, CHUNK_SIZE, CHUNK_SIZE);
+		for (int i=2*CHUNK_SIZE; i<data.length; i++) {
+			data[i] = (byte) ("LZW/2 ".charAt(i % 6)); //$NON-NLS-1$
+		}
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		NufxLzw2OutputStream lzw = new NufxLzw2OutputStream(
+				new LittleEndianByteOutputStream(encoded));
+		lzw.write(data, 0, data.length);
+		lzw.close();
+		NufxLzw2InputStream bytes = new NufxLzw2InputStream(
+				new LittleEndianByteInputStream(encoded.toByteArray()));
+		NufxLzw2InputStream blocks = new NufxLzw2InputStream(
+				new LittleEndianByteInputStream(encoded.toByteArray()));
+		assertTrue(Arrays.equals(data, read(bytes, data.length, false)));
+		assertTrue(Arrays.equals(data, read(blocks, data.length, true)));
+		assertEquals(bytes.getDataCrc(), blocks.getDataCrc());
+	}
+
+	/**
+	 * Runs of repeated bytes between stretches of counting bytes.
+	 */
+	protected byte[] createData(int length) {
+		byte[] data = new byte[length];
+		for (int i=0; i<length; i++) {
+			data[i] = (byte) (((i / 64) % 2 == 0) ? i : 0xdb);
+		}
+		return data;
+	}
+
+	/**
+	 * Read length bytes, either one at a time or in blocks of odd sizes.
+	 */
+	protected byte[] read(InputStream input, int length, boolean blocks) throws IOException {
+		byte[] data = new byte[length];
+		int count = 0;
+		int size = 1;
+		while (count < length) {
+			if (blocks) {
+				size = (size * 3 + 7) % 1500 + 1;
+				int n = input.read(data, count, Math.min(size, length - count));
+				if (n == -1) break;
+				count+= n;
+			} else {
+				int b = input.read();
+				if (b == -1) break;
+				data[count++] = (byte) b;
+			}
+		}
+		assertEquals(length, count);
+		return data;
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2002 by Robert Greene
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.shrinkit.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Test the generic LZW decoder, both on codes written by hand and on the
+ * output of the LZW encoder.
+ */
+public class LzwInputStreamTest extends TestCase {
+	public LzwInputStreamTest(String name) {
+		super(name);
+	}
+
+	public static void main(String[] args) {
+		junit.textui.TestRunner.run(LzwInputStreamTest.class);
+	}
+
+	/**
+	 * "ABABABA" is A, B, then the codes for AB and ABA; the last is the
+	 * code being defined as it is read.
+	 */
+	public void testDecodeCodes() throws IOException {
+		ByteArrayOutputStream codes = new ByteArrayOutputStream();
+		BitOutputStream bits = new BitOutputStream(codes, 9);
+		bits.write('A');
+		bits.write('B');
+		bits.write(0x101);
+		bits.write(0x103);
+		bits.writeRemainingBits();
+		assertEquals("ABABABA", new String(decode(codes.toByteArray(), 7, false))); //$NON-NLS-1$
+	}
+
+	public void testRepetitiveData() throws IOException {
+		byte[] data = new byte[20000];
+		for (int i=0; i<data.length; i++) {
+			data[i] = (byte) ("ABRACADABRA".charAt(i % 11)); //$NON-NLS-1$
+		}
+		checkRoundTrip(data);
+	}
+
+	/**
+	 * Random data fills the dictionary quickly, so the codes grow to 12
+	 * bits and the dictionary is cleared several times.
+	 */
+	public void testRandomData() throws IOException {
+		byte[] data = new byte[40000];
+		new Random(31).nextBytes(data);
+		checkRoundTrip(data);
+	}
+
+	public void testInvalidCode() throws IOException {
+		ByteArrayOutputStream codes = new ByteArrayOutputStream();
+		BitOutputStream bits = new BitOutputStream(codes, 9);
+		bits.write('A');
+		bits.write(0x1ff);
+		bits.writeRemainingBits();
+		try {
+			decode(codes.toByteArray(), 2, false);
+			fail("An undefined code was decoded"); //$NON-NLS-1$
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Encode the data with clear codes (as LZW/2 does) and check that it
+	 * decodes the same whether read a byte or a block at a time.
+	 */
+	protected void checkRoundTrip(byte[] data) throws IOException {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		LzwOutputStream lzw = new LzwOutputStream(new BitOutputStream(compressed, 9), true);
+		lzw.write(data, 0, data.length);
+		lzw.close();
+		assertTrue(Arrays.equals(data, decode(compressed.toByteArray(), data.length, false)));
+		assertTrue(Arrays.equals(data, decode(compressed.toByteArray(), data.length, true)));
+	}
+
+	protected byte[] decode(byte[] compressed, int length, boolean blocks) throws IOException {
+		LzwInputStream lzw = new LzwInputStream(new BitInputStream(
+				new ByteArrayInputStream(compressed), 9));
+		byte[] data = new byte[length];
+		int count = 0;
+		while (count < length) {
+			if (blocks) {
+				int n = lzw.read(data, count, Math.min(1000, length - count));
+				if (n == -1) break;
+				count+= n;
+			} else {
+				int b = lzw.read();
+				if (b == -1) break;
+				data[count++] = (byte) b;
+			}
+		}
+		assertEquals(length, count);
+		return data;
+	}
+}
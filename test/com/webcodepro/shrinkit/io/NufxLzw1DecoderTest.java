@@ -0,0 +1,191 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2002 by Robert Greene
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.shrinkit.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.webcodepro.shrinkit.CRC16;
+
+/**
+ * Test the LZW/1 decoder, both decoding chunks in parallel and reading
+ * through a <code>NufxLzw1InputStream</code>.  Both must give the same data
+ * and accept the same CRCs.
+ */
+public class NufxLzw1DecoderTest extends TestCase {
+	private static final int CHUNK_SIZE = 4096;
+	private static final int RLE_CHARACTER = 0xdb;
+	/**
+	 * "HELLO, WORLD\r" as an LZW/1 thread, laid out as ShrinkIt writes it:
+	 * CRC $7D62 (the whole 4K chunk, padding included), volume 0, RLE
+	 * character $DB, then one chunk of 61 bytes after RLE, with LZW applied.
+	 * The codes were worked out independently of <code>LzwOutputStream</code>.
+	 */
+	private static final byte[] HELLO_LZW1 = {
+		(byte)0x62, (byte)0x7d, (byte)0x00, (byte)0xdb, (byte)0x3d, (byte)0x00,
+		(byte)0x01, (byte)0x48, (byte)0x8a, (byte)0x30, (byte)0x61, (byte)0xf2,
+		(byte)0x84, (byte)0x05, (byte)0x88, (byte)0x2b, (byte)0x4f, (byte)0xa4,
+		(byte)0x30, (byte)0x21, (byte)0xd2, (byte)0x60, (byte)0x1b, (byte)0x80,
+		(byte)0x7f, (byte)0x0e, (byte)0x21, (byte)0x3e, (byte)0x8c, (byte)0x48,
+		(byte)0x71, (byte)0xa2, (byte)0x45, (byte)0x89, (byte)0x18, (byte)0x2b,
+		(byte)0x66, (byte)0xbc, (byte)0xe8, (byte)0x50, (byte)0x1e
+	};
+
+	public NufxLzw1DecoderTest(String name) {
+		super(name);
+	}
+
+	public static void main(String[] args) {
+		junit.textui.TestRunner.run(NufxLzw1DecoderTest.class);
+	}
+
+	public void testFixedVector() throws IOException {
+		byte[] data = "HELLO, WORLD\r".getBytes("US-ASCII"); //$NON-NLS-1$ //$NON-NLS-2$
+		byte[] padded = new byte[CHUNK_SIZE];
+		System.arraycopy(data, 0, padded, 0, data.length);
+		assertEquals(0x7d62, CRC16.compute(0, padded, 0, padded.length));
+		checkDecode(HELLO_LZW1, data, true);
+		checkDecode(HELLO_LZW1, data, false);
+	}
+
+	public void testParallelCrcOfPadding() throws IOException {
+		byte[] data = createData(3 * CHUNK_SIZE + 1000);
+		checkDecode(encode(data, true), data, true);
+	}
+
+	public void testStreamCrcOfPadding() throws IOException {
+		byte[] data = createData(3 * CHUNK_SIZE + 1000);
+		checkDecode(encode(data, true), data, false);
+	}
+
+	/**
+	 * A CRC of the data alone, leaving out the padding, is not what
+	 * ShrinkIt writes and is rejected.
+	 */
+	public void testCrcOfDataOnly() throws IOException {
+		byte[] data = createData(3 * CHUNK_SIZE + 1000);
+		assertRejected(encode(data, false), data.length);
+	}
+
+	public void testWholeChunks() throws IOException {
+		byte[] data = createData(2 * CHUNK_SIZE);
+		checkDecode(encode(data, false), data, true);
+		checkDecode(encode(data, false), data, false);
+	}
+
+	public void testBadCrc() throws IOException {
+		byte[] data = createData(CHUNK_SIZE + 10);
+		byte[] encoded = encode(data, true);
+		encoded[0]^= 0x55;
+		assertRejected(encoded, data.length);
+	}
+
+	protected void assertRejected(byte[] encoded, int length) {
+		for (boolean parallel : new boolean[] { true, false }) {
+			try {
+				decode(encoded, length, parallel);
+				fail("A bad CRC was accepted"); //$NON-NLS-1$
+			} catch (IOException e) {
+				// expected
+			}
+		}
+	}
+
+	protected void checkDecode(byte[] encoded, byte[] data, boolean parallel) throws IOException {
+		assertTrue(Arrays.equals(data, decode(encoded, data.length, parallel)));
+	}
+
+	protected byte[] decode(byte[] encoded, int length, boolean parallel) throws IOException {
+		byte[] target = new byte[length];
+		if (parallel) {
+			new NufxLzw1Decoder(encoded, length).decode(target, 0, length);
+		} else {
+			NufxLzw1Decoder.decodeStream(encoded, target, 0, length, true);
+		}
+		return target;
+	}
+
+	/**
+	 * Mixes runs (suited to RLE), repeated text (suited to LZW) and random
+	 * bytes (suited to neither), so that each kind of chunk is written.
+	 */
+	protected byte[] createData(int length) {
+		byte[] data = new byte[length];
+		Random random = new Random(34);
+		for (int i=0; i<length; i++) {
+			switch ((i / CHUNK_SIZE) % 3) {
+			case 0:		data[i] = (byte) (i / 100);
+						break;
+			case 1:		data[i] = (byte) ("LZW/1 ".charAt(i % 6)); //$NON-NLS-1$
+						break;
+			default:	data[i] = (byte) random.nextInt();
+						break;
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Write the data in LZW/1 layout: the CRC, volume and RLE character, then
+	 * for each 4K chunk, the length after RLE, the LZW flag and the data.
+	 * The last chunk is padded with zeros, and the CRC either covers that
+	 * padding or only the data.
+	 */
+	protected byte[] encode(byte[] data, boolean paddedCrc) throws IOException {
+		int chunks = (data.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		byte[] padded = new byte[chunks * CHUNK_SIZE];
+		System.arraycopy(data, 0, padded, 0, data.length);
+		CRC16 crc = new CRC16();
+		crc.update(padded, 0, paddedCrc ? padded.length : data.length);
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		LittleEndianByteOutputStream os = new LittleEndianByteOutputStream(encoded);
+		os.writeWord((int) crc.getValue());
+		os.write(0);
+		os.write(RLE_CHARACTER);
+		for (int chunk=0; chunk<chunks; chunk++) {
+			ByteArrayOutputStream rle = new ByteArrayOutputStream();
+			RleOutputStream rs = new RleOutputStream(rle, RLE_CHARACTER);
+			rs.write(padded, chunk * CHUNK_SIZE, CHUNK_SIZE);
+			rs.flush();
+			byte[] input = rle.toByteArray();
+			if (input.length >= CHUNK_SIZE) {
+				input = Arrays.copyOfRange(padded, chunk * CHUNK_SIZE, (chunk + 1) * CHUNK_SIZE);
+			}
+			ByteArrayOutputStream lzw = new ByteArrayOutputStream();
+			LzwOutputStream ls = new LzwOutputStream(new BitOutputStream(lzw, 9), false);
+			ls.write(input, 0, input.length);
+			ls.flush();
+			os.writeWord(input.length);
+			if (lzw.size() < input.length) {
+				os.write(1);
+				lzw.writeTo(os);
+			} else {
+				os.write(0);
+				os.write(input);
+			}
+		}
+		os.flush();
+		return encoded.toByteArray();
+	}
+}
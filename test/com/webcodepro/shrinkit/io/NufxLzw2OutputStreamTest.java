@@ -0,0 +1,136 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2002 by Robert Greene
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.shrinkit.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Test that data written by the LZW/2 encoder is read back unchanged by
+ * the LZW/2 decoder.
+ */
+public class NufxLzw2OutputStreamTest extends TestCase {
+	private static final int CHUNK_SIZE = 4096;
+
+	public NufxLzw2OutputStreamTest(String name) {
+		super(name);
+	}
+
+	public static void main(String[] args) {
+		junit.textui.TestRunner.run(NufxLzw2OutputStreamTest.class);
+	}
+
+	public void testEmpty() throws IOException {
+		assertEquals(0, encode(new byte[0]).length);
+	}
+
+	public void testShortData() throws IOException {
+		checkRoundTrip(createText(1));
+		checkRoundTrip(createText(100));
+	}
+
+	public void testChunkBoundaries() throws IOException {
+		checkRoundTrip(createText(CHUNK_SIZE));
+		checkRoundTrip(createText(CHUNK_SIZE + 1));
+		checkRoundTrip(createText(3 * CHUNK_SIZE + 123));
+	}
+
+	/**
+	 * Long runs of one byte are RLE encoded, in pieces of at most 256.
+	 */
+	public void testRuns() throws IOException {
+		byte[] data = new byte[2 * CHUNK_SIZE];
+		for (int i=0; i<data.length; i++) {
+			data[i] = (byte) (i / 1000);
+		}
+		byte[] encoded = checkRoundTrip(data);
+		assertTrue(encoded.length < 200);
+	}
+
+	/**
+	 * A chunk of random data is stored as it is, which resets the LZW
+	 * dictionary; the chunks after it must still decode.
+	 */
+	public void testStoredChunkBetweenLzwChunks() throws IOException {
+		byte[] data = createText(4 * CHUNK_SIZE);
+		byte[] random = new byte[CHUNK_SIZE];
+		new Random(35).nextBytes(random);
+		System.arraycopy(random, 0, data, CHUNK_SIZE, CHUNK_SIZE);
+		byte[] encoded = checkRoundTrip(data);
+		assertTrue(encoded.length < data.length);
+	}
+
+	/**
+	 * Enough varied data that the dictionary fills up and is cleared within
+	 * a chunk.
+	 */
+	public void testDictionaryClears() throws IOException {
+		byte[] data = new byte[10 * CHUNK_SIZE];
+		Random random = new Random(36);
+		for (int i=0; i<data.length; i++) {
+			data[i] = (byte) ('A' + random.nextInt(8));
+		}
+		checkRoundTrip(data);
+	}
+
+	/**
+	 * Encode the data, then decode it, checking that the last chunk is
+	 * padded with zeros.
+	 */
+	protected byte[] checkRoundTrip(byte[] data) throws IOException {
+		byte[] encoded = encode(data);
+		int padded = (data.length + CHUNK_SIZE - 1) / CHUNK_SIZE * CHUNK_SIZE;
+		NufxLzw2InputStream is = new NufxLzw2InputStream(new LittleEndianByteInputStream(encoded));
+		byte[] decoded = new byte[padded];
+		int count = 0;
+		while (count < padded) {
+			int n = is.read(decoded, count, padded - count);
+			if (n == -1) break;
+			count+= n;
+		}
+		assertEquals(padded, count);
+		assertTrue(Arrays.equals(data, Arrays.copyOf(decoded, data.length)));
+		for (int i=data.length; i<padded; i++) {
+			assertEquals(0, decoded[i]);
+		}
+		return encoded;
+	}
+
+	protected byte[] encode(byte[] data) throws IOException {
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		NufxLzw2OutputStream os = new NufxLzw2OutputStream(new LittleEndianByteOutputStream(encoded));
+		os.write(data, 0, data.length);
+		os.close();
+		return encoded.toByteArray();
+	}
+
+	protected byte[] createText(int length) {
+		byte[] data = new byte[length];
+		String text = "THE QUICK BROWN FOX JUMPS OVER THE LAZY DOG. "; //$NON-NLS-1$
+		for (int i=0; i<length; i++) {
+			data[i] = (byte) text.charAt((i + i / 300) % text.length());
+		}
+		return data;
+	}
+}